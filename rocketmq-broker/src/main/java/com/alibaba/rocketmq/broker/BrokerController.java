@@ -94,6 +94,8 @@ public class BrokerController {
     private ExecutorService pullMessageExecutor;
     private ExecutorService adminBrokerExecutor;
     private ExecutorService clientManageExecutor;
+    private ExecutorService putMessageFutureExecutor;
+    private ScheduledExecutorService putMessageTimeoutExecutor;
     private boolean updateMasterHAServerAddrPeriodically = false;
 
     private BrokerStats brokerStats;
@@ -101,6 +103,8 @@ public class BrokerController {
 
     private final BlockingQueue<Runnable> pullThreadPoolQueue;
 
+    private final BlockingQueue<Runnable> putMessageFutureThreadPoolQueue;
+
     private final FilterServerManager filterServerManager;
 
     private final BrokerStatsManager brokerStatsManager;
@@ -139,6 +143,8 @@ public class BrokerController {
         this.slaveSynchronize = new SlaveSynchronize(this);
 
         this.sendThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getSendThreadPoolQueueCapacity());
+        this.putMessageFutureThreadPoolQueue =
+                new LinkedBlockingQueue<Runnable>(this.brokerConfig.getPutMessageFutureThreadPoolQueueCapacity());
 
         this.pullThreadPoolQueue = new LinkedBlockingQueue<Runnable>(this.brokerConfig.getPullThreadPoolQueueCapacity());
 
@@ -198,6 +204,19 @@ public class BrokerController {
                     Executors.newFixedThreadPool(this.brokerConfig.getClientManageThreadPoolNums(), new ThreadFactoryImpl(
                         "ClientManageThread_"));
 
+            this.putMessageFutureExecutor = new ThreadPoolExecutor(//
+                this.brokerConfig.getPutMessageFutureThreadPoolNums(),//
+                this.brokerConfig.getPutMessageFutureThreadPoolNums(),//
+                1000 * 60,//
+                TimeUnit.MILLISECONDS,//
+                this.putMessageFutureThreadPoolQueue,//
+                new ThreadFactoryImpl("PutMessageFutureThread_"));
+
+            ScheduledThreadPoolExecutor timeoutExecutor =
+                    new ScheduledThreadPoolExecutor(1, new ThreadFactoryImpl("PutMessageTimeoutThread_"));
+            timeoutExecutor.setRemoveOnCancelPolicy(true);
+            this.putMessageTimeoutExecutor = timeoutExecutor;
+
             this.registerProcessor();
 
             this.brokerStats = new BrokerStats((DefaultMessageStore) this.messageStore);
@@ -464,6 +483,14 @@ public class BrokerController {
             this.sendMessageExecutor.shutdown();
         }
 
+        if (this.putMessageFutureExecutor != null) {
+            this.putMessageFutureExecutor.shutdown();
+        }
+
+        if (this.putMessageTimeoutExecutor != null) {
+            this.putMessageTimeoutExecutor.shutdown();
+        }
+
         if (this.pullMessageExecutor != null) {
             this.pullMessageExecutor.shutdown();
         }
@@ -686,6 +713,16 @@ public class BrokerController {
     }
 
 
+    public ExecutorService getPutMessageFutureExecutor() {
+        return putMessageFutureExecutor;
+    }
+
+
+    public ScheduledExecutorService getPutMessageTimeoutExecutor() {
+        return putMessageTimeoutExecutor;
+    }
+
+
     public ExecutorService getPullMessageExecutor() {
         return pullMessageExecutor;
     }
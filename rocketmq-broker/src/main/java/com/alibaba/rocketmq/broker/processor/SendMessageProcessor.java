@@ -54,12 +54,20 @@ import java.net.SocketAddress;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 
 /**
  * @author shijia.wxr
  */
 public class SendMessageProcessor extends AbstractSendMessageProcessor implements NettyRequestProcessor {
+    private final AtomicInteger asyncPutInFlight = new AtomicInteger(0);
 
     public SendMessageProcessor(final BrokerController brokerController) {
         super(brokerController);
@@ -78,8 +86,12 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
 	            }
 	            mqtraceContext = buildMsgContext(ctx, requestHeader);
 	            this.executeSendMessageHookBefore(ctx, request, mqtraceContext);
-	            final RemotingCommand response = this.sendMessage(ctx, request, mqtraceContext, requestHeader);
-	            this.executeSendMessageHookAfter(response, mqtraceContext);
+	            final boolean asyncSend = this.brokerController.getBrokerConfig().isAsyncSendEnable();
+	            final RemotingCommand response = this.sendMessage(ctx, request, mqtraceContext, requestHeader, asyncSend);
+	            // The async put runs the after hook from its completion callback
+	            if (!asyncSend || response != null) {
+	                this.executeSendMessageHookAfter(response, mqtraceContext);
+	            }
 	            return response;
         }
     }
@@ -254,7 +266,8 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
     private RemotingCommand sendMessage(final ChannelHandlerContext ctx, //
             final RemotingCommand request,//
             final SendMessageContext mqtraceContext,//
-            final SendMessageRequestHeader requestHeader) throws RemotingCommandException {
+            final SendMessageRequestHeader requestHeader,//
+            final boolean asyncSend) throws RemotingCommandException {
 
         final RemotingCommand response = RemotingCommand.createResponseCommand(SendMessageResponseHeader.class);
         final SendMessageResponseHeader responseHeader = (SendMessageResponseHeader) response.readCustomHeader();
@@ -306,7 +319,141 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             }
         }
 
+        if (asyncSend) {
+            return this.asyncPutMessage(ctx, request, mqtraceContext, requestHeader, msgInner, response,
+                responseHeader, queueIdInt);
+        }
+
         PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
+        return this.handlePutMessageResult(putMessageResult, response, request, requestHeader, msgInner,
+            responseHeader, mqtraceContext, ctx, queueIdInt);
+    }
+
+
+    private RemotingCommand asyncPutMessage(final ChannelHandlerContext ctx, //
+            final RemotingCommand request, //
+            final SendMessageContext mqtraceContext, //
+            final SendMessageRequestHeader requestHeader, //
+            final MessageExtBrokerInner msgInner, //
+            final RemotingCommand response, //
+            final SendMessageResponseHeader responseHeader, //
+            final int queueIdInt) {
+        final int maxInFlight = this.brokerController.getBrokerConfig().getPutMessageFutureThreadPoolQueueCapacity();
+        if (this.asyncPutInFlight.incrementAndGet() > maxInFlight) {
+            this.asyncPutInFlight.decrementAndGet();
+            response.setCode(ResponseCode.SYSTEM_BUSY);
+            response.setRemark("too many async puts in flight, more than " + maxInFlight);
+            return response;
+        }
+
+        final CompletableFuture<PutMessageResult> putMessageFuture;
+        try {
+            putMessageFuture = this.brokerController.getMessageStore().asyncPutMessage(msgInner);
+        }
+        catch (Throwable e) {
+            this.asyncPutInFlight.decrementAndGet();
+            log.error("asyncPutMessage exception", e);
+            response.setCode(ResponseCode.SYSTEM_ERROR);
+            response.setRemark("store asyncPutMessage exception, " + e);
+            return response;
+        }
+
+        // The store answers flush and slave timeouts itself after syncFlushTimeout,
+        // so this only fires for a put that never completes
+        final long timeoutMillis = this.brokerController.getMessageStoreConfig().getSyncFlushTimeout() * 2L;
+        final AtomicBoolean responded = new AtomicBoolean(false);
+        ScheduledFuture<?> timeoutFuture = null;
+        try {
+            timeoutFuture = this.brokerController.getPutMessageTimeoutExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (responded.compareAndSet(false, true)) {
+                        SendMessageProcessor.this.asyncPutMessageFailed(ctx, request, response, mqtraceContext,
+                            "async put message timeout, " + timeoutMillis + "ms");
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            log.warn("schedule async put message timeout rejected, the broker is shutting down");
+        }
+
+        final ScheduledFuture<?> timeout = timeoutFuture;
+        putMessageFuture.whenComplete(new BiConsumer<PutMessageResult, Throwable>() {
+            @Override
+            public void accept(final PutMessageResult putMessageResult, final Throwable throwable) {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                if (!responded.compareAndSet(false, true)) {
+                    return;
+                }
+
+                if (throwable != null) {
+                    log.error("asyncPutMessage completed exceptionally", throwable);
+                    SendMessageProcessor.this.asyncPutMessageFailed(ctx, request, response, mqtraceContext,
+                        "store asyncPutMessage exception, " + throwable);
+                    return;
+                }
+
+                try {
+                    SendMessageProcessor.this.brokerController.getPutMessageFutureExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            RemotingCommand asyncResponse = null;
+                            try {
+                                asyncResponse = SendMessageProcessor.this.handlePutMessageResult(putMessageResult,
+                                    response, request, requestHeader, msgInner, responseHeader, mqtraceContext, ctx,
+                                    queueIdInt);
+                            }
+                            catch (Throwable e) {
+                                log.error("handle async put message result exception", e);
+                                SendMessageProcessor.this.asyncPutMessageFailed(ctx, request, response,
+                                    mqtraceContext, "handle put message result exception, " + e);
+                                return;
+                            }
+
+                            SendMessageProcessor.this.asyncPutInFlight.decrementAndGet();
+                            if (asyncResponse != null) {
+                                doResponse(ctx, request, asyncResponse);
+                            }
+                            SendMessageProcessor.this.executeSendMessageHookAfter(asyncResponse, mqtraceContext);
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    log.warn("async put message response rejected, " + e);
+                    SendMessageProcessor.this.asyncPutMessageFailed(ctx, request, response, mqtraceContext,
+                        "async put message response rejected, the broker is busy or shutting down");
+                }
+            }
+        });
+        return null;
+    }
+
+
+    private void asyncPutMessageFailed(final ChannelHandlerContext ctx, //
+            final RemotingCommand request, //
+            final RemotingCommand response, //
+            final SendMessageContext mqtraceContext, //
+            final String remark) {
+        this.asyncPutInFlight.decrementAndGet();
+        response.setCode(ResponseCode.SYSTEM_ERROR);
+        response.setRemark(remark);
+        doResponse(ctx, request, response);
+        this.executeSendMessageHookAfter(response, mqtraceContext);
+    }
+
+
+    private RemotingCommand handlePutMessageResult(final PutMessageResult putMessageResult, //
+            final RemotingCommand response, //
+            final RemotingCommand request, //
+            final SendMessageRequestHeader requestHeader, //
+            final MessageExtBrokerInner msgInner, //
+            final SendMessageResponseHeader responseHeader, //
+            final SendMessageContext mqtraceContext, //
+            final ChannelHandlerContext ctx, //
+            final int queueIdInt) {
         if (putMessageResult != null) {
             boolean sendOK = false;
 
@@ -351,8 +498,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             }
 
             if (sendOK) {
-                this.brokerController.getBrokerStatsManager().incTopicPutNums(msgInner.getTopic());
-                this.brokerController.getBrokerStatsManager().incTopicPutSize(msgInner.getTopic(),
+                this.brokerController.getBrokerStatsManager().incTopicPut(msgInner.getTopic(),
                     putMessageResult.getAppendMessageResult().getWroteBytes());
                 this.brokerController.getBrokerStatsManager().incBrokerPutNums();
 
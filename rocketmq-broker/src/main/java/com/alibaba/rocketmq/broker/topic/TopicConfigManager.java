@@ -203,6 +203,7 @@ public class TopicConfigManager extends ConfigManager {
                                 + " producer: " + remoteAddress);
 
                         this.topicConfigTable.put(topic, topicConfig);
+                        this.registerTopicStats(topic);
 
                         this.dataVersion.nextVersion();
 
@@ -254,6 +255,7 @@ public class TopicConfigManager extends ConfigManager {
 
                     log.info("create new topic {}", topicConfig);
                     this.topicConfigTable.put(topic, topicConfig);
+                    this.registerTopicStats(topic);
                     createNew = true;
                     this.dataVersion.nextVersion();
                     this.persist();
@@ -326,6 +328,7 @@ public class TopicConfigManager extends ConfigManager {
         }
         else {
             log.info("create new topic, " + topicConfig);
+            this.registerTopicStats(topicConfig.getTopicName());
         }
 
         this.dataVersion.nextVersion();
@@ -334,6 +337,13 @@ public class TopicConfigManager extends ConfigManager {
     }
 
 
+    private void registerTopicStats(final String topic) {
+        if (this.brokerController != null && this.brokerController.getBrokerStatsManager() != null) {
+            this.brokerController.getBrokerStatsManager().registerTopic(topic);
+        }
+    }
+
+
     public void updateOrderTopicConfig(final KVTable orderKVTableFromNs) {
         if (orderKVTableFromNs != null && orderKVTableFromNs.getTable() != null) {
             boolean isChange = false;
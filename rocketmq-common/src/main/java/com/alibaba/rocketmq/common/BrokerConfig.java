@@ -81,6 +81,16 @@ public class BrokerConfig {
 
     private boolean transferMsgByHeap = false;
 
+    // Send the put message response from the store completion callback,
+    // instead of blocking a send thread on flush and replication
+    @ImportantField
+    private boolean asyncSendEnable = false;
+
+    private int putMessageFutureThreadPoolNums = 4;
+
+    // Async puts waiting on the store, beyond which sends are answered busy
+    private int putMessageFutureThreadPoolQueueCapacity = 10000;
+
 
     public boolean isTransferMsgByHeap() {
         return transferMsgByHeap;
@@ -375,4 +385,34 @@ public class BrokerConfig {
     public void setClientManageThreadPoolNums(int clientManageThreadPoolNums) {
         this.clientManageThreadPoolNums = clientManageThreadPoolNums;
     }
+
+
+    public boolean isAsyncSendEnable() {
+        return asyncSendEnable;
+    }
+
+
+    public void setAsyncSendEnable(boolean asyncSendEnable) {
+        this.asyncSendEnable = asyncSendEnable;
+    }
+
+
+    public int getPutMessageFutureThreadPoolNums() {
+        return putMessageFutureThreadPoolNums;
+    }
+
+
+    public void setPutMessageFutureThreadPoolNums(int putMessageFutureThreadPoolNums) {
+        this.putMessageFutureThreadPoolNums = putMessageFutureThreadPoolNums;
+    }
+
+
+    public int getPutMessageFutureThreadPoolQueueCapacity() {
+        return putMessageFutureThreadPoolQueueCapacity;
+    }
+
+
+    public void setPutMessageFutureThreadPoolQueueCapacity(int putMessageFutureThreadPoolQueueCapacity) {
+        this.putMessageFutureThreadPoolQueueCapacity = putMessageFutureThreadPoolQueueCapacity;
+    }
 }
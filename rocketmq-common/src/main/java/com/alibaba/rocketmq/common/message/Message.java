@@ -141,6 +141,20 @@ public class Message implements Serializable {
 		this.putProperty(MessageConst.PROPERTY_DELAY_TIME_LEVEL, String.valueOf(level));
 	}
 
+	/**
+	 * Deliver at the given time, needs the timer store on the broker
+	 */
+	public void setDeliverTimeMs(long timeMs) {
+		this.putProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(timeMs));
+	}
+
+	/**
+	 * Deliver after the given seconds, needs the timer store on the broker
+	 */
+	public void setDelayTimeSec(long sec) {
+		this.putProperty(MessageConst.PROPERTY_TIMER_DELAY_SEC, String.valueOf(sec));
+	}
+
 	public boolean isWaitStoreMsgOK() {
 		String result = this.getProperty(MessageConst.PROPERTY_WAIT_STORE_MSG_OK);
 		if (null == result)
@@ -37,6 +37,8 @@ public class MessageConst {
 	public static final String PROPERTY_CORRECTION_FLAG = "CORRECTION_FLAG";
 	public static final String PROPERTY_MQ2_FLAG = "MQ2_FLAG";
 	public static final String PROPERTY_RECONSUME_TIME = "RECONSUME_TIME";
+	public static final String PROPERTY_TIMER_DELIVER_MS = "TIMER_DELIVER_MS";
+	public static final String PROPERTY_TIMER_DELAY_SEC = "TIMER_DELAY_SEC";
 
 	public static final String KEY_SEPARATOR = " ";
 
@@ -59,6 +61,8 @@ public class MessageConst {
 		systemKeySet.add(PROPERTY_CORRECTION_FLAG);
 		systemKeySet.add(PROPERTY_MQ2_FLAG);
 		systemKeySet.add(PROPERTY_RECONSUME_TIME);
+		systemKeySet.add(PROPERTY_TIMER_DELIVER_MS);
+		systemKeySet.add(PROPERTY_TIMER_DELAY_SEC);
 	}
 
 }
\ No newline at end of file
@@ -22,4 +22,7 @@ public enum RunningStats {
     commitLogDiskRatio,
     consumeQueueDiskRatio,
     scheduleMessageOffset,
+    scheduleMessageLag,
+    dispatchBehindBytes,
+    dispatchBehindMillis,
 }
@@ -23,12 +23,13 @@ import org.slf4j.Logger;
 import java.util.LinkedList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class StatsItem {
-    private final AtomicLong value = new AtomicLong(0);
-    private final AtomicLong times = new AtomicLong(0);
+    // hot topics are counted from many send threads, adders do not contend
+    private final LongAdder value = new LongAdder();
+    private final LongAdder times = new LongAdder();
     private final LinkedList<CallSnapshot> csListMinute = new LinkedList<CallSnapshot>();
 
     private final LinkedList<CallSnapshot> csListHour = new LinkedList<CallSnapshot>();
@@ -199,8 +200,8 @@ public class StatsItem {
 
     public void samplingInSeconds() {
         synchronized (this.csListMinute) {
-            this.csListMinute.add(new CallSnapshot(System.currentTimeMillis(), this.times.get(), this.value
-                .get()));
+            this.csListMinute.add(new CallSnapshot(System.currentTimeMillis(), this.times.sum(), this.value
+                .sum()));
             if (this.csListMinute.size() > 7) {
                 this.csListMinute.removeFirst();
             }
@@ -210,8 +211,8 @@ public class StatsItem {
 
     public void samplingInMinutes() {
         synchronized (this.csListHour) {
-            this.csListHour.add(new CallSnapshot(System.currentTimeMillis(), this.times.get(), this.value
-                .get()));
+            this.csListHour.add(new CallSnapshot(System.currentTimeMillis(), this.times.sum(), this.value
+                .sum()));
             if (this.csListHour.size() > 7) {
                 this.csListHour.removeFirst();
             }
@@ -221,8 +222,8 @@ public class StatsItem {
 
     public void samplingInHour() {
         synchronized (this.csListDay) {
-            this.csListDay.add(new CallSnapshot(System.currentTimeMillis(), this.times.get(), this.value
-                .get()));
+            this.csListDay.add(new CallSnapshot(System.currentTimeMillis(), this.times.sum(), this.value
+                .sum()));
             if (this.csListDay.size() > 25) {
                 this.csListDay.removeFirst();
             }
@@ -230,7 +231,7 @@ public class StatsItem {
     }
 
 
-    public AtomicLong getValue() {
+    public LongAdder getValue() {
         return value;
     }
 
@@ -245,7 +246,7 @@ public class StatsItem {
     }
 
 
-    public AtomicLong getTimes() {
+    public LongAdder getTimes() {
         return times;
     }
 }
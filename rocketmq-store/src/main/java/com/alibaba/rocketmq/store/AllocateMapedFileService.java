@@ -19,26 +19,41 @@ package com.alibaba.rocketmq.store;
 import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
-
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Creates CommitLog files ahead of the writers. Enough files for
+ * preAllocateSeconds of writes at the last roll interval are kept mapped, and
+ * expired files may be renamed into a recycle directory and reused.
+ *
+ * @author shijia.wxr
+ */
 public class AllocateMapedFileService extends ServiceThread {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
     private static int WaitTimeOut = 1000 * 5;
+    // files moved aside to be deleted gradually
+    private static final String DeletingSuffix = ".deleting";
     private ConcurrentHashMap<String, AllocateRequest> requestTable =
             new ConcurrentHashMap<String, AllocateRequest>();
     private PriorityBlockingQueue<AllocateRequest> requestQueue =
             new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
     private DefaultMessageStore messageStore;
+    private final ConcurrentLinkedQueue<File> recycledFiles = new ConcurrentLinkedQueue<File>();
+    private long lastRollTimestamp = 0;
+    private long rollInterval = 0;
 
 
     public AllocateMapedFileService(DefaultMessageStore messageStore) {
@@ -47,23 +62,16 @@ public class AllocateMapedFileService extends ServiceThread {
 
 
     public MapedFile putRequestAndReturnMapedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
-        AllocateRequest nextReq = new AllocateRequest(nextFilePath, fileSize);
-        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
-        boolean nextPutOK = (this.requestTable.putIfAbsent(nextFilePath, nextReq) == null);
-        boolean nextNextPutOK = (this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null);
-
-        if (nextPutOK) {
-            boolean offerOK = this.requestQueue.offer(nextReq);
-            if (!offerOK) {
-                log.warn("never expetced here, add a request to preallocate queue failed");
-            }
-        }
-
-        if (nextNextPutOK) {
-            boolean offerOK = this.requestQueue.offer(nextNextReq);
-            if (!offerOK) {
-                log.warn("never expetced here, add a request to preallocate queue failed");
-            }
+        this.offerRequest(nextFilePath, fileSize);
+        this.offerRequest(nextNextFilePath, fileSize);
+
+        // files beyond the next two, for the writes of preAllocateSeconds
+        File nextNextFile = new File(nextNextFilePath);
+        long nextNextOffset = Long.parseLong(nextNextFile.getName());
+        int aheadFiles = this.computeAheadFiles(fileSize);
+        for (int i = 1; i <= aheadFiles - 2; i++) {
+            this.offerRequest(nextNextFile.getParent() + File.separator
+                    + UtilAll.offset2FileName(nextNextOffset + (long) fileSize * i), fileSize);
         }
 
         if (hasException) {
@@ -96,6 +104,149 @@ public class AllocateMapedFileService extends ServiceThread {
     }
 
 
+    private void offerRequest(final String filePath, final int fileSize) {
+        AllocateRequest req = new AllocateRequest(filePath, fileSize);
+        if (this.requestTable.putIfAbsent(filePath, req) == null) {
+            boolean offerOK = this.requestQueue.offer(req);
+            if (!offerOK) {
+                log.warn("never expetced here, add a request to preallocate queue failed");
+            }
+        }
+    }
+
+
+    /**
+     * Called by the writer rolling to a new file
+     *
+     * @return how many files after the active one should be ready
+     */
+    private int computeAheadFiles(final int fileSize) {
+        if (null == this.messageStore) {
+            return 2;
+        }
+
+        MessageStoreConfig config = this.messageStore.getMessageStoreConfig();
+        long now = System.currentTimeMillis();
+        if (this.lastRollTimestamp > 0) {
+            this.rollInterval = now - this.lastRollTimestamp;
+        }
+        this.lastRollTimestamp = now;
+
+        if (fileSize < config.getMapedFileSizeCommitLog() || config.getPreAllocateSeconds() <= 0
+                || this.rollInterval <= 0) {
+            return 2;
+        }
+
+        long files = (config.getPreAllocateSeconds() * 1000L + this.rollInterval - 1) / this.rollInterval;
+        return (int) Math.max(2, Math.min(files, config.getPreAllocateMaxFiles()));
+    }
+
+
+    /**
+     * Destroy an expired CommitLog file. It is kept for reuse while the
+     * recycle directory has room, otherwise moved there and deleted within
+     * the delete budget if one is set
+     */
+    public boolean recycle(final MapedFile mapedFile, final long intervalForcibly) {
+        MessageStoreConfig config = null == this.messageStore ? null : this.messageStore.getMessageStoreConfig();
+        if (null == config) {
+            return mapedFile.destroy(intervalForcibly);
+        }
+
+        final boolean reuse = config.isCommitLogRecycleEnable()
+                && mapedFile.getFileSize() == config.getMapedFileSizeCommitLog()
+                && this.recycledFiles.size() < config.getPreAllocateMaxFiles();
+        final FileDeleteThrottle fileDeleteThrottle = this.messageStore.getFileDeleteThrottle();
+        if (!reuse && !fileDeleteThrottle.isEnable()) {
+            return mapedFile.destroy(intervalForcibly);
+        }
+
+        File recycleDir = new File(StorePathConfigHelper.getStorePathCommitLogRecycle(config.getStorePathRootDir()));
+        MapedFile.ensureDirOK(recycleDir.getPath());
+        String fileName = new File(mapedFile.getFileName()).getName();
+        File recycleFile = new File(recycleDir, reuse ? fileName : fileName + DeletingSuffix);
+        if (!mapedFile.destroy(intervalForcibly, recycleFile)) {
+            return false;
+        }
+
+        if (recycleFile.exists()) {
+            if (reuse) {
+                this.recycledFiles.offer(recycleFile);
+            }
+            else {
+                fileDeleteThrottle.putRequest(recycleFile);
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Pick up the files recycled before a restart
+     */
+    private void loadRecycledFiles() {
+        if (null == this.messageStore) {
+            return;
+        }
+
+        MessageStoreConfig config = this.messageStore.getMessageStoreConfig();
+        File[] files =
+                new File(StorePathConfigHelper.getStorePathCommitLogRecycle(config.getStorePathRootDir())).listFiles();
+        if (null == files) {
+            return;
+        }
+
+        for (File file : files) {
+            if (config.isCommitLogRecycleEnable() && !file.getName().endsWith(DeletingSuffix)
+                    && file.length() == config.getMapedFileSizeCommitLog()
+                    && this.recycledFiles.size() < config.getPreAllocateMaxFiles()) {
+                this.recycledFiles.offer(file);
+            }
+            else {
+                log.info("delete recycled file {}, {}", file, file.delete() ? "OK" : "Failed");
+            }
+        }
+        log.info("load {} recycled CommitLog files", this.recycledFiles.size());
+    }
+
+
+    /**
+     * Move a recycled file to filePath, or reserve the blocks of a new one
+     *
+     * @return true if the file holds old data
+     */
+    private boolean prepareFile(final String filePath, final int fileSize) throws IOException {
+        MessageStoreConfig config = null == this.messageStore ? null : this.messageStore.getMessageStoreConfig();
+        File file = new File(filePath);
+        if (null == config || file.exists() || fileSize != config.getMapedFileSizeCommitLog()) {
+            return false;
+        }
+
+        MapedFile.ensureDirOK(file.getParent());
+        for (File recycled = this.recycledFiles.poll(); recycled != null; recycled = this.recycledFiles.poll()) {
+            if (recycled.length() == fileSize && recycled.renameTo(file)) {
+                file.setLastModified(System.currentTimeMillis());
+                log.info("reuse recycled file {} as {}", recycled, file);
+                return true;
+            }
+            log.warn("reuse recycled file {} failed, delete it, {}", recycled, recycled.delete() ? "OK" : "Failed");
+        }
+
+        if (config.isFallocateCommitLogEnable() && LibC.isEnable()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                if (LibC.fallocate(randomAccessFile.getFD(), fileSize) != 0) {
+                    log.info("fallocate {} failed, its blocks are allocated on first write", filePath);
+                }
+            }
+            finally {
+                randomAccessFile.close();
+            }
+        }
+        return false;
+    }
+
+
     @Override
     public String getServiceName() {
         return AllocateMapedFileService.class.getSimpleName();
@@ -113,10 +264,27 @@ public class AllocateMapedFileService extends ServiceThread {
             e.printStackTrace();
         }
 
+        // files never handed out go back to the recycle directory for the next start
+        MessageStoreConfig config = null == this.messageStore ? null : this.messageStore.getMessageStoreConfig();
+        int recycled = this.recycledFiles.size();
         for (AllocateRequest req : this.requestTable.values()) {
             if (req.mapedFile != null) {
-                log.info("delete pre allocated maped file, {}", req.mapedFile.getFileName());
-                req.mapedFile.destroy(1000);
+                if (config != null && config.isCommitLogRecycleEnable()
+                        && req.mapedFile.getFileSize() == config.getMapedFileSizeCommitLog()
+                        && recycled < config.getPreAllocateMaxFiles()) {
+                    File recycleDir =
+                            new File(StorePathConfigHelper.getStorePathCommitLogRecycle(config.getStorePathRootDir()));
+                    MapedFile.ensureDirOK(recycleDir.getPath());
+                    File recycleFile = new File(recycleDir, new File(req.mapedFile.getFileName()).getName());
+                    req.mapedFile.destroy(1000, recycleFile);
+                    if (recycleFile.exists()) {
+                        recycled++;
+                    }
+                }
+                else {
+                    log.info("delete pre allocated maped file, {}", req.mapedFile.getFileName());
+                    req.mapedFile.destroy(1000);
+                }
             }
         }
     }
@@ -125,6 +293,7 @@ public class AllocateMapedFileService extends ServiceThread {
     public void run() {
         log.info(this.getServiceName() + " service started");
 
+        this.loadRecycledFiles();
         while (!this.isStoped() && this.mmapOperation())
             ;
 
@@ -154,7 +323,16 @@ public class AllocateMapedFileService extends ServiceThread {
 
             if (req.getMapedFile() == null) {
                 long beginTime = System.currentTimeMillis();
-                MapedFile mapedFile = new MapedFile(req.getFilePath(), req.getFileSize());
+                boolean reused = this.prepareFile(req.getFilePath(), req.getFileSize());
+                MapedFile mapedFile;
+                if (this.messageStore.isTransientStorePoolEnable()) {
+                    mapedFile =
+                            new MapedFile(req.getFilePath(), req.getFileSize(),
+                                this.messageStore.getTransientStorePool());
+                }
+                else {
+                    mapedFile = new MapedFile(req.getFilePath(), req.getFileSize());
+                }
                 long eclipseTime = UtilAll.computeEclipseTimeMilliseconds(beginTime);
                 if (eclipseTime > 10) {
                     int queueSize = this.requestQueue.size();
@@ -170,6 +348,12 @@ public class AllocateMapedFileService extends ServiceThread {
                     mapedFile.warmMappedFile(this.messageStore.getMessageStoreConfig().getFlushDiskType(),
                         this.messageStore.getMessageStoreConfig().getFlushLeastPagesWhenWarmMapedFile());
                 }
+                else if (reused) {
+                    long prefaultBeginTime = System.currentTimeMillis();
+                    int sum = mapedFile.prefault();
+                    log.info("prefault {} cost {} ms, {}", req.getFilePath(),
+                        UtilAll.computeEclipseTimeMilliseconds(prefaultBeginTime), sum);
+                }
 
                 req.setMapedFile(mapedFile);
                 this.hasException = false;
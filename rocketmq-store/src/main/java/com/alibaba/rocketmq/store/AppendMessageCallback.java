@@ -36,4 +36,17 @@ public interface AppendMessageCallback {
      */
     AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
                                  final int maxBlank, final Object msg);
+
+
+    /**
+     * After batch serialization, write MapedByteBuffer, the batch is written
+     * all or nothing
+     *
+     * @param byteBuffer
+     * @param maxBlank
+     * @param messageExtBatch
+     * @return How many bytes to write
+     */
+    AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
+                                 final int maxBlank, final MessageExtBatch messageExtBatch);
 }
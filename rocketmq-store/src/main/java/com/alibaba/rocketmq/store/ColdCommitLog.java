@@ -0,0 +1,369 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The cold tier of the CommitLog. CommitLog files older than
+ * coldCommitLogFileAge are compressed into {@link ColdSegment}s on another
+ * store path and dropped from the hot tier, reads below the first hot file
+ * are served here through a small LRU of inflated blocks
+ *
+ * @author shijia.wxr
+ */
+public class ColdCommitLog {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final ColdSegment[] EmptySegments = new ColdSegment[0];
+    private static final int DeleteFilesBatchMax = 10;
+    private final DefaultMessageStore defaultMessageStore;
+    private final MapedFileQueue mapedFileQueue;
+    private final String storePath;
+    private final int mapedFileSize;
+    private final BlockCache blockCache;
+    private final MigrateService migrateService = new MigrateService();
+    // Oldest first, replaced as a whole under the object lock
+    private volatile ColdSegment[] segments = EmptySegments;
+
+
+    public ColdCommitLog(final DefaultMessageStore defaultMessageStore, final MapedFileQueue mapedFileQueue) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.mapedFileQueue = mapedFileQueue;
+        this.storePath = defaultMessageStore.getMessageStoreConfig().getStorePathColdCommitLog();
+        this.mapedFileSize = defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        this.blockCache = new BlockCache(defaultMessageStore.getMessageStoreConfig().getColdCommitLogBlockCacheNums());
+    }
+
+
+    public boolean load() {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            List<ColdSegment> loaded = new ArrayList<ColdSegment>();
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    log.info("delete unfinished cold segment " + file.getName());
+                    file.delete();
+                    continue;
+                }
+
+                try {
+                    loaded.add(ColdSegment.open(file));
+                    log.info("load cold segment " + file.getName() + " OK");
+                }
+                catch (Exception e) {
+                    log.error("load cold segment " + file.getName() + " failed, skip it", e);
+                }
+            }
+
+            this.segments = loaded.toArray(new ColdSegment[loaded.size()]);
+        }
+
+        return true;
+    }
+
+
+    public void start() {
+        this.migrateService.start();
+    }
+
+
+    public void shutdown() {
+        this.migrateService.shutdown();
+        for (ColdSegment segment : this.segments) {
+            segment.close();
+        }
+    }
+
+
+    public synchronized void destroy() {
+        for (ColdSegment segment : this.segments) {
+            segment.destroy();
+        }
+        this.segments = EmptySegments;
+        this.blockCache.clear();
+    }
+
+
+    /**
+     * @return offset of the first cold message, -1 if the tier is empty
+     */
+    public long getMinOffset() {
+        ColdSegment[] segments = this.segments;
+        return segments.length > 0 ? segments[0].getFileFromOffset() : -1;
+    }
+
+
+    public long getMaxOffset() {
+        ColdSegment[] segments = this.segments;
+        if (segments.length > 0) {
+            ColdSegment last = segments[segments.length - 1];
+            return last.getFileFromOffset() + last.getDataLength();
+        }
+
+        return 0;
+    }
+
+
+    public SelectMapedBufferResult getMessage(final long offset, final int size) {
+        ColdSegment segment = this.findSegmentByOffset(offset);
+        if (null == segment || size <= 0) {
+            return null;
+        }
+
+        int pos = (int) (offset - segment.getFileFromOffset());
+        if (pos + size > segment.getDataLength()) {
+            return null;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+        try {
+            final int blockSize = segment.getBlockSize();
+            while (byteBuffer.hasRemaining()) {
+                int index = pos / blockSize;
+                byte[] block = this.getBlock(segment, index);
+                int blockPos = pos - index * blockSize;
+                int length = Math.min(byteBuffer.remaining(), block.length - blockPos);
+                byteBuffer.put(block, blockPos, length);
+                pos += length;
+            }
+        }
+        catch (IOException e) {
+            log.warn("read cold segment " + segment.getFileName() + " exception, offset " + offset, e);
+            return null;
+        }
+
+        byteBuffer.flip();
+        return new SelectMapedBufferResult(offset, byteBuffer, size, null);
+    }
+
+
+    private ColdSegment findSegmentByOffset(final long offset) {
+        ColdSegment[] segments = this.segments;
+        int low = 0;
+        int high = segments.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            ColdSegment segment = segments[mid];
+            if (offset < segment.getFileFromOffset()) {
+                high = mid - 1;
+            }
+            else if (offset >= segment.getFileFromOffset() + segment.getDataLength()) {
+                low = mid + 1;
+            }
+            else {
+                return segment;
+            }
+        }
+
+        return null;
+    }
+
+
+    private byte[] getBlock(final ColdSegment segment, final int index) throws IOException {
+        final long key = segment.getFileFromOffset() + (long) index * segment.getBlockSize();
+        byte[] block = this.blockCache.get(key);
+        if (null == block) {
+            block = segment.readBlock(index);
+            this.blockCache.put(key, block);
+        }
+
+        return block;
+    }
+
+
+    /**
+     * Move CommitLog files from the head of the hot tier while they are old
+     * enough and everything derived from them is flushed
+     *
+     * @return count of files moved
+     */
+    public int migrate() {
+        final MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        final long ageMillis = config.getColdCommitLogFileAge() * 60L * 60 * 1000;
+        final boolean indexSafe = config.isMessageIndexEnable() && config.isMessageIndexSafe();
+        int count = 0;
+        while (!this.migrateService.isStoped()) {
+            List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+            if (mapedFiles.size() < 2) {
+                break;
+            }
+
+            MapedFile mapedFile = mapedFiles.get(0);
+            long fileTail = mapedFile.getFileFromOffset() + this.mapedFileSize;
+            // Abnormal recovery must not need to redispatch from the file
+            long recoverOffset = this.defaultMessageStore.getStoreCheckpoint().getMinOffset(indexSafe);
+            if (System.currentTimeMillis() - mapedFile.getLastModifiedTimestamp() < ageMillis
+                    || recoverOffset < fileTail) {
+                break;
+            }
+
+            if (this.getMaxOffset() <= mapedFile.getFileFromOffset() && !this.compress(mapedFile)) {
+                break;
+            }
+
+            if (this.mapedFileQueue.deleteExpiredFileBefore(fileTail) <= 0) {
+                // still held by readers, retried on the next round
+                break;
+            }
+            count++;
+        }
+
+        return count;
+    }
+
+
+    private boolean compress(final MapedFile mapedFile) {
+        if (!mapedFile.hold()) {
+            return false;
+        }
+
+        long beginTime = System.currentTimeMillis();
+        try {
+            ColdSegment segment = ColdSegment.create(this.storePath, mapedFile,
+                this.defaultMessageStore.getMessageStoreConfig().getColdCommitLogBlockSize());
+            synchronized (this) {
+                ColdSegment[] segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+                segments[segments.length - 1] = segment;
+                this.segments = segments;
+            }
+
+            log.info("move CommitLog file {} to cold tier, {} -> {} bytes, cost {} ms", mapedFile.getFileName(),
+                segment.getDataLength(), segment.getFileLength(), System.currentTimeMillis() - beginTime);
+            return true;
+        }
+        catch (IOException e) {
+            log.error("move CommitLog file to cold tier failed, " + mapedFile.getFileName(), e);
+            return false;
+        }
+        finally {
+            mapedFile.release();
+        }
+    }
+
+
+    /**
+     * Delete the oldest segments once expired, or once the cold disk is
+     * fuller than diskMaxUsedSpaceRatio
+     */
+    public int deleteExpiredFile(final long expiredTime) {
+        double ratio = this.defaultMessageStore.getMessageStoreConfig().getDiskMaxUsedSpaceRatio() / 100.0;
+        int deleteCount = 0;
+        while (deleteCount < DeleteFilesBatchMax) {
+            ColdSegment first;
+            synchronized (this) {
+                if (0 == this.segments.length) {
+                    break;
+                }
+
+                first = this.segments[0];
+                boolean expired = System.currentTimeMillis() >= first.getLastModifiedTimestamp() + expiredTime;
+                double diskRatio = UtilAll.getDiskPartitionSpaceUsedPercent(this.storePath);
+                if (!expired && diskRatio <= ratio) {
+                    break;
+                }
+
+                this.segments = Arrays.copyOfRange(this.segments, 1, this.segments.length);
+            }
+
+            first.destroy();
+            deleteCount++;
+        }
+
+        return deleteCount;
+    }
+
+
+    static class BlockCache extends LinkedHashMap<Long, byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+
+        BlockCache(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+
+        // access order, so a get relinks the entry and needs the lock as well
+        @Override
+        public synchronized byte[] get(final Object key) {
+            return super.get(key);
+        }
+
+
+        @Override
+        public synchronized byte[] put(final Long key, final byte[] value) {
+            return super.put(key, value);
+        }
+
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+            return this.size() > this.capacity;
+        }
+    }
+
+
+    class MigrateService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(
+                        ColdCommitLog.this.defaultMessageStore.getMessageStoreConfig().getColdCommitLogCheckInterval());
+                    ColdCommitLog.this.migrate();
+                }
+                catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return MigrateService.class.getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * One CommitLog file rewritten as compressed blocks, named by the offset of
+ * the CommitLog file it came from.
+ * <p>
+ * Layout: the compressed blocks back to back, then the block index of
+ * (8 bytes position, 4 bytes length) per block, then the footer of
+ * (8 bytes index position, 4 bytes block count, 4 bytes block size,
+ * 4 bytes data length, 4 bytes magic code). Every block but the last holds
+ * blockSize bytes of the CommitLog file once inflated.
+ *
+ * @author shijia.wxr
+ */
+public class ColdSegment {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int IndexUnitSize = 8 + 4;
+    private static final int FooterSize = 8 + 4 + 4 + 4 + 4;
+    private static final int MagicCode = 0xC01D5E61;
+    private final long fileFromOffset;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final int blockSize;
+    private final int dataLength;
+    private final long[] blockPositions;
+    private final int[] blockLengths;
+
+
+    private ColdSegment(final File file) throws IOException {
+        this.fileFromOffset = Long.parseLong(file.getName());
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.fileChannel = this.randomAccessFile.getChannel();
+
+        boolean ok = false;
+        try {
+            long fileLength = this.fileChannel.size();
+            if (fileLength < FooterSize) {
+                throw new IOException("cold segment too short, " + file.getName());
+            }
+
+            ByteBuffer footer = this.read(fileLength - FooterSize, FooterSize);
+            long indexPosition = footer.getLong();
+            int blockCount = footer.getInt();
+            this.blockSize = footer.getInt();
+            this.dataLength = footer.getInt();
+            if (footer.getInt() != MagicCode || blockCount < 0
+                    || indexPosition + (long) blockCount * IndexUnitSize + FooterSize != fileLength) {
+                throw new IOException("illegal cold segment footer, " + file.getName());
+            }
+
+            ByteBuffer index = this.read(indexPosition, blockCount * IndexUnitSize);
+            this.blockPositions = new long[blockCount];
+            this.blockLengths = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                this.blockPositions[i] = index.getLong();
+                this.blockLengths[i] = index.getInt();
+            }
+
+            ok = true;
+        }
+        finally {
+            if (!ok) {
+                this.randomAccessFile.close();
+            }
+        }
+    }
+
+
+    public static ColdSegment open(final File file) throws IOException {
+        return new ColdSegment(file);
+    }
+
+
+    /**
+     * Compress the readable data of a CommitLog file into storePath, the
+     * segment only appears under its final name once complete
+     */
+    public static ColdSegment create(final String storePath, final MapedFile mapedFile, final int blockSize)
+            throws IOException {
+        final int dataLength = mapedFile.getReadPosition();
+        final int blockCount = (dataLength + blockSize - 1) / blockSize;
+        final File file = new File(storePath, UtilAll.offset2FileName(mapedFile.getFileFromOffset()));
+        final File tmpFile = new File(storePath, file.getName() + ".tmp");
+        MapedFile.ensureDirOK(storePath);
+
+        ByteBuffer source = mapedFile.sliceByteBuffer();
+        ByteBuffer index = ByteBuffer.allocate(blockCount * IndexUnitSize + FooterSize);
+        byte[] input = new byte[blockSize];
+        byte[] output = new byte[blockSize + blockSize / 2];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long position = 0;
+            for (int i = 0; i < blockCount; i++) {
+                int length = Math.min(blockSize, dataLength - i * blockSize);
+                source.get(input, 0, length);
+
+                deflater.reset();
+                deflater.setInput(input, 0, length);
+                deflater.finish();
+                int compressed = 0;
+                while (!deflater.finished()) {
+                    if (compressed == output.length) {
+                        byte[] larger = new byte[output.length * 2];
+                        System.arraycopy(output, 0, larger, 0, compressed);
+                        output = larger;
+                    }
+                    compressed += deflater.deflate(output, compressed, output.length - compressed);
+                }
+
+                ByteBuffer block = ByteBuffer.wrap(output, 0, compressed);
+                while (block.hasRemaining()) {
+                    fileChannel.write(block);
+                }
+                index.putLong(position);
+                index.putInt(compressed);
+                position += compressed;
+            }
+
+            index.putLong(position);
+            index.putInt(blockCount);
+            index.putInt(blockSize);
+            index.putInt(dataLength);
+            index.putInt(MagicCode);
+            index.flip();
+            while (index.hasRemaining()) {
+                fileChannel.write(index);
+            }
+            fileChannel.force(true);
+        }
+        finally {
+            deflater.end();
+            randomAccessFile.close();
+        }
+
+        // age the segment by its data, not by the time it was rewritten
+        tmpFile.setLastModified(mapedFile.getLastModifiedTimestamp());
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("rename cold segment failed, " + file.getName());
+        }
+
+        return open(file);
+    }
+
+
+    /**
+     * @return the inflated block holding fileFromOffset + index * blockSize
+     */
+    public byte[] readBlock(final int index) throws IOException {
+        ByteBuffer compressed = this.read(this.blockPositions[index], this.blockLengths[index]);
+        byte[] block = new byte[Math.min(this.blockSize, this.dataLength - index * this.blockSize)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressed.limit());
+            int inflated = 0;
+            while (inflated < block.length && !inflater.finished()) {
+                int n = inflater.inflate(block, inflated, block.length - inflated);
+                if (0 == n && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+
+            if (inflated != block.length) {
+                throw new IOException("cold segment block truncated, " + this.file.getName() + " block " + index);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("cold segment block corrupted, " + this.file.getName() + " block " + index, e);
+        }
+        finally {
+            inflater.end();
+        }
+
+        return block;
+    }
+
+
+    private ByteBuffer read(final long position, final int size) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+        while (byteBuffer.hasRemaining()) {
+            if (this.fileChannel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                throw new IOException("unexpected end of cold segment, " + this.file.getName());
+            }
+        }
+
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+
+    public void close() {
+        try {
+            this.randomAccessFile.close();
+        }
+        catch (IOException e) {
+            log.warn("close cold segment exception, " + this.file.getName(), e);
+        }
+    }
+
+
+    public boolean destroy() {
+        this.close();
+        boolean result = this.file.delete();
+        log.info("delete cold segment " + this.file.getName() + (result ? " OK" : " Failed"));
+        return result;
+    }
+
+
+    public long getFileFromOffset() {
+        return fileFromOffset;
+    }
+
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+
+    public long getLastModifiedTimestamp() {
+        return this.file.lastModified();
+    }
+
+
+    public String getFileName() {
+        return this.file.getName();
+    }
+
+
+    public long getFileLength() {
+        return this.file.length();
+    }
+}
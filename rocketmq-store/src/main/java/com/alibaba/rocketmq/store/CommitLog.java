@@ -18,11 +18,19 @@ package com.alibaba.rocketmq.store;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,8 +45,10 @@ import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.timer.TimerMessageStore;
 
 /**
  * Store all metadata downtime for recovery, data protection reliability
@@ -51,17 +61,28 @@ public class CommitLog {
 	public final static int MessageMagicCode = 0xAABBCCDD ^ 1880681586 + 8;
 	// End of file empty MAGIC CODE cbd43194
 	private final static int BlankMagicCode = 0xBBCCDDEE ^ 1880681586 + 8;
+	// A sender rolls at most this many files before giving up on a message
+	private final static int MaxRollTimes = 3;
 	private final MapedFileQueue mapedFileQueue;
 	private final DefaultMessageStore defaultMessageStore;
 	private final FlushCommitLogService flushCommitLogService;
+	private final WriteBackRealTimeService writeBackRealTimeService;
 	private final AppendMessageCallback appendMessageCallback;
 	private HashMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(1024);
+	private final boolean lockFreeAppendEnable;
+	private final PutMessageSpinLock putMessageSpinLock = new PutMessageSpinLock();
+	// Senders of the lock-free path roll CommitLog files one at a time
+	private final Object rollMapedFileLock = new Object();
+	private final ThreadLocal<LockFreeMessageEncoder> lockFreeMessageEncoder;
+	private final ColdCommitLog coldCommitLog;
 
 	public CommitLog(final DefaultMessageStore defaultMessageStore) {
 		this.mapedFileQueue = new MapedFileQueue(defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(),
 				defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog(),
 				defaultMessageStore.getAllocateMapedFileService());
 		this.defaultMessageStore = defaultMessageStore;
+		this.coldCommitLog = defaultMessageStore.getMessageStoreConfig().isColdCommitLogEnable()
+				? new ColdCommitLog(defaultMessageStore, this.mapedFileQueue) : null;
 
 		if (FlushDiskType.SYNC_FLUSH == defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
 			this.flushCommitLogService = new GroupCommitService();
@@ -69,25 +90,85 @@ public class CommitLog {
 			this.flushCommitLogService = new FlushRealTimeService();
 		}
 
+		this.writeBackRealTimeService = new WriteBackRealTimeService();
+
 		this.appendMessageCallback = new DefaultAppendMessageCallback(
 				defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+
+		this.lockFreeAppendEnable = defaultMessageStore.getMessageStoreConfig().isLockFreeAppendEnable();
+		this.lockFreeMessageEncoder = new ThreadLocal<LockFreeMessageEncoder>() {
+			@Override
+			protected LockFreeMessageEncoder initialValue() {
+				return new LockFreeMessageEncoder(
+						CommitLog.this.defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+			}
+		};
 	}
 
 	public boolean load() {
 		boolean result = this.mapedFileQueue.load();
+		if (this.coldCommitLog != null) {
+			result = result && this.coldCommitLog.load();
+		}
 		log.info("load commit log " + (result ? "OK" : "Failed"));
 		return result;
 	}
 
 	public void start() {
+		if (this.defaultMessageStore.getMessageStoreConfig().isMlockActiveCommitLog()) {
+			MapedFile mapedFile = this.mapedFileQueue.getLastMapedFileWithLock();
+			if (mapedFile != null) {
+				mapedFile.mlock();
+			}
+		}
+
 		this.flushCommitLogService.start();
+
+		if (this.defaultMessageStore.isTransientStorePoolEnable()) {
+			this.writeBackRealTimeService.start();
+		}
+
+		if (this.coldCommitLog != null) {
+			this.coldCommitLog.start();
+		}
 	}
 
 	public void shutdown() {
+		// Write back all the data before the last flush
+		if (this.defaultMessageStore.isTransientStorePoolEnable()) {
+			this.writeBackRealTimeService.shutdown();
+		}
+
 		this.flushCommitLogService.shutdown();
+
+		if (this.coldCommitLog != null) {
+			this.coldCommitLog.shutdown();
+		}
+	}
+
+	/**
+	 * Drop the page cache of files older than the window consumers are
+	 * expected to read from memory, see accessMessageInMemoryMaxRatio
+	 */
+	public void adviseColdMapedFiles() {
+		long memory = (long) (StoreUtil.TotalPhysicalMemorySize
+				* (this.defaultMessageStore.getMessageStoreConfig().getAccessMessageInMemoryMaxRatio() / 100.0));
+		long coldOffset = this.getMaxOffset() - memory;
+		if (coldOffset <= 0) {
+			return;
+		}
+
+		int count = this.mapedFileQueue.adviseColdMapedFiles(coldOffset);
+		if (count > 0) {
+			log.info("advise DONTNEED on {} cold CommitLog files, cold offset: {}", count, coldOffset);
+		}
 	}
 
 	public long getMinOffset() {
+		if (this.coldCommitLog != null && this.coldCommitLog.getMinOffset() >= 0) {
+			return this.coldCommitLog.getMinOffset();
+		}
+
 		MapedFile mapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
 		if (mapedFile != null) {
 			if (mapedFile.isAvailable()) {
@@ -115,8 +196,13 @@ public class CommitLog {
 			final long intervalForcibly, //
 			final boolean cleanImmediately//
 	) {
-		return this.mapedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly,
-				cleanImmediately);
+		int deleteCount = 0;
+		if (this.coldCommitLog != null) {
+			deleteCount += this.coldCommitLog.deleteExpiredFile(expiredTime);
+		}
+
+		return deleteCount + this.mapedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval,
+				intervalForcibly, cleanImmediately);
 	}
 
 	/**
@@ -150,44 +236,119 @@ public class CommitLog {
 			if (index < 0)
 				index = 0;
 
-			MapedFile mapedFile = mapedFiles.get(index);
-			ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
-			long processOffset = mapedFile.getFileFromOffset();
-			long mapedFileOffset = 0;
-			while (true) {
-				DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
-				int size = dispatchRequest.getMsgSize();
-				// Normal data
-				if (dispatchRequest.isSuccess() && size > 0) {
-					mapedFileOffset += size;
-				}
-				// Come the end of the file, switch to the next file Since the
-				// return 0 representatives met last hole,
-				// this can not be included in truncate offset
-				else if (dispatchRequest.isSuccess() && size == 0) {
-					index++;
-					if (index >= mapedFiles.size()) {
-						// Current branch can not happen
-						log.info("recover last 3 physics file over, last maped file " + mapedFile.getFileName());
-						break;
-					} else {
-						mapedFile = mapedFiles.get(index);
-						byteBuffer = mapedFile.sliceByteBuffer();
-						processOffset = mapedFile.getFileFromOffset();
-						mapedFileOffset = 0;
-						log.info("recover next physics file, " + mapedFile.getFileName());
+			long processOffset = this.scanMapedFiles(mapedFiles, index, 0, checkCRCOnRecover);
+			this.mapedFileQueue.setCommittedWhere(processOffset);
+			this.mapedFileQueue.setWriteBackWhere(processOffset);
+			this.mapedFileQueue.truncateDirtyFiles(processOffset);
+		}
+	}
+
+	/**
+	 * Every CommitLog file starts with a message, so files are checked
+	 * independently, in parallel when a recover pool is given. Results are
+	 * consumed in file order, the first file not ending with the blank magic
+	 * code decides where the CommitLog ends
+	 * 
+	 * @param fromPosition
+	 *            a message boundary in the first file to start at
+	 * @return the offset recovery ends at
+	 */
+	private long scanMapedFiles(final List<MapedFile> mapedFiles, final int fromIndex, final int fromPosition,
+			final boolean checkCRC) {
+		long beginTime = System.currentTimeMillis();
+		final ExecutorService recoverPool = this.defaultMessageStore.getRecoverPool();
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		if (recoverPool != null) {
+			for (int i = fromIndex; i < mapedFiles.size(); i++) {
+				final MapedFile mapedFile = mapedFiles.get(i);
+				final int position = i == fromIndex ? fromPosition : 0;
+				futures.add(recoverPool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return CommitLog.this.scanMapedFile(mapedFile, position, checkCRC);
 					}
-				}
+				}));
+			}
+		}
+
+		long processOffset = mapedFiles.get(fromIndex).getFileFromOffset() + fromPosition;
+		int index = fromIndex;
+		try {
+			for (; index < mapedFiles.size(); index++) {
+				MapedFile mapedFile = mapedFiles.get(index);
+				int position = index == fromIndex ? fromPosition : 0;
+				int scanResult = futures.isEmpty() ? this.scanMapedFile(mapedFile, position, checkCRC)
+						: this.getScanResult(futures.get(index - fromIndex), mapedFile, position, checkCRC);
+				// The blank at the end of a file is not included in the
+				// truncate offset
+				processOffset = mapedFile.getFileFromOffset() + (scanResult & Integer.MAX_VALUE);
 				// Intermediate file read error
-				else if (!dispatchRequest.isSuccess()) {
+				if (scanResult >= 0) {
 					log.info("recover physics file end, " + mapedFile.getFileName());
 					break;
 				}
+
+				if (index + 1 < mapedFiles.size()) {
+					log.info("recover next physics file, " + mapedFiles.get(index + 1).getFileName());
+				} else {
+					log.info("recover physics file over, last maped file " + mapedFile.getFileName());
+				}
 			}
+		} finally {
+			// files behind the end are of no use
+			for (Future<Integer> future : futures) {
+				future.cancel(false);
+			}
+		}
 
-			processOffset += mapedFileOffset;
-			this.mapedFileQueue.setCommittedWhere(processOffset);
-			this.mapedFileQueue.truncateDirtyFiles(processOffset);
+		log.info("recover scan {} physics files from {} position {}, checkCRC {}, process offset {}, cost {} ms", //
+				Math.min(index + 1, mapedFiles.size()) - fromIndex, //
+				mapedFiles.get(fromIndex).getFileName(), //
+				fromPosition, //
+				checkCRC, //
+				processOffset, //
+				System.currentTimeMillis() - beginTime);
+		return processOffset;
+	}
+
+	private int getScanResult(final Future<Integer> future, final MapedFile mapedFile, final int position,
+			final boolean checkCRC) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			log.warn("wait for recover scan interrupted, scan it here " + mapedFile.getFileName());
+		} catch (ExecutionException e) {
+			log.warn("recover scan failed, scan it here " + mapedFile.getFileName(), e);
+		}
+
+		return this.scanMapedFile(mapedFile, position, checkCRC);
+	}
+
+	/**
+	 * @return end of the valid messages in the file, with the sign bit set
+	 *         when the file ends with the blank magic code
+	 */
+	private int scanMapedFile(final MapedFile mapedFile, final int position, final boolean checkCRC) {
+		ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+		byteBuffer.position(position);
+		int mapedFileOffset = position;
+		while (true) {
+			DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRC);
+			int size = dispatchRequest.getMsgSize();
+			// Normal data
+			if (dispatchRequest.isSuccess() && size > 0) {
+				// a recycled file still holds messages of its former offset
+				if (dispatchRequest.getCommitLogOffset() != mapedFile.getFileFromOffset() + mapedFileOffset) {
+					log.info("found a message of another offset {} at {}, it is old data of a recycled file",
+							dispatchRequest.getCommitLogOffset(), mapedFile.getFileFromOffset() + mapedFileOffset);
+					return mapedFileOffset;
+				}
+				mapedFileOffset += size;
+			} else if (dispatchRequest.isSuccess() && size == 0) {
+				return mapedFileOffset | Integer.MIN_VALUE;
+			} else {
+				return mapedFileOffset;
+			}
 		}
 	}
 
@@ -206,7 +367,6 @@ public class CommitLog {
 		try {
 			// 1 TOTAL SIZE
 			int totalSize = byteBuffer.getInt();
-			byte[] bytesContent = new byte[totalSize];
 
 			// 2 MAGIC CODE
 			int magicCode = byteBuffer.getInt();
@@ -220,6 +380,13 @@ public class CommitLog {
 				return new DispatchRequest(-1, false /* success */);
 			}
 
+			// what follows the last message of a recycled file is old data
+			if (totalSize <= 0 || totalSize > byteBuffer.remaining() + 8) {
+				log.warn("found a illegal total size " + totalSize);
+				return new DispatchRequest(-1, false /* success */);
+			}
+			byte[] bytesContent = new byte[totalSize];
+
 			// 3 BODYCRC
 			int bodyCRC = byteBuffer.getInt();
 
@@ -284,13 +451,14 @@ public class CommitLog {
 
 			long tagsCode = 0;
 			String keys = "";
+			Map<String, String> propertiesMap = null;
 
 			// 17 properties
 			short propertiesLength = byteBuffer.getShort();
 			if (propertiesLength > 0) {
 				byteBuffer.get(bytesContent, 0, propertiesLength);
 				String properties = new String(bytesContent, 0, propertiesLength, MessageDecoder.CHARSET_UTF8);
-				Map<String, String> propertiesMap = MessageDecoder.string2messageProperties(properties);
+				propertiesMap = MessageDecoder.string2messageProperties(properties);
 
 				keys = propertiesMap.get(MessageConst.PROPERTY_KEYS);
 				String tags = propertiesMap.get(MessageConst.PROPERTY_TAGS);
@@ -314,6 +482,11 @@ public class CommitLog {
 									.computeDeliverTimestamp(delayLevel, storeTimestamp);
 						}
 					}
+
+					String deliverMs = propertiesMap.get(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+					if (TimerMessageStore.TIMER_TOPIC.equals(topic) && deliverMs != null) {
+						tagsCode = Long.parseLong(deliverMs);
+					}
 				}
 			}
 
@@ -325,7 +498,7 @@ public class CommitLog {
 				return new DispatchRequest(totalSize, false/* success */);
 			}
 
-			return new DispatchRequest(//
+			DispatchRequest dispatchRequest = new DispatchRequest(//
 					topic, // 1
 					queueId, // 2
 					physicOffset, // 3
@@ -337,6 +510,8 @@ public class CommitLog {
 					sysFlag, // 9
 					preparedTransactionOffset// 10
 			);
+			dispatchRequest.setPropertiesMap(propertiesMap);
+			return dispatchRequest;
 		} catch (Exception e) {
 		}
 
@@ -371,61 +546,72 @@ public class CommitLog {
 		boolean checkCRCOnRecover = this.defaultMessageStore.getMessageStoreConfig().isCheckCRCOnRecover();
 		final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
 		if (!mapedFiles.isEmpty()) {
-			// Looking beginning to recover from which file
 			int index = mapedFiles.size() - 1;
+			int position = 0;
 			MapedFile mapedFile = null;
-			for (; index >= 0; index--) {
-				mapedFile = mapedFiles.get(index);
-				if (this.isMapedFileMatchedRecover(mapedFile)) {
-					log.info("recover from this maped file " + mapedFile.getFileName());
-					break;
+			final boolean indexSafe = this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()
+					&& this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe();
+			final long checkpointOffset = this.defaultMessageStore.getStoreCheckpoint().getMinOffset(indexSafe);
+			final int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+			final long firstFromOffset = mapedFiles.get(0).getFileFromOffset();
+			if (checkpointOffset > 0 && checkpointOffset < mapedFiles.get(index).getFileFromOffset() + mapedFileSize) {
+				// Everything below the checkpoint offset is flushed to all
+				// files, only the suffix is redispatched
+				if (checkpointOffset > firstFromOffset) {
+					index = (int) ((checkpointOffset - firstFromOffset) / mapedFileSize);
+					position = (int) (checkpointOffset % mapedFileSize);
+				} else {
+					index = 0;
+				}
+				log.info("recover from checkpoint offset {}, maped file {}, position {}", checkpointOffset,
+						mapedFiles.get(index).getFileName(), position);
+			} else {
+				// Looking beginning to recover from which file
+				for (; index >= 0; index--) {
+					mapedFile = mapedFiles.get(index);
+					if (this.isMapedFileMatchedRecover(mapedFile)) {
+						log.info("recover from this maped file " + mapedFile.getFileName());
+						break;
+					}
 				}
-			}
 
-			if (index < 0) {
-				index = 0;
-				mapedFile = mapedFiles.get(index);
+				if (index < 0) {
+					index = 0;
+				}
 			}
 
-			ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
-			long processOffset = mapedFile.getFileFromOffset();
-			long mapedFileOffset = 0;
-			while (true) {
-				DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
-				int size = dispatchRequest.getMsgSize();
-				// Normal data
-				if (size > 0) {
-					mapedFileOffset += size;
-					this.defaultMessageStore.doDispatch(dispatchRequest);
+			// Verify in parallel first, dispatching has to follow the
+			// CommitLog order and needs no CRC any more
+			long processOffset = this.scanMapedFiles(mapedFiles, index, position, checkCRCOnRecover);
 
-				}
-				// Intermediate file read error
-				else if (size == -1) {
-					log.info("recover physics file end, " + mapedFile.getFileName());
+			long beginTime = System.currentTimeMillis();
+			long dispatchNums = 0;
+			for (; index < mapedFiles.size(); index++) {
+				mapedFile = mapedFiles.get(index);
+				if (mapedFile.getFileFromOffset() >= processOffset) {
 					break;
 				}
-				// Come the end of the file, switch to the next file
-				// Since the return 0 representatives met last hole, this can
-				// not be included in truncate offset
-				else if (size == 0) {
-					index++;
-					if (index >= mapedFiles.size()) {
-						// The current branch under normal circumstances should
-						// not happen
-						log.info("recover physics file over, last maped file " + mapedFile.getFileName());
+
+				ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+				byteBuffer.position(position);
+				long mapedFileOffset = position;
+				position = 0;
+				while (mapedFile.getFileFromOffset() + mapedFileOffset < processOffset) {
+					DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, false, false);
+					int size = dispatchRequest.getMsgSize();
+					if (!dispatchRequest.isSuccess() || size <= 0) {
 						break;
-					} else {
-						mapedFile = mapedFiles.get(index);
-						byteBuffer = mapedFile.sliceByteBuffer();
-						processOffset = mapedFile.getFileFromOffset();
-						mapedFileOffset = 0;
-						log.info("recover next physics file, " + mapedFile.getFileName());
 					}
+
+					mapedFileOffset += size;
+					this.defaultMessageStore.doDispatch(dispatchRequest);
+					dispatchNums++;
 				}
 			}
+			log.info("recover dispatch {} messages, cost {} ms", dispatchNums, System.currentTimeMillis() - beginTime);
 
-			processOffset += mapedFileOffset;
 			this.mapedFileQueue.setCommittedWhere(processOffset);
+			this.mapedFileQueue.setWriteBackWhere(processOffset);
 			this.mapedFileQueue.truncateDirtyFiles(processOffset);
 
 			// Clear ConsumeQueue redundant data
@@ -434,6 +620,7 @@ public class CommitLog {
 		// Commitlog case files are deleted
 		else {
 			this.mapedFileQueue.setCommittedWhere(0);
+			this.mapedFileQueue.setWriteBackWhere(0);
 			this.defaultMessageStore.destroyLogics();
 		}
 	}
@@ -441,6 +628,20 @@ public class CommitLog {
 	@SuppressWarnings("unused")
 	private void notifyMessageArriving() {}
 
+	private static boolean isTimerMessage(final MessageExtBrokerInner msg) {
+		return msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS) != null
+				|| msg.getProperty(MessageConst.PROPERTY_TIMER_DELAY_SEC) != null;
+	}
+
+	private long computeTimerDeliverMs(final MessageExtBrokerInner msg) {
+		String deliverMs = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+		if (deliverMs != null) {
+			return Long.parseLong(deliverMs);
+		}
+
+		return msg.getStoreTimestamp() + Long.parseLong(msg.getProperty(MessageConst.PROPERTY_TIMER_DELAY_SEC)) * 1000;
+	}
+
 	private boolean isMapedFileMatchedRecover(final MapedFile mapedFile) {
 		ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
 
@@ -454,6 +655,10 @@ public class CommitLog {
 			return false;
 		}
 
+		if (byteBuffer.getLong(MessageDecoder.MessagePhysicOffsetPostion) != mapedFile.getFileFromOffset()) {
+			return false;
+		}
+
 		if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()//
 				&& this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe()) {
 			if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestampIndex()) {
@@ -475,6 +680,28 @@ public class CommitLog {
 	}
 
 	public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+		PutMessageResult putMessageResult = this.appendMessage(msg);
+		if (putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+			this.handleDiskFlushAndHA(putMessageResult, putMessageResult.getAppendMessageResult(), msg);
+		}
+
+		return putMessageResult;
+	}
+
+	/**
+	 * Same as putMessage, but the caller is not blocked on group commit or
+	 * replication, the future is completed by the flush and HA services
+	 */
+	public CompletableFuture<PutMessageResult> asyncPutMessage(final MessageExtBrokerInner msg) {
+		PutMessageResult putMessageResult = this.appendMessage(msg);
+		if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+			return CompletableFuture.completedFuture(putMessageResult);
+		}
+
+		return this.submitDiskFlushAndHA(putMessageResult, putMessageResult.getAppendMessageResult(), msg);
+	}
+
+	private PutMessageResult appendMessage(final MessageExtBrokerInner msg) {
 		// Set the storage time
 		msg.setStoreTimestamp(System.currentTimeMillis());
 		// Set the message body BODY CRC (consider the most appropriate setting
@@ -508,8 +735,105 @@ public class CommitLog {
 				msg.setTopic(topic);
 				msg.setQueueId(queueId);
 			}
+			// Deliver at any second
+			else if (this.defaultMessageStore.getTimerMessageStore() != null && isTimerMessage(msg)) {
+				long deliverMs;
+				try {
+					deliverMs = this.computeTimerDeliverMs(msg);
+				} catch (NumberFormatException e) {
+					log.warn("illegal timer property, topic: " + msg.getTopic(), e);
+					return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+				}
+
+				long maxDelayMs = this.defaultMessageStore.getMessageStoreConfig().getTimerMaxDelaySec() * 1000L;
+				if (deliverMs - msg.getStoreTimestamp() > maxDelayMs) {
+					log.warn("timer message delays too long, topic: {} deliverMs: {}", msg.getTopic(), deliverMs);
+					return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+				}
+
+				MessageAccessor.clearProperty(msg, MessageConst.PROPERTY_TIMER_DELAY_SEC);
+				MessageAccessor.clearProperty(msg, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+				if (deliverMs > msg.getStoreTimestamp()) {
+					topic = TimerMessageStore.TIMER_TOPIC;
+					queueId = 0;
+
+					MessageAccessor.putProperty(msg, MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(deliverMs));
+					MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+					MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID,
+							String.valueOf(msg.getQueueId()));
+
+					msg.setTopic(topic);
+					msg.setQueueId(queueId);
+				}
+				msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+			}
+		}
+
+		PutMessageResult putMessageResult = this.lockFreeAppendEnable ? this.appendMessageLockFree(msg)
+				: this.appendMessageInLock(msg, msg);
+		if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+			return putMessageResult;
+		}
+
+		result = putMessageResult.getAppendMessageResult();
+
+		// Statistics
+		storeStatsService.addTopicPut(topic, 1, result.getWroteBytes());
+
+		this.defaultMessageStore.wakeupReput();
+
+		return putMessageResult;
+	}
+
+	/**
+	 * Append a run of messages for the same topic and queue in one lock hold,
+	 * they get consecutive queue offsets and wait for a single group commit.
+	 * Transaction and delay messages are not supported in a batch
+	 */
+	public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+		final MessageExtBrokerInner firstMsg = messageExtBatch.getMessages().get(0);
+		final String topic = messageExtBatch.getTopic();
+		final int queueId = messageExtBatch.getQueueId();
+
+		for (MessageExtBrokerInner msg : messageExtBatch.getMessages()) {
+			if (!topic.equals(msg.getTopic()) || queueId != msg.getQueueId()) {
+				log.warn("putMessages batch with different topic or queue, " + topic + "-" + queueId + " "
+						+ msg.getTopic() + "-" + msg.getQueueId());
+				return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+			}
+
+			if (MessageSysFlag.getTransactionValue(msg.getSysFlag()) != MessageSysFlag.TransactionNotType
+					|| msg.getDelayTimeLevel() > 0 || isTimerMessage(msg)) {
+				log.warn("putMessages batch not support transaction or delay message, topic: " + topic);
+				return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+			}
+
+			msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
+		}
+
+		PutMessageResult putMessageResult = this.lockFreeAppendEnable ? this.appendMessageLockFree(messageExtBatch)
+				: this.appendMessageInLock(messageExtBatch, firstMsg);
+		if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+			return putMessageResult;
 		}
 
+		AppendMessageResult result = putMessageResult.getAppendMessageResult();
+
+		// Statistics
+		StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+		storeStatsService.addTopicPut(topic, result.getMsgNum(), result.getWroteBytes());
+
+		this.defaultMessageStore.wakeupReput();
+		this.handleDiskFlushAndHA(putMessageResult, result, firstMsg);
+
+		return putMessageResult;
+	}
+
+	/**
+	 * msg is a MessageExtBrokerInner or a MessageExtBatch
+	 */
+	private PutMessageResult appendMessageInLock(final Object msg, final MessageExtBrokerInner firstMsg) {
+		AppendMessageResult result = null;
 		long eclipseTimeInLock = 0;
 		// 获取当前正在写入文件
 		MapedFile mapedFile = this.mapedFileQueue.getLastMapedFileWithLock();
@@ -520,7 +844,13 @@ public class CommitLog {
 
 			// Here settings are stored timestamp, in order to ensure an orderly
 			// global
-			msg.setStoreTimestamp(beginLockTimestamp);
+			if (msg instanceof MessageExtBatch) {
+				for (MessageExtBrokerInner inner : ((MessageExtBatch) msg).getMessages()) {
+					inner.setStoreTimestamp(beginLockTimestamp);
+				}
+			} else {
+				firstMsg.setStoreTimestamp(beginLockTimestamp);
+			}
 
 			// 新建一个maped file如果文件不存在或者文件已经写满
 			if (null == mapedFile || mapedFile.isFull()) {
@@ -528,8 +858,8 @@ public class CommitLog {
 			}
 
 			if (null == mapedFile) {// 文件创建失败，则返回错误
-				log.error("create maped file1 error, topic: " + msg.getTopic() + " clientAddr: "
-						+ msg.getBornHostString());
+				log.error("create maped file1 error, topic: " + firstMsg.getTopic() + " clientAddr: "
+						+ firstMsg.getBornHostString());
 				return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
 			}
 
@@ -543,8 +873,8 @@ public class CommitLog {
 				mapedFile = this.mapedFileQueue.getLastMapedFile();
 				if (null == mapedFile) {
 					// XXX: warn and notify me
-					log.error("create maped file2 error, topic: " + msg.getTopic() + " clientAddr: "
-							+ msg.getBornHostString());
+					log.error("create maped file2 error, topic: " + firstMsg.getTopic() + " clientAddr: "
+							+ firstMsg.getBornHostString());
 					return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
 				}
 				result = mapedFile.appendMessage(msg, this.appendMessageCallback);
@@ -565,63 +895,263 @@ public class CommitLog {
 			log.warn("[NOTIFYME]putMessage in lock eclipse time(ms) " + eclipseTimeInLock);
 		}
 
-		PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+		return new PutMessageResult(PutMessageStatus.PUT_OK, result);
+	}
+
+	private void handleDiskFlushAndHA(final PutMessageResult putMessageResult, final AppendMessageResult result,
+			final MessageExt msg) {
+		PutMessageStatus flushStatus = this.waitForPutStatus(this.submitFlushRequest(result, msg),
+				PutMessageStatus.FLUSH_DISK_TIMEOUT, msg);
+		if (flushStatus != PutMessageStatus.PUT_OK) {
+			putMessageResult.setPutMessageStatus(flushStatus);
+		}
 
-		// Statistics
-		storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
-		storeStatsService.getSinglePutMessageTopicSizeTotal(topic).addAndGet(result.getWroteBytes());
+		PutMessageStatus replicaStatus = this.waitForPutStatus(this.submitReplicaRequest(result, msg),
+				PutMessageStatus.FLUSH_SLAVE_TIMEOUT, msg);
+		if (replicaStatus != PutMessageStatus.PUT_OK) {
+			putMessageResult.setPutMessageStatus(replicaStatus);
+		}
+	}
 
-		GroupCommitRequest request = null;
+	/**
+	 * Flush and replication are requested together, so the replica transfer
+	 * overlaps the group commit instead of waiting for it
+	 */
+	private CompletableFuture<PutMessageResult> submitDiskFlushAndHA(final PutMessageResult putMessageResult,
+			final AppendMessageResult result, final MessageExt msg) {
+		CompletableFuture<PutMessageStatus> flushFuture = this.submitFlushRequest(result, msg);
+		CompletableFuture<PutMessageStatus> replicaFuture = this.submitReplicaRequest(result, msg);
+		return flushFuture.thenCombine(replicaFuture,
+				new BiFunction<PutMessageStatus, PutMessageStatus, PutMessageResult>() {
+					@Override
+					public PutMessageResult apply(PutMessageStatus flushStatus, PutMessageStatus replicaStatus) {
+						if (flushStatus != PutMessageStatus.PUT_OK) {
+							putMessageResult.setPutMessageStatus(flushStatus);
+						}
+						if (replicaStatus != PutMessageStatus.PUT_OK) {
+							putMessageResult.setPutMessageStatus(replicaStatus);
+						}
+						return putMessageResult;
+					}
+				});
+	}
 
+	private CompletableFuture<PutMessageStatus> submitFlushRequest(final AppendMessageResult result,
+			final MessageExt msg) {
 		// flush数据到磁盘，分同步和异步
 		// Synchronization flush (同步刷盘)
 		if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
 			GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
 			if (msg.isWaitStoreMsgOK()) {
-				request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+				GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
 				service.putRequest(request);
-				boolean flushOK = request
-						.waitForFlush(this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout());
-				if (!flushOK) {
-					log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " tags: "
-							+ msg.getTags() + " client address: " + msg.getBornHostString());
-					putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
-				}
+				return request.future().thenApply(new Function<Boolean, PutMessageStatus>() {
+					@Override
+					public PutMessageStatus apply(Boolean flushOK) {
+						if (!flushOK) {
+							log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " tags: "
+									+ msg.getTags() + " client address: " + msg.getBornHostString());
+							return PutMessageStatus.FLUSH_DISK_TIMEOUT;
+						}
+						return PutMessageStatus.PUT_OK;
+					}
+				});
 			} else {
 				service.wakeup();
 			}
 		} else {// Asynchronous flush (异步刷盘)
-			this.flushCommitLogService.wakeup();
+			if (this.defaultMessageStore.isTransientStorePoolEnable()) {
+				this.writeBackRealTimeService.wakeup();
+			} else {
+				this.flushCommitLogService.wakeup();
+			}
 		}
 
+		return CompletableFuture.completedFuture(PutMessageStatus.PUT_OK);
+	}
+
+	private CompletableFuture<PutMessageStatus> submitReplicaRequest(final AppendMessageResult result,
+			final MessageExt msg) {
 		// Synchronous write double (同步双写)
 		if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
 			HAService service = this.defaultMessageStore.getHaService();
 			if (msg.isWaitStoreMsgOK()) {
 				// Determine whether to wait
 				if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
-					if (null == request) {
-						request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
-					}
+					GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
 					service.putRequest(request);
 
 					service.getWaitNotifyObject().wakeupAll();
 
-					boolean flushOK = request
-							.waitForFlush(this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout());
-					if (!flushOK) {
-						log.error("do sync transfer other node, wait return, but failed, topic: " + msg.getTopic()
-								+ " tags: " + msg.getTags() + " client address: " + msg.getBornHostString());
-						putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
-					}
+					return request.future().thenApply(new Function<Boolean, PutMessageStatus>() {
+						@Override
+						public PutMessageStatus apply(Boolean transferOK) {
+							if (!transferOK) {
+								log.error("do sync transfer other node, wait return, but failed, topic: "
+										+ msg.getTopic() + " tags: " + msg.getTags() + " client address: "
+										+ msg.getBornHostString());
+								return PutMessageStatus.FLUSH_SLAVE_TIMEOUT;
+							}
+							return PutMessageStatus.PUT_OK;
+						}
+					});
 				} else {// Slave problem
 					// Tell the producer, slave not available
-					putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+					return CompletableFuture.completedFuture(PutMessageStatus.SLAVE_NOT_AVAILABLE);
 				}
 			}
 		}
 
-		return putMessageResult;
+		return CompletableFuture.completedFuture(PutMessageStatus.PUT_OK);
+	}
+
+	private PutMessageStatus waitForPutStatus(final CompletableFuture<PutMessageStatus> future,
+			final PutMessageStatus timeoutStatus, final MessageExt msg) {
+		try {
+			return future.get(this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout(),
+					TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			log.error("wait for put message result failed, " + timeoutStatus + " topic: " + msg.getTopic()
+					+ " tags: " + msg.getTags() + " client address: " + msg.getBornHostString());
+			return timeoutStatus;
+		}
+	}
+
+	/**
+	 * The message is serialized into a thread local buffer outside the lock,
+	 * only the write slot reservation and the queue offset assignment are done
+	 * in a short spin lock. They must be done together, because ConsumeQueue is
+	 * dispatched in the CommitLog order. msg is a MessageExtBrokerInner or a
+	 * MessageExtBatch
+	 */
+	private PutMessageResult appendMessageLockFree(final Object msg) {
+		final LockFreeMessageEncoder encoder = this.lockFreeMessageEncoder.get();
+		final MessageExtBrokerInner firstMsg;
+		AppendMessageStatus status;
+		if (msg instanceof MessageExtBatch) {
+			firstMsg = ((MessageExtBatch) msg).getMessages().get(0);
+			status = encoder.encode(((MessageExtBatch) msg).getMessages());
+		} else {
+			firstMsg = (MessageExtBrokerInner) msg;
+			status = encoder.encode(firstMsg);
+		}
+
+		switch (status) {
+		case PUT_OK:
+			break;
+		case MESSAGE_SIZE_EXCEEDED:
+		case PROPERTIES_SIZE_EXCEEDED:
+			return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(status));
+		default:
+			return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, new AppendMessageResult(status));
+		}
+
+		final int msgLen = encoder.getMsgLength();
+		final String key = firstMsg.getTopic() + "-" + firstMsg.getQueueId();
+		final int tranType = MessageSysFlag.getTransactionValue(firstMsg.getSysFlag());
+
+		MapedFile mapedFile = null;
+		int wrotePos = -1;
+		long queueOffset = 0L;
+		long storeTimestamp = 0L;
+
+		for (int tries = 0; tries < MaxRollTimes; tries++) {
+			MapedFile blankFile = null;
+			int blankPos = -1;
+			long eclipseTimeInLock = 0;
+
+			this.putMessageSpinLock.lock();
+			try {
+				long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+				// Store timestamp is taken in the lock, keep it ordered with the
+				// physical offset
+				storeTimestamp = beginLockTimestamp;
+
+				mapedFile = this.mapedFileQueue.getLastMapedFileWithLock();
+				if (mapedFile != null && !mapedFile.isFull()) {
+					wrotePos = mapedFile.reserveAppend(msgLen, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+					if (wrotePos < 0) {
+						// Fill the end of file with blank, then roll to a new file
+						blankFile = mapedFile;
+						blankPos = blankFile.reserveRemaining();
+					}
+				}
+
+				if (wrotePos >= 0) {
+					Long offset = this.topicQueueTable.get(key);
+					if (null == offset) {
+						offset = 0L;
+						this.topicQueueTable.put(key, offset);
+					}
+
+					queueOffset = offset;
+					switch (tranType) {
+					case MessageSysFlag.TransactionPreparedType:
+					case MessageSysFlag.TransactionRollbackType:
+						queueOffset = 0L;
+						break;
+					case MessageSysFlag.TransactionNotType:
+					case MessageSysFlag.TransactionCommitType:
+						this.topicQueueTable.put(key, offset + encoder.getMsgNum());
+						break;
+					default:
+						break;
+					}
+				}
+
+				eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+			} finally {
+				this.putMessageSpinLock.unlock();
+			}
+
+			if (eclipseTimeInLock > 500) {
+				log.warn("[NOTIFYME]putMessage in lock eclipse time(ms) " + eclipseTimeInLock);
+			}
+
+			// Reserved slots must always be published, or the later ones will
+			// wait forever
+			if (blankFile != null) {
+				int maxBlank = blankFile.getFileSize() - blankPos;
+				blankFile.appendReserved(blankPos, maxBlank, encoder.encodeBlank(maxBlank), storeTimestamp);
+			}
+
+			if (wrotePos >= 0) {
+				break;
+			}
+
+			// The roll may wait for the file to be allocated, so it is done out
+			// of the spin lock, other senders finding the file full block here
+			synchronized (this.rollMapedFileLock) {
+				mapedFile = this.mapedFileQueue.getLastMapedFile();
+			}
+			if (null == mapedFile) {
+				log.error("create maped file error, topic: " + firstMsg.getTopic() + " clientAddr: "
+						+ firstMsg.getBornHostString());
+				return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+			}
+		}
+
+		if (wrotePos < 0) {
+			log.error("reserve write slot error, topic: " + firstMsg.getTopic() + " msgLen: " + msgLen);
+			return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR,
+					new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+		}
+
+		final long wroteOffset = mapedFile.getFileFromOffset() + wrotePos;
+		if (msg instanceof MessageExtBatch) {
+			for (MessageExtBrokerInner inner : ((MessageExtBatch) msg).getMessages()) {
+				inner.setStoreTimestamp(storeTimestamp);
+			}
+		} else {
+			firstMsg.setStoreTimestamp(storeTimestamp);
+		}
+		String msgId = encoder.fillOffsets(firstMsg.getStoreHostBytes(), queueOffset, wroteOffset, storeTimestamp);
+		mapedFile.appendReserved(wrotePos, msgLen, encoder.getMsgStoreItemMemory(), storeTimestamp);
+
+		AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId,
+				storeTimestamp, queueOffset);
+		result.setMsgNum(encoder.getMsgNum());
+		return new PutMessageResult(PutMessageStatus.PUT_OK, result);
 	}
 
 	/**
@@ -629,7 +1159,7 @@ public class CommitLog {
 	 * occurs, it returns -1
 	 */
 	public long pickupStoretimestamp(final long offset, final int size) {
-		if (offset > this.getMinOffset()) {
+		if (offset >= this.getMinOffset()) {
 			SelectMapedBufferResult result = this.getMessage(offset, size);
 			if (null != result) {
 				try {
@@ -645,16 +1175,38 @@ public class CommitLog {
 
 	public SelectMapedBufferResult getMessage(final long offset, final int size) {
 		int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
-		MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset, (0 == offset ? true : false));
+		MapedFile mapedFile = this.findMapedFileByOffset(offset);
 		if (mapedFile != null) {
 			int pos = (int) (offset % mapedFileSize);
 			SelectMapedBufferResult result = mapedFile.selectMapedBuffer(pos, size);
-			return result;
+			if (result != null) {
+				return result;
+			}
+		}
+
+		// The hot file may be gone or going since it was moved
+		if (this.coldCommitLog != null) {
+			return this.coldCommitLog.getMessage(offset, size);
 		}
 
 		return null;
 	}
 
+	/**
+	 * @return null if the offset is below the hot tier
+	 */
+	public MapedFile findMapedFileByOffset(final long offset) {
+		if (this.coldCommitLog != null && offset < this.mapedFileQueue.getMinOffset()) {
+			return null;
+		}
+
+		return this.mapedFileQueue.findMapedFileByOffset(offset, (0 == offset ? true : false));
+	}
+
+	public ColdCommitLog getColdCommitLog() {
+		return coldCommitLog;
+	}
+
 	public HashMap<String, Long> getTopicQueueTable() {
 		return topicQueueTable;
 	}
@@ -665,6 +1217,9 @@ public class CommitLog {
 
 	public void destroy() {
 		this.mapedFileQueue.destroy();
+		if (this.coldCommitLog != null) {
+			this.coldCommitLog.destroy();
+		}
 	}
 
 	public boolean appendData(long startOffset, byte[] data) {
@@ -679,6 +1234,22 @@ public class CommitLog {
 		}
 	}
 
+	/**
+	 * Flush and record how long it took, if anything was flushed
+	 */
+	private void commitTimed(final int flushLeastPages) {
+		this.commitTimed(flushLeastPages, Integer.MAX_VALUE);
+	}
+
+	private void commitTimed(final int flushLeastPages, final int maxFlushBytes) {
+		long committedWhere = this.mapedFileQueue.getCommittedWhere();
+		long beginTime = System.nanoTime();
+		this.mapedFileQueue.commit(flushLeastPages, maxFlushBytes);
+		if (this.mapedFileQueue.getCommittedWhere() > committedWhere) {
+			this.defaultMessageStore.getStoreStatsService().getFlushLatency().record(System.nanoTime() - beginTime);
+		}
+	}
+
 	public boolean retryDeleteFirstFile(final long intervalForcibly) {
 		return this.mapedFileQueue.retryDeleteFirstFile(intervalForcibly);
 	}
@@ -686,15 +1257,83 @@ public class CommitLog {
 	abstract class FlushCommitLogService extends ServiceThread {
 	}
 
+	/**
+	 * Write back the data appended to the transient store pool buffers, then
+	 * wake up the flush service
+	 */
+	class WriteBackRealTimeService extends ServiceThread {
+		private static final int RetryTimesOver = 10;
+		private long lastWriteBackTimestamp = 0;
+
+		public void run() {
+			CommitLog.log.info(this.getServiceName() + " service started");
+
+			while (!this.isStoped()) {
+				int interval = CommitLog.this.defaultMessageStore.getMessageStoreConfig().getWriteBackIntervalCommitLog();
+				int writeBackLeastPages = CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+						.getWriteBackCommitLogLeastPages();
+				int writeBackThoroughInterval = CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+						.getWriteBackCommitLogThoroughInterval();
+
+				long currentTimeMillis = System.currentTimeMillis();
+				if (currentTimeMillis >= (this.lastWriteBackTimestamp + writeBackThoroughInterval)) {
+					this.lastWriteBackTimestamp = currentTimeMillis;
+					writeBackLeastPages = 0;
+				}
+
+				try {
+					boolean result = CommitLog.this.mapedFileQueue.writeBack(writeBackLeastPages);
+					if (!result) {
+						// Some data written back, flush and dispatch it
+						this.lastWriteBackTimestamp = currentTimeMillis;
+						CommitLog.this.flushCommitLogService.wakeup();
+						CommitLog.this.defaultMessageStore.wakeupReput();
+					}
+
+					this.waitForRunning(interval);
+				} catch (Exception e) {
+					CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
+				}
+			}
+
+			// Normal shutdown, to ensure that all the write back before exit
+			boolean result = false;
+			for (int i = 0; i < RetryTimesOver && !result; i++) {
+				result = CommitLog.this.mapedFileQueue.writeBack(0);
+				CommitLog.log.info(this.getServiceName() + " service shutdown, retry " + (i + 1) + " times "
+						+ (result ? "OK" : "Not OK"));
+			}
+
+			CommitLog.log.info(this.getServiceName() + " service end");
+		}
+
+		@Override
+		public String getServiceName() {
+			return WriteBackRealTimeService.class.getSimpleName();
+		}
+
+		@Override
+		public long getJointime() {
+			return 1000 * 60 * 5;
+		}
+	}
+
 	class FlushRealTimeService extends FlushCommitLogService {
 		private static final int RetryTimesOver = 3;
 		private long lastFlushTimestamp = 0;
 		private long printTimes = 0;
+		// When the adaptive flush last left nothing older than the max delay
+		private long lastAdaptiveFlushTimestamp = System.currentTimeMillis();
 
 		public void run() {
 			CommitLog.log.info(this.getServiceName() + " service started");
 
 			while (!this.isStoped()) {
+				if (CommitLog.this.defaultMessageStore.getMessageStoreConfig().isFlushCommitLogAdaptive()) {
+					this.flushAdaptive();
+					continue;
+				}
+
 				boolean flushCommitLogTimed = CommitLog.this.defaultMessageStore.getMessageStoreConfig()
 						.isFlushCommitLogTimed();
 
@@ -726,11 +1365,13 @@ public class CommitLog {
 						this.printFlushProgress();
 					}
 
-					CommitLog.this.mapedFileQueue.commit(flushPhysicQueueLeastPages);
+					CommitLog.this.commitTimed(flushPhysicQueueLeastPages);
 					long storeTimestamp = CommitLog.this.mapedFileQueue.getStoreTimestamp();
 					if (storeTimestamp > 0) {
 						CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
 					}
+					CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicOffset(
+						CommitLog.this.mapedFileQueue.getCommittedMessageWhere());
 				} catch (Exception e) {
 					CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
 					this.printFlushProgress();
@@ -750,6 +1391,51 @@ public class CommitLog {
 			CommitLog.log.info(this.getServiceName() + " service end");
 		}
 
+		/**
+		 * Flush a chunk whenever a chunk is dirty, so the disk sees a steady
+		 * stream of small syncs instead of a burst per interval; flush all that
+		 * is dirty beyond the max dirty size, and what is left below a chunk
+		 * once it waited for the max delay
+		 */
+		private void flushAdaptive() {
+			final MessageStoreConfig config = CommitLog.this.defaultMessageStore.getMessageStoreConfig();
+			final int chunkSize = Math.max(MapedFile.OS_PAGE_SIZE, config.getFlushCommitLogChunkSize());
+			final int maxDelay = config.getFlushCommitLogMaxDelay();
+
+			try {
+				long dirty = CommitLog.this.mapedFileQueue.getMaxOffset()
+						- CommitLog.this.mapedFileQueue.getCommittedWhere();
+				long elapsed = System.currentTimeMillis() - this.lastAdaptiveFlushTimestamp;
+				if (dirty <= 0) {
+					this.lastAdaptiveFlushTimestamp = System.currentTimeMillis();
+					this.waitForRunning(maxDelay);
+					return;
+				}
+
+				if (dirty < chunkSize && elapsed < maxDelay) {
+					this.waitForRunning(maxDelay - elapsed);
+					return;
+				}
+
+				int maxFlushBytes = dirty > config.getFlushCommitLogMaxDirtySize() ? Integer.MAX_VALUE : chunkSize;
+				CommitLog.this.commitTimed(0, maxFlushBytes);
+				if (dirty <= chunkSize) {
+					this.lastAdaptiveFlushTimestamp = System.currentTimeMillis();
+				}
+
+				long storeTimestamp = CommitLog.this.mapedFileQueue.getStoreTimestamp();
+				if (storeTimestamp > 0) {
+					CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
+				}
+				// a chunk may end inside a message, recovery must not start there
+				CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicOffset(
+					CommitLog.this.mapedFileQueue.getCommittedMessageWhere());
+			} catch (Exception e) {
+				CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
+				this.waitForRunning(maxDelay);
+			}
+		}
+
 		@Override
 		public String getServiceName() {
 			return FlushCommitLogService.class.getSimpleName();
@@ -766,10 +1452,15 @@ public class CommitLog {
 		}
 	}
 
-	public class GroupCommitRequest {
+	/**
+	 * Completed by the flush or HA service once nextOffset is durable, a whole
+	 * batch of requests is completed per round, so callers may either block in
+	 * waitForFlush or chain on future()
+	 */
+	public static class GroupCommitRequest {
 		private final long nextOffset;
-		private final CountDownLatch countDownLatch = new CountDownLatch(1);
-		private volatile boolean flushOK = false;
+		private final long startTimestamp = System.currentTimeMillis();
+		private final CompletableFuture<Boolean> flushOKFuture = new CompletableFuture<Boolean>();
 
 		public GroupCommitRequest(long nextOffset) {
 			this.nextOffset = nextOffset;
@@ -779,20 +1470,30 @@ public class CommitLog {
 			return nextOffset;
 		}
 
+		public long getStartTimestamp() {
+			return startTimestamp;
+		}
+
 		public void wakeupCustomer(final boolean flushOK) {
-			this.flushOK = flushOK;
-			this.countDownLatch.countDown();
+			this.flushOKFuture.complete(flushOK);
 		}
 
 		public boolean waitForFlush(long timeout) {
 			try {
-				this.countDownLatch.await(timeout, TimeUnit.MILLISECONDS);
-				return this.flushOK;
+				return this.flushOKFuture.get(timeout, TimeUnit.MILLISECONDS);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 				return false;
+			} catch (ExecutionException e) {
+				return false;
+			} catch (TimeoutException e) {
+				return false;
 			}
 		}
+
+		public CompletableFuture<Boolean> future() {
+			return flushOKFuture;
+		}
 	}
 
 	/**
@@ -823,13 +1524,10 @@ public class CommitLog {
 				for (GroupCommitRequest req : this.requestsRead) {
 					// There may be a message in the next file, so a maximum of
 					// two times the flush
-					boolean flushOK = false;
+					boolean flushOK = (CommitLog.this.mapedFileQueue.getCommittedWhere() >= req.getNextOffset());
 					for (int i = 0; (i < 2) && !flushOK; i++) {
+						CommitLog.this.commitTimed(0);
 						flushOK = (CommitLog.this.mapedFileQueue.getCommittedWhere() >= req.getNextOffset());
-
-						if (!flushOK) {
-							CommitLog.this.mapedFileQueue.commit(0);
-						}
 					}
 
 					req.wakeupCustomer(flushOK);
@@ -839,12 +1537,14 @@ public class CommitLog {
 				if (storeTimestamp > 0) {
 					CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
 				}
+				CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicOffset(
+					CommitLog.this.mapedFileQueue.getCommittedMessageWhere());
 
 				this.requestsRead.clear();
 			} else {
 				// Because of individual messages is set to not sync flush, it
 				// will come to this process
-				CommitLog.this.mapedFileQueue.commit(0);
+				CommitLog.this.commitTimed(0);
 			}
 		}
 
@@ -893,6 +1593,56 @@ public class CommitLog {
 		}
 	}
 
+	/**
+	 * Serialize the message into item, the caller makes sure there is enough
+	 * space
+	 */
+	private static void writeMessageItem(final ByteBuffer item, final MessageExtBrokerInner msgInner, final int msgLen,
+			final long queueOffset, final long physicalOffset, final byte[] topicData, final byte[] propertiesData) {
+		final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+		final short propertiesLength = propertiesData == null ? 0 : (short) propertiesData.length;
+
+		// 1 TOTALSIZE
+		item.putInt(msgLen);
+		// 2 MAGICCODE
+		item.putInt(CommitLog.MessageMagicCode);
+		// 3 BODYCRC
+		item.putInt(msgInner.getBodyCRC());
+		// 4 QUEUEID
+		item.putInt(msgInner.getQueueId());
+		// 5 FLAG
+		item.putInt(msgInner.getFlag());
+		// 6 QUEUEOFFSET
+		item.putLong(queueOffset);
+		// 7 PHYSICALOFFSET
+		item.putLong(physicalOffset);
+		// 8 SYSFLAG
+		item.putInt(msgInner.getSysFlag());
+		// 9 BORNTIMESTAMP
+		item.putLong(msgInner.getBornTimestamp());
+		// 10 BORNHOST
+		item.put(msgInner.getBornHostBytes());
+		// 11 STORETIMESTAMP
+		item.putLong(msgInner.getStoreTimestamp());
+		// 12 STOREHOSTADDRESS
+		item.put(msgInner.getStoreHostBytes());
+		// 13 RECONSUMETIMES
+		item.putInt(msgInner.getReconsumeTimes());
+		// 14 Prepared Transaction Offset
+		item.putLong(msgInner.getPreparedTransactionOffset());
+		// 15 BODY
+		item.putInt(bodyLength);
+		if (bodyLength > 0)
+			item.put(msgInner.getBody());
+		// 16 TOPIC
+		item.put((byte) topicData.length);
+		item.put(topicData);
+		// 17 PROPERTIES
+		item.putShort(propertiesLength);
+		if (propertiesLength > 0)
+			item.put(propertiesData);
+	}
+
 	class DefaultAppendMessageCallback implements AppendMessageCallback {
 		// File at the end of the minimum fixed length empty
 		private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
@@ -987,45 +1737,8 @@ public class CommitLog {
 
 			// Initialization of storage space
 			this.resetMsgStoreItemMemory(msgLen);
-			// 1 TOTALSIZE
-			this.msgStoreItemMemory.putInt(msgLen);
-			// 2 MAGICCODE
-			this.msgStoreItemMemory.putInt(CommitLog.MessageMagicCode);
-			// 3 BODYCRC
-			this.msgStoreItemMemory.putInt(msgInner.getBodyCRC());
-			// 4 QUEUEID
-			this.msgStoreItemMemory.putInt(msgInner.getQueueId());
-			// 5 FLAG
-			this.msgStoreItemMemory.putInt(msgInner.getFlag());
-			// 6 QUEUEOFFSET
-			this.msgStoreItemMemory.putLong(queueOffset);
-			// 7 PHYSICALOFFSET
-			this.msgStoreItemMemory.putLong(fileFromOffset + byteBuffer.position());
-			// 8 SYSFLAG
-			this.msgStoreItemMemory.putInt(msgInner.getSysFlag());
-			// 9 BORNTIMESTAMP
-			this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
-			// 10 BORNHOST
-			this.msgStoreItemMemory.put(msgInner.getBornHostBytes());
-			// 11 STORETIMESTAMP
-			this.msgStoreItemMemory.putLong(msgInner.getStoreTimestamp());
-			// 12 STOREHOSTADDRESS
-			this.msgStoreItemMemory.put(msgInner.getStoreHostBytes());
-			// 13 RECONSUMETIMES
-			this.msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
-			// 14 Prepared Transaction Offset
-			this.msgStoreItemMemory.putLong(msgInner.getPreparedTransactionOffset());
-			// 15 BODY
-			this.msgStoreItemMemory.putInt(bodyLength);
-			if (bodyLength > 0)
-				this.msgStoreItemMemory.put(msgInner.getBody());
-			// 16 TOPIC
-			this.msgStoreItemMemory.put((byte) topicLength);
-			this.msgStoreItemMemory.put(topicData);
-			// 17 PROPERTIES
-			this.msgStoreItemMemory.putShort(propertiesLength);
-			if (propertiesLength > 0)
-				this.msgStoreItemMemory.put(propertiesData);
+			CommitLog.writeMessageItem(this.msgStoreItemMemory, msgInner, msgLen, queueOffset,
+					fileFromOffset + byteBuffer.position(), topicData, propertiesData);
 
 			// Write messages to the queue buffer
 			byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
@@ -1049,16 +1762,230 @@ public class CommitLog {
 			return result;
 		}
 
+		public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer, final int maxBlank,
+				final MessageExtBatch messageExtBatch) {
+			final MessageExtBrokerInner firstMsg = messageExtBatch.getMessages().get(0);
+			final long wroteOffset = fileFromOffset + byteBuffer.position();
+
+			// Record ConsumeQueue information
+			String key = messageExtBatch.getTopic() + "-" + messageExtBatch.getQueueId();
+			Long queueOffset = CommitLog.this.topicQueueTable.get(key);
+			if (null == queueOffset) {
+				queueOffset = 0L;
+				CommitLog.this.topicQueueTable.put(key, queueOffset);
+			}
+			final long beginQueueOffset = queueOffset;
+
+			/**
+			 * Serialize the whole batch, it is limited by the max message size
+			 */
+			this.msgStoreItemMemory.clear();
+			int totalMsgLen = 0;
+			StringBuilder msgIds = new StringBuilder(messageExtBatch.size() * (MessageDecoder.MSG_ID_LENGTH * 2 + 1));
+			for (MessageExtBrokerInner msgInner : messageExtBatch.getMessages()) {
+				final byte[] propertiesData = msgInner.getPropertiesString() == null ? null
+						: msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+				final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+				if (propertiesLength > Short.MAX_VALUE) {
+					log.warn("putMessages message properties length too long. length={}", propertiesLength);
+					return new AppendMessageResult(AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED);
+				}
+
+				final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+				final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+				final int msgLen = calMsgLength(bodyLength, topicData.length, propertiesLength);
+
+				// Exceeds the maximum message
+				if (totalMsgLen + msgLen > this.maxMessageSize) {
+					CommitLog.log.warn("message batch size exceeded, batch total size: " + (totalMsgLen + msgLen)
+							+ ", maxMessageSize: " + this.maxMessageSize);
+					return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+				}
+
+				// Determines whether there is sufficient free space for the
+				// whole batch
+				if ((totalMsgLen + msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+					this.resetMsgStoreItemMemory(maxBlank);
+					// 1 TOTALSIZE
+					this.msgStoreItemMemory.putInt(maxBlank);
+					// 2 MAGICCODE
+					this.msgStoreItemMemory.putInt(CommitLog.BlankMagicCode);
+
+					byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
+					return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, "",
+							firstMsg.getStoreTimestamp(), beginQueueOffset);
+				}
+
+				final long physicalOffset = wroteOffset + totalMsgLen;
+				CommitLog.writeMessageItem(this.msgStoreItemMemory, msgInner, msgLen, queueOffset, physicalOffset,
+						topicData, propertiesData);
+
+				if (msgIds.length() > 0) {
+					msgIds.append(',');
+				}
+				msgIds.append(MessageDecoder.createMessageId(this.msgIdMemory, msgInner.getStoreHostBytes(),
+						physicalOffset));
+
+				queueOffset++;
+				totalMsgLen += msgLen;
+			}
+
+			// Write the batch to the queue buffer
+			byteBuffer.put(this.msgStoreItemMemory.array(), 0, totalMsgLen);
+
+			AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen,
+					msgIds.toString(), firstMsg.getStoreTimestamp(), beginQueueOffset);
+			result.setMsgNum(messageExtBatch.size());
+
+			// The next update ConsumeQueue information
+			CommitLog.this.topicQueueTable.put(key, queueOffset);
+
+			return result;
+		}
+
 		private void resetMsgStoreItemMemory(final int length) {
 			this.msgStoreItemMemory.flip();
 			this.msgStoreItemMemory.limit(length);
 		}
 	}
 
+	/**
+	 * Serializer of the lock-free append path, one instance per thread. The
+	 * queue offset, physical offset and store timestamp are filled in after the
+	 * write slot is reserved
+	 */
+	class LockFreeMessageEncoder {
+		private static final int QueueOffsetPostion = 20;
+		private final ByteBuffer msgIdMemory;
+		private final ByteBuffer msgStoreItemMemory;
+		private final ByteBuffer blankMemory;
+		private final int maxMessageSize;
+		// Start position of each message in msgStoreItemMemory
+		private int[] msgPositions = new int[16];
+		private int msgNum = 0;
+
+		LockFreeMessageEncoder(final int size) {
+			this.msgIdMemory = ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH);
+			this.msgStoreItemMemory = ByteBuffer.allocate(size);
+			this.blankMemory = ByteBuffer.allocate(DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+			this.maxMessageSize = size;
+		}
+
+		public AppendMessageStatus encode(final MessageExtBrokerInner msgInner) {
+			this.msgStoreItemMemory.clear();
+			this.msgNum = 0;
+			AppendMessageStatus status = this.encodeOne(msgInner);
+			this.msgStoreItemMemory.flip();
+			return status;
+		}
+
+		/**
+		 * The whole batch is limited by the max message size
+		 */
+		public AppendMessageStatus encode(final List<MessageExtBrokerInner> msgs) {
+			this.msgStoreItemMemory.clear();
+			this.msgNum = 0;
+			for (MessageExtBrokerInner msgInner : msgs) {
+				AppendMessageStatus status = this.encodeOne(msgInner);
+				if (status != AppendMessageStatus.PUT_OK) {
+					return status;
+				}
+			}
+			this.msgStoreItemMemory.flip();
+			return AppendMessageStatus.PUT_OK;
+		}
+
+		private AppendMessageStatus encodeOne(final MessageExtBrokerInner msgInner) {
+			final byte[] propertiesData = msgInner.getPropertiesString() == null ? null
+					: msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+			final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+			if (propertiesLength > Short.MAX_VALUE) {
+				log.warn("putMessage message properties length too long. length={}", propertiesLength);
+				return AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED;
+			}
+
+			final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+			final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+			final int msgLen = calMsgLength(bodyLength, topicData.length, propertiesLength);
+			if (this.msgStoreItemMemory.position() + msgLen > this.maxMessageSize) {
+				CommitLog.log.warn("message size exceeded, msg total size: "
+						+ (this.msgStoreItemMemory.position() + msgLen) + ", msg body size: " + bodyLength
+						+ ", maxMessageSize: " + this.maxMessageSize);
+				return AppendMessageStatus.MESSAGE_SIZE_EXCEEDED;
+			}
+
+			if (this.msgNum == this.msgPositions.length) {
+				this.msgPositions = Arrays.copyOf(this.msgPositions, this.msgNum * 2);
+			}
+			this.msgPositions[this.msgNum++] = this.msgStoreItemMemory.position();
+			CommitLog.writeMessageItem(this.msgStoreItemMemory, msgInner, msgLen, 0L, 0L, topicData, propertiesData);
+			return AppendMessageStatus.PUT_OK;
+		}
+
+		public ByteBuffer encodeBlank(final int maxBlank) {
+			this.blankMemory.clear();
+			this.blankMemory.putInt(maxBlank);
+			this.blankMemory.putInt(CommitLog.BlankMagicCode);
+			this.blankMemory.flip();
+			return this.blankMemory;
+		}
+
+		/**
+		 * Fill the fields decided in the lock, returns the message ids joined by
+		 * comma
+		 */
+		public String fillOffsets(final ByteBuffer storeHostBytes, final long queueOffset, final long wroteOffset,
+				final long storeTimestamp) {
+			StringBuilder msgIds = null;
+			for (int i = 0; i < this.msgNum; i++) {
+				final int pos = this.msgPositions[i];
+				this.msgStoreItemMemory.putLong(pos + QueueOffsetPostion, queueOffset + i);
+				this.msgStoreItemMemory.putLong(pos + MessageDecoder.MessagePhysicOffsetPostion, wroteOffset + pos);
+				this.msgStoreItemMemory.putLong(pos + MessageDecoder.MessageStoreTimestampPostion, storeTimestamp);
+
+				storeHostBytes.rewind();
+				String msgId = MessageDecoder.createMessageId(this.msgIdMemory, storeHostBytes, wroteOffset + pos);
+				if (this.msgNum == 1) {
+					return msgId;
+				}
+
+				if (null == msgIds) {
+					msgIds = new StringBuilder(this.msgNum * (MessageDecoder.MSG_ID_LENGTH * 2 + 1));
+				} else {
+					msgIds.append(',');
+				}
+				msgIds.append(msgId);
+			}
+
+			return msgIds == null ? "" : msgIds.toString();
+		}
+
+		public int getMsgLength() {
+			return this.msgStoreItemMemory.limit();
+		}
+
+		public int getMsgNum() {
+			return msgNum;
+		}
+
+		public ByteBuffer getMsgStoreItemMemory() {
+			return msgStoreItemMemory;
+		}
+	}
+
 	public void removeQueurFromTopicQueueTable(final String topic, final int queueId) {
 		String key = topic + "-" + queueId;
-		synchronized (this) {
-			this.topicQueueTable.remove(key);
+		if (this.lockFreeAppendEnable) {
+			this.putMessageSpinLock.lock();
+			try {
+				this.topicQueueTable.remove(key);
+			} finally {
+				this.putMessageSpinLock.unlock();
+			}
+		} else {
+			synchronized (this) {
+				this.topicQueueTable.remove(key);
+			}
 		}
 
 		log.info("removeQueurFromTopicQueueTable OK Topic: {} QueueId: {}", topic, queueId);
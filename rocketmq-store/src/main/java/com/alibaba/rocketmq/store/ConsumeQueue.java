@@ -17,12 +17,16 @@
 package com.alibaba.rocketmq.store;
 
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.timer.TimerMessageStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -37,6 +41,12 @@ public class ConsumeQueue {
     private final String topic;
     private final int queueId;
     private final ByteBuffer byteBufferIndex;
+    // null unless consumeQueueTagsBloomEnable
+    private final ConsumeQueueTagsBloom tagsBloom;
+    // null unless consumeQueueTimeIndexEnable
+    private final ConsumeQueueTimeIndex timeIndex;
+    // null unless consumeQueueExtEnable
+    private final ConsumeQueueExt ext;
     private final String storePath;
     private final int mapedFileSize;
     private long maxPhysicOffset = -1;
@@ -63,11 +73,56 @@ public class ConsumeQueue {
         this.mapedFileQueue = new MapedFileQueue(queueDir, mapedFileSize, null);
 
         this.byteBufferIndex = ByteBuffer.allocate(CQStoreUnitSize);
+
+        if (defaultMessageStore.getMessageStoreConfig().isConsumeQueueTagsBloomEnable()
+                && !ScheduleMessageService.SCHEDULE_TOPIC.equals(topic) && !TimerMessageStore.TIMER_TOPIC.equals(topic)) {
+            this.tagsBloom =
+                    new ConsumeQueueTagsBloom(topic, queueId,
+                        StorePathConfigHelper.getStorePathConsumeQueueTagsBloom(defaultMessageStore
+                            .getMessageStoreConfig().getStorePathRootDir()));
+        }
+        else {
+            this.tagsBloom = null;
+        }
+
+        if (defaultMessageStore.getMessageStoreConfig().isConsumeQueueTimeIndexEnable()
+                && !ScheduleMessageService.SCHEDULE_TOPIC.equals(topic) && !TimerMessageStore.TIMER_TOPIC.equals(topic)) {
+            this.timeIndex =
+                    new ConsumeQueueTimeIndex(topic, queueId,
+                        StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(defaultMessageStore
+                            .getMessageStoreConfig().getStorePathRootDir()), defaultMessageStore
+                            .getMessageStoreConfig().getConsumeQueueTimeIndexInterval());
+        }
+        else {
+            this.timeIndex = null;
+        }
+
+        if (defaultMessageStore.getMessageStoreConfig().isConsumeQueueExtEnable()
+                && !ScheduleMessageService.SCHEDULE_TOPIC.equals(topic) && !TimerMessageStore.TIMER_TOPIC.equals(topic)) {
+            this.ext =
+                    new ConsumeQueueExt(topic, queueId,
+                        StorePathConfigHelper.getStorePathConsumeQueueExt(defaultMessageStore.getMessageStoreConfig()
+                            .getStorePathRootDir()), defaultMessageStore.getMessageStoreConfig()
+                            .getMapedFileSizeConsumeQueueExt(), defaultMessageStore.getMessageStoreConfig()
+                            .getConsumeQueueExtFilterBitMapSize());
+        }
+        else {
+            this.ext = null;
+        }
     }
 
 
     public boolean load() {
         boolean result = this.mapedFileQueue.load();
+        if (result && this.tagsBloom != null) {
+            result = this.tagsBloom.load();
+        }
+        if (result && this.timeIndex != null) {
+            result = this.timeIndex.load();
+        }
+        if (result && this.ext != null) {
+            result = this.ext.load();
+        }
         log.info("load consume queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
         return result;
     }
@@ -127,9 +182,51 @@ public class ConsumeQueue {
             processOffset += mapedFileOffset;
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
         }
+
+        if (this.ext != null) {
+            this.ext.recover();
+            this.truncateLostExtUnits();
+        }
+    }
+
+
+    /**
+     * Entries flushed ahead of their ext units point past the recovered ext
+     * end, where new units would be written. Drop them, the CommitLog
+     * recovery dispatches their messages again
+     */
+    private void truncateLostExtUnits() {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        final long maxAddress = this.ext.getMaxAddress();
+        for (int index = Math.max(0, mapedFiles.size() - 3); index < mapedFiles.size(); index++) {
+            MapedFile mapedFile = mapedFiles.get(index);
+            ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            for (int i = 0; i < mapedFile.getWrotePostion(); i += CQStoreUnitSize) {
+                long offset = byteBuffer.getLong();
+                byteBuffer.getInt();
+                long tagsCode = byteBuffer.getLong();
+
+                if (ConsumeQueueExt.isExtAddr(tagsCode) && tagsCode >= maxAddress) {
+                    log.warn("consume queue {}-{} entry of {} points at a lost ext unit, truncate it", this.topic,
+                        this.queueId, offset);
+                    this.truncateDirtyLogicFiles(offset);
+                    // The CommitLog recovery starts at the checkpoint, it has
+                    // to dispatch the dropped entries again
+                    this.defaultMessageStore.getStoreCheckpoint().lowerLogicsOffset(offset);
+                    return;
+                }
+            }
+        }
     }
 
     public long getOffsetInQueueByTime(final long timestamp) {
+        if (this.timeIndex != null) {
+            long offset = this.getOffsetInQueueByTimeIndex(timestamp);
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+
         MapedFile mapedFile = this.mapedFileQueue.getMapedFileByTime(timestamp);
         if (mapedFile != null) {
             long offset = 0;
@@ -151,9 +248,9 @@ public class ConsumeQueue {
                         byteBuffer.position(midOffset);
                         long phyOffset = byteBuffer.getLong();
                         int size = byteBuffer.getInt();
+                        long tagsCode = byteBuffer.getLong();
 
-                        long storeTime =
-                                this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                        long storeTime = this.pickupStoretimestamp(phyOffset, size, tagsCode);
                         if (storeTime < 0) {
                             return 0;
                         }
@@ -201,6 +298,108 @@ public class ConsumeQueue {
         return 0;
     }
 
+    /**
+     * Binary search only the interval the time index narrows down to
+     *
+     * @return -1 if the time index can not answer
+     */
+    private long getOffsetInQueueByTimeIndex(final long timestamp) {
+        final long minIndex = this.getMinOffsetInQuque();
+        final long maxIndex = this.getMaxOffsetInQuque();
+        if (maxIndex <= minIndex) {
+            return -1;
+        }
+
+        long[] range = this.timeIndex.narrow(timestamp, minIndex, maxIndex);
+        if (null == range) {
+            return -1;
+        }
+
+        long low = range[0];
+        long high = range[1] - 1;
+        long leftIndex = -1, rightIndex = -1;
+        long leftIndexValue = -1L, rightIndexValue = -1L;
+        while (high >= low) {
+            long midIndex = (low + high) >>> 1;
+            long storeTime = this.getStoreTimestamp(midIndex);
+            if (storeTime < 0) {
+                return -1;
+            }
+            else if (storeTime == timestamp) {
+                return midIndex;
+            }
+            else if (storeTime > timestamp) {
+                high = midIndex - 1;
+                rightIndex = midIndex;
+                rightIndexValue = storeTime;
+            }
+            else {
+                low = midIndex + 1;
+                leftIndex = midIndex;
+                leftIndexValue = storeTime;
+            }
+        }
+
+        if (leftIndexValue == -1) {
+            return rightIndex;
+        }
+        else if (rightIndexValue == -1) {
+            return leftIndex;
+        }
+
+        return Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightIndex : leftIndex;
+    }
+
+
+    /**
+     * @return store timestamp of the entry at index, -1 if it is gone
+     */
+    public long getStoreTimestamp(final long index) {
+        final long offset = index * CQStoreUnitSize;
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (null == mapedFile) {
+            return -1;
+        }
+
+        SelectMapedBufferResult sbr = mapedFile.selectMapedBuffer((int) (offset % this.mapedFileSize), CQStoreUnitSize);
+        if (null == sbr) {
+            return -1;
+        }
+
+        try {
+            long phyOffset = sbr.getByteBuffer().getLong();
+            int size = sbr.getByteBuffer().getInt();
+            long tagsCode = sbr.getByteBuffer().getLong();
+            return this.pickupStoretimestamp(phyOffset, size, tagsCode);
+        }
+        finally {
+            sbr.release();
+        }
+    }
+
+
+    private long pickupStoretimestamp(final long phyOffset, final int size, final long tagsCode) {
+        ConsumeQueueExt.CqExtUnit extUnit = this.getExt(tagsCode);
+        if (extUnit != null) {
+            return extUnit.getStoreTimestamp();
+        }
+
+        return this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+    }
+
+
+    /**
+     * @return the ext unit tagsCode read from an entry points at, null if
+     *         it holds a tags code or the unit is gone
+     */
+    public ConsumeQueueExt.CqExtUnit getExt(final long tagsCode) {
+        if (null == this.ext || !ConsumeQueueExt.isExtAddr(tagsCode)) {
+            return null;
+        }
+
+        return this.ext.get(tagsCode);
+    }
+
     public void truncateDirtyLogicFiles(long phyOffet) {
         int logicFileSize = this.mapedFileSize;
 
@@ -288,6 +487,16 @@ public class ConsumeQueue {
 
 
     public boolean commit(final int flushLeastPages) {
+        if (this.tagsBloom != null) {
+            this.tagsBloom.flush();
+        }
+        if (this.timeIndex != null) {
+            this.timeIndex.flush();
+        }
+        if (this.ext != null) {
+            // units first, a flushed entry never points at a lost unit
+            this.ext.flush();
+        }
         return this.mapedFileQueue.commit(flushLeastPages);
     }
 
@@ -295,9 +504,34 @@ public class ConsumeQueue {
     public int deleteExpiredFile(long offset) {
         int cnt = this.mapedFileQueue.deleteExpiredFileByOffset(offset, CQStoreUnitSize);
         this.correctMinOffset(offset);
+        if (this.tagsBloom != null) {
+            this.tagsBloom.deleteExpiredFile(this.getMinOffsetInQuque());
+        }
+        if (this.timeIndex != null) {
+            this.timeIndex.deleteExpiredFile(this.getMinOffsetInQuque());
+        }
+        if (this.ext != null) {
+            this.deleteExpiredExtFile();
+        }
         return cnt;
     }
 
+
+    private void deleteExpiredExtFile() {
+        SelectMapedBufferResult result = this.getIndexBuffer(this.getMinOffsetInQuque());
+        if (result != null) {
+            try {
+                long tagsCode = result.getByteBuffer().getLong(8 + 4);
+                if (ConsumeQueueExt.isExtAddr(tagsCode)) {
+                    this.ext.deleteExpiredFile(tagsCode);
+                }
+            }
+            finally {
+                result.release();
+            }
+        }
+    }
+
     public void correctMinOffset(long phyMinOffset) {
         MapedFile mapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
         if (mapedFile != null) {
@@ -334,11 +568,12 @@ public class ConsumeQueue {
 
 
     public void putMessagePostionInfoWrapper(long offset, int size, long tagsCode, long storeTimestamp,
-            long logicOffset) {
+            long logicOffset, Map<String, String> propertiesMap) {
         final int MaxRetries = 30;
         boolean canWrite = this.defaultMessageStore.getRunningFlags().isWriteable();
         for (int i = 0; i < MaxRetries && canWrite; i++) {
-            boolean result = this.putMessagePostionInfo(offset, size, tagsCode, logicOffset);
+            boolean result =
+                    this.putMessagePostionInfo(offset, size, tagsCode, storeTimestamp, logicOffset, propertiesMap);
             if (result) {
                 this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
                 return;
@@ -362,21 +597,30 @@ public class ConsumeQueue {
 
 
     private boolean putMessagePostionInfo(final long offset, final int size, final long tagsCode,
-            final long cqOffset) {
+            final long storeTimestamp, final long cqOffset, final Map<String, String> propertiesMap) {
         if (offset <= this.maxPhysicOffset) {
             return true;
         }
 
-        this.byteBufferIndex.flip();
-        this.byteBufferIndex.limit(CQStoreUnitSize);
-        this.byteBufferIndex.putLong(offset);
-        this.byteBufferIndex.putInt(size);
-        this.byteBufferIndex.putLong(tagsCode);
-
         final long expectLogicOffset = cqOffset * CQStoreUnitSize;
 
+        // Get the file first, a failed attempt is retried and must not leave an ext unit behind
         MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(expectLogicOffset);
         if (mapedFile != null) {
+            long cqTagsCode = tagsCode;
+            if (this.ext != null) {
+                long address = this.ext.put(tagsCode, storeTimestamp, propertiesMap);
+                if (ConsumeQueueExt.isExtAddr(address)) {
+                    cqTagsCode = address;
+                }
+            }
+
+            this.byteBufferIndex.flip();
+            this.byteBufferIndex.limit(CQStoreUnitSize);
+            this.byteBufferIndex.putLong(offset);
+            this.byteBufferIndex.putInt(size);
+            this.byteBufferIndex.putLong(cqTagsCode);
+
             if (mapedFile.isFirstCreateInQueue() && cqOffset != 0 && mapedFile.getWrotePostion() == 0) {
                 this.minLogicOffset = expectLogicOffset;
                 this.fillPreBlank(mapedFile, expectLogicOffset);
@@ -400,6 +644,13 @@ public class ConsumeQueue {
             }
 
             this.maxPhysicOffset = offset;
+            if (this.tagsBloom != null) {
+                // before the entry is visible, readers trust blocks below max offset
+                this.tagsBloom.add(cqOffset, tagsCode);
+            }
+            if (this.timeIndex != null) {
+                this.timeIndex.add(cqOffset, storeTimestamp);
+            }
             return mapedFile.appendMessage(this.byteBufferIndex.array());
         }
 
@@ -432,6 +683,29 @@ public class ConsumeQueue {
         return null;
     }
 
+    /**
+     * @return where a pull with this filter should start scanning, blocks that
+     *         can not match are jumped over
+     */
+    public long skipUnmatchedBlocks(final long startIndex, final long maxIndex, final TagsCodeFilter filter) {
+        if (null == this.tagsBloom) {
+            return startIndex;
+        }
+
+        return this.tagsBloom.skip(startIndex, maxIndex, filter);
+    }
+
+
+    /**
+     * Forget every tags bloom block, the ConsumeQueue may hold entries whose
+     * bloom bits never reached disk
+     */
+    public void resetTagsBloom() {
+        if (this.tagsBloom != null) {
+            this.tagsBloom.destroy();
+        }
+    }
+
     public long rollNextFile(final long index) {
         int mapedFileSize = this.mapedFileSize;
         int totalUnitsInFile = mapedFileSize / CQStoreUnitSize;
@@ -458,6 +732,15 @@ public class ConsumeQueue {
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
         this.mapedFileQueue.destroy();
+        if (this.tagsBloom != null) {
+            this.tagsBloom.destroy();
+        }
+        if (this.timeIndex != null) {
+            this.timeIndex.destroy();
+        }
+        if (this.ext != null) {
+            this.ext.destroy();
+        }
     }
 
     public long getMinLogicOffset() {
@@ -0,0 +1,316 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Extension of a ConsumeQueue holding what its 20 byte entries have no room
+ * for. An entry with an ext unit keeps the unit address in place of its tags
+ * code, addresses lie below Integer.MIN_VALUE where no tags hash code does.
+ * <p>
+ * Unit layout: 2 bytes unit size, 8 bytes tags code, 8 bytes store
+ * timestamp, 2 bytes filter bit map size, then the bit map, a bloom filter
+ * of the tags and user properties as "key=value". Units never cross files,
+ * a unit size of 0 ends a file.
+ *
+ * @author shijia.wxr
+ */
+public class ConsumeQueueExt {
+    public static final long MaxAddress = Integer.MIN_VALUE - 1L;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int HeaderSize = 2 + 8 + 8 + 2;
+    private final String topic;
+    private final int queueId;
+    private final MapedFileQueue mapedFileQueue;
+    private final int mapedFileSize;
+    private final int bitMapSize;
+    private final ByteBuffer unitBuffer;
+
+
+    public ConsumeQueueExt(final String topic, final int queueId, final String storePath, final int mapedFileSize,
+            final int bitMapSize) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.mapedFileSize = mapedFileSize;
+        this.bitMapSize = bitMapSize;
+        this.unitBuffer = ByteBuffer.allocate(HeaderSize + bitMapSize);
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue = new MapedFileQueue(queueDir, mapedFileSize, null);
+    }
+
+
+    public static boolean isExtAddr(final long tagsCode) {
+        return tagsCode <= MaxAddress;
+    }
+
+
+    private static long decorate(final long offset) {
+        return offset + Long.MIN_VALUE;
+    }
+
+
+    private static long unDecorate(final long address) {
+        return address - Long.MIN_VALUE;
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load consume queue ext " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * Find the end of the last file, what lies after it was never referenced
+     * by a flushed ConsumeQueue entry
+     */
+    public void recover() {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        if (mapedFiles.isEmpty()) {
+            return;
+        }
+
+        MapedFile mapedFile = mapedFiles.get(mapedFiles.size() - 1);
+        ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+        int pos = 0;
+        while (pos + HeaderSize <= this.mapedFileSize) {
+            int unitSize = byteBuffer.getShort(pos);
+            if (unitSize < HeaderSize || pos + unitSize > this.mapedFileSize) {
+                break;
+            }
+            pos += unitSize;
+        }
+
+        long processOffset = mapedFile.getFileFromOffset() + pos;
+        this.mapedFileQueue.truncateDirtyFiles(processOffset);
+        log.info("recover consume queue ext {}-{} over, {}", this.topic, this.queueId, processOffset);
+    }
+
+
+    /**
+     * @return address the next unit is written at
+     */
+    public long getMaxAddress() {
+        return decorate(this.mapedFileQueue.getMaxOffset());
+    }
+
+
+    /**
+     * Called by the single thread writing the ConsumeQueue
+     *
+     * @return address of the unit, 0 if it could not be written
+     */
+    public long put(final long tagsCode, final long storeTimestamp, final Map<String, String> propertiesMap) {
+        final int unitSize = HeaderSize + this.bitMapSize;
+        this.unitBuffer.clear();
+        this.unitBuffer.putShort((short) unitSize);
+        this.unitBuffer.putLong(tagsCode);
+        this.unitBuffer.putLong(storeTimestamp);
+        this.unitBuffer.putShort((short) this.bitMapSize);
+        this.buildBitMap(propertiesMap);
+
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
+        if (mapedFile != null && mapedFile.getWrotePostion() + unitSize > this.mapedFileSize) {
+            // the rest of the file stays zero, readers never get there
+            mapedFile.setWrotePostion(this.mapedFileSize);
+            mapedFile = this.mapedFileQueue.getLastMapedFile();
+        }
+
+        if (null == mapedFile) {
+            log.error("create consume queue ext file failed, {}-{}", this.topic, this.queueId);
+            return 0;
+        }
+
+        long address = decorate(mapedFile.getFileFromOffset() + mapedFile.getWrotePostion());
+        if (!mapedFile.appendMessage(this.unitBuffer.array())) {
+            return 0;
+        }
+
+        return address;
+    }
+
+
+    private void buildBitMap(final Map<String, String> propertiesMap) {
+        final int pos = HeaderSize;
+        for (int i = 0; i < this.bitMapSize; i++) {
+            this.unitBuffer.put(pos + i, (byte) 0);
+        }
+
+        if (null == propertiesMap || 0 == this.bitMapSize) {
+            return;
+        }
+
+        final int bits = this.bitMapSize * 8;
+        for (Map.Entry<String, String> entry : propertiesMap.entrySet()) {
+            String key = entry.getKey();
+            if (MessageConst.PROPERTY_TAGS.equals(key) || !MessageConst.systemKeySet.contains(key)) {
+                int code = (key + "=" + entry.getValue()).hashCode();
+                setBit(this.unitBuffer, pos, hash1(code, bits));
+                setBit(this.unitBuffer, pos, hash2(code, bits));
+            }
+        }
+    }
+
+
+    /**
+     * @return the unit at address, null if it is gone
+     */
+    public CqExtUnit get(final long address) {
+        final long offset = unDecorate(address);
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (null == mapedFile) {
+            return null;
+        }
+
+        SelectMapedBufferResult result =
+                mapedFile.selectMapedBuffer((int) (offset % this.mapedFileSize), HeaderSize);
+        if (null == result) {
+            return null;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            int unitSize = byteBuffer.getShort();
+            long tagsCode = byteBuffer.getLong();
+            long storeTimestamp = byteBuffer.getLong();
+            int bitMapSize = byteBuffer.getShort();
+            if (unitSize != HeaderSize + bitMapSize) {
+                log.warn("illegal consume queue ext unit, {}-{} {}", this.topic, this.queueId, offset);
+                return null;
+            }
+
+            byte[] bitMap = new byte[bitMapSize];
+            if (bitMapSize > 0) {
+                SelectMapedBufferResult bitMapResult =
+                        mapedFile.selectMapedBuffer((int) (offset % this.mapedFileSize) + HeaderSize, bitMapSize);
+                if (null == bitMapResult) {
+                    return null;
+                }
+
+                try {
+                    bitMapResult.getByteBuffer().get(bitMap);
+                }
+                finally {
+                    bitMapResult.release();
+                }
+            }
+
+            return new CqExtUnit(tagsCode, storeTimestamp, bitMap);
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    public void flush() {
+        this.mapedFileQueue.commit(0);
+    }
+
+
+    /**
+     * Drop the files before the unit of the first ConsumeQueue entry
+     */
+    public int deleteExpiredFile(final long minAddress) {
+        return this.mapedFileQueue.deleteExpiredFileBefore(unDecorate(minAddress));
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+    }
+
+
+    private static void setBit(final ByteBuffer byteBuffer, final int pos, final int bit) {
+        int bytePos = pos + (bit >>> 3);
+        byteBuffer.put(bytePos, (byte) (byteBuffer.get(bytePos) | (1 << (bit & 7))));
+    }
+
+
+    private static int hash1(final int code, final int bits) {
+        return (code & Integer.MAX_VALUE) % bits;
+    }
+
+
+    private static int hash2(final int code, final int bits) {
+        int h = code * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % bits;
+    }
+
+    public static class CqExtUnit {
+        private final long tagsCode;
+        private final long storeTimestamp;
+        private final byte[] filterBitMap;
+
+
+        public CqExtUnit(long tagsCode, long storeTimestamp, byte[] filterBitMap) {
+            this.tagsCode = tagsCode;
+            this.storeTimestamp = storeTimestamp;
+            this.filterBitMap = filterBitMap;
+        }
+
+
+        /**
+         * @return false only if the message surely has no such property
+         */
+        public boolean mayContain(final String key, final String value) {
+            final int bits = this.filterBitMap.length * 8;
+            if (0 == bits) {
+                return true;
+            }
+
+            int code = (key + "=" + value).hashCode();
+            return this.isBitSet(hash1(code, bits)) && this.isBitSet(hash2(code, bits));
+        }
+
+
+        private boolean isBitSet(final int bit) {
+            return (this.filterBitMap[bit >>> 3] & (1 << (bit & 7))) != 0;
+        }
+
+
+        public long getTagsCode() {
+            return tagsCode;
+        }
+
+
+        public long getStoreTimestamp() {
+            return storeTimestamp;
+        }
+
+
+        public byte[] getFilterBitMap() {
+            return filterBitMap;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+
+/**
+ * Fixed size records kept beside a ConsumeQueue, record k covering a range
+ * of its entries. Records are written in place by the thread writing the
+ * ConsumeQueue, before the entries they cover, so files are full from the
+ * start and the written end only tracks the highest record. Subclasses only
+ * encode the records.
+ *
+ * @author shijia.wxr
+ */
+public abstract class ConsumeQueueSidecar {
+    protected static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    protected final String topic;
+    protected final int queueId;
+    protected final MapedFileQueue mapedFileQueue;
+    protected final int mapedFileSize;
+    protected volatile long writtenWhere = 0;
+    private long flushedWhere = 0;
+    private volatile boolean dirty = false;
+
+
+    protected ConsumeQueueSidecar(final String topic, final int queueId, final String storePath,
+            final int mapedFileSize) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.mapedFileSize = mapedFileSize;
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue = new MapedFileQueue(queueDir, this.mapedFileSize, null);
+    }
+
+
+    /**
+     * @return name of the sidecar in logs
+     */
+    protected abstract String getSidecarName();
+
+
+    /**
+     * @return offset of the record covering entry cqIndex
+     */
+    protected abstract long recordWhere(final long cqIndex);
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        this.writtenWhere = Math.max(0, this.mapedFileQueue.getMaxOffset());
+        this.flushedWhere = Math.max(0, this.writtenWhere - this.mapedFileSize);
+        log.info("load consume queue " + this.getSidecarName() + " " + this.topic + "-" + this.queueId + " "
+                + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    public void flush() {
+        if (!this.dirty) {
+            return;
+        }
+
+        this.dirty = false;
+        final long writtenWhere = this.writtenWhere;
+        this.flushedWhere = Math.max(this.flushedWhere, this.mapedFileQueue.getMinOffset());
+        while (this.flushedWhere < writtenWhere) {
+            MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(this.flushedWhere);
+            if (null == mapedFile) {
+                break;
+            }
+
+            mapedFile.commit(0);
+            long fileTail = mapedFile.getFileFromOffset() + this.mapedFileSize;
+            if (writtenWhere <= fileTail) {
+                // the active file is forced again next time
+                break;
+            }
+            this.flushedWhere = fileTail;
+        }
+    }
+
+
+    /**
+     * Drop the files whose records all cover entries below minIndex
+     */
+    public int deleteExpiredFile(final long minIndex) {
+        return this.mapedFileQueue.deleteExpiredFileBefore(this.recordWhere(minIndex));
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+        this.writtenWhere = 0;
+        this.flushedWhere = 0;
+    }
+
+
+    /**
+     * Called after the record at where was written
+     */
+    protected void markWritten(final long where, final int recordSize) {
+        if (where + recordSize > this.writtenWhere) {
+            this.writtenWhere = where + recordSize;
+        }
+        this.dirty = true;
+    }
+
+
+    protected MapedFile mapedFileForWrite(final long where) {
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile2();
+        if (mapedFile != null && where < mapedFile.getFileFromOffset()) {
+            // written again after the ConsumeQueue was truncated
+            return where >= this.mapedFileQueue.getMinOffset() ? this.mapedFileQueue.findMapedFileByOffset(where)
+                    : null;
+        }
+
+        if (mapedFile != null && where >= mapedFile.getFileFromOffset() + this.mapedFileSize * 2L) {
+            // the queue jumped far ahead, records in between can not be trusted anyway
+            log.info("consume queue {} {}-{} jumped to {}, reset it", this.getSidecarName(), this.topic,
+                this.queueId, where);
+            this.destroy();
+            mapedFile = null;
+        }
+
+        while (null == mapedFile || where >= mapedFile.getFileFromOffset() + this.mapedFileSize) {
+            mapedFile = this.mapedFileQueue.getLastMapedFile(where);
+            if (null == mapedFile) {
+                log.error("create consume queue {} file failed, {}-{} {}", this.getSidecarName(), this.topic,
+                    this.queueId, where);
+                return null;
+            }
+            // records are written in place, the file is full from the start
+            mapedFile.setWrotePostion(this.mapedFileSize);
+        }
+
+        return mapedFile;
+    }
+}
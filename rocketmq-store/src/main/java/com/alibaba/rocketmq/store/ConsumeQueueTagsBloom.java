@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Sidecar of a ConsumeQueue, one record for every BlockUnits entries holding
+ * a bloom filter of their tags codes.
+ * <p>
+ * Record layout: 8 bytes of (first index added to the block + 1), then the
+ * bloom bits. A block is only trusted when its first entry was added, so
+ * blocks written before the sidecar existed, or after it was reset, are
+ * always scanned. Bits are added before the ConsumeQueue entry is written,
+ * any block below the queue max offset is complete.
+ *
+ * @author shijia.wxr
+ */
+public class ConsumeQueueTagsBloom extends ConsumeQueueSidecar {
+    public static final int BlockUnits = 1024;
+    public static final int RecordSize = 64;
+    private static final int BloomBits = (RecordSize - 8) * 8;
+    private static final int BlocksPerFile = 1024 * 4;
+    // Bound the sidecar walked by one pull
+    private static final int MaxSkipBlocks = 1024 * 16;
+
+
+    public ConsumeQueueTagsBloom(final String topic, final int queueId, final String storePath) {
+        super(topic, queueId, storePath, RecordSize * BlocksPerFile);
+    }
+
+
+    @Override
+    protected String getSidecarName() {
+        return "tags bloom";
+    }
+
+
+    @Override
+    protected long recordWhere(final long cqIndex) {
+        return cqIndex / BlockUnits * RecordSize;
+    }
+
+
+    /**
+     * Called by the single thread writing the ConsumeQueue, before the entry
+     * itself is written
+     */
+    public void add(final long cqIndex, final long tagsCode) {
+        final long where = this.recordWhere(cqIndex);
+        MapedFile mapedFile = this.mapedFileForWrite(where);
+        if (null == mapedFile) {
+            return;
+        }
+
+        ByteBuffer byteBuffer = mapedFile.getMappedByteBuffer();
+        int pos = (int) (where % this.mapedFileSize);
+        if (0 == byteBuffer.getLong(pos)) {
+            byteBuffer.putLong(pos, cqIndex + 1);
+        }
+
+        final int code = (int) tagsCode;
+        this.setBit(byteBuffer, pos, hash1(code));
+        this.setBit(byteBuffer, pos, hash2(code));
+        this.markWritten(where, RecordSize);
+    }
+
+
+    /**
+     * @return the first index in [startIndex, maxIndex] that may match, every
+     *         complete block before it has no subscribed code
+     */
+    public long skip(final long startIndex, final long maxIndex, final TagsCodeFilter filter) {
+        if (filter.isMatchAll()) {
+            return startIndex;
+        }
+
+        final int[] codes = filter.getCodes();
+        long block = startIndex / BlockUnits;
+        MapedFile mapedFile = null;
+        try {
+            for (int i = 0; i < MaxSkipBlocks && (block + 1) * BlockUnits <= maxIndex; i++, block++) {
+                final long where = block * RecordSize;
+                if (null == mapedFile || where >= mapedFile.getFileFromOffset() + this.mapedFileSize) {
+                    if (mapedFile != null) {
+                        mapedFile.release();
+                        mapedFile = null;
+                    }
+
+                    if (where < this.mapedFileQueue.getMinOffset() || where >= this.writtenWhere) {
+                        break;
+                    }
+
+                    MapedFile next = this.mapedFileQueue.findMapedFileByOffset(where);
+                    if (null == next || !next.hold()) {
+                        break;
+                    }
+                    mapedFile = next;
+                }
+
+                ByteBuffer byteBuffer = mapedFile.getMappedByteBuffer();
+                int pos = (int) (where % this.mapedFileSize);
+                if (byteBuffer.getLong(pos) != block * BlockUnits + 1 || this.mayContain(byteBuffer, pos, codes)) {
+                    break;
+                }
+            }
+        }
+        finally {
+            if (mapedFile != null) {
+                mapedFile.release();
+            }
+        }
+
+        return Math.max(startIndex, block * BlockUnits);
+    }
+
+
+    private boolean mayContain(final ByteBuffer byteBuffer, final int pos, final int[] codes) {
+        for (int code : codes) {
+            if (this.isBitSet(byteBuffer, pos, hash1(code)) && this.isBitSet(byteBuffer, pos, hash2(code))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private void setBit(final ByteBuffer byteBuffer, final int pos, final int bit) {
+        int wordPos = pos + 8 + (bit >>> 6) * 8;
+        byteBuffer.putLong(wordPos, byteBuffer.getLong(wordPos) | (1L << (bit & 63)));
+    }
+
+
+    private boolean isBitSet(final ByteBuffer byteBuffer, final int pos, final int bit) {
+        int wordPos = pos + 8 + (bit >>> 6) * 8;
+        return (byteBuffer.getLong(wordPos) & (1L << (bit & 63))) != 0;
+    }
+
+
+    private static int hash1(final int code) {
+        return (code & Integer.MAX_VALUE) % BloomBits;
+    }
+
+
+    private static int hash2(final int code) {
+        int h = code * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % BloomBits;
+    }
+}
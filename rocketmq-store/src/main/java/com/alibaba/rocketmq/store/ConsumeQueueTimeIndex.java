@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+
+/**
+ * Sparse sidecar of a ConsumeQueue, record k holds the store timestamp of
+ * entry k * interval, 0 when that entry was written before the sidecar
+ * existed. Like {@link ConsumeQueueTagsBloom} a record is written before its
+ * entry, so any record below the queue max offset is current.
+ *
+ * @author shijia.wxr
+ */
+public class ConsumeQueueTimeIndex extends ConsumeQueueSidecar {
+    public static final int RecordSize = 8;
+    private static final int RecordsPerFile = 1024 * 16;
+    private final int interval;
+
+
+    public ConsumeQueueTimeIndex(final String topic, final int queueId, final String storePath, final int interval) {
+        super(topic, queueId, storePath, RecordSize * RecordsPerFile);
+        this.interval = interval;
+    }
+
+
+    @Override
+    protected String getSidecarName() {
+        return "time index";
+    }
+
+
+    @Override
+    protected long recordWhere(final long cqIndex) {
+        return cqIndex / this.interval * RecordSize;
+    }
+
+
+    /**
+     * Called by the single thread writing the ConsumeQueue, before the entry
+     * itself is written
+     */
+    public void add(final long cqIndex, final long storeTimestamp) {
+        if (cqIndex % this.interval != 0) {
+            return;
+        }
+
+        final long where = this.recordWhere(cqIndex);
+        MapedFile mapedFile = this.mapedFileForWrite(where);
+        if (null == mapedFile) {
+            return;
+        }
+
+        mapedFile.getMappedByteBuffer().putLong((int) (where % this.mapedFileSize), storeTimestamp);
+        this.markWritten(where, RecordSize);
+    }
+
+
+    /**
+     * Narrow a time lookup in [minIndex, maxIndex) down to one interval
+     *
+     * @return {from, to} where the entry closest to timestamp lies, null if a
+     *         record on the way is missing
+     */
+    public long[] narrow(final long timestamp, final long minIndex, final long maxIndex) {
+        final long firstRecord = (minIndex + this.interval - 1) / this.interval;
+        final long lastRecord = (maxIndex - 1) / this.interval;
+        if (firstRecord > lastRecord) {
+            return new long[] { minIndex, maxIndex };
+        }
+
+        // the last record not after timestamp
+        long low = firstRecord;
+        long high = lastRecord;
+        long found = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long storeTime = this.read(mid);
+            if (storeTime <= 0) {
+                return null;
+            }
+
+            if (storeTime <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+
+        // the first entry of the next interval may be the closer one
+        if (found < 0) {
+            return new long[] { minIndex, Math.min(firstRecord * this.interval + 1, maxIndex) };
+        }
+
+        return new long[] { found * this.interval, Math.min((found + 1) * this.interval + 1, maxIndex) };
+    }
+
+
+    private long read(final long record) {
+        final long where = record * RecordSize;
+        if (where < this.mapedFileQueue.getMinOffset() || where >= this.writtenWhere) {
+            return 0;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(where);
+        if (null == mapedFile || !mapedFile.hold()) {
+            return 0;
+        }
+
+        try {
+            return mapedFile.getMappedByteBuffer().getLong((int) (where % this.mapedFileSize));
+        }
+        finally {
+            mapedFile.release();
+        }
+    }
+}
@@ -25,12 +25,14 @@ import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import com.alibaba.rocketmq.common.running.RunningStats;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.config.BrokerRole;
+import com.alibaba.rocketmq.store.config.FlushDiskType;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.index.IndexService;
 import com.alibaba.rocketmq.store.index.QueryOffsetResult;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.timer.TimerMessageStore;
 import com.alibaba.rocketmq.store.stats.BrokerStatsManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,11 +43,17 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static com.alibaba.rocketmq.store.config.BrokerRole.SLAVE;
 
@@ -56,7 +64,6 @@ import static com.alibaba.rocketmq.store.config.BrokerRole.SLAVE;
  */
 public class DefaultMessageStore implements MessageStore {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
-    private final MessageFilter messageFilter = new DefaultMessageFilter();
     private final MessageStoreConfig messageStoreConfig;
     private final CommitLog commitLog;
     private final ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>> consumeQueueTable;
@@ -65,14 +72,31 @@ public class DefaultMessageStore implements MessageStore {
     private final CleanConsumeQueueService cleanConsumeQueueService;
     private final IndexService indexService;
     private final AllocateMapedFileService allocateMapedFileService;
+    private final TransientStorePool transientStorePool;
     private final ReputMessageService reputMessageService;
+    private final CommitLogDispatcher buildConsumeQueueDispatcher = new CommitLogDispatcherBuildConsumeQueue();
+    private final CommitLogDispatcher buildIndexDispatcher = new CommitLogDispatcherBuildIndex();
+    // Registered dispatchers besides ConsumeQueue and index, in register order
+    private final List<CommitLogDispatcher> dispatcherList = new CopyOnWriteArrayList<CommitLogDispatcher>();
+    // Registered dispatchers running on their own thread
+    private final ConcurrentHashMap<CommitLogDispatcher, DispatchWorker> dispatcherWorkerTable =
+            new ConcurrentHashMap<CommitLogDispatcher, DispatchWorker>();
+    // ConsumeQueue writers sharded by topic and queue, empty to dispatch on reput
+    private final DispatchWorker[] consumeQueueDispatchWorkers;
+    private final DispatchWorker indexDispatchWorker;
+    // Every dispatch thread, for start, shutdown and lag statistics
+    private final List<DispatchWorker> dispatchWorkers = new CopyOnWriteArrayList<DispatchWorker>();
     private final HAService haService;
     private final ScheduleMessageService scheduleMessageService;
+    private final TimerMessageStore timerMessageStore;
     private final StoreStatsService storeStatsService;
+    private final FileDeleteThrottle fileDeleteThrottle;
     private final RunningFlags runningFlags = new RunningFlags();
     private final SystemClock systemClock = new SystemClock(1);
     private volatile boolean shutdown = true;
     private StoreCheckpoint storeCheckpoint;
+    // Only alive while load() recovers, null when recovering on one thread
+    private volatile ExecutorService recoverPool;
     private AtomicLong printTimes = new AtomicLong(0);
     private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryImpl(
         "StoreScheduledThread"));
@@ -87,6 +111,11 @@ public class DefaultMessageStore implements MessageStore {
         this.brokerConfig = brokerConfig;
         this.messageStoreConfig = messageStoreConfig;
         this.brokerStatsManager = brokerStatsManager;
+        LibC.setEnable(messageStoreConfig.isMemoryAdviseEnable());
+        this.transientStorePool = new TransientStorePool(messageStoreConfig);
+        if (this.isTransientStorePoolEnable()) {
+            this.transientStorePool.init();
+        }
         this.allocateMapedFileService = new AllocateMapedFileService(this);
         this.commitLog = new CommitLog(this);
         this.consumeQueueTable = new ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>>(32);
@@ -95,25 +124,53 @@ public class DefaultMessageStore implements MessageStore {
         this.cleanCommitLogService = new CleanCommitLogService();
         this.cleanConsumeQueueService = new CleanConsumeQueueService();
         this.storeStatsService = new StoreStatsService();
+        this.fileDeleteThrottle = new FileDeleteThrottle(messageStoreConfig, this.storeStatsService);
         this.indexService = new IndexService(this);
         this.haService = new HAService(this);
 
         this.reputMessageService = new ReputMessageService();
+        this.consumeQueueDispatchWorkers =
+                new DispatchWorker[Math.max(0, messageStoreConfig.getDispatchConsumeQueueThreadNums())];
+        for (int i = 0; i < this.consumeQueueDispatchWorkers.length; i++) {
+            this.consumeQueueDispatchWorkers[i] =
+                    new DispatchWorker("ConsumeQueueDispatchThread" + i, messageStoreConfig.getDispatchQueueCapacity()) {
+                        @Override
+                        protected void dispatch(DispatchRequest request) {
+                            DefaultMessageStore.this.buildConsumeQueueDispatcher.dispatch(request);
+                            DefaultMessageStore.this.notifyMessageArriving(request);
+                        }
+                    };
+            this.dispatchWorkers.add(this.consumeQueueDispatchWorkers[i]);
+        }
+        if (this.consumeQueueDispatchWorkers.length > 0) {
+            this.indexDispatchWorker = new DispatchWorker("IndexDispatchThread", messageStoreConfig.getDispatchQueueCapacity()) {
+                @Override
+                protected void dispatch(DispatchRequest request) {
+                    DefaultMessageStore.this.buildIndexDispatcher.dispatch(request);
+                }
+            };
+            this.dispatchWorkers.add(this.indexDispatchWorker);
+        }
+        else {
+            this.indexDispatchWorker = null;
+        }
         this.scheduleMessageService = new ScheduleMessageService(this);
+        this.timerMessageStore = messageStoreConfig.isTimerMessageEnable() ? new TimerMessageStore(this) : null;
 
         this.allocateMapedFileService.start();
         this.indexService.start();
     }
 
 
-    public void truncateDirtyLogicFiles(long phyOffset) {
-        ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
-
-        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : tables.values()) {
-            for (ConsumeQueue logic : maps.values()) {
+    public void truncateDirtyLogicFiles(final long phyOffset) {
+        long beginTime = System.currentTimeMillis();
+        this.forEachConsumeQueue(new Consumer<ConsumeQueue>() {
+            @Override
+            public void accept(ConsumeQueue logic) {
                 logic.truncateDirtyLogicFiles(phyOffset);
             }
-        }
+        });
+        log.info("truncate dirty logic files to {}, cost {} ms", phyOffset, System.currentTimeMillis() - beginTime);
     }
 
 
@@ -126,6 +183,9 @@ public class DefaultMessageStore implements MessageStore {
             if (null != scheduleMessageService) {
                 result = result && this.scheduleMessageService.load();
             }
+            if (null != this.timerMessageStore) {
+                result = result && this.timerMessageStore.load();
+            }
             result = result && this.commitLog.load();
             result = result && this.loadConsumeQueue();
 
@@ -167,6 +227,15 @@ public class DefaultMessageStore implements MessageStore {
                 DefaultMessageStore.this.checkSelf();
             }
         }, 1, 10, TimeUnit.MINUTES);
+
+        if (LibC.isEnable()) {
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    DefaultMessageStore.this.commitLog.adviseColdMapedFiles();
+                }
+            }, 1000 * 60, this.messageStoreConfig.getAdviseColdCommitLogInterval(), TimeUnit.MILLISECONDS);
+        }
     }
 
 
@@ -198,7 +267,7 @@ public class DefaultMessageStore implements MessageStore {
         while (it.hasNext()) {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC) && !topic.equals(TimerMessageStore.TIMER_TOPIC)) {
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 Iterator<Entry<Integer, ConsumeQueue>> itQT = queueTable.entrySet().iterator();
                 while (itQT.hasNext()) {
@@ -241,11 +310,19 @@ public class DefaultMessageStore implements MessageStore {
         this.flushConsumeQueueService.start();
         this.commitLog.start();
         this.storeStatsService.start();
+        this.fileDeleteThrottle.start();
 
         if (this.scheduleMessageService != null && SLAVE != messageStoreConfig.getBrokerRole()) {
             this.scheduleMessageService.start();
         }
 
+        if (this.timerMessageStore != null && SLAVE != messageStoreConfig.getBrokerRole()) {
+            this.timerMessageStore.start();
+        }
+
+        for (DispatchWorker worker : this.dispatchWorkers) {
+            worker.start();
+        }
         this.reputMessageService.setReputFromOffset(this.commitLog.getMaxOffset());
         this.reputMessageService.start();
 
@@ -261,6 +338,8 @@ public class DefaultMessageStore implements MessageStore {
             this.shutdown = true;
 
             this.scheduledExecutorService.shutdown();
+            // deletes left run at full speed
+            this.fileDeleteThrottle.makeStop();
 
             try {
                 Thread.sleep(1000 * 3);
@@ -269,10 +348,16 @@ public class DefaultMessageStore implements MessageStore {
                 log.error("shutdown Exception, ", e);
             }
 
+            this.fileDeleteThrottle.shutdown();
+
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.shutdown();
             }
 
+            if (this.timerMessageStore != null) {
+                this.timerMessageStore.shutdown();
+            }
+
             this.haService.shutdown();
 
             this.storeStatsService.shutdown();
@@ -280,7 +365,12 @@ public class DefaultMessageStore implements MessageStore {
             this.flushConsumeQueueService.shutdown();
             this.commitLog.shutdown();
             this.reputMessageService.shutdown();
+            // Drain what reput has handed over
+            for (DispatchWorker worker : this.dispatchWorkers) {
+                worker.shutdown();
+            }
             this.allocateMapedFileService.shutdown();
+            this.transientStorePool.destroy();
             this.storeCheckpoint.flush();
             this.storeCheckpoint.shutdown();
 
@@ -298,6 +388,9 @@ public class DefaultMessageStore implements MessageStore {
         this.destroyLogics();
         this.commitLog.destroy();
         this.indexService.destroy();
+        if (this.timerMessageStore != null) {
+            this.timerMessageStore.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
     }
@@ -312,10 +405,10 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
-    public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+    private PutMessageStatus checkStoreStatus() {
         if (this.shutdown) {
             log.warn("message store has shutdown, so putMessage is forbidden");
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         }
 
         if (BrokerRole.SLAVE == this.messageStoreConfig.getBrokerRole()) {
@@ -323,7 +416,7 @@ public class DefaultMessageStore implements MessageStore {
             if ((value % 50000) == 0) {
                 log.warn("message store is slave mode, so putMessage is forbidden ");
             }
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         }
 
         if (!this.runningFlags.isWriteable()) {
@@ -331,26 +424,46 @@ public class DefaultMessageStore implements MessageStore {
             if ((value % 50000) == 0) {
                 log.warn("message store is not writeable, so putMessage is forbidden " + this.runningFlags.getFlagBits());
             }
-            return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
+            return PutMessageStatus.SERVICE_NOT_AVAILABLE;
         } else {
             this.printTimes.set(0);
         }
 
+        return PutMessageStatus.PUT_OK;
+    }
+
+
+    private PutMessageStatus checkMessage(final MessageExtBrokerInner msg) {
         if (msg.getTopic().length() > Byte.MAX_VALUE) {
             log.warn("putMessage message topic length too long " + msg.getTopic().length());
-            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            return PutMessageStatus.MESSAGE_ILLEGAL;
         }
 
         if (msg.getPropertiesString() != null && msg.getPropertiesString().length() > Short.MAX_VALUE) {
             log.warn("putMessage message properties length too long " + msg.getPropertiesString().length());
-            return new PutMessageResult(PutMessageStatus.PROPERTIES_SIZE_EXCEEDED, null);
+            return PutMessageStatus.PROPERTIES_SIZE_EXCEEDED;
+        }
+
+        return PutMessageStatus.PUT_OK;
+    }
+
+
+    public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+        PutMessageStatus checkStatus = this.checkStoreStatus();
+        if (PutMessageStatus.PUT_OK == checkStatus) {
+            checkStatus = this.checkMessage(msg);
+        }
+        if (PutMessageStatus.PUT_OK != checkStatus) {
+            return new PutMessageResult(checkStatus, null);
         }
 
         long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
 
         // TODO === 最终调用commitLog.putMessage()方法保存消息
         PutMessageResult result = this.commitLog.putMessage(msg);
 
+        this.storeStatsService.getPutMessageLatency().record(System.nanoTime() - beginNanos);
         long eclipseTime = this.getSystemClock().now() - beginTime;
         if (eclipseTime > 1000) {
             log.warn("putMessage not in lock eclipse time(ms) " + eclipseTime);
@@ -365,6 +478,112 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public CompletableFuture<PutMessageResult> asyncPutMessage(MessageExtBrokerInner msg) {
+        PutMessageStatus checkStatus = this.checkStoreStatus();
+        if (PutMessageStatus.PUT_OK == checkStatus) {
+            checkStatus = this.checkMessage(msg);
+        }
+        if (PutMessageStatus.PUT_OK != checkStatus) {
+            return CompletableFuture.completedFuture(new PutMessageResult(checkStatus, null));
+        }
+
+        final long beginTime = this.getSystemClock().now();
+        final long beginNanos = System.nanoTime();
+        CompletableFuture<PutMessageResult> future = this.commitLog.asyncPutMessage(msg);
+
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 1000) {
+            log.warn("asyncPutMessage not in lock eclipse time(ms) " + eclipseTime);
+        }
+
+        future.thenAccept(new Consumer<PutMessageResult>() {
+            @Override
+            public void accept(PutMessageResult result) {
+                DefaultMessageStore.this.storeStatsService.getPutMessageLatency().record(System.nanoTime() - beginNanos);
+                DefaultMessageStore.this.storeStatsService.setPutMessageEntireTimeMax(
+                    DefaultMessageStore.this.getSystemClock().now() - beginTime);
+                if (null == result || !result.isOk()) {
+                    DefaultMessageStore.this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+                }
+            }
+        });
+
+        return future;
+    }
+
+
+    public PutMessageResult putMessages(MessageExtBatch messageExtBatch) {
+        PutMessageStatus checkStatus = this.checkStoreStatus();
+        if (PutMessageStatus.PUT_OK == checkStatus && 0 == messageExtBatch.size()) {
+            log.warn("putMessages message batch is empty");
+            checkStatus = PutMessageStatus.MESSAGE_ILLEGAL;
+        }
+        for (int i = 0; i < messageExtBatch.size() && PutMessageStatus.PUT_OK == checkStatus; i++) {
+            checkStatus = this.checkMessage(messageExtBatch.getMessages().get(i));
+        }
+        if (PutMessageStatus.PUT_OK != checkStatus) {
+            return new PutMessageResult(checkStatus, null);
+        }
+
+        long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
+
+        PutMessageResult result = this.commitLog.putMessages(messageExtBatch);
+
+        this.storeStatsService.getPutMessageLatency().record(System.nanoTime() - beginNanos);
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 1000) {
+            log.warn("putMessages not in lock eclipse time(ms) " + eclipseTime);
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+        if (null == result || !result.isOk()) {
+            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Put back messages in order, consecutive messages of one topic and queue
+     * go in one append. Stops at the first run that fails
+     *
+     * @return how many messages from the head of the list were put
+     */
+    public int putMessagesInRuns(final List<MessageExtBrokerInner> messages) {
+        int runStart = 0;
+        for (int i = 1; i <= messages.size(); i++) {
+            if (i < messages.size() && isSameRun(messages.get(runStart), messages.get(i))) {
+                continue;
+            }
+
+            List<MessageExtBrokerInner> run = messages.subList(runStart, i);
+            PutMessageResult putMessageResult = 1 == run.size() ? this.putMessage(run.get(0))
+                    : this.putMessages(new MessageExtBatch(new ArrayList<MessageExtBrokerInner>(run)));
+            if (null == putMessageResult || putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                log.error("putMessagesInRuns failed, topic: {} count: {} result: {}", run.get(0).getTopic(),
+                    run.size(), putMessageResult);
+                return runStart;
+            }
+            runStart = i;
+        }
+
+        return messages.size();
+    }
+
+
+    /**
+     * Transactional messages are never batched, their state is tracked one by
+     * one
+     */
+    private static boolean isSameRun(final MessageExtBrokerInner first, final MessageExtBrokerInner msg) {
+        return first.getTopic().equals(msg.getTopic()) && first.getQueueId() == msg.getQueueId()
+                && MessageSysFlag.getTransactionValue(msg.getSysFlag()) == MessageSysFlag.TransactionNotType
+                && MessageSysFlag.getTransactionValue(first.getSysFlag()) == MessageSysFlag.TransactionNotType;
+    }
+
+
     public SystemClock getSystemClock() {
         return systemClock;
     }
@@ -392,6 +611,7 @@ public class DefaultMessageStore implements MessageStore {
         }
 
         long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
 
         GetMessageStatus status = GetMessageStatus.NO_MESSAGE_IN_QUEUE;
         long nextBeginOffset = offset;
@@ -429,8 +649,17 @@ public class DefaultMessageStore implements MessageStore {
                 }
             }
             else {
-                SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
-                if (bufferConsumeQueue != null) {
+                // Compiled once, the per entry check does not box the tags code
+                final TagsCodeFilter tagsCodeFilter = new TagsCodeFilter(subscriptionData);
+                final long scanOffset = consumeQueue.skipUnmatchedBlocks(offset, maxOffset, tagsCodeFilter);
+                SelectMapedBufferResult bufferConsumeQueue =
+                        scanOffset < maxOffset ? consumeQueue.getIndexBuffer(scanOffset) : null;
+                if (scanOffset >= maxOffset) {
+                    // every block up to the queue end has no subscribed tag
+                    status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                    nextBeginOffset = scanOffset;
+                }
+                else if (bufferConsumeQueue != null) {
                     try {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
@@ -440,10 +669,15 @@ public class DefaultMessageStore implements MessageStore {
                         int i = 0;
                         final int MaxFilterMessageCount = 16000;
                         final boolean diskFallRecorded = this.messageStoreConfig.isDiskFallRecorded();
-                        for (; i < bufferConsumeQueue.getSize() && i < MaxFilterMessageCount; i += ConsumeQueue.CQStoreUnitSize) {
-                            long offsetPy = bufferConsumeQueue.getByteBuffer().getLong();
-                            int sizePy = bufferConsumeQueue.getByteBuffer().getInt();
-                            long tagsCode = bufferConsumeQueue.getByteBuffer().getLong();
+                        final int mapedFileSizeCommitLog = this.messageStoreConfig.getMapedFileSizeCommitLog();
+                        final ByteBuffer cqBuffer = bufferConsumeQueue.getByteBuffer();
+                        final int cqSize = Math.min(bufferConsumeQueue.getSize(), MaxFilterMessageCount);
+                        // Consecutive matches mostly live in one CommitLog file, skip the lookup
+                        MapedFile mapedFile = null;
+                        for (; i < cqSize; i += ConsumeQueue.CQStoreUnitSize) {
+                            long offsetPy = cqBuffer.getLong(i);
+                            int sizePy = cqBuffer.getInt(i + 8);
+                            long tagsCode = cqBuffer.getLong(i + 12);
 
                             maxPhyOffsetPulling = offsetPy;
 
@@ -452,14 +686,36 @@ public class DefaultMessageStore implements MessageStore {
                                     continue;
                             }
 
-                            boolean isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
-                            if (this.isTheBatchFull(sizePy, maxMsgNums, getResult.getBufferTotalSize(), getResult.getMessageCount(),
-                                isInDisk)) {
-                                break;
+                            boolean isTagsCodeMatched;
+                            if (tagsCodeFilter.isMatchAll()) {
+                                isTagsCodeMatched = true;
+                            }
+                            else if (ConsumeQueueExt.isExtAddr(tagsCode)) {
+                                ConsumeQueueExt.CqExtUnit extUnit = consumeQueue.getExt(tagsCode);
+                                // a lost unit is left to the client side filter
+                                isTagsCodeMatched = null == extUnit || tagsCodeFilter.isMatched(extUnit.getTagsCode());
+                            }
+                            else {
+                                isTagsCodeMatched = tagsCodeFilter.isMatched(tagsCode);
                             }
 
-                            if (this.messageFilter.isMessageMatched(subscriptionData, tagsCode)) {
-                                SelectMapedBufferResult selectResult = this.commitLog.getMessage(offsetPy, sizePy);
+                            if (isTagsCodeMatched) {
+                                boolean isInDisk = checkInDiskByCommitOffset(offsetPy, maxOffsetPy);
+                                if (this.isTheBatchFull(sizePy, maxMsgNums, getResult.getBufferTotalSize(),
+                                    getResult.getMessageCount(), isInDisk)) {
+                                    break;
+                                }
+
+                                if (null == mapedFile || offsetPy < mapedFile.getFileFromOffset()
+                                        || offsetPy >= mapedFile.getFileFromOffset() + mapedFileSizeCommitLog) {
+                                    mapedFile = this.commitLog.findMapedFileByOffset(offsetPy);
+                                }
+                                SelectMapedBufferResult selectResult = null == mapedFile ? null
+                                        : mapedFile.selectMapedBuffer((int) (offsetPy % mapedFileSizeCommitLog), sizePy);
+                                if (null == selectResult) {
+                                    // below the hot files, try the cold tier
+                                    selectResult = this.commitLog.getMessage(offsetPy, sizePy);
+                                }
                                 if (selectResult != null) {
                                     this.storeStatsService.getGetMessageTransferedMsgCount().incrementAndGet();
                                     getResult.addMessage(selectResult);
@@ -490,7 +746,7 @@ public class DefaultMessageStore implements MessageStore {
                             brokerStatsManager.recordDiskFallBehind(group, topic, queueId, fallBehind);
                         }
 
-                        nextBeginOffset = offset + (i / ConsumeQueue.CQStoreUnitSize);
+                        nextBeginOffset = scanOffset + (i / ConsumeQueue.CQStoreUnitSize);
 
                         long diff = maxOffsetPy - maxPhyOffsetPulling;
                         long memory =
@@ -503,7 +759,7 @@ public class DefaultMessageStore implements MessageStore {
                 }
                 else {
                     status = GetMessageStatus.OFFSET_FOUND_NULL;
-                    nextBeginOffset = nextOffsetCorrection(offset, consumeQueue.rollNextFile(offset));
+                    nextBeginOffset = nextOffsetCorrection(offset, consumeQueue.rollNextFile(scanOffset));
                     log.warn("consumer request topic: " + topic + "offset: " + offset + " minOffset: " + minOffset + " maxOffset: "
                             + maxOffset + ", but access logic queue failed.");
                 }
@@ -522,6 +778,7 @@ public class DefaultMessageStore implements MessageStore {
         }
         long eclipseTime = this.getSystemClock().now() - beginTime;
         this.storeStatsService.setGetMessageEntireTimeMax(eclipseTime);
+        this.storeStatsService.getGetMessageLatency().record(System.nanoTime() - beginNanos);
 
         getResult.setStatus(status);
         getResult.setNextBeginOffset(nextBeginOffset);
@@ -631,6 +888,8 @@ public class DefaultMessageStore implements MessageStore {
 
         result.put(RunningStats.commitLogMinOffset.name(), String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
         result.put(RunningStats.commitLogMaxOffset.name(), String.valueOf(DefaultMessageStore.this.getMaxPhyOffset()));
+        result.put(RunningStats.dispatchBehindBytes.name(), String.valueOf(this.dispatchBehindBytes()));
+        result.put(RunningStats.dispatchBehindMillis.name(), String.valueOf(this.dispatchBehindMillis()));
 
         return result;
     }
@@ -647,21 +906,7 @@ public class DefaultMessageStore implements MessageStore {
         ConsumeQueue logicQueue = this.findConsumeQueue(topic, queueId);
         if (logicQueue != null) {
             long minLogicOffset = logicQueue.getMinLogicOffset();
-
-            SelectMapedBufferResult result = logicQueue.getIndexBuffer(minLogicOffset / ConsumeQueue.CQStoreUnitSize);
-            if (result != null) {
-                try {
-                    final long phyOffset = result.getByteBuffer().getLong();
-                    final int size = result.getByteBuffer().getInt();
-                    long storeTime = this.getCommitLog().pickupStoretimestamp(phyOffset, size);
-                    return storeTime;
-                }
-                catch (Exception e) {
-                }
-                finally {
-                    result.release();
-                }
-            }
+            return logicQueue.getStoreTimestamp(minLogicOffset / ConsumeQueue.CQStoreUnitSize);
         }
 
         return -1;
@@ -672,20 +917,7 @@ public class DefaultMessageStore implements MessageStore {
     public long getMessageStoreTimeStamp(String topic, int queueId, long offset) {
         ConsumeQueue logicQueue = this.findConsumeQueue(topic, queueId);
         if (logicQueue != null) {
-            SelectMapedBufferResult result = logicQueue.getIndexBuffer(offset);
-            if (result != null) {
-                try {
-                    final long phyOffset = result.getByteBuffer().getLong();
-                    final int size = result.getByteBuffer().getInt();
-                    long storeTime = this.getCommitLog().pickupStoretimestamp(phyOffset, size);
-                    return storeTime;
-                }
-                catch (Exception e) {
-                }
-                finally {
-                    result.release();
-                }
-            }
+            return logicQueue.getStoreTimestamp(offset);
         }
 
         return -1;
@@ -977,27 +1209,60 @@ public class DefaultMessageStore implements MessageStore {
 
 
     private void recover(final boolean lastExitOK) {
-        this.recoverConsumeQueue();
+        int recoverThreadNums = this.messageStoreConfig.getRecoverThreadNums();
+        this.recoverPool = recoverThreadNums > 1 ? Executors.newFixedThreadPool(recoverThreadNums,
+            new ThreadFactoryImpl("StoreRecoverThread_")) : null;
+        try {
+            long beginTime = System.currentTimeMillis();
+            if (!lastExitOK) {
+                this.forEachConsumeQueue(new Consumer<ConsumeQueue>() {
+                    @Override
+                    public void accept(ConsumeQueue logic) {
+                        logic.resetTagsBloom();
+                    }
+                });
+            }
+
+            this.recoverConsumeQueue();
+            log.info("recover consume queue over, cost {} ms", System.currentTimeMillis() - beginTime);
+
+            beginTime = System.currentTimeMillis();
+            if (lastExitOK) {
+                this.commitLog.recoverNormally();
+            }
+            else {
+                this.commitLog.recoverAbnormally();
+            }
+            log.info("recover commit log {} over, cost {} ms", lastExitOK ? "normally" : "abnormally",
+                System.currentTimeMillis() - beginTime);
 
-        if (lastExitOK) {
-            this.commitLog.recoverNormally();
+            beginTime = System.currentTimeMillis();
+            this.recoverTopicQueueTable();
+            log.info("recover topic queue table over, cost {} ms", System.currentTimeMillis() - beginTime);
         }
-        else {
-            this.commitLog.recoverAbnormally();
+        finally {
+            if (this.recoverPool != null) {
+                this.recoverPool.shutdown();
+                this.recoverPool = null;
+            }
         }
-
-        this.recoverTopicQueueTable();
     }
 
 
     private void recoverTopicQueueTable() {
         HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
-        long minPhyOffset = this.commitLog.getMinOffset();
+        final long minPhyOffset = this.commitLog.getMinOffset();
+        this.forEachConsumeQueue(new Consumer<ConsumeQueue>() {
+            @Override
+            public void accept(ConsumeQueue logic) {
+                logic.correctMinOffset(minPhyOffset);
+            }
+        });
+
         for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
             for (ConsumeQueue logic : maps.values()) {
                 String key = logic.getTopic() + "-" + logic.getQueueId();
                 table.put(key, logic.getMaxOffsetInQuque());
-                logic.correctMinOffset(minPhyOffset);
             }
         }
 
@@ -1006,17 +1271,62 @@ public class DefaultMessageStore implements MessageStore {
 
 
     private void recoverConsumeQueue() {
-        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
-            for (ConsumeQueue logic : maps.values()) {
+        this.forEachConsumeQueue(new Consumer<ConsumeQueue>() {
+            @Override
+            public void accept(ConsumeQueue logic) {
                 logic.recover();
             }
+        });
+    }
+
+
+    /**
+     * ConsumeQueues recover independently of each other, spread them over
+     * the recover pool if there is one
+     */
+    private void forEachConsumeQueue(final Consumer<ConsumeQueue> action) {
+        final ExecutorService recoverPool = this.recoverPool;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+            for (final ConsumeQueue logic : maps.values()) {
+                if (null == recoverPool) {
+                    action.accept(logic);
+                }
+                else {
+                    futures.add(recoverPool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            action.accept(logic);
+                        }
+                    }));
+                }
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("recover consume queue interrupted", e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException("recover consume queue failed", e.getCause());
+            }
         }
     }
 
 
-    public void putMessagePostionInfo(String topic, int queueId, long offset, int size, long tagsCode, long storeTimestamp, long logicOffset) {
+    public ExecutorService getRecoverPool() {
+        return recoverPool;
+    }
+
+
+    public void putMessagePostionInfo(String topic, int queueId, long offset, int size, long tagsCode, long storeTimestamp, long logicOffset,
+            Map<String, String> propertiesMap) {
         ConsumeQueue cq = this.findConsumeQueue(topic, queueId);
-        cq.putMessagePostionInfoWrapper(offset, size, tagsCode, storeTimestamp, logicOffset);
+        cq.putMessagePostionInfoWrapper(offset, size, tagsCode, storeTimestamp, logicOffset, propertiesMap);
     }
 
 
@@ -1025,6 +1335,27 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+
+    /**
+     * The pool only works on ASYNC_FLUSH master, sync flush waits for the
+     * write back anyway
+     */
+    public boolean isTransientStorePoolEnable() {
+        return this.messageStoreConfig.isTransientStorePoolEnable()
+                && FlushDiskType.ASYNC_FLUSH == this.messageStoreConfig.getFlushDiskType()
+                && BrokerRole.SLAVE != this.messageStoreConfig.getBrokerRole();
+    }
+
+
+    public FileDeleteThrottle getFileDeleteThrottle() {
+        return fileDeleteThrottle;
+    }
+
+
     public StoreStatsService getStoreStatsService() {
         return storeStatsService;
     }
@@ -1055,6 +1386,11 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TimerMessageStore getTimerMessageStore() {
+        return timerMessageStore;
+    }
+
+
     public RunningFlags getRunningFlags() {
         return runningFlags;
     }
@@ -1132,6 +1468,9 @@ public class DefaultMessageStore implements MessageStore {
 
                 fileReservedTime *= 60 * 60 * 1000;
 
+                // a nearly full disk can not wait for the delete budget
+                DefaultMessageStore.this.fileDeleteThrottle.setUrgent(this.cleanImmediately);
+
                 deleteCount =
                         DefaultMessageStore.this.commitLog.deleteExpiredFile(fileReservedTime, deletePhysicFilesInterval,
                             destroyMapedFileIntervalForcibly, cleanAtOnce);
@@ -1290,6 +1629,7 @@ public class DefaultMessageStore implements MessageStore {
             }
 
             long logicsMsgTimestamp = 0;
+            long logicsOffset = 0;
 
             int flushConsumeQueueThoroughInterval = DefaultMessageStore.this.getMessageStoreConfig().getFlushConsumeQueueThoroughInterval();
             long currentTimeMillis = System.currentTimeMillis();
@@ -1297,6 +1637,7 @@ public class DefaultMessageStore implements MessageStore {
                 this.lastFlushTimestamp = currentTimeMillis;
                 flushConsumeQueueLeastPages = 0;
                 logicsMsgTimestamp = DefaultMessageStore.this.getStoreCheckpoint().getLogicsMsgTimestamp();
+                logicsOffset = DefaultMessageStore.this.consumeQueueDispatchedOffset();
             }
 
             ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
@@ -1314,6 +1655,9 @@ public class DefaultMessageStore implements MessageStore {
                 if (logicsMsgTimestamp > 0) {
                     DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(logicsMsgTimestamp);
                 }
+                if (logicsOffset > 0) {
+                    DefaultMessageStore.this.getStoreCheckpoint().setLogicsOffset(logicsOffset);
+                }
                 DefaultMessageStore.this.getStoreCheckpoint().flush();
             }
         }
@@ -1352,25 +1696,159 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * Run every dispatcher on the calling thread, used by recovery
+     */
     public void doDispatch(DispatchRequest req) {
+        this.buildConsumeQueueDispatcher.dispatch(req);
+        this.buildIndexDispatcher.dispatch(req);
+
+        for (CommitLogDispatcher dispatcher : this.dispatcherList) {
+            dispatcher.dispatch(req);
+        }
+    }
+
+
+    /**
+     * Add a dispatcher after the ConsumeQueue and index ones. With ownThread it
+     * runs on a dedicated thread with a bounded queue, otherwise on the reput
+     * thread. Should be called before start
+     */
+    public void registerDispatcher(final CommitLogDispatcher dispatcher, final boolean ownThread) {
+        if (ownThread) {
+            DispatchWorker worker =
+                    new DispatchWorker("CommitLogDispatcher-" + dispatcher.getClass().getSimpleName(),
+                        this.messageStoreConfig.getDispatchQueueCapacity()) {
+                        @Override
+                        protected void dispatch(DispatchRequest request) {
+                            dispatcher.dispatch(request);
+                        }
+                    };
+            this.dispatcherWorkerTable.put(dispatcher, worker);
+            this.dispatchWorkers.add(worker);
+            if (!this.shutdown) {
+                worker.start();
+            }
+        }
+
+        this.dispatcherList.add(dispatcher);
+        log.info("register commit log dispatcher {}, own thread: {}", dispatcher.getClass().getName(), ownThread);
+    }
+
+
+    public List<CommitLogDispatcher> getDispatcherList() {
+        return dispatcherList;
+    }
+
+
+    class CommitLogDispatcherBuildConsumeQueue implements CommitLogDispatcher {
+        @Override
+        public void dispatch(DispatchRequest request) {
+            if (DefaultMessageStore.this.putConsumeQueue(request) && !DefaultMessageStore.this.shutdown) {
+                // recovery dispatches before start, its lag means nothing
+                DefaultMessageStore.this.storeStatsService.getDispatchLatency().record(
+                    (System.currentTimeMillis() - request.getStoreTimestamp()) * 1000 * 1000);
+            }
+        }
+    }
+
+
+    class CommitLogDispatcherBuildIndex implements CommitLogDispatcher {
+        @Override
+        public void dispatch(DispatchRequest request) {
+            if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                DefaultMessageStore.this.indexService.buildIndex(request);
+            }
+        }
+    }
+
+
+    private static boolean isConsumeQueueNeeded(final DispatchRequest req) {
         final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
         switch (tranType) {
         case MessageSysFlag.TransactionNotType:
         case MessageSysFlag.TransactionCommitType:
-            DefaultMessageStore.this.putMessagePostionInfo(req.getTopic(), req.getQueueId(), req.getCommitLogOffset(), req.getMsgSize(),
-                req.getTagsCode(), req.getStoreTimestamp(), req.getConsumeQueueOffset());
-            break;
+            return true;
         case MessageSysFlag.TransactionPreparedType:
         case MessageSysFlag.TransactionRollbackType:
-            break;
+        default:
+            return false;
         }
+    }
 
-        if (DefaultMessageStore.this.getMessageStoreConfig().isMessageIndexEnable()) {
-            DefaultMessageStore.this.indexService.buildIndex(req);
+
+    private boolean putConsumeQueue(final DispatchRequest req) {
+        if (isConsumeQueueNeeded(req)) {
+            this.putMessagePostionInfo(req.getTopic(), req.getQueueId(), req.getCommitLogOffset(), req.getMsgSize(),
+                req.getTagsCode(), req.getStoreTimestamp(), req.getConsumeQueueOffset(), req.getPropertiesMap());
+            return true;
+        }
+        return false;
+    }
+
+
+    private void notifyMessageArriving(final DispatchRequest req) {
+        if (BrokerRole.SLAVE != this.getMessageStoreConfig().getBrokerRole() && this.brokerConfig.isLongPollingEnable()) {
+            this.messageArrivingListener.arriving(req.getTopic(), req.getQueueId(), req.getConsumeQueueOffset() + 1);
+        }
+    }
+
+
+    /**
+     * Hand a parsed request over to the dispatch workers. Entries of one queue
+     * always go to the same worker, so each ConsumeQueue is still written in
+     * order; index entries go to their own worker
+     */
+    private void dispatchReput(final DispatchRequest req) {
+        if (this.consumeQueueDispatchWorkers.length == 0) {
+            this.buildConsumeQueueDispatcher.dispatch(req);
+            this.buildIndexDispatcher.dispatch(req);
+            this.notifyMessageArriving(req);
+        }
+        else {
+            if (isConsumeQueueNeeded(req)) {
+                int hash = req.getTopic().hashCode() * 31 + req.getQueueId();
+                this.consumeQueueDispatchWorkers[(hash & Integer.MAX_VALUE) % this.consumeQueueDispatchWorkers.length]
+                    .putRequest(req);
+            }
+
+            if (this.getMessageStoreConfig().isMessageIndexEnable()) {
+                this.indexDispatchWorker.putRequest(req);
+            }
+        }
+
+        for (CommitLogDispatcher dispatcher : this.dispatcherList) {
+            DispatchWorker worker = this.dispatcherWorkerTable.get(dispatcher);
+            if (worker != null) {
+                worker.putRequest(req);
+            }
+            else {
+                try {
+                    dispatcher.dispatch(req);
+                }
+                catch (Throwable e) {
+                    log.warn("commit log dispatcher " + dispatcher.getClass().getName() + " exception", e);
+                }
+            }
         }
     }
 
+
+    public void wakeupReput() {
+        this.reputMessageService.wakeupIfWaiting();
+    }
+
     class ReputMessageService extends ServiceThread {
+        // set while the thread is about to wait, puts only take the monitor then
+        private volatile boolean waiting = false;
+
+
+        public void wakeupIfWaiting() {
+            if (this.waiting && !this.hasNotified) {
+                this.wakeup();
+            }
+        }
+
         @Override
         public void shutdown() {
             for (int i = 0; i < 50 && this.isCommitLogAvailable(); i++) {
@@ -1425,20 +1903,13 @@ public class DefaultMessageStore implements MessageStore {
                             int size = dispatchRequest.getMsgSize();
                             if (dispatchRequest.isSuccess()) {
                                 if (size > 0) {
-                                    DefaultMessageStore.this.doDispatch(dispatchRequest);
-                                    if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
-                                            && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
-                                        DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
-                                            dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1);
-                                    }
+                                    DefaultMessageStore.this.dispatchReput(dispatchRequest);
                                     // bugfix By shijia
                                     this.reputFromOffset += size;
                                     readSize += size;
                                     if (DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole() == BrokerRole.SLAVE) {
-                                        DefaultMessageStore.this.storeStatsService.getSinglePutMessageTopicTimesTotal(
-                                            dispatchRequest.getTopic()).incrementAndGet();
-                                        DefaultMessageStore.this.storeStatsService.getSinglePutMessageTopicSizeTotal(
-                                            dispatchRequest.getTopic()).addAndGet(dispatchRequest.getMsgSize());
+                                        DefaultMessageStore.this.storeStatsService.addTopicPut(
+                                            dispatchRequest.getTopic(), 1, dispatchRequest.getMsgSize());
                                     }
                                 }
                                 else if (size == 0) {
@@ -1479,7 +1950,15 @@ public class DefaultMessageStore implements MessageStore {
 
             while (!this.isStoped()) {
                 try {
-                    Thread.sleep(1);
+                    // Woken up by puts, the timeout only covers data made
+                    // visible later, e.g. written back from TransientStorePool.
+                    // The CommitLog is checked after waiting is set, so a put
+                    // that saw it clear is never missed
+                    this.waiting = true;
+                    if (!this.isCommitLogAvailable()) {
+                        this.waitForRunning(10);
+                    }
+                    this.waiting = false;
                     this.doReput();
                 }
                 catch (Exception e) {
@@ -1537,7 +2016,8 @@ public class DefaultMessageStore implements MessageStore {
         while (it.hasNext()) {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topics.contains(topic) && !topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topics.contains(topic) && !topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)
+                    && !topic.equals(TimerMessageStore.TIMER_TOPIC)) {
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 for (ConsumeQueue cq : queueTable.values()) {
                     cq.destroy();
@@ -1641,7 +2121,47 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * @return CommitLog offset below which every message has its ConsumeQueue
+     *         entry written
+     */
+    private long consumeQueueDispatchedOffset() {
+        // read before the workers, requests below it have been handed over
+        long dispatchedOffset = this.reputMessageService.getReputFromOffset();
+        for (DispatchWorker worker : this.consumeQueueDispatchWorkers) {
+            if (!worker.isIdle()) {
+                dispatchedOffset = Math.min(dispatchedOffset, worker.getDispatchedOffset());
+            }
+        }
+
+        return dispatchedOffset;
+    }
+
+
     public long dispatchBehindBytes() {
-        return this.reputMessageService.behind();
+        long dispatchedOffset = this.reputMessageService.getReputFromOffset();
+        for (DispatchWorker worker : this.dispatchWorkers) {
+            long offset = worker.behindOffset();
+            if (offset >= 0 && offset < dispatchedOffset) {
+                dispatchedOffset = offset;
+            }
+        }
+
+        return Math.max(0, this.commitLog.getMaxOffset() - dispatchedOffset);
+    }
+
+
+    /**
+     * How long the oldest message handed to dispatch workers has waited since
+     * it was stored
+     */
+    public long dispatchBehindMillis() {
+        final long now = System.currentTimeMillis();
+        long behind = 0;
+        for (DispatchWorker worker : this.dispatchWorkers) {
+            behind = Math.max(behind, worker.behindMillis(now));
+        }
+
+        return behind;
     }
 }
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Handles the DispatchRequests handed over by the reput thread, in the order
+ * they were put. The queue is bounded, so a slow worker blocks reput instead
+ * of buffering without limit
+ *
+ * @author shijia.wxr
+ */
+public abstract class DispatchWorker extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final String serviceName;
+    private final BlockingQueue<DispatchRequest> requestQueue;
+    // Requests put but not dispatched yet, including the one in hand
+    private final AtomicLong pendingNums = new AtomicLong(0);
+    private volatile DispatchRequest dispatching = null;
+    // End of the last dispatched request, earlier requests put here are done
+    private volatile long dispatchedOffset = 0;
+
+
+    public DispatchWorker(final String serviceName, final int queueCapacity) {
+        this.serviceName = serviceName;
+        this.requestQueue = new LinkedBlockingQueue<DispatchRequest>(queueCapacity);
+        this.thread.setName(serviceName);
+    }
+
+
+    protected abstract void dispatch(final DispatchRequest request);
+
+
+    /**
+     * Reput moves past the message once this returns, so the request is never
+     * dropped: an interrupt is remembered and restored after the put succeeds
+     */
+    public void putRequest(final DispatchRequest request) {
+        this.pendingNums.incrementAndGet();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                this.requestQueue.put(request);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+                log.warn(this.serviceName + " put dispatch request interrupted, retry, offset: "
+                        + request.getCommitLogOffset());
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    public boolean isIdle() {
+        return this.pendingNums.get() == 0;
+    }
+
+
+    public long getPendingNums() {
+        return this.pendingNums.get();
+    }
+
+
+    /**
+     * @return how long the oldest pending request has been stored, 0 if idle
+     */
+    public long behindMillis(final long now) {
+        DispatchRequest request = this.dispatching;
+        if (null == request) {
+            request = this.requestQueue.peek();
+        }
+
+        return null == request ? 0 : Math.max(0, now - request.getStoreTimestamp());
+    }
+
+
+    /**
+     * @return CommitLog offset of the oldest pending request, -1 if idle
+     */
+    public long behindOffset() {
+        DispatchRequest request = this.dispatching;
+        if (null == request) {
+            request = this.requestQueue.peek();
+        }
+
+        return null == request ? -1 : request.getCommitLogOffset();
+    }
+
+
+    public long getDispatchedOffset() {
+        return this.dispatchedOffset;
+    }
+
+
+    private void doDispatch(final DispatchRequest request) {
+        this.dispatching = request;
+        try {
+            this.dispatch(request);
+        }
+        catch (Throwable e) {
+            log.warn(this.serviceName + " dispatch exception, offset: " + request.getCommitLogOffset(), e);
+        }
+        finally {
+            this.dispatching = null;
+            this.dispatchedOffset = request.getCommitLogOffset() + request.getMsgSize();
+            this.pendingNums.decrementAndGet();
+        }
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStoped()) {
+            try {
+                DispatchRequest request = this.requestQueue.poll(1000, TimeUnit.MILLISECONDS);
+                if (request != null) {
+                    this.doDispatch(request);
+                }
+            }
+            catch (InterruptedException e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        // Drain whatever reput handed over before shutdown
+        DispatchRequest request;
+        while ((request = this.requestQueue.poll()) != null) {
+            this.doDispatch(request);
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    @Override
+    public String getServiceName() {
+        // ServiceThread names the thread before serviceName is assigned
+        return null == this.serviceName ? DispatchWorker.class.getSimpleName() : this.serviceName;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Deletes expired files in the background. Unlinking a large file frees all
+ * its extents at once and stalls the file system, so the file is truncated
+ * chunk by chunk within a byte budget first, and waits while puts are slow.
+ * Files are queued to a thread of its own, so a slow delete never holds up
+ * the other store tasks.
+ *
+ * @author shijia.wxr
+ */
+public class FileDeleteThrottle extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int BackoffInterval = 100;
+    private final double DiskSpaceCleanForciblyRatio = Double.parseDouble(System.getProperty(
+        "rocketmq.broker.diskSpaceCleanForciblyRatio", "0.85"));
+    private final MessageStoreConfig messageStoreConfig;
+    private final StoreStatsService storeStatsService;
+    private final LinkedBlockingQueue<File> deleteQueue = new LinkedBlockingQueue<File>();
+    // the disk is nearly full or the store stops, delete at full speed
+    private volatile boolean urgent = false;
+    private long[] lastPutLatency;
+    private long lastCheckTimestamp = 0;
+    private boolean lastPutSlow = false;
+    private long lastDiskCheckTimestamp = 0;
+    private boolean lastDiskFull = false;
+
+
+    public FileDeleteThrottle(final MessageStoreConfig messageStoreConfig, final StoreStatsService storeStatsService) {
+        this.messageStoreConfig = messageStoreConfig;
+        this.storeStatsService = storeStatsService;
+    }
+
+
+    public boolean isEnable() {
+        return this.messageStoreConfig.getDeleteCommitLogBytesPerSecond() > 0;
+    }
+
+
+    /**
+     * Queue a file to be deleted. Files still queued when the store stops are
+     * deleted at full speed before the service thread ends, only those left
+     * behind by a crash wait in the recycle directory for the next start
+     */
+    public void putRequest(final File file) {
+        this.deleteQueue.offer(file);
+        this.wakeup();
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return FileDeleteThrottle.class.getSimpleName();
+    }
+
+
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStoped()) {
+            File file = this.deleteQueue.poll();
+            if (file != null) {
+                this.delete(file);
+            }
+            else {
+                this.waitForRunning(1000);
+            }
+        }
+
+        for (File file = this.deleteQueue.poll(); file != null; file = this.deleteQueue.poll()) {
+            this.delete(file);
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    /**
+     * Called by the service thread only
+     */
+    public boolean delete(final File file) {
+        long beginTime = System.currentTimeMillis();
+        final int chunkSize = Math.max(MapedFile.OS_PAGE_SIZE, this.messageStoreConfig.getDeleteCommitLogChunkSize());
+        long length = file.length();
+        // put latency is measured from the start of this file on
+        this.lastPutLatency = null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            while (length > 0) {
+                this.acquire(Math.min(length, chunkSize));
+                length = Math.max(0, length - chunkSize);
+                randomAccessFile.setLength(length);
+            }
+        }
+        catch (IOException e) {
+            log.warn("truncate file " + file + " failed, delete it at once", e);
+        }
+        finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+
+        boolean result = file.delete();
+        log.info("delete file {} {}, urgent {}, cost {} ms", file, result ? "OK" : "Failed", this.isUrgent(),
+            UtilAll.computeEclipseTimeMilliseconds(beginTime));
+        return result;
+    }
+
+
+    private void acquire(final long bytes) {
+        if (this.isUrgent()) {
+            return;
+        }
+
+        int waited = 0;
+        while (waited < this.messageStoreConfig.getDeleteBackoffMaxTime() && this.isPutSlow() && !this.isUrgent()) {
+            this.sleep(BackoffInterval);
+            waited += BackoffInterval;
+        }
+
+        long bytesPerSecond = this.messageStoreConfig.getDeleteCommitLogBytesPerSecond();
+        if (bytesPerSecond > 0 && !this.isUrgent()) {
+            this.sleep(bytes * 1000 / bytesPerSecond);
+        }
+    }
+
+
+    /**
+     * @return true if put p99 over the last BackoffInterval or more is above
+     *         the backoff latency
+     */
+    private boolean isPutSlow() {
+        long now = System.currentTimeMillis();
+        if (this.lastPutLatency != null && now - this.lastCheckTimestamp < BackoffInterval) {
+            return this.lastPutSlow;
+        }
+
+        long[] counts = this.storeStatsService.getPutMessageLatency().snapshot();
+        long[] last = this.lastPutLatency;
+        this.lastPutLatency = counts;
+        this.lastCheckTimestamp = now;
+        this.lastPutSlow = last != null && LatencyHistogram.percentile(LatencyHistogram.subtract(counts, last), 99)
+                > this.messageStoreConfig.getDeleteBackoffPutLatency() * 1000L;
+        return this.lastPutSlow;
+    }
+
+
+    private void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            log.warn("file delete throttle interrupted");
+        }
+    }
+
+
+    /**
+     * The clean pass sets urgent once a run, the CommitLog disk is checked
+     * again between chunks so a filling disk does not wait for the next pass
+     */
+    private boolean isUrgent() {
+        return this.urgent || this.stoped || this.isDiskFull();
+    }
+
+
+    private boolean isDiskFull() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastDiskCheckTimestamp < BackoffInterval) {
+            return this.lastDiskFull;
+        }
+
+        this.lastDiskCheckTimestamp = now;
+        this.lastDiskFull = UtilAll.getDiskPartitionSpaceUsedPercent(this.messageStoreConfig.getStorePathCommitLog())
+                > DiskSpaceCleanForciblyRatio;
+        return this.lastDiskFull;
+    }
+
+
+    public void setUrgent(boolean urgent) {
+        this.urgent = urgent;
+    }
+}
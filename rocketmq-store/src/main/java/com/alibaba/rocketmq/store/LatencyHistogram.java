@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latency histogram in microseconds, log linear like HdrHistogram: values
+ * below 32 have a bucket each, above every power of two is split in 16
+ * buckets, so a bucket is at most 1/16 of its value wide.
+ * <p>
+ * Writers pick a stripe by thread id and never share a counter with
+ * threads of other stripes; readers merge the stripes into a snapshot.
+ *
+ * @author shijia.wxr
+ */
+public class LatencyHistogram {
+    private static final int SubBucketBits = 4;
+    private static final int SubBucketCount = 1 << SubBucketBits;
+    private static final int LinearLimit = SubBucketCount * 2;
+    // up to 2^40 us, about 12 days
+    private static final int MaxExponent = 40;
+    private static final int BucketCount = LinearLimit + (MaxExponent - SubBucketBits) * SubBucketCount;
+    // the last slot of a stripe keeps its max
+    private static final int MaxSlot = BucketCount;
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+
+    public LatencyHistogram() {
+        int stripeNums = 1;
+        while (stripeNums < Runtime.getRuntime().availableProcessors() && stripeNums < 32) {
+            stripeNums <<= 1;
+        }
+
+        this.stripes = new AtomicLongArray[stripeNums];
+        for (int i = 0; i < stripeNums; i++) {
+            this.stripes[i] = new AtomicLongArray(BucketCount + 1);
+        }
+        this.stripeMask = stripeNums - 1;
+    }
+
+
+    private static int bucketOf(final long micros) {
+        if (micros < LinearLimit) {
+            return (int) Math.max(0, micros);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MaxExponent) {
+            return BucketCount - 1;
+        }
+
+        int subBucket = (int) (micros >>> (exponent - SubBucketBits)) & (SubBucketCount - 1);
+        return LinearLimit + (exponent - SubBucketBits - 1) * SubBucketCount + subBucket;
+    }
+
+
+    /**
+     * @return the highest value a bucket holds
+     */
+    private static long valueOf(final int bucket) {
+        if (bucket < LinearLimit) {
+            return bucket;
+        }
+
+        int exponent = (bucket - LinearLimit) / SubBucketCount + SubBucketBits + 1;
+        int subBucket = (bucket - LinearLimit) % SubBucketCount;
+        long width = 1L << (exponent - SubBucketBits);
+        return (SubBucketCount + subBucket) * width + width - 1;
+    }
+
+
+    public void record(final long nanos) {
+        final long micros = nanos / 1000;
+        AtomicLongArray stripe = this.stripes[(int) Thread.currentThread().getId() & this.stripeMask];
+        stripe.incrementAndGet(bucketOf(micros));
+
+        for (long max = stripe.get(MaxSlot); micros > max; max = stripe.get(MaxSlot)) {
+            if (stripe.compareAndSet(MaxSlot, max, micros)) {
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * @return merged counts of all stripes, the max in the last slot
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BucketCount + 1];
+        for (AtomicLongArray stripe : this.stripes) {
+            for (int i = 0; i < BucketCount; i++) {
+                counts[i] += stripe.get(i);
+            }
+            counts[MaxSlot] = Math.max(counts[MaxSlot], stripe.get(MaxSlot));
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * Like snapshot, but the max is taken since the previous call and reset,
+     * so it belongs to the window the call closes
+     */
+    public long[] snapshotAndResetMax() {
+        long[] counts = new long[BucketCount + 1];
+        for (AtomicLongArray stripe : this.stripes) {
+            for (int i = 0; i < BucketCount; i++) {
+                counts[i] += stripe.get(i);
+            }
+            counts[MaxSlot] = Math.max(counts[MaxSlot], stripe.getAndSet(MaxSlot, 0));
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * @return counts recorded between two snapshots. The max is the later
+     *         max if it falls in the highest bucket recorded between them,
+     *         else the top of that bucket
+     */
+    public static long[] subtract(final long[] later, final long[] earlier) {
+        long[] counts = new long[BucketCount + 1];
+        for (int i = 0; i < BucketCount; i++) {
+            counts[i] = later[i] - earlier[i];
+        }
+
+        for (int i = BucketCount - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                long low = 0 == i ? 0 : valueOf(i - 1) + 1;
+                counts[MaxSlot] = later[MaxSlot] >= low ? Math.min(later[MaxSlot], valueOf(i)) : valueOf(i);
+                break;
+            }
+        }
+        return counts;
+    }
+
+
+    /**
+     * @return the value at percentile (0, 100] in microseconds, 0 if empty
+     */
+    public static long percentile(final long[] counts, final double percentile) {
+        long total = 0;
+        for (int i = 0; i < BucketCount; i++) {
+            total += counts[i];
+        }
+        if (0 == total) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BucketCount; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), counts[MaxSlot]);
+            }
+        }
+
+        return counts[MaxSlot];
+    }
+
+
+    /**
+     * @return "p50,p99,p999,max" in microseconds
+     */
+    public static String toPercentileString(final long[] counts) {
+        return percentile(counts, 50) + "," + percentile(counts, 99) + "," + percentile(counts, 99.9) + ","
+                + counts[MaxSlot];
+    }
+}
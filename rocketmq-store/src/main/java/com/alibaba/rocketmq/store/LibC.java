@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Thin binding of libc memory hints (madvise/mlock/munlock), msync and
+ * fallocate.
+ * <p>
+ * JNA is resolved reflectively at runtime, so the store has no hard
+ * dependency on it; when JNA or the functions are missing, or the platform is
+ * not Linux, every call is a no-op returning -1.
+ *
+ * @author shijia.wxr
+ */
+public class LibC {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+
+    public static final int MADV_NORMAL = 0;
+    public static final int MADV_RANDOM = 1;
+    public static final int MADV_SEQUENTIAL = 2;
+    public static final int MADV_WILLNEED = 3;
+    public static final int MADV_DONTNEED = 4;
+
+    public static final int MS_SYNC = 4;
+
+    private static final long PAGE_SIZE = MapedFile.OS_PAGE_SIZE;
+
+    private static volatile boolean enable = false;
+
+    private static Object madvise;
+    private static Object mlock;
+    private static Object munlock;
+    private static Object msync;
+    private static Object fallocate;
+    private static Field fdField;
+    private static Method invokeInt;
+    private static Constructor<?> pointerConstructor;
+    private static Field addressField;
+    private static final boolean available;
+
+    static {
+        boolean ok = false;
+        if (System.getProperty("os.name", "").toLowerCase().contains("linux")) {
+            try {
+                Class<?> nativeLibraryClass = Class.forName("com.sun.jna.NativeLibrary");
+                Class<?> functionClass = Class.forName("com.sun.jna.Function");
+                Class<?> pointerClass = Class.forName("com.sun.jna.Pointer");
+                Object libc = nativeLibraryClass.getMethod("getInstance", String.class).invoke(null, "c");
+                Method getFunction = nativeLibraryClass.getMethod("getFunction", String.class);
+                madvise = getFunction.invoke(libc, "madvise");
+                mlock = getFunction.invoke(libc, "mlock");
+                munlock = getFunction.invoke(libc, "munlock");
+                msync = getFunction.invoke(libc, "msync");
+                invokeInt = functionClass.getMethod("invokeInt", Object[].class);
+                pointerConstructor = pointerClass.getConstructor(long.class);
+                addressField = Buffer.class.getDeclaredField("address");
+                addressField.setAccessible(true);
+                ok = true;
+
+                try {
+                    fallocate = getFunction.invoke(libc, "fallocate");
+                    fdField = FileDescriptor.class.getDeclaredField("fd");
+                    fdField.setAccessible(true);
+                }
+                catch (Throwable e) {
+                    fallocate = null;
+                    log.info("bind libc fallocate failed, files are allocated on first write, {}", e.toString());
+                }
+            }
+            catch (ClassNotFoundException e) {
+                log.info("JNA not found in classpath, native memory hints disabled");
+            }
+            catch (Throwable e) {
+                log.warn("bind libc memory functions failed, native memory hints disabled", e);
+            }
+        }
+        available = ok;
+    }
+
+
+    public static boolean isAvailable() {
+        return available;
+    }
+
+
+    public static boolean isEnable() {
+        return enable && available;
+    }
+
+
+    public static void setEnable(boolean enable) {
+        LibC.enable = enable;
+    }
+
+
+    /**
+     * madvise the range [pos, pos + size) of a direct buffer, the range is
+     * widened to page boundaries
+     */
+    public static int madvise(final ByteBuffer buffer, final int pos, final int size, final int advice) {
+        if (!isEnable() || size <= 0) {
+            return -1;
+        }
+
+        long address = address(buffer);
+        if (address == 0) {
+            return -1;
+        }
+
+        long beginAddr = address + pos;
+        long alignedAddr = beginAddr - beginAddr % PAGE_SIZE;
+        long length = size + (beginAddr - alignedAddr);
+        return call(madvise, alignedAddr, length, advice);
+    }
+
+
+    public static int mlock(final ByteBuffer buffer, final int size) {
+        if (!isEnable() || size <= 0) {
+            return -1;
+        }
+
+        long address = address(buffer);
+        if (address == 0) {
+            return -1;
+        }
+
+        return call(mlock, address, size);
+    }
+
+
+    public static int munlock(final ByteBuffer buffer, final int size) {
+        if (!isEnable() || size <= 0) {
+            return -1;
+        }
+
+        long address = address(buffer);
+        if (address == 0) {
+            return -1;
+        }
+
+        return call(munlock, address, size);
+    }
+
+
+    /**
+     * Write back the dirty pages of [pos, pos + size) of a maped buffer and
+     * wait for them, the range is widened to page boundaries
+     */
+    public static int msync(final ByteBuffer buffer, final int pos, final int size) {
+        if (!isEnable() || size <= 0) {
+            return -1;
+        }
+
+        long address = address(buffer);
+        if (address == 0) {
+            return -1;
+        }
+
+        long beginAddr = address + pos;
+        long alignedAddr = beginAddr - beginAddr % PAGE_SIZE;
+        long length = size + (beginAddr - alignedAddr);
+        return call(msync, alignedAddr, length, MS_SYNC);
+    }
+
+
+    /**
+     * Allocate the blocks of [0, length) of a file, where the file system
+     * supports it
+     */
+    public static int fallocate(final FileDescriptor fd, final long length) {
+        if (!isEnable() || null == fallocate || length <= 0) {
+            return -1;
+        }
+
+        try {
+            Object[] params = new Object[] { fdField.getInt(fd), 0, 0L, length };
+            return (Integer) invokeInt.invoke(fallocate, new Object[] { params });
+        }
+        catch (Throwable e) {
+            log.warn("invoke libc fallocate failed", e);
+            return -1;
+        }
+    }
+
+
+    private static long address(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return 0;
+        }
+
+        try {
+            return addressField.getLong(buffer);
+        }
+        catch (IllegalAccessException e) {
+            return 0;
+        }
+    }
+
+
+    private static int call(final Object function, final long address, final long length, final Object... args) {
+        try {
+            Object[] params = new Object[2 + args.length];
+            params[0] = pointerConstructor.newInstance(address);
+            params[1] = length;
+            System.arraycopy(args, 0, params, 2, args.length);
+            return (Integer) invokeInt.invoke(function, new Object[] { params });
+        }
+        catch (Throwable e) {
+            log.warn("invoke libc memory function failed", e);
+            return -1;
+        }
+    }
+}
@@ -44,16 +44,28 @@ public class MapedFile extends ReferenceResource {
 	private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
 	private static final AtomicLong TotalMapedVitualMemory = new AtomicLong(0);
 	private static final AtomicInteger TotalMapedFiles = new AtomicInteger(0);
+	// MappedByteBuffer.force(int, int), since JDK 13
+	private static final Method ForceRangeMethod = forceRangeMethod();
 	private final String fileName;
 	private final long fileFromOffset;
 	private final int fileSize;
 	private final File file;
 	private final MappedByteBuffer mappedByteBuffer;
 	private final AtomicInteger wrotePostion = new AtomicInteger(0);
+	// Write slots handed out by reserveAppend, never behind wrotePostion
+	private final AtomicInteger reservedPosition = new AtomicInteger(0);
 	private final AtomicInteger committedPosition = new AtomicInteger(0);
+	// Position written back from writeBuffer to the file channel
+	private final AtomicInteger writeBackPosition = new AtomicInteger(0);
 	private FileChannel fileChannel;
+	// Off-heap buffer borrowed from TransientStorePool, messages are appended
+	// here first and written back to the file channel asynchronously
+	private volatile ByteBuffer writeBuffer = null;
+	private TransientStorePool transientStorePool = null;
 	private volatile long storeTimestamp = 0;
 	private boolean firstCreateInQueue = false;
+	private volatile boolean mlocked = false;
+	private volatile boolean dontNeedAdvised = false;
 
 	@SuppressWarnings("resource")
 	public MapedFile(final String fileName, final int fileSize) throws IOException {
@@ -84,6 +96,16 @@ public class MapedFile extends ReferenceResource {
 		}
 	}
 
+	public MapedFile(final String fileName, final int fileSize, final TransientStorePool transientStorePool)
+			throws IOException {
+		this(fileName, fileSize);
+		this.writeBuffer = transientStorePool.borrowBuffer();
+		this.transientStorePool = transientStorePool;
+		if (null == this.writeBuffer) {
+			log.warn("no available buffer in transient store pool, append to maped buffer directly, " + fileName);
+		}
+	}
+
 	public static void ensureDirOK(final String dirName) {
 		if (dirName != null) {
 			File f = new File(dirName);
@@ -114,6 +136,14 @@ public class MapedFile extends ReferenceResource {
 		});
 	}
 
+	private static Method forceRangeMethod() {
+		try {
+			return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
 	private static Method method(Object target, String methodName, Class<?>[] args) throws NoSuchMethodException {
 		try {
 			return target.getClass().getMethod(methodName, args);
@@ -165,6 +195,11 @@ public class MapedFile extends ReferenceResource {
 		return fileChannel;
 	}
 
+	/**
+	 * @param msg
+	 *            a MessageExtBrokerInner, or a MessageExtBatch appended as a
+	 *            whole
+	 */
 	public AppendMessageResult appendMessage(final Object msg, final AppendMessageCallback cb) {
 		assert msg != null;
 		assert cb != null;// cb: DefaultAppendMessageCallback
@@ -174,13 +209,19 @@ public class MapedFile extends ReferenceResource {
 
 		if (currentPos < this.fileSize) {
 			// 生成buffer切片
-			ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+			ByteBuffer byteBuffer = this.appendBuffer().slice();
 			byteBuffer.position(currentPos);
 			// 写单条消息到byteBuffer(序列化和保存)
-			AppendMessageResult result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos,
-					msg);
+			AppendMessageResult result;
+			if (msg instanceof MessageExtBatch) {
+				result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos,
+						(MessageExtBatch) msg);
+			} else {
+				result = cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, msg);
+			}
 			// 更新write position，到最新值
 			this.wrotePostion.addAndGet(result.getWroteBytes());
+			this.reservedPosition.addAndGet(result.getWroteBytes());
 			this.storeTimestamp = result.getStoreTimestamp();
 			return result;
 		}
@@ -197,32 +238,194 @@ public class MapedFile extends ReferenceResource {
 		int currentPos = this.wrotePostion.get();
 
 		if ((currentPos + data.length) <= this.fileSize) {
-			ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+			ByteBuffer byteBuffer = this.appendBuffer().slice();
 			byteBuffer.position(currentPos);
 			byteBuffer.put(data);
 			this.wrotePostion.addAndGet(data.length);
+			this.reservedPosition.addAndGet(data.length);
 			return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Reserve a write slot by CAS, keeping at least minRemaining bytes free
+	 * behind it. Returns the slot position, or -1 if the space is not enough
+	 */
+	public int reserveAppend(final int size, final int minRemaining) {
+		for (;;) {
+			int currentPos = this.reservedPosition.get();
+			if (currentPos + size + minRemaining > this.fileSize) {
+				return -1;
+			}
+
+			if (this.reservedPosition.compareAndSet(currentPos, currentPos + size)) {
+				return currentPos;
+			}
+		}
+	}
+
+	/**
+	 * Reserve all the remaining space of the file, returns the slot position
+	 */
+	public int reserveRemaining() {
+		return this.reservedPosition.getAndSet(this.fileSize);
+	}
+
+	/**
+	 * Copy data into a slot returned by reserveAppend or reserveRemaining and
+	 * publish it. Slots are published in reservation order, so readers never
+	 * see a hole below wrotePostion
+	 */
+	public void appendReserved(final int pos, final int size, final ByteBuffer data, final long storeTimestamp) {
+		try {
+			ByteBuffer byteBuffer = this.appendBuffer().slice();
+			byteBuffer.position(pos);
+			byteBuffer.put(data);
+		} finally {
+			int spins = 0;
+			while (this.wrotePostion.get() != pos) {
+				if (++spins > 64) {
+					Thread.yield();
+				}
+			}
+
+			this.storeTimestamp = storeTimestamp;
+			this.wrotePostion.set(pos + size);
+		}
+	}
+
+	private ByteBuffer appendBuffer() {
+		ByteBuffer buffer = this.writeBuffer;
+		return buffer != null ? buffer : this.mappedByteBuffer;
+	}
+
+	/**
+	 * Write the data appended to writeBuffer back to the file channel, and
+	 * return the buffer to the pool once the whole file is written back
+	 */
+	public int writeBack(final int writeBackLeastPages) {
+		if (null == this.writeBuffer) {
+			return this.getReadPosition();
+		}
+
+		if (this.isAbleToWriteBack(writeBackLeastPages)) {
+			if (this.hold()) {
+				this.doWriteBack();
+				this.release();
+			} else {
+				log.warn("in write back, hold failed, write back offset = " + this.writeBackPosition.get());
+			}
+		}
+
+		if (this.fileSize == this.writeBackPosition.get()) {
+			this.returnWriteBuffer();
+		}
+
+		return this.getReadPosition();
+	}
+
+	private void doWriteBack() {
+		int writePos = this.wrotePostion.get();
+		int lastWriteBackPos = this.writeBackPosition.get();
+		if (writePos > lastWriteBackPos) {
+			try {
+				ByteBuffer byteBuffer = this.writeBuffer.slice();
+				byteBuffer.position(lastWriteBackPos);
+				byteBuffer.limit(writePos);
+				int pos = lastWriteBackPos;
+				while (byteBuffer.hasRemaining()) {
+					pos += this.fileChannel.write(byteBuffer, pos);
+				}
+				this.writeBackPosition.set(writePos);
+			} catch (IOException e) {
+				log.error("write back to file channel error, " + this.fileName, e);
+			}
+		}
+	}
+
+	private boolean isAbleToWriteBack(final int writeBackLeastPages) {
+		int writeBack = this.writeBackPosition.get();
+		int write = this.wrotePostion.get();
+
+		if (this.fileSize == write) {
+			return true;
+		}
+
+		if (writeBackLeastPages > 0) {
+			return ((write / OS_PAGE_SIZE) - (writeBack / OS_PAGE_SIZE)) >= writeBackLeastPages;
+		}
+
+		return write > writeBack;
+	}
+
+	private synchronized void returnWriteBuffer() {
+		if (this.writeBuffer != null) {
+			this.transientStorePool.returnBuffer(this.writeBuffer);
+			this.writeBuffer = null;
+		}
+	}
+
+	/**
+	 * Data below this position is visible through the maped buffer
+	 */
+	public int getReadPosition() {
+		return null == this.writeBuffer ? this.wrotePostion.get() : this.writeBackPosition.get();
+	}
+
 	public int commit(final int flushLeastPages) {
+		return this.commit(flushLeastPages, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Flush at most maxFlushBytes after the committed position, so one call
+	 * takes a bounded time however much is dirty
+	 */
+	public int commit(final int flushLeastPages, final int maxFlushBytes) {
 		if (this.isAbleToFlush(flushLeastPages)) {
 			if (this.hold()) {
-				int value = this.wrotePostion.get();
-				this.mappedByteBuffer.force();
+				int committed = this.committedPosition.get();
+				int value = this.getReadPosition();
+				if (value - committed > maxFlushBytes) {
+					int end = committed + maxFlushBytes;
+					value = Math.min(value, Math.max(end - end % OS_PAGE_SIZE, committed + OS_PAGE_SIZE));
+				}
+				this.force(committed, value);
 				this.committedPosition.set(value);
 				this.release();
 			} else {
 				log.warn("in commit, hold failed, commit offset = " + this.committedPosition.get());
-				this.committedPosition.set(this.wrotePostion.get());
+				this.committedPosition.set(this.getReadPosition());
 			}
 		}
 
 		return this.getCommittedPosition();
 	}
 
+	/**
+	 * Only the pages of [from, to) are dirty since the last commit, sync them
+	 * alone rather than walking the whole mapping
+	 */
+	private void force(final int from, final int to) {
+		if (to <= from) {
+			return;
+		}
+
+		if (ForceRangeMethod != null) {
+			try {
+				ForceRangeMethod.invoke(this.mappedByteBuffer, from, to - from);
+				return;
+			} catch (Exception e) {
+				log.warn("force range of " + this.fileName + " failed, force the whole file", e);
+			}
+		} else if (LibC.msync(this.mappedByteBuffer, from, to - from) == 0) {
+			return;
+		}
+
+		this.mappedByteBuffer.force();
+	}
+
 	public int getCommittedPosition() {
 		return committedPosition.get();
 	}
@@ -233,9 +436,9 @@ public class MapedFile extends ReferenceResource {
 
 	private boolean isAbleToFlush(final int flushLeastPages) {
 		int flush = this.committedPosition.get();
-		int write = this.wrotePostion.get();
+		int write = this.getReadPosition();
 
-		if (this.isFull()) {
+		if (this.fileSize == write) {
 			return true;
 		}
 
@@ -247,11 +450,11 @@ public class MapedFile extends ReferenceResource {
 	}
 
 	public boolean isFull() {
-		return this.fileSize == this.wrotePostion.get();
+		return this.fileSize == this.reservedPosition.get();
 	}
 
 	public SelectMapedBufferResult selectMapedBuffer(int pos, int size) {
-		if ((pos + size) <= this.wrotePostion.get()) {
+		if ((pos + size) <= this.getReadPosition()) {
 			if (this.hold()) {
 				ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
 				byteBuffer.position(pos);
@@ -270,11 +473,12 @@ public class MapedFile extends ReferenceResource {
 	}
 
 	public SelectMapedBufferResult selectMapedBuffer(int pos) {
-		if (pos < this.wrotePostion.get() && pos >= 0) {
+		int readPosition = this.getReadPosition();
+		if (pos < readPosition && pos >= 0) {
 			if (this.hold()) {
 				ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
 				byteBuffer.position(pos);
-				int size = this.wrotePostion.get() - pos;
+				int size = readPosition - pos;
 				ByteBuffer byteBufferNew = byteBuffer.slice();
 				byteBufferNew.limit(size);
 				return new SelectMapedBufferResult(this.fileFromOffset + pos, byteBufferNew, size, this);
@@ -296,7 +500,9 @@ public class MapedFile extends ReferenceResource {
 			return true;
 		}
 
+		this.mlocked = false;
 		clean(this.mappedByteBuffer);
+		this.returnWriteBuffer();
 		TotalMapedVitualMemory.addAndGet(this.fileSize * (-1));
 		TotalMapedFiles.decrementAndGet();
 		log.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
@@ -304,6 +510,15 @@ public class MapedFile extends ReferenceResource {
 	}
 
 	public boolean destroy(final long intervalForcibly) {
+		return this.destroy(intervalForcibly, null);
+	}
+
+	/**
+	 * @param recycleFile
+	 *            the file is renamed to it to be reused, deleted if null or
+	 *            the rename fails
+	 */
+	public boolean destroy(final long intervalForcibly, final File recycleFile) {
 		this.shutdown(intervalForcibly);
 
 		if (this.isCleanupOver()) {
@@ -312,8 +527,9 @@ public class MapedFile extends ReferenceResource {
 				log.info("close file channel " + this.fileName + " OK");
 
 				long beginTime = System.currentTimeMillis();
-				boolean result = this.file.delete();
-				log.info("delete file[REF:" + this.getRefCount() + "] " + this.fileName
+				boolean result = (recycleFile != null && this.file.renameTo(recycleFile)) || this.file.delete();
+				log.info((recycleFile != null && recycleFile.exists() ? "recycle" : "delete") + " file[REF:"
+						+ this.getRefCount() + "] " + this.fileName
 						+ (result ? " OK, " : " Failed, ") + "W:" + this.getWrotePostion() + " M:"
 						+ this.getCommittedPosition() + ", " + UtilAll.computeEclipseTimeMilliseconds(beginTime));
 			} catch (Exception e) {
@@ -366,12 +582,116 @@ public class MapedFile extends ReferenceResource {
 				System.currentTimeMillis() - beginTime);
 	}
 
+	/**
+	 * Read a byte of every page, so the first writes to a reused file do not
+	 * wait for its old pages to be read from disk
+	 *
+	 * @return sum of the bytes read
+	 */
+	public int prefault() {
+		if (this.madvise(0, this.fileSize, LibC.MADV_WILLNEED) == 0) {
+			return 0;
+		}
+
+		ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+		int sum = 0;
+		for (int i = 0; i < this.fileSize; i += OS_PAGE_SIZE) {
+			sum += byteBuffer.get(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * Lock the whole mapping in memory, used to keep the active CommitLog
+	 * file resident while catch-up readers stream through page cache
+	 */
+	public boolean mlock() {
+		if (!LibC.isEnable() || this.mlocked) {
+			return this.mlocked;
+		}
+
+		if (this.hold()) {
+			try {
+				long beginTime = System.currentTimeMillis();
+				int ret = LibC.mlock(this.mappedByteBuffer, this.fileSize);
+				this.mlocked = ret == 0;
+				log.info("mlock {} ret = {} time consuming = {}", this.fileName, ret,
+						System.currentTimeMillis() - beginTime);
+			} finally {
+				this.release();
+			}
+		}
+
+		return this.mlocked;
+	}
+
+	public void munlock() {
+		if (!this.mlocked) {
+			return;
+		}
+
+		if (this.hold()) {
+			try {
+				int ret = LibC.munlock(this.mappedByteBuffer, this.fileSize);
+				log.info("munlock {} ret = {}", this.fileName, ret);
+			} finally {
+				this.release();
+			}
+		}
+
+		this.mlocked = false;
+	}
+
+	public int madvise(final int pos, final int size, final int advice) {
+		if (!LibC.isEnable() || pos < 0 || size <= 0 || pos + size > this.fileSize) {
+			return -1;
+		}
+
+		if (this.hold()) {
+			try {
+				return LibC.madvise(this.mappedByteBuffer, pos, size, advice);
+			} finally {
+				this.release();
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Tell the kernel the pages of this file are no longer needed, issued once
+	 * when the file falls out of the in-memory window or is about to be deleted
+	 */
+	public boolean adviseDontNeed() {
+		if (this.dontNeedAdvised || !LibC.isEnable()) {
+			return false;
+		}
+
+		this.munlock();
+		if (this.madvise(0, this.fileSize, LibC.MADV_DONTNEED) == 0) {
+			this.dontNeedAdvised = true;
+			return true;
+		}
+
+		return false;
+	}
+
+	public boolean isMlocked() {
+		return mlocked;
+	}
+
 	public int getWrotePostion() {
 		return wrotePostion.get();
 	}
 
 	public void setWrotePostion(int pos) {
 		this.wrotePostion.set(pos);
+		this.reservedPosition.set(pos);
+		this.writeBackPosition.set(pos);
+	}
+
+	public int getWriteBackPosition() {
+		return writeBackPosition.get();
 	}
 
 	public MappedByteBuffer getMappedByteBuffer() {
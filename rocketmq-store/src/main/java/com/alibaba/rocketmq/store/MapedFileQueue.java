@@ -25,12 +25,16 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
+ * The file list is an immutable array republished on every roll or delete,
+ * lookups read one snapshot without locking. A file taken from a snapshot may
+ * be destroyed meanwhile, readers still go through hold/release
  *
  * @author shijia.wxr
  */
@@ -40,10 +44,19 @@ public class MapedFileQueue {
     private static final int DeleteFilesBatchMax = 10;
     private final String storePath;
     private final int mapedFileSize;
-    private final List<MapedFile> mapedFiles = new ArrayList<MapedFile>();
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private static final MapedFile[] EmptyMapedFiles = new MapedFile[0];
+    private volatile MapedFile[] mapedFiles = EmptyMapedFiles;
+    // Serializes the writers publishing a new file list
+    private final Lock publishLock = new ReentrantLock();
     private final AllocateMapedFileService allocateMapedFileService;
     private long committedWhere = 0;
+    // The last message end known at or below committedWhere, a partial flush
+    // may stop inside a message
+    private volatile long committedMessageWhere = 0;
+    // A message end sampled before a partial flush, known as committed once
+    // committedWhere passes it
+    private long pendingMessageWhere = 0;
+    private long writeBackWhere = 0;
     private volatile long storeTimestamp = 0;
 
     public MapedFileQueue(final String storePath, int mapedFileSize,
@@ -55,31 +68,25 @@ public class MapedFileQueue {
 
 
     public void checkSelf() {
-        this.readWriteLock.readLock().lock();
-        try {
-            if (!this.mapedFiles.isEmpty()) {
-                MapedFile first = this.mapedFiles.get(0);
-                MapedFile last = this.mapedFiles.get(this.mapedFiles.size() - 1);
-
-                int sizeCompute =
-                        (int) ((last.getFileFromOffset() - first.getFileFromOffset()) / this.mapedFileSize) + 1;
-                int sizeReal = this.mapedFiles.size();
-                if (sizeCompute != sizeReal) {
-                    logError
-                        .error(
-                            "[BUG]The mapedfile queue's data is damaged, {} mapedFileSize={} sizeCompute={} sizeReal={}\n{}", //
-                            this.storePath,//
-                            this.mapedFileSize,//
-                            sizeCompute,//
-                            sizeReal,//
-                            this.mapedFiles.toString()//
-                        );
-                }
+        final MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length > 0) {
+            MapedFile first = mfs[0];
+            MapedFile last = mfs[mfs.length - 1];
+
+            int sizeCompute = (int) ((last.getFileFromOffset() - first.getFileFromOffset()) / this.mapedFileSize) + 1;
+            int sizeReal = mfs.length;
+            if (sizeCompute != sizeReal) {
+                logError
+                    .error(
+                        "[BUG]The mapedfile queue's data is damaged, {} mapedFileSize={} sizeCompute={} sizeReal={}\n{}", //
+                        this.storePath,//
+                        this.mapedFileSize,//
+                        sizeCompute,//
+                        sizeReal,//
+                        Arrays.toString(mfs)//
+                    );
             }
         }
-        finally {
-            this.readWriteLock.readLock().unlock();
-        }
     }
 
 
@@ -101,23 +108,31 @@ public class MapedFileQueue {
 
 
     private Object[] copyMapedFiles(final int reservedMapedFiles) {
-        Object[] mfs = null;
+        // The snapshot is never modified, no copy needed
+        final MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length <= reservedMapedFiles) {
+            return null;
+        }
+
+        return mfs;
+    }
+
 
+    private void addMapedFile(final MapedFile mapedFile) {
+        this.publishLock.lock();
         try {
-            this.readWriteLock.readLock().lock();
-            if (this.mapedFiles.size() <= reservedMapedFiles) {
-                return null;
+            final MapedFile[] mfs = this.mapedFiles;
+            if (0 == mfs.length) {
+                mapedFile.setFirstCreateInQueue(true);
             }
 
-            mfs = this.mapedFiles.toArray();
-        }
-        catch (Exception e) {
-            e.printStackTrace();
+            MapedFile[] newMapedFiles = Arrays.copyOf(mfs, mfs.length + 1);
+            newMapedFiles[mfs.length] = mapedFile;
+            this.mapedFiles = newMapedFiles;
         }
         finally {
-            this.readWriteLock.readLock().unlock();
+            this.publishLock.unlock();
         }
-        return mfs;
     }
 
     public void truncateDirtyFiles(long offset) {
@@ -142,20 +157,22 @@ public class MapedFileQueue {
 
     private void deleteExpiredFile(List<MapedFile> files) {
         if (!files.isEmpty()) {
+            this.publishLock.lock();
             try {
-                this.readWriteLock.writeLock().lock();
+                List<MapedFile> remained = new ArrayList<MapedFile>(Arrays.asList(this.mapedFiles));
                 for (MapedFile file : files) {
-                    if (!this.mapedFiles.remove(file)) {
+                    if (!remained.remove(file)) {
                         log.error("deleteExpiredFile remove failed.");
                         break;
                     }
                 }
+                this.mapedFiles = remained.toArray(new MapedFile[remained.size()]);
             }
             catch (Exception e) {
                 log.error("deleteExpiredFile has exception.", e);
             }
             finally {
-                this.readWriteLock.writeLock().unlock();
+                this.publishLock.unlock();
             }
         }
     }
@@ -179,7 +196,7 @@ public class MapedFileQueue {
 
                     mapedFile.setWrotePostion(this.mapedFileSize);
                     mapedFile.setCommittedPosition(this.mapedFileSize);
-                    this.mapedFiles.add(mapedFile);
+                    this.addMapedFile(mapedFile);
                     log.info("load " + file.getPath() + " OK");
                 }
                 catch (IOException e) {
@@ -193,7 +210,7 @@ public class MapedFileQueue {
     }
 
     public long howMuchFallBehind() {
-        if (this.mapedFiles.isEmpty())
+        if (0 == this.mapedFiles.length)
             return 0;
 
         long committed = this.committedWhere;
@@ -214,14 +231,7 @@ public class MapedFileQueue {
 
 
     public MapedFile getLastMapedFileWithLock() {
-        MapedFile mapedFileLast = null;
-        this.readWriteLock.readLock().lock();
-        if (!this.mapedFiles.isEmpty()) {
-            mapedFileLast = this.mapedFiles.get(this.mapedFiles.size() - 1);
-        }
-        this.readWriteLock.readLock().unlock();
-
-        return mapedFileLast;
+        return this.getLastMapedFile2();
     }
 
 
@@ -231,16 +241,9 @@ public class MapedFileQueue {
 
     public MapedFile getLastMapedFile(final long startOffset, boolean needCreate) {
         long createOffset = -1;
-        MapedFile mapedFileLast = null;
-        {
-            this.readWriteLock.readLock().lock();
-            if (this.mapedFiles.isEmpty()) {
-                createOffset = startOffset - (startOffset % this.mapedFileSize);
-            }
-            else {
-                mapedFileLast = this.mapedFiles.get(this.mapedFiles.size() - 1);
-            }
-            this.readWriteLock.readLock().unlock();
+        MapedFile mapedFileLast = this.getLastMapedFile2();
+        if (null == mapedFileLast) {
+            createOffset = startOffset - (startOffset % this.mapedFileSize);
         }
 
         if (mapedFileLast != null && mapedFileLast.isFull()) {
@@ -269,12 +272,13 @@ public class MapedFileQueue {
             }
 
             if (mapedFile != null) {
-                this.readWriteLock.writeLock().lock();
-                if (this.mapedFiles.isEmpty()) {
-                    mapedFile.setFirstCreateInQueue(true);
+                this.addMapedFile(mapedFile);
+
+                // keep only the active file locked in memory
+                if (mapedFileLast != null && mapedFileLast.isMlocked()) {
+                    mapedFileLast.munlock();
+                    mapedFile.mlock();
                 }
-                this.mapedFiles.add(mapedFile);
-                this.readWriteLock.writeLock().unlock();
             }
 
             return mapedFile;
@@ -284,17 +288,9 @@ public class MapedFileQueue {
     }
 
     public long getMinOffset() {
-        try {
-            this.readWriteLock.readLock().lock();
-            if (!this.mapedFiles.isEmpty()) {
-                return this.mapedFiles.get(0).getFileFromOffset();
-            }
-        }
-        catch (Exception e) {
-            log.error("getMinOffset has exception.", e);
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
+        MapedFile mapedFile = this.getFirstMapedFile();
+        if (mapedFile != null) {
+            return mapedFile.getFileFromOffset();
         }
 
         return -1;
@@ -302,30 +298,19 @@ public class MapedFileQueue {
 
 
     public long getMaxOffset() {
-        try {
-            this.readWriteLock.readLock().lock();
-            if (!this.mapedFiles.isEmpty()) {
-                int lastIndex = this.mapedFiles.size() - 1;
-                MapedFile mapedFile = this.mapedFiles.get(lastIndex);
-                return mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
-            }
-        }
-        catch (Exception e) {
-            log.error("getMinOffset has exception.", e);
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
+        MapedFile mapedFile = this.getLastMapedFile2();
+        if (mapedFile != null) {
+            return mapedFile.getFileFromOffset() + mapedFile.getReadPosition();
         }
 
         return 0;
     }
 
     public void deleteLastMapedFile() {
-        if (!this.mapedFiles.isEmpty()) {
-            int lastIndex = this.mapedFiles.size() - 1;
-            MapedFile mapedFile = this.mapedFiles.get(lastIndex);
+        MapedFile mapedFile = this.getLastMapedFile2();
+        if (mapedFile != null) {
             mapedFile.destroy(1000);
-            this.mapedFiles.remove(mapedFile);
+            this.deleteExpiredFile(Collections.singletonList(mapedFile));
             log.info("on recover, destroy a logic maped file " + mapedFile.getFileName());
         }
     }
@@ -351,7 +336,8 @@ public class MapedFileQueue {
                 long liveMaxTimestamp = mapedFile.getLastModifiedTimestamp() + expiredTime;
                 if (System.currentTimeMillis() >= liveMaxTimestamp//
                         || cleanImmediately) {
-                    if (mapedFile.destroy(intervalForcibly)) {
+                    mapedFile.adviseDontNeed();
+                    if (this.destroyExpired(mapedFile, intervalForcibly)) {
                         files.add(mapedFile);
                         deleteCount++;
 
@@ -380,6 +366,40 @@ public class MapedFileQueue {
     }
 
 
+    private boolean destroyExpired(final MapedFile mapedFile, final long intervalForcibly) {
+        if (this.allocateMapedFileService != null) {
+            return this.allocateMapedFileService.recycle(mapedFile, intervalForcibly);
+        }
+
+        return mapedFile.destroy(intervalForcibly);
+    }
+
+
+    /**
+     * Advise DONTNEED on every file that ends before coldOffset
+     *
+     * @return count of files newly advised
+     */
+    public int adviseColdMapedFiles(final long coldOffset) {
+        Object[] mfs = this.copyMapedFiles(0);
+        int count = 0;
+        if (null != mfs) {
+            for (Object mf : mfs) {
+                MapedFile mapedFile = (MapedFile) mf;
+                if (mapedFile.getFileFromOffset() + this.mapedFileSize > coldOffset) {
+                    break;
+                }
+
+                if (!mapedFile.isMlocked() && mapedFile.adviseDontNeed()) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+
     public int deleteExpiredFileByOffset(long offset, int unitSize) {
         Object[] mfs = this.copyMapedFiles(0);
 
@@ -406,6 +426,10 @@ public class MapedFileQueue {
                     break;
                 }
 
+                if (destroy) {
+                    mapedFile.adviseDontNeed();
+                }
+
                 if (destroy && mapedFile.destroy(1000 * 60)) {
                     files.add(mapedFile);
                     deleteCount++;
@@ -421,17 +445,70 @@ public class MapedFileQueue {
         return deleteCount;
     }
 
+    /**
+     * Delete the files entirely below offset, the last file is always kept
+     */
+    public int deleteExpiredFileBefore(final long offset) {
+        Object[] mfs = this.copyMapedFiles(0);
+
+        List<MapedFile> files = new ArrayList<MapedFile>();
+        int deleteCount = 0;
+        if (null != mfs) {
+            for (int i = 0; i < mfs.length - 1; i++) {
+                MapedFile mapedFile = (MapedFile) mfs[i];
+                if (mapedFile.getFileFromOffset() + this.mapedFileSize > offset) {
+                    break;
+                }
+
+                if (mapedFile.destroy(1000 * 60)) {
+                    files.add(mapedFile);
+                    deleteCount++;
+                }
+                else {
+                    break;
+                }
+            }
+        }
+
+        deleteExpiredFile(files);
+
+        return deleteCount;
+    }
+
+
     public boolean commit(final int flushLeastPages) {
+        return this.commit(flushLeastPages, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Flush at most maxFlushBytes of the file holding the committed position
+     */
+    public boolean commit(final int flushLeastPages, final int maxFlushBytes) {
         boolean result = true;
         MapedFile mapedFile = this.findMapedFileByOffset(this.committedWhere, true);
         if (mapedFile != null) {
             long tmpTimeStamp = mapedFile.getStoreTimestamp();
-            int offset = mapedFile.commit(flushLeastPages);
+            int readPosition = mapedFile.getReadPosition();
+            // what fits is flushed up to the read position, a message end
+            boolean whole = readPosition - mapedFile.getCommittedPosition() <= maxFlushBytes;
+            int offset = mapedFile.commit(flushLeastPages, whole ? Integer.MAX_VALUE : maxFlushBytes);
             long where = mapedFile.getFileFromOffset() + offset;
             result = (where == this.committedWhere);
             this.committedWhere = where;
-            if (0 == flushLeastPages) {
-                this.storeTimestamp = tmpTimeStamp;
+            if (offset >= readPosition) {
+                this.committedMessageWhere = where;
+                if (0 == flushLeastPages) {
+                    this.storeTimestamp = tmpTimeStamp;
+                }
+            }
+            else {
+                if (this.pendingMessageWhere > this.committedMessageWhere && this.pendingMessageWhere <= where) {
+                    this.committedMessageWhere = this.pendingMessageWhere;
+                }
+                if (this.pendingMessageWhere <= this.committedMessageWhere) {
+                    this.pendingMessageWhere = mapedFile.getFileFromOffset() + readPosition;
+                }
             }
         }
 
@@ -439,60 +516,67 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * Write back the data appended to the transient store pool buffers
+     */
+    public boolean writeBack(final int writeBackLeastPages) {
+        boolean result = true;
+        MapedFile mapedFile = this.findMapedFileByOffset(this.writeBackWhere, this.writeBackWhere == 0);
+        if (mapedFile != null) {
+            int offset = mapedFile.writeBack(writeBackLeastPages);
+            long where = mapedFile.getFileFromOffset() + offset;
+            result = (where == this.writeBackWhere);
+            this.writeBackWhere = where;
+        }
+
+        return result;
+    }
+
+
     public MapedFile findMapedFileByOffset(final long offset, final boolean returnFirstOnNotFound) {
-        try {
-            this.readWriteLock.readLock().lock();
-            MapedFile mapedFile = this.getFirstMapedFile();
+        // first file and index must come from the same snapshot
+        final MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length > 0) {
+            MapedFile mapedFile = mfs[0];
+            long index = (offset / this.mapedFileSize) - (mapedFile.getFileFromOffset() / this.mapedFileSize);
+            if (index >= 0 && index < mfs.length) {
+                return mfs[(int) index];
+            }
 
-            if (mapedFile != null) {
-                int index =
-                        (int) ((offset / this.mapedFileSize) - (mapedFile.getFileFromOffset() / this.mapedFileSize));
-                if (index < 0 || index >= this.mapedFiles.size()) {
-                    logError
-                        .warn(
-                            "findMapedFileByOffset offset not matched, request Offset: {}, index: {}, mapedFileSize: {}, mapedFiles count: {}, StackTrace: {}",//
-                            offset,//
-                            index,//
-                            this.mapedFileSize,//
-                            this.mapedFiles.size(),//
-                            UtilAll.currentStackTrace());
-                }
+            logError
+                .warn(
+                    "findMapedFileByOffset offset not matched, request Offset: {}, index: {}, mapedFileSize: {}, mapedFiles count: {}, StackTrace: {}",//
+                    offset,//
+                    index,//
+                    this.mapedFileSize,//
+                    mfs.length,//
+                    UtilAll.currentStackTrace());
 
-                try {
-                    return this.mapedFiles.get(index);
-                }
-                catch (Exception e) {
-                    if (returnFirstOnNotFound) {
-                        return mapedFile;
-                    }
-                }
+            if (returnFirstOnNotFound) {
+                return mapedFile;
             }
         }
-        catch (Exception e) {
-            log.error("findMapedFileByOffset Exception", e);
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
-        }
 
         return null;
     }
 
 
     private MapedFile getFirstMapedFile() {
-        if (this.mapedFiles.isEmpty()) {
+        final MapedFile[] mfs = this.mapedFiles;
+        if (0 == mfs.length) {
             return null;
         }
 
-        return this.mapedFiles.get(0);
+        return mfs[0];
     }
 
 
     public MapedFile getLastMapedFile2() {
-        if (this.mapedFiles.isEmpty()) {
+        final MapedFile[] mfs = this.mapedFiles;
+        if (0 == mfs.length) {
             return null;
         }
-        return this.mapedFiles.get(this.mapedFiles.size() - 1);
+        return mfs[mfs.length - 1];
     }
 
 
@@ -522,7 +606,7 @@ public class MapedFileQueue {
         if (mapedFile != null) {
             if (!mapedFile.isAvailable()) {
                 log.warn("the mapedfile was destroyed once, but still alive, " + mapedFile.getFileName());
-                boolean result = mapedFile.destroy(intervalForcibly);
+                boolean result = this.destroyExpired(mapedFile, intervalForcibly);
                 if (result) {
                     log.warn("the mapedfile redelete OK, " + mapedFile.getFileName());
                     List<MapedFile> tmps = new ArrayList<MapedFile>();
@@ -542,39 +626,38 @@ public class MapedFileQueue {
 
 
     public MapedFile getFirstMapedFileOnLock() {
-        try {
-            this.readWriteLock.readLock().lock();
-            return this.getFirstMapedFile();
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
-        }
+        return this.getFirstMapedFile();
     }
 
 
     public void shutdown(final long intervalForcibly) {
-        this.readWriteLock.readLock().lock();
         for (MapedFile mf : this.mapedFiles) {
             mf.shutdown(intervalForcibly);
         }
-        this.readWriteLock.readLock().unlock();
     }
 
 
     public void destroy() {
-        this.readWriteLock.writeLock().lock();
-        for (MapedFile mf : this.mapedFiles) {
-            mf.destroy(1000 * 3);
+        this.publishLock.lock();
+        try {
+            for (MapedFile mf : this.mapedFiles) {
+                mf.destroy(1000 * 3);
+            }
+            this.mapedFiles = EmptyMapedFiles;
+            this.committedWhere = 0;
+            this.committedMessageWhere = 0;
+            this.pendingMessageWhere = 0;
+            this.writeBackWhere = 0;
+
+            // delete parent directory
+            File file = new File(storePath);
+            if (file.isDirectory()) {
+                file.delete();
+            }
         }
-        this.mapedFiles.clear();
-        this.committedWhere = 0;
-
-        // delete parent directory
-        File file = new File(storePath);
-        if (file.isDirectory()) {
-            file.delete();
+        finally {
+            this.publishLock.unlock();
         }
-        this.readWriteLock.writeLock().unlock();
     }
 
 
@@ -585,6 +668,27 @@ public class MapedFileQueue {
 
     public void setCommittedWhere(long committedWhere) {
         this.committedWhere = committedWhere;
+        this.committedMessageWhere = committedWhere;
+        this.pendingMessageWhere = committedWhere;
+    }
+
+
+    /**
+     * @return where a CommitLog checkpoint may point to, recovery starts
+     *         reading messages there
+     */
+    public long getCommittedMessageWhere() {
+        return committedMessageWhere;
+    }
+
+
+    public long getWriteBackWhere() {
+        return writeBackWhere;
+    }
+
+
+    public void setWriteBackWhere(long writeBackWhere) {
+        this.writeBackWhere = writeBackWhere;
     }
 
 
@@ -593,8 +697,11 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * @return a read only snapshot of the current files
+     */
     public List<MapedFile> getMapedFiles() {
-        return mapedFiles;
+        return Collections.unmodifiableList(Arrays.asList(this.mapedFiles));
     }
 
 
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.List;
+
+
+/**
+ * A run of messages for the same topic and queue, they are appended to the
+ * CommitLog in one lock hold and get consecutive queue offsets
+ * 
+ * @author shijia.wxr
+ */
+public class MessageExtBatch {
+    private final List<MessageExtBrokerInner> messages;
+
+
+    public MessageExtBatch(final List<MessageExtBrokerInner> messages) {
+        this.messages = messages;
+    }
+
+
+    public List<MessageExtBrokerInner> getMessages() {
+        return messages;
+    }
+
+
+    public int size() {
+        return this.messages.size();
+    }
+
+
+    public String getTopic() {
+        return this.messages.get(0).getTopic();
+    }
+
+
+    public int getQueueId() {
+        return this.messages.get(0).getQueueId();
+    }
+
+
+    public boolean isWaitStoreMsgOK() {
+        return this.messages.get(0).isWaitStoreMsgOK();
+    }
+}
@@ -23,6 +23,7 @@ import java.net.SocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -41,6 +42,20 @@ public interface MessageStore {
     PutMessageResult putMessage(final MessageExtBrokerInner msg);
 
 
+    /**
+     * Append the message and return without waiting for group commit or
+     * replication, the future is completed once both are done
+     */
+    CompletableFuture<PutMessageResult> asyncPutMessage(final MessageExtBrokerInner msg);
+
+
+    /**
+     * Append a run of messages for the same topic and queue in one lock hold,
+     * they get consecutive queue offsets
+     */
+    PutMessageResult putMessages(final MessageExtBatch messageExtBatch);
+
+
     GetMessageResult getMessage(final String group, final String topic, final int queueId,
                                 final long offset, final int maxMsgNums, final SubscriptionData subscriptionData);
 
@@ -104,4 +119,11 @@ public interface MessageStore {
     boolean checkInDiskByConsumeOffset(final String topic, final int queueId, long consumeOffset);
 
     long dispatchBehindBytes();
+
+
+    /**
+     * Add a consumer of every dispatched message, e.g. a secondary index
+     * builder, with ownThread it does not slow down reput
+     */
+    void registerDispatcher(final CommitLogDispatcher dispatcher, final boolean ownThread);
 }
@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Spin lock guarding the short critical section of the lock-free append path
+ * 
+ * @author shijia.wxr
+ */
+public class PutMessageSpinLock {
+    private static final int MaxSpinTimes = 64;
+    private final AtomicBoolean locked = new AtomicBoolean(false);
+
+
+    public void lock() {
+        int spins = 0;
+        while (!this.locked.compareAndSet(false, true)) {
+            if (++spins > MaxSpinTimes) {
+                Thread.yield();
+            }
+        }
+    }
+
+
+    public void unlock() {
+        this.locked.set(false);
+    }
+}
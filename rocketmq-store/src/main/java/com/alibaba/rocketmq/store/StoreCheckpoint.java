@@ -24,23 +24,39 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 
 
 /**
+ * Besides the three timestamps at the head of the file, offsets are kept in
+ * two slots written alternately, each with a sequence and a checksum, so a
+ * torn write leaves the other slot usable. Recovery after a crash starts from
+ * the offsets instead of from whole files
  *
  * @author shijia.wxr
  */
 public class StoreCheckpoint {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int SlotSize = 64;
+    private static final int[] SlotPositions = { 64, 128 };
+    // seq, 3 timestamps, 3 offsets
+    private static final int SlotDataSize = 8 * 7;
     private final RandomAccessFile randomAccessFile;
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private volatile long physicMsgTimestamp = 0;
     private volatile long logicsMsgTimestamp = 0;
     private volatile long indexMsgTimestamp = 0;
+    // CommitLog below this offset is flushed
+    private volatile long physicOffset = 0;
+    // Messages below this offset have their ConsumeQueue entries flushed
+    private volatile long logicsOffset = 0;
+    // Messages up to this offset are in a flushed index file
+    private volatile long indexOffset = 0;
+    private long slotSeq = 0;
 
 
     public StoreCheckpoint(final String scpPath) throws IOException {
@@ -57,6 +73,7 @@ public class StoreCheckpoint {
             this.physicMsgTimestamp = this.mappedByteBuffer.getLong(0);
             this.logicsMsgTimestamp = this.mappedByteBuffer.getLong(8);
             this.indexMsgTimestamp = this.mappedByteBuffer.getLong(16);
+            this.loadSlot();
 
             log.info("store checkpoint file physicMsgTimestamp " + this.physicMsgTimestamp + ", "
                     + UtilAll.timeMillisToHumanString(this.physicMsgTimestamp));
@@ -64,6 +81,8 @@ public class StoreCheckpoint {
                     + UtilAll.timeMillisToHumanString(this.logicsMsgTimestamp));
             log.info("store checkpoint file indexMsgTimestamp " + this.indexMsgTimestamp + ", "
                     + UtilAll.timeMillisToHumanString(this.indexMsgTimestamp));
+            log.info("store checkpoint file physicOffset {}, logicsOffset {}, indexOffset {}", this.physicOffset,
+                    this.logicsOffset, this.indexOffset);
         }
         else {
             log.info("store checkpoint file not exists, " + scpPath);
@@ -86,14 +105,58 @@ public class StoreCheckpoint {
     }
 
 
-    public void flush() {
+    public synchronized void flush() {
         this.mappedByteBuffer.putLong(0, this.physicMsgTimestamp);
         this.mappedByteBuffer.putLong(8, this.logicsMsgTimestamp);
         this.mappedByteBuffer.putLong(16, this.indexMsgTimestamp);
+
+        this.slotSeq++;
+        ByteBuffer slot = ByteBuffer.allocate(SlotSize);
+        slot.putLong(this.slotSeq);
+        slot.putLong(this.physicMsgTimestamp);
+        slot.putLong(this.logicsMsgTimestamp);
+        slot.putLong(this.indexMsgTimestamp);
+        slot.putLong(this.physicOffset);
+        slot.putLong(this.logicsOffset);
+        slot.putLong(this.indexOffset);
+        slot.putLong(UtilAll.crc32(slot.array(), 0, SlotDataSize));
+
+        int slotPosition = SlotPositions[(int) (this.slotSeq % SlotPositions.length)];
+        for (int i = 0; i < SlotSize; i++) {
+            this.mappedByteBuffer.put(slotPosition + i, slot.get(i));
+        }
         this.mappedByteBuffer.force();
     }
 
 
+    /**
+     * Take the valid slot with the greatest sequence, offsets stay 0 for a
+     * file written before slots existed
+     */
+    private void loadSlot() {
+        byte[] data = new byte[SlotSize];
+        for (int slotPosition : SlotPositions) {
+            for (int i = 0; i < SlotSize; i++) {
+                data[i] = this.mappedByteBuffer.get(slotPosition + i);
+            }
+
+            ByteBuffer slot = ByteBuffer.wrap(data);
+            long seq = slot.getLong(0);
+            if (seq <= this.slotSeq || slot.getLong(SlotDataSize) != UtilAll.crc32(data, 0, SlotDataSize)) {
+                continue;
+            }
+
+            this.slotSeq = seq;
+            this.physicMsgTimestamp = slot.getLong(8);
+            this.logicsMsgTimestamp = slot.getLong(16);
+            this.indexMsgTimestamp = slot.getLong(24);
+            this.physicOffset = slot.getLong(32);
+            this.logicsOffset = slot.getLong(40);
+            this.indexOffset = slot.getLong(48);
+        }
+    }
+
+
     public long getPhysicMsgTimestamp() {
         return physicMsgTimestamp;
     }
@@ -140,4 +203,58 @@ public class StoreCheckpoint {
         this.indexMsgTimestamp = indexMsgTimestamp;
     }
 
+
+    /**
+     * @return the CommitLog offset recovery after a crash redispatches from,
+     *         0 if unknown
+     */
+    public long getMinOffset(final boolean indexSafe) {
+        long min = Math.min(this.physicOffset, this.logicsOffset);
+        if (indexSafe) {
+            min = Math.min(min, this.indexOffset);
+        }
+
+        return min;
+    }
+
+
+    public long getPhysicOffset() {
+        return physicOffset;
+    }
+
+
+    public void setPhysicOffset(long physicOffset) {
+        this.physicOffset = physicOffset;
+    }
+
+
+    public long getLogicsOffset() {
+        return logicsOffset;
+    }
+
+
+    public void setLogicsOffset(long logicsOffset) {
+        this.logicsOffset = logicsOffset;
+    }
+
+
+    /**
+     * Called by ConsumeQueues that drop entries on recovery, they may recover
+     * in parallel
+     */
+    public synchronized void lowerLogicsOffset(final long logicsOffset) {
+        if (logicsOffset < this.logicsOffset) {
+            this.logicsOffset = logicsOffset;
+        }
+    }
+
+
+    public long getIndexOffset() {
+        return indexOffset;
+    }
+
+
+    public void setIndexOffset(long indexOffset) {
+        this.indexOffset = indexOffset;
+    }
 }
@@ -24,9 +24,9 @@ import org.slf4j.LoggerFactory;
 import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -38,26 +38,34 @@ public class StoreStatsService extends ServiceThread {
     private static final int FrequencyOfSampling = 1000;
     private static final int MaxRecordsOfSampling = 60 * 10;
     private static int PrintTPSInterval = 60 * 1;
+    // p50,p99,p999,max of the last PrintTPSInterval in microseconds
+    private static final String[] LatencyNames = { "putLatencyUs", "getLatencyUs", "dispatchLatencyUs",
+                                                  "flushLatencyUs" };
     private final AtomicLong putMessageFailedTimes = new AtomicLong(0);
-    private final Map<String, AtomicLong> putMessageTopicTimesTotal =
-            new ConcurrentHashMap<String, AtomicLong>(128);
-    private final Map<String, AtomicLong> putMessageTopicSizeTotal =
-            new ConcurrentHashMap<String, AtomicLong>(128);
+    // a topic is interned on its first put, its counters never contend on a CAS
+    private final ConcurrentHashMap<String, TopicPutStats> putMessageTopicStats =
+            new ConcurrentHashMap<String, TopicPutStats>(128);
     private final AtomicLong getMessageTimesTotalFound = new AtomicLong(0);
     private final AtomicLong getMessageTransferedMsgCount = new AtomicLong(0);
     private final AtomicLong getMessageTimesTotalMiss = new AtomicLong(0);
-    private final AtomicLong[] putMessageDistributeTime = new AtomicLong[7];
+    private final LongAdder[] putMessageDistributeTime = new LongAdder[7];
+    private final LatencyHistogram putMessageLatency = new LatencyHistogram();
+    private final LatencyHistogram getMessageLatency = new LatencyHistogram();
+    // store to ConsumeQueue, millisecond store timestamps
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private final LatencyHistogram[] latencyHistograms = { this.putMessageLatency, this.getMessageLatency,
+                                                          this.dispatchLatency, this.flushLatency };
+    private final long[][] latencyWindowStart = new long[LatencyNames.length][];
+    // counts of the last PrintTPSInterval, null before it ends
+    private volatile long[][] latencyLastWindow;
     private final LinkedList<CallSnapshot> putTimesList = new LinkedList<CallSnapshot>();
     private final LinkedList<CallSnapshot> getTimesFoundList = new LinkedList<CallSnapshot>();
     private final LinkedList<CallSnapshot> getTimesMissList = new LinkedList<CallSnapshot>();
     private final LinkedList<CallSnapshot> transferedMsgCountList = new LinkedList<CallSnapshot>();
     private long messageStoreBootTimestamp = System.currentTimeMillis();
-    private volatile long putMessageEntireTimeMax = 0;
-    private volatile long getMessageEntireTimeMax = 0;
-    // for putMessageEntireTimeMax
-    private ReentrantLock lockPut = new ReentrantLock();
-    // for getMessageEntireTimeMax
-    private ReentrantLock lockGet = new ReentrantLock();
+    private final AtomicLong putMessageEntireTimeMax = new AtomicLong(0);
+    private final AtomicLong getMessageEntireTimeMax = new AtomicLong(0);
     private volatile long dispatchMaxBuffer = 0;
     private ReentrantLock lockSampling = new ReentrantLock();
     private long lastPrintTimestamp = System.currentTimeMillis();
@@ -65,60 +73,63 @@ public class StoreStatsService extends ServiceThread {
 
     public StoreStatsService() {
         for (int i = 0; i < this.putMessageDistributeTime.length; i++) {
-            putMessageDistributeTime[i] = new AtomicLong(0);
+            putMessageDistributeTime[i] = new LongAdder();
+        }
+
+        for (int i = 0; i < this.latencyHistograms.length; i++) {
+            this.latencyWindowStart[i] = this.latencyHistograms[i].snapshot();
         }
     }
 
 
     public long getPutMessageEntireTimeMax() {
-        return putMessageEntireTimeMax;
+        return putMessageEntireTimeMax.get();
     }
 
 
     public void setPutMessageEntireTimeMax(long value) {
         if (value <= 0) {
-            this.putMessageDistributeTime[0].incrementAndGet();
+            this.putMessageDistributeTime[0].increment();
         }
         else if (value < 10) {
-            this.putMessageDistributeTime[1].incrementAndGet();
+            this.putMessageDistributeTime[1].increment();
         }
         else if (value < 100) {
-            this.putMessageDistributeTime[2].incrementAndGet();
+            this.putMessageDistributeTime[2].increment();
         }
         else if (value < 500) {
-            this.putMessageDistributeTime[3].incrementAndGet();
+            this.putMessageDistributeTime[3].increment();
         }
         else if (value < 1000) {
-            this.putMessageDistributeTime[4].incrementAndGet();
+            this.putMessageDistributeTime[4].increment();
         }
         else if (value < 10000) {
-            this.putMessageDistributeTime[5].incrementAndGet();
+            this.putMessageDistributeTime[5].increment();
         }
         else {
-            this.putMessageDistributeTime[6].incrementAndGet();
+            this.putMessageDistributeTime[6].increment();
         }
 
-        if (value > this.putMessageEntireTimeMax) {
-            this.lockPut.lock();
-            this.putMessageEntireTimeMax =
-                    value > this.putMessageEntireTimeMax ? value : this.putMessageEntireTimeMax;
-            this.lockPut.unlock();
+        updateMax(this.putMessageEntireTimeMax, value);
+    }
+
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        for (long current = max.get(); value > current; current = max.get()) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
         }
     }
 
 
     public long getGetMessageEntireTimeMax() {
-        return getMessageEntireTimeMax;
+        return getMessageEntireTimeMax.get();
     }
 
 
     public void setGetMessageEntireTimeMax(long value) {
-        if (value > this.getMessageEntireTimeMax) {
-            this.lockGet.lock();
-            this.getMessageEntireTimeMax =
-                    value > this.getMessageEntireTimeMax ? value : this.getMessageEntireTimeMax;
-            this.lockGet.unlock();
-        }
+        updateMax(this.getMessageEntireTimeMax, value);
     }
 
 
@@ -141,7 +152,7 @@ public class StoreStatsService extends ServiceThread {
         }
 
         sb.append("\truntime: " + this.getFormatRuntime() + "\r\n");
-        sb.append("\tputMessageEntireTimeMax: " + this.putMessageEntireTimeMax + "\r\n");
+        sb.append("\tputMessageEntireTimeMax: " + this.putMessageEntireTimeMax.get() + "\r\n");
         sb.append("\tputMessageTimesTotal: " + totalTimes + "\r\n");
         sb.append("\tputMessageSizeTotal: " + this.getPutMessageSizeTotal() + "\r\n");
         sb.append("\tputMessageDistributeTime: " + this.getPutMessageDistributeTimeStringInfo(totalTimes)
@@ -149,7 +160,7 @@ public class StoreStatsService extends ServiceThread {
         sb.append("\tputMessageAverageSize: " + (this.getPutMessageSizeTotal() / totalTimes.doubleValue())
                 + "\r\n");
         sb.append("\tdispatchMaxBuffer: " + this.dispatchMaxBuffer + "\r\n");
-        sb.append("\tgetMessageEntireTimeMax: " + this.getMessageEntireTimeMax + "\r\n");
+        sb.append("\tgetMessageEntireTimeMax: " + this.getMessageEntireTimeMax.get() + "\r\n");
         sb.append("\tputTps: " + this.getPutTps() + "\r\n");
         sb.append("\tgetFoundTps: " + this.getGetFoundTps() + "\r\n");
         sb.append("\tgetMissTps: " + this.getGetMissTps() + "\r\n");
@@ -162,8 +173,8 @@ public class StoreStatsService extends ServiceThread {
     private String getPutMessageDistributeTimeStringInfo(Long total) {
         final StringBuilder sb = new StringBuilder(512);
 
-        for (AtomicLong i : this.putMessageDistributeTime) {
-            long value = i.get();
+        for (LongAdder i : this.putMessageDistributeTime) {
+            long value = i.sum();
             double ratio = value / total.doubleValue();
             sb.append("\r\n\t\t");
             sb.append(value + "(" + (ratio * 100) + "%)");
@@ -376,8 +387,8 @@ public class StoreStatsService extends ServiceThread {
 
     public long getPutMessageTimesTotal() {
         long rs = 0;
-        for (AtomicLong data : putMessageTopicTimesTotal.values()) {
-            rs += data.get();
+        for (TopicPutStats data : putMessageTopicStats.values()) {
+            rs += data.putTimes.sum();
         }
         return rs;
     }
@@ -385,8 +396,8 @@ public class StoreStatsService extends ServiceThread {
 
     public long getPutMessageSizeTotal() {
         long rs = 0;
-        for (AtomicLong data : putMessageTopicSizeTotal.values()) {
-            rs += data.get();
+        for (TopicPutStats data : putMessageTopicStats.values()) {
+            rs += data.putSize.sum();
         }
         return rs;
     }
@@ -402,7 +413,7 @@ public class StoreStatsService extends ServiceThread {
 
         result.put("bootTimestamp", String.valueOf(this.messageStoreBootTimestamp));
         result.put("runtime", this.getFormatRuntime());
-        result.put("putMessageEntireTimeMax", String.valueOf(this.putMessageEntireTimeMax));
+        result.put("putMessageEntireTimeMax", String.valueOf(this.putMessageEntireTimeMax.get()));
         result.put("putMessageTimesTotal", String.valueOf(totalTimes));
         result.put("putMessageSizeTotal", String.valueOf(this.getPutMessageSizeTotal()));
         result.put("putMessageDistributeTime",
@@ -410,17 +421,38 @@ public class StoreStatsService extends ServiceThread {
         result.put("putMessageAverageSize",
             String.valueOf((this.getPutMessageSizeTotal() / totalTimes.doubleValue())));
         result.put("dispatchMaxBuffer", String.valueOf(this.dispatchMaxBuffer));
-        result.put("getMessageEntireTimeMax", String.valueOf(this.getMessageEntireTimeMax));
+        result.put("getMessageEntireTimeMax", String.valueOf(this.getMessageEntireTimeMax.get()));
         result.put("putTps", String.valueOf(this.getPutTps()));
         result.put("getFoundTps", String.valueOf(this.getGetFoundTps()));
         result.put("getMissTps", String.valueOf(this.getGetMissTps()));
         result.put("getTotalTps", String.valueOf(this.getGetTotalTps()));
         result.put("getTransferedTps", String.valueOf(this.getGetTransferedTps()));
 
+        long[][] latencyWindow = this.latencyLastWindow;
+        for (int i = 0; i < this.latencyHistograms.length; i++) {
+            long[] counts = latencyWindow != null ? latencyWindow[i] : this.latencyHistograms[i].snapshot();
+            result.put(LatencyNames[i], LatencyHistogram.toPercentileString(counts));
+        }
+
         return result;
     }
 
 
+    /**
+     * Close the latency window, only called by the stats thread
+     */
+    private void rollLatencyWindow() {
+        long[][] latencyWindow = new long[this.latencyHistograms.length][];
+        for (int i = 0; i < this.latencyHistograms.length; i++) {
+            long[] counts = this.latencyHistograms[i].snapshotAndResetMax();
+            latencyWindow[i] = LatencyHistogram.subtract(counts, this.latencyWindowStart[i]);
+            this.latencyWindowStart[i] = counts;
+        }
+
+        this.latencyLastWindow = latencyWindow;
+    }
+
+
     public void run() {
         log.info(this.getServiceName() + " service started");
 
@@ -485,6 +517,12 @@ public class StoreStatsService extends ServiceThread {
             log.info("get_miss_tps {}", this.getGetMissTps(PrintTPSInterval));
 
             log.info("get_transfered_tps {}", this.getGetTransferedTps(PrintTPSInterval));
+
+            this.rollLatencyWindow();
+            for (int i = 0; i < LatencyNames.length; i++) {
+                log.info("{} p50,p99,p999,max {}", LatencyNames[i],
+                    LatencyHistogram.toPercentileString(this.latencyLastWindow[i]));
+            }
         }
     }
 
@@ -495,6 +533,26 @@ public class StoreStatsService extends ServiceThread {
     }
 
 
+    public LatencyHistogram getPutMessageLatency() {
+        return putMessageLatency;
+    }
+
+
+    public LatencyHistogram getGetMessageLatency() {
+        return getMessageLatency;
+    }
+
+
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
+    }
+
+
     public AtomicLong getGetMessageTimesTotalFound() {
         return getMessageTimesTotalFound;
     }
@@ -515,33 +573,43 @@ public class StoreStatsService extends ServiceThread {
     }
 
 
-    public AtomicLong getSinglePutMessageTopicSizeTotal(String topic) {
-        AtomicLong rs = putMessageTopicSizeTotal.get(topic);
-        if (null == rs) {
-            rs = new AtomicLong(0);
-            putMessageTopicSizeTotal.put(topic, rs);
+    private TopicPutStats getTopicPutStats(final String topic) {
+        TopicPutStats stats = this.putMessageTopicStats.get(topic);
+        if (null == stats) {
+            stats = new TopicPutStats();
+            TopicPutStats prev = this.putMessageTopicStats.putIfAbsent(topic, stats);
+            if (prev != null) {
+                stats = prev;
+            }
         }
-        return rs;
+        return stats;
     }
 
 
-    public AtomicLong getSinglePutMessageTopicTimesTotal(String topic) {
-        AtomicLong rs = putMessageTopicTimesTotal.get(topic);
-        if (null == rs) {
-            rs = new AtomicLong(0);
-            putMessageTopicTimesTotal.put(topic, rs);
-        }
-        return rs;
+    /**
+     * Count messages put to a topic, one lookup for both counters
+     */
+    public void addTopicPut(final String topic, final int nums, final long size) {
+        TopicPutStats stats = this.getTopicPutStats(topic);
+        stats.putTimes.add(nums);
+        stats.putSize.add(size);
     }
 
 
-    public Map<String, AtomicLong> getPutMessageTopicTimesTotal() {
-        return putMessageTopicTimesTotal;
+    public long getSinglePutMessageTopicTimesTotal(final String topic) {
+        TopicPutStats stats = this.putMessageTopicStats.get(topic);
+        return null == stats ? 0 : stats.putTimes.sum();
     }
 
 
-    public Map<String, AtomicLong> getPutMessageTopicSizeTotal() {
-        return putMessageTopicSizeTotal;
+    public long getSinglePutMessageTopicSizeTotal(final String topic) {
+        TopicPutStats stats = this.putMessageTopicStats.get(topic);
+        return null == stats ? 0 : stats.putSize.sum();
+    }
+
+    static class TopicPutStats {
+        final LongAdder putTimes = new LongAdder();
+        final LongAdder putSize = new LongAdder();
     }
 
     static class CallSnapshot {
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+
+import java.util.Arrays;
+
+
+/**
+ * Same matching rule as DefaultMessageFilter, compiled once per pull so that
+ * scanning a ConsumeQueue does not box every tags code into a HashSet lookup.
+ * A 64 bit bitmap of the subscribed codes rejects most non matching entries
+ * before the exact lookup
+ *
+ * @author shijia.wxr
+ */
+public class TagsCodeFilter {
+    private static final int LinearSearchMax = 8;
+    private final boolean matchAll;
+    private final long bitmap;
+    private final int[] codes;
+
+
+    public TagsCodeFilter(final SubscriptionData subscriptionData) {
+        if (null == subscriptionData //
+                || subscriptionData.isClassFilterMode() //
+                || SubscriptionData.SUB_ALL.equals(subscriptionData.getSubString())) {
+            this.matchAll = true;
+            this.bitmap = -1L;
+            this.codes = new int[0];
+            return;
+        }
+
+        int[] codes = new int[subscriptionData.getCodeSet().size()];
+        long bitmap = 0;
+        int i = 0;
+        for (Integer code : subscriptionData.getCodeSet()) {
+            codes[i++] = code;
+            bitmap |= 1L << (code & 63);
+        }
+        Arrays.sort(codes);
+
+        this.matchAll = false;
+        this.bitmap = bitmap;
+        this.codes = codes;
+    }
+
+
+    public boolean isMatched(final long tagsCode) {
+        if (this.matchAll) {
+            return true;
+        }
+
+        final int code = (int) tagsCode;
+        if ((this.bitmap & (1L << (code & 63))) == 0) {
+            return false;
+        }
+
+        if (this.codes.length <= LinearSearchMax) {
+            for (int c : this.codes) {
+                if (c == code) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return Arrays.binarySearch(this.codes, code) >= 0;
+    }
+
+
+    public boolean isMatchAll() {
+        return matchAll;
+    }
+
+
+    public int[] getCodes() {
+        return codes;
+    }
+}
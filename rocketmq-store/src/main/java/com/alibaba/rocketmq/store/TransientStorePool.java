@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * Pre-allocated off-heap buffers, one per CommitLog file, so that appends
+ * never touch the page cache directly
+ * 
+ * @author shijia.wxr
+ */
+public class TransientStorePool {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final int poolSize;
+    private final int fileSize;
+    private final Deque<ByteBuffer> availableBuffers;
+    // buffers lent out are cleaned when they come back
+    private boolean destroyed = false;
+
+
+    public TransientStorePool(final MessageStoreConfig storeConfig) {
+        this.poolSize = storeConfig.getTransientStorePoolSize();
+        this.fileSize = storeConfig.getMapedFileSizeCommitLog();
+        this.availableBuffers = new ConcurrentLinkedDeque<ByteBuffer>();
+    }
+
+
+    /**
+     * Allocate the buffers and touch every page, so the memory is resident
+     * before the first append
+     */
+    public void init() {
+        long beginTime = System.currentTimeMillis();
+        for (int i = 0; i < this.poolSize; i++) {
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(this.fileSize);
+            for (int pos = 0; pos < this.fileSize; pos += MapedFile.OS_PAGE_SIZE) {
+                byteBuffer.put(pos, (byte) 0);
+            }
+            // keep the pool out of swap, released with the buffer on destroy
+            LibC.mlock(byteBuffer, this.fileSize);
+
+            this.availableBuffers.offer(byteBuffer);
+        }
+
+        log.info("transient store pool init OK, pool size: {} buffer size: {} cost time(ms): {}", this.poolSize,
+            this.fileSize, System.currentTimeMillis() - beginTime);
+    }
+
+
+    public synchronized void destroy() {
+        this.destroyed = true;
+        for (ByteBuffer byteBuffer : this.availableBuffers) {
+            MapedFile.clean(byteBuffer);
+        }
+        this.availableBuffers.clear();
+    }
+
+
+    /**
+     * Called when a CommitLog file is destroyed, rarely enough to lock
+     */
+    public synchronized void returnBuffer(final ByteBuffer byteBuffer) {
+        if (this.destroyed) {
+            MapedFile.clean(byteBuffer);
+            return;
+        }
+
+        byteBuffer.position(0);
+        byteBuffer.limit(this.fileSize);
+        this.availableBuffers.offerFirst(byteBuffer);
+    }
+
+
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = this.availableBuffers.pollFirst();
+        if (this.availableBuffers.size() < this.poolSize * 0.4) {
+            log.warn("transient store pool only remain {} buffers", this.availableBuffers.size());
+        }
+        return buffer;
+    }
+
+
+    public int remainBufferNumbs() {
+        return this.availableBuffers.size();
+    }
+}
@@ -45,6 +45,13 @@ public class MessageStoreConfig {
     // Whether schedule flush,default is real-time
     @ImportantField
     private boolean flushCommitLogTimed = false;
+    // Flush CommitLog by dirty bytes instead of every flushIntervalCommitLog,
+    // flushCommitLogChunkSize a time, all of it beyond flushCommitLogMaxDirtySize,
+    // no data stays dirty for over flushCommitLogMaxDelay ms
+    private boolean flushCommitLogAdaptive = false;
+    private int flushCommitLogChunkSize = 1024 * 1024 * 4;
+    private int flushCommitLogMaxDirtySize = 1024 * 1024 * 64;
+    private int flushCommitLogMaxDelay = 500;
     // ConsumeQueue flush interval
     private int flushIntervalConsumeQueue = 1000;
     // Resource reclaim interval
@@ -53,6 +60,14 @@ public class MessageStoreConfig {
     private int deleteCommitLogFilesInterval = 100;
     // ConsumeQueue removal interval
     private int deleteConsumeQueueFilesInterval = 100;
+    // Truncate an expired CommitLog file deleteCommitLogChunkSize at a time
+    // within this budget before unlinking it, 0 unlinks it at once
+    private long deleteCommitLogBytesPerSecond = 0;
+    private int deleteCommitLogChunkSize = 1024 * 1024 * 32;
+    // Hold deletion while put p99 exceeds this, at most deleteBackoffMaxTime
+    // per chunk, deletion for a nearly full disk never waits
+    private int deleteBackoffPutLatency = 50;
+    private int deleteBackoffMaxTime = 1000 * 10;
     private int destroyMapedFileIntervalForcibly = 1000 * 120;
     private int redeleteHangedFileInterval = 1000 * 120;
     // When to delete,default is at 4 am
@@ -70,6 +85,9 @@ public class MessageStoreConfig {
     // This ensures no on-the-wire or on-disk corruption to the messages occurred.
     // This check adds some overhead, so it may be disabled in cases seeking extreme performance.
     private boolean checkCRCOnRecover = true;
+    // Threads scanning CommitLog files and recovering ConsumeQueues on
+    // startup, 1 recovers on the loading thread
+    private int recoverThreadNums = Math.min(8, Runtime.getRuntime().availableProcessors());
     // How many pages are to be flushed when flush CommitLog
     private int flushCommitLogLeastPages = 4;
     // Flush page size when the disk in warming state
@@ -93,15 +111,28 @@ public class MessageStoreConfig {
     private int maxHashSlotNum = 5000000;
     private int maxIndexNum = 5000000 * 4;
     private int maxMsgsNumBatch = 64;
+    // Index files one key query searches at once, 1 searches them in turn
+    private int indexQueryThreadNums = 4;
     @ImportantField
     private boolean messageIndexSafe = false;
     private int haListenPort = 10912;
     private int haSendHeartbeatInterval = 1000 * 5;
     private int haHousekeepingInterval = 1000 * 20;
     private int haTransferBatchSize = 1024 * 32;
+    // A slave far behind gets batches growing up to haTransferBatchSizeMax,
+    // it must stay below the 4M slave read buffer
+    private int haTransferBatchSizeMax = 1024 * 1024 * 2;
+    // Send CommitLog data to slaves with FileChannel.transferTo
+    private boolean haTransferZeroCopyEnable = true;
+    // Compress batches for slaves more than haTransferCompressLag bytes
+    // behind, every slave must be upgraded before it is turned on
+    private boolean haTransferCompressEnable = false;
+    private int haTransferCompressLag = 1024 * 1024 * 64;
     @ImportantField
     private String haMasterAddress = null;
     private int haSlaveFallbehindMax = 1024 * 1024 * 256;
+    // SYNC_MASTER puts wait for this many slaves, e.g. 2 of 3
+    private int haSyncReplicas = 1;
     @ImportantField
     private BrokerRole brokerRole = BrokerRole.ASYNC_MASTER;
     @ImportantField
@@ -109,11 +140,80 @@ public class MessageStoreConfig {
     private int syncFlushTimeout = 1000 * 5;
     private String messageDelayLevel = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
     private long flushDelayOffsetInterval = 1000 * 10;
+    // ConsumeQueue units one delay level worker delivers per batch
+    private int scheduleDeliverBatchSize = 32;
     @ImportantField
     private boolean cleanFileForciblyEnable = true;
     private boolean warmMapedFileEnable = false;
+    // Keep CommitLog files for this many seconds of writes at the measured
+    // roll rate mapped ahead, at least the next two, at most preAllocateMaxFiles
+    private int preAllocateSeconds = 10;
+    private int preAllocateMaxFiles = 4;
+    // Reserve the blocks of a new CommitLog file with fallocate instead of
+    // faulting them in on first write, needs memoryAdviseEnable
+    private boolean fallocateCommitLogEnable = true;
+    // Rename expired CommitLog files aside and reuse them for new ones, at most
+    // preAllocateMaxFiles are kept
+    private boolean commitLogRecycleEnable = false;
     private boolean offsetCheckInSlave = false;
     private boolean diskFallRecorded = true;
+    // Serialize messages outside the CommitLog lock and reserve write slots by CAS,
+    // only queue offset assignment and file rolls stay in a short spin lock
+    private boolean lockFreeAppendEnable = false;
+    // Append messages to pre-allocated off-heap buffers and write them back to
+    // the CommitLog file asynchronously, only works on ASYNC_FLUSH master
+    @ImportantField
+    private boolean transientStorePoolEnable = false;
+    private int transientStorePoolSize = 5;
+    // CommitLog write back interval
+    private int writeBackIntervalCommitLog = 200;
+    // How many pages are to be written back when write back CommitLog
+    private int writeBackCommitLogLeastPages = 4;
+    private int writeBackCommitLogThoroughInterval = 200;
+    // Threads writing ConsumeQueue for reput, sharded by topic and queue,
+    // 0 dispatches on the reput thread itself
+    private int dispatchConsumeQueueThreadNums = 0;
+    // Pending requests per dispatch thread before reput is blocked
+    private int dispatchQueueCapacity = 1024 * 16;
+    // Issue madvise/mlock hints through libc, needs JNA in classpath
+    private boolean memoryAdviseEnable = false;
+    // Lock the active CommitLog file in memory, needs memoryAdviseEnable. Files
+    // allocated ahead are not locked, so it pins one mapedFileSizeCommitLog
+    private boolean mlockActiveCommitLog = false;
+    // Advise DONTNEED on CommitLog files out of accessMessageInMemoryMaxRatio
+    private int adviseColdCommitLogInterval = 1000 * 10;
+    // Keep a tags bloom per ConsumeQueue block, pulls with tags skip blocks
+    // that can not match
+    private boolean consumeQueueTagsBloomEnable = false;
+    // Keep the store timestamp of every consumeQueueTimeIndexInterval-th
+    // ConsumeQueue entry, time lookups search one interval only
+    private boolean consumeQueueTimeIndexEnable = false;
+    private int consumeQueueTimeIndexInterval = 32;
+    // Keep the store timestamp and a filter bit map of each ConsumeQueue entry
+    // in a separate unit, the entry points at it instead of a tags code
+    private boolean consumeQueueExtEnable = false;
+    private int mapedFileSizeConsumeQueueExt = 1024 * 1024 * 48;
+    private int consumeQueueExtFilterBitMapSize = 16;
+    // Rewrite CommitLog files older than coldCommitLogFileAge hours into
+    // compressed segments under storePathColdCommitLog, reads go to either tier
+    private boolean coldCommitLogEnable = false;
+    private String storePathColdCommitLog = System.getProperty("user.home") + File.separator + "store"
+            + File.separator + "coldcommitlog";
+    private int coldCommitLogFileAge = 1;
+    // Uncompressed bytes per compressed block
+    private int coldCommitLogBlockSize = 1024 * 64;
+    // Decompressed blocks kept in memory
+    private int coldCommitLogBlockCacheNums = 1024;
+    private int coldCommitLogCheckInterval = 1000 * 60;
+    // Deliver messages with TIMER_DELIVER_MS or TIMER_DELAY_SEC at any second
+    // through a timing wheel, delayTimeLevel keeps its fixed levels
+    private boolean timerMessageEnable = false;
+    // Seconds covered by one round of the wheel, longer delays roll over
+    private int timerWheelSlots = 60 * 60 * 24;
+    private int timerMaxDelaySec = 60 * 60 * 24 * 3;
+    private int mapedFileSizeTimerLog = 1024 * 1024 * 128;
+    private int timerDeliverThreadNums = 4;
+    private int timerFlushInterval = 1000;
 
     public boolean isDiskFallRecorded() {
         return diskFallRecorded;
@@ -133,6 +233,46 @@ public class MessageStoreConfig {
     }
 
 
+    public int getPreAllocateSeconds() {
+        return preAllocateSeconds;
+    }
+
+
+    public void setPreAllocateSeconds(int preAllocateSeconds) {
+        this.preAllocateSeconds = preAllocateSeconds;
+    }
+
+
+    public int getPreAllocateMaxFiles() {
+        return preAllocateMaxFiles;
+    }
+
+
+    public void setPreAllocateMaxFiles(int preAllocateMaxFiles) {
+        this.preAllocateMaxFiles = preAllocateMaxFiles;
+    }
+
+
+    public boolean isFallocateCommitLogEnable() {
+        return fallocateCommitLogEnable;
+    }
+
+
+    public void setFallocateCommitLogEnable(boolean fallocateCommitLogEnable) {
+        this.fallocateCommitLogEnable = fallocateCommitLogEnable;
+    }
+
+
+    public boolean isCommitLogRecycleEnable() {
+        return commitLogRecycleEnable;
+    }
+
+
+    public void setCommitLogRecycleEnable(boolean commitLogRecycleEnable) {
+        this.commitLogRecycleEnable = commitLogRecycleEnable;
+    }
+
+
     public int getMapedFileSizeCommitLog() {
         return mapedFileSizeCommitLog;
     }
@@ -265,6 +405,46 @@ public class MessageStoreConfig {
     }
 
 
+    public long getDeleteCommitLogBytesPerSecond() {
+        return deleteCommitLogBytesPerSecond;
+    }
+
+
+    public void setDeleteCommitLogBytesPerSecond(long deleteCommitLogBytesPerSecond) {
+        this.deleteCommitLogBytesPerSecond = deleteCommitLogBytesPerSecond;
+    }
+
+
+    public int getDeleteCommitLogChunkSize() {
+        return deleteCommitLogChunkSize;
+    }
+
+
+    public void setDeleteCommitLogChunkSize(int deleteCommitLogChunkSize) {
+        this.deleteCommitLogChunkSize = deleteCommitLogChunkSize;
+    }
+
+
+    public int getDeleteBackoffPutLatency() {
+        return deleteBackoffPutLatency;
+    }
+
+
+    public void setDeleteBackoffPutLatency(int deleteBackoffPutLatency) {
+        this.deleteBackoffPutLatency = deleteBackoffPutLatency;
+    }
+
+
+    public int getDeleteBackoffMaxTime() {
+        return deleteBackoffMaxTime;
+    }
+
+
+    public void setDeleteBackoffMaxTime(int deleteBackoffMaxTime) {
+        this.deleteBackoffMaxTime = deleteBackoffMaxTime;
+    }
+
+
     public int getDeleteConsumeQueueFilesInterval() {
         return deleteConsumeQueueFilesInterval;
     }
@@ -435,6 +615,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getIndexQueryThreadNums() {
+        return indexQueryThreadNums;
+    }
+
+
+    public void setIndexQueryThreadNums(int indexQueryThreadNums) {
+        this.indexQueryThreadNums = indexQueryThreadNums;
+    }
+
+
     public int getHaListenPort() {
         return haListenPort;
     }
@@ -490,6 +680,46 @@ public class MessageStoreConfig {
     }
 
 
+    public int getHaTransferBatchSizeMax() {
+        return haTransferBatchSizeMax;
+    }
+
+
+    public void setHaTransferBatchSizeMax(int haTransferBatchSizeMax) {
+        this.haTransferBatchSizeMax = haTransferBatchSizeMax;
+    }
+
+
+    public boolean isHaTransferZeroCopyEnable() {
+        return haTransferZeroCopyEnable;
+    }
+
+
+    public void setHaTransferZeroCopyEnable(boolean haTransferZeroCopyEnable) {
+        this.haTransferZeroCopyEnable = haTransferZeroCopyEnable;
+    }
+
+
+    public boolean isHaTransferCompressEnable() {
+        return haTransferCompressEnable;
+    }
+
+
+    public void setHaTransferCompressEnable(boolean haTransferCompressEnable) {
+        this.haTransferCompressEnable = haTransferCompressEnable;
+    }
+
+
+    public int getHaTransferCompressLag() {
+        return haTransferCompressLag;
+    }
+
+
+    public void setHaTransferCompressLag(int haTransferCompressLag) {
+        this.haTransferCompressLag = haTransferCompressLag;
+    }
+
+
     public int getHaSlaveFallbehindMax() {
         return haSlaveFallbehindMax;
     }
@@ -500,6 +730,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getHaSyncReplicas() {
+        return haSyncReplicas;
+    }
+
+
+    public void setHaSyncReplicas(int haSyncReplicas) {
+        this.haSyncReplicas = haSyncReplicas;
+    }
+
+
     public FlushDiskType getFlushDiskType() {
         return flushDiskType;
     }
@@ -555,6 +795,16 @@ public class MessageStoreConfig {
     }
 
 
+    public int getScheduleDeliverBatchSize() {
+        return scheduleDeliverBatchSize;
+    }
+
+
+    public void setScheduleDeliverBatchSize(int scheduleDeliverBatchSize) {
+        this.scheduleDeliverBatchSize = scheduleDeliverBatchSize;
+    }
+
+
     public boolean isCleanFileForciblyEnable() {
         return cleanFileForciblyEnable;
     }
@@ -585,6 +835,46 @@ public class MessageStoreConfig {
     }
 
 
+    public boolean isFlushCommitLogAdaptive() {
+        return flushCommitLogAdaptive;
+    }
+
+
+    public void setFlushCommitLogAdaptive(boolean flushCommitLogAdaptive) {
+        this.flushCommitLogAdaptive = flushCommitLogAdaptive;
+    }
+
+
+    public int getFlushCommitLogChunkSize() {
+        return flushCommitLogChunkSize;
+    }
+
+
+    public void setFlushCommitLogChunkSize(int flushCommitLogChunkSize) {
+        this.flushCommitLogChunkSize = flushCommitLogChunkSize;
+    }
+
+
+    public int getFlushCommitLogMaxDirtySize() {
+        return flushCommitLogMaxDirtySize;
+    }
+
+
+    public void setFlushCommitLogMaxDirtySize(int flushCommitLogMaxDirtySize) {
+        this.flushCommitLogMaxDirtySize = flushCommitLogMaxDirtySize;
+    }
+
+
+    public int getFlushCommitLogMaxDelay() {
+        return flushCommitLogMaxDelay;
+    }
+
+
+    public void setFlushCommitLogMaxDelay(int flushCommitLogMaxDelay) {
+        this.flushCommitLogMaxDelay = flushCommitLogMaxDelay;
+    }
+
+
     public String getStorePathRootDir() {
         return storePathRootDir;
     }
@@ -613,4 +903,280 @@ public class MessageStoreConfig {
     public void setOffsetCheckInSlave(boolean offsetCheckInSlave) {
         this.offsetCheckInSlave = offsetCheckInSlave;
     }
+
+
+    public boolean isLockFreeAppendEnable() {
+        return lockFreeAppendEnable;
+    }
+
+
+    public void setLockFreeAppendEnable(boolean lockFreeAppendEnable) {
+        this.lockFreeAppendEnable = lockFreeAppendEnable;
+    }
+
+    public boolean isTransientStorePoolEnable() {
+        return transientStorePoolEnable;
+    }
+
+
+    public void setTransientStorePoolEnable(boolean transientStorePoolEnable) {
+        this.transientStorePoolEnable = transientStorePoolEnable;
+    }
+
+    public int getTransientStorePoolSize() {
+        return transientStorePoolSize;
+    }
+
+
+    public void setTransientStorePoolSize(int transientStorePoolSize) {
+        this.transientStorePoolSize = transientStorePoolSize;
+    }
+
+    public int getWriteBackIntervalCommitLog() {
+        return writeBackIntervalCommitLog;
+    }
+
+
+    public void setWriteBackIntervalCommitLog(int writeBackIntervalCommitLog) {
+        this.writeBackIntervalCommitLog = writeBackIntervalCommitLog;
+    }
+
+    public int getWriteBackCommitLogLeastPages() {
+        return writeBackCommitLogLeastPages;
+    }
+
+
+    public void setWriteBackCommitLogLeastPages(int writeBackCommitLogLeastPages) {
+        this.writeBackCommitLogLeastPages = writeBackCommitLogLeastPages;
+    }
+
+    public int getWriteBackCommitLogThoroughInterval() {
+        return writeBackCommitLogThoroughInterval;
+    }
+
+
+    public void setWriteBackCommitLogThoroughInterval(int writeBackCommitLogThoroughInterval) {
+        this.writeBackCommitLogThoroughInterval = writeBackCommitLogThoroughInterval;
+    }
+
+    public boolean isMemoryAdviseEnable() {
+        return memoryAdviseEnable;
+    }
+
+
+    public void setMemoryAdviseEnable(boolean memoryAdviseEnable) {
+        this.memoryAdviseEnable = memoryAdviseEnable;
+    }
+
+    public boolean isMlockActiveCommitLog() {
+        return mlockActiveCommitLog;
+    }
+
+
+    public void setMlockActiveCommitLog(boolean mlockActiveCommitLog) {
+        this.mlockActiveCommitLog = mlockActiveCommitLog;
+    }
+
+    public int getAdviseColdCommitLogInterval() {
+        return adviseColdCommitLogInterval;
+    }
+
+
+    public void setAdviseColdCommitLogInterval(int adviseColdCommitLogInterval) {
+        this.adviseColdCommitLogInterval = adviseColdCommitLogInterval;
+    }
+
+    public int getDispatchConsumeQueueThreadNums() {
+        return dispatchConsumeQueueThreadNums;
+    }
+
+
+    public void setDispatchConsumeQueueThreadNums(int dispatchConsumeQueueThreadNums) {
+        this.dispatchConsumeQueueThreadNums = dispatchConsumeQueueThreadNums;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    public boolean isConsumeQueueTagsBloomEnable() {
+        return consumeQueueTagsBloomEnable;
+    }
+
+
+    public void setConsumeQueueTagsBloomEnable(boolean consumeQueueTagsBloomEnable) {
+        this.consumeQueueTagsBloomEnable = consumeQueueTagsBloomEnable;
+    }
+
+
+    public boolean isConsumeQueueTimeIndexEnable() {
+        return consumeQueueTimeIndexEnable;
+    }
+
+
+    public void setConsumeQueueTimeIndexEnable(boolean consumeQueueTimeIndexEnable) {
+        this.consumeQueueTimeIndexEnable = consumeQueueTimeIndexEnable;
+    }
+
+
+    public int getConsumeQueueTimeIndexInterval() {
+        return consumeQueueTimeIndexInterval;
+    }
+
+
+    public void setConsumeQueueTimeIndexInterval(int consumeQueueTimeIndexInterval) {
+        this.consumeQueueTimeIndexInterval = consumeQueueTimeIndexInterval;
+    }
+
+
+    public boolean isConsumeQueueExtEnable() {
+        return consumeQueueExtEnable;
+    }
+
+
+    public void setConsumeQueueExtEnable(boolean consumeQueueExtEnable) {
+        this.consumeQueueExtEnable = consumeQueueExtEnable;
+    }
+
+
+    public int getMapedFileSizeConsumeQueueExt() {
+        return mapedFileSizeConsumeQueueExt;
+    }
+
+
+    public void setMapedFileSizeConsumeQueueExt(int mapedFileSizeConsumeQueueExt) {
+        this.mapedFileSizeConsumeQueueExt = mapedFileSizeConsumeQueueExt;
+    }
+
+
+    public int getConsumeQueueExtFilterBitMapSize() {
+        return consumeQueueExtFilterBitMapSize;
+    }
+
+
+    public void setConsumeQueueExtFilterBitMapSize(int consumeQueueExtFilterBitMapSize) {
+        this.consumeQueueExtFilterBitMapSize = consumeQueueExtFilterBitMapSize;
+    }
+
+    public int getRecoverThreadNums() {
+        return recoverThreadNums;
+    }
+
+
+    public void setRecoverThreadNums(int recoverThreadNums) {
+        this.recoverThreadNums = recoverThreadNums;
+    }
+
+    public boolean isColdCommitLogEnable() {
+        return coldCommitLogEnable;
+    }
+
+
+    public void setColdCommitLogEnable(boolean coldCommitLogEnable) {
+        this.coldCommitLogEnable = coldCommitLogEnable;
+    }
+
+    public String getStorePathColdCommitLog() {
+        return storePathColdCommitLog;
+    }
+
+
+    public void setStorePathColdCommitLog(String storePathColdCommitLog) {
+        this.storePathColdCommitLog = storePathColdCommitLog;
+    }
+
+    public int getColdCommitLogFileAge() {
+        return coldCommitLogFileAge;
+    }
+
+
+    public void setColdCommitLogFileAge(int coldCommitLogFileAge) {
+        this.coldCommitLogFileAge = coldCommitLogFileAge;
+    }
+
+    public int getColdCommitLogBlockSize() {
+        return coldCommitLogBlockSize;
+    }
+
+
+    public void setColdCommitLogBlockSize(int coldCommitLogBlockSize) {
+        this.coldCommitLogBlockSize = coldCommitLogBlockSize;
+    }
+
+    public int getColdCommitLogBlockCacheNums() {
+        return coldCommitLogBlockCacheNums;
+    }
+
+
+    public void setColdCommitLogBlockCacheNums(int coldCommitLogBlockCacheNums) {
+        this.coldCommitLogBlockCacheNums = coldCommitLogBlockCacheNums;
+    }
+
+    public int getColdCommitLogCheckInterval() {
+        return coldCommitLogCheckInterval;
+    }
+
+
+    public void setColdCommitLogCheckInterval(int coldCommitLogCheckInterval) {
+        this.coldCommitLogCheckInterval = coldCommitLogCheckInterval;
+    }
+
+    public boolean isTimerMessageEnable() {
+        return timerMessageEnable;
+    }
+
+
+    public void setTimerMessageEnable(boolean timerMessageEnable) {
+        this.timerMessageEnable = timerMessageEnable;
+    }
+
+    public int getTimerWheelSlots() {
+        return timerWheelSlots;
+    }
+
+
+    public void setTimerWheelSlots(int timerWheelSlots) {
+        this.timerWheelSlots = timerWheelSlots;
+    }
+
+    public int getTimerMaxDelaySec() {
+        return timerMaxDelaySec;
+    }
+
+
+    public void setTimerMaxDelaySec(int timerMaxDelaySec) {
+        this.timerMaxDelaySec = timerMaxDelaySec;
+    }
+
+    public int getMapedFileSizeTimerLog() {
+        return mapedFileSizeTimerLog;
+    }
+
+
+    public void setMapedFileSizeTimerLog(int mapedFileSizeTimerLog) {
+        this.mapedFileSizeTimerLog = mapedFileSizeTimerLog;
+    }
+
+    public int getTimerDeliverThreadNums() {
+        return timerDeliverThreadNums;
+    }
+
+
+    public void setTimerDeliverThreadNums(int timerDeliverThreadNums) {
+        this.timerDeliverThreadNums = timerDeliverThreadNums;
+    }
+
+    public int getTimerFlushInterval() {
+        return timerFlushInterval;
+    }
+
+
+    public void setTimerFlushInterval(int timerFlushInterval) {
+        this.timerFlushInterval = timerFlushInterval;
+    }
 }
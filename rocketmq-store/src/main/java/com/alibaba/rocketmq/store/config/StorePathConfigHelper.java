@@ -21,11 +21,41 @@ import java.io.File;
 
 public class StorePathConfigHelper {
 
+    public static String getStorePathCommitLogRecycle(final String rootDir) {
+        return rootDir + File.separator + "commitlog_recycle";
+    }
+
+
     public static String getStorePathConsumeQueue(final String rootDir) {
         return rootDir + File.separator + "consumequeue";
     }
 
 
+    public static String getStorePathConsumeQueueTagsBloom(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_tagsbloom";
+    }
+
+
+    public static String getStorePathConsumeQueueTimeIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_timeindex";
+    }
+
+
+    public static String getStorePathConsumeQueueExt(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_ext";
+    }
+
+
+    public static String getStorePathTimerLog(final String rootDir) {
+        return rootDir + File.separator + "timerlog";
+    }
+
+
+    public static String getTimerWheelPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "timerwheel";
+    }
+
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
@@ -20,14 +20,17 @@ import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.remoting.common.RemotingUtil;
 import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.zip.Deflater;
 
 
 /**
@@ -88,6 +91,11 @@ public class HAConnection {
         return socketChannel;
     }
 
+
+    public long getSlaveAckOffset() {
+        return slaveAckOffset;
+    }
+
     class ReadSocketService extends ServiceThread {
         private static final int ReadMaxBufferSize = 1024 * 1024;
         private final Selector selector;
@@ -210,14 +218,24 @@ public class HAConnection {
     }
 
     class WriteSocketService extends ServiceThread {
+        // a whole frame must fit in the slave read buffer
+        private static final int MaxFrameBodySize = HAService.HAClient.ReadMaxBufferSize - 8 - 4;
         private final Selector selector;
         private final SocketChannel socketChannel;
         private final int HEADER_SIZE = 8 + 4;
         private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(HEADER_SIZE);
         private long nextTransferFromWhere = -1;
         private SelectMapedBufferResult selectMapedBufferResult;
+        // the body is either bodyBuffer or, zero copy, a range of the file
+        private ByteBuffer bodyBuffer;
+        private long transferPosition;
+        private long transferRemaining;
         private boolean lastWriteOver = true;
         private long lastWriteTimestamp = System.currentTimeMillis();
+        private int batchSize;
+        private Deflater deflater;
+        private byte[] compressInput;
+        private byte[] compressOutput;
 
 
         public WriteSocketService(final SocketChannel socketChannel) throws IOException {
@@ -225,6 +243,8 @@ public class HAConnection {
             this.socketChannel = socketChannel;
             this.socketChannel.register(this.selector, SelectionKey.OP_WRITE);
             this.thread.setDaemon(true);
+            this.batchSize =
+                    HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
         }
 
 
@@ -289,21 +309,27 @@ public class HAConnection {
                     SelectMapedBufferResult selectResult =
                             HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(this.nextTransferFromWhere);
                     if (selectResult != null) {
+                        long thisOffset = this.nextTransferFromWhere;
+                        long lag =
+                                HAConnection.this.haService.getDefaultMessageStore().getCommitLog().getMaxOffset()
+                                        - thisOffset;
+                        this.adjustBatchSize(lag);
+
                         int size = selectResult.getSize();
-                        if (size > HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize()) {
-                            size = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
+                        if (size > this.batchSize) {
+                            size = this.batchSize;
                         }
 
-                        long thisOffset = this.nextTransferFromWhere;
                         this.nextTransferFromWhere += size;
 
                         selectResult.getByteBuffer().limit(size);
                         this.selectMapedBufferResult = selectResult;
+                        int bodySize = this.prepareBody(selectResult, size, lag);
 
                         this.byteBufferHeader.position(0);
                         this.byteBufferHeader.limit(HEADER_SIZE);
                         this.byteBufferHeader.putLong(thisOffset);
-                        this.byteBufferHeader.putInt(size);
+                        this.byteBufferHeader.putInt(bodySize);
                         this.byteBufferHeader.flip();
 
                         this.lastWriteOver = this.transferData();
@@ -322,6 +348,10 @@ public class HAConnection {
                 this.selectMapedBufferResult.release();
             }
 
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+
             this.makeStop();
 
             readSocketService.makeStop();
@@ -344,6 +374,101 @@ public class HAConnection {
             HAConnection.log.info(this.getServiceName() + " service end");
         }
 
+
+        /**
+         * Double the batch while the slave is more than a batch behind, halve
+         * it back once it is close, from haTransferBatchSize up to
+         * haTransferBatchSizeMax
+         */
+        private void adjustBatchSize(final long lag) {
+            MessageStoreConfig config = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+            int batchSizeMax = Math.min(config.getHaTransferBatchSizeMax(), MaxFrameBodySize);
+            if (lag > this.batchSize) {
+                this.batchSize = Math.min(this.batchSize * 2, Math.max(batchSizeMax, config.getHaTransferBatchSize()));
+            }
+            else {
+                this.batchSize = Math.max(this.batchSize / 2, config.getHaTransferBatchSize());
+            }
+        }
+
+
+        /**
+         * @return body size for the header, negative for a compressed body
+         */
+        private int prepareBody(final SelectMapedBufferResult selectResult, final int size, final long lag) {
+            MessageStoreConfig config = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+            if (config.isHaTransferCompressEnable() && lag >= config.getHaTransferCompressLag()) {
+                ByteBuffer compressed = this.compress(selectResult.getByteBuffer(), size);
+                if (compressed != null) {
+                    this.bodyBuffer = compressed;
+                    return -compressed.limit();
+                }
+            }
+
+            if (config.isHaTransferZeroCopyEnable() && selectResult.getMapedFile() != null) {
+                // the slaves share the page cache, the data is never copied to user space
+                this.bodyBuffer = null;
+                this.transferPosition = selectResult.getStartOffset() - selectResult.getMapedFile().getFileFromOffset();
+                this.transferRemaining = size;
+                return size;
+            }
+
+            this.bodyBuffer = selectResult.getByteBuffer();
+            return size;
+        }
+
+
+        /**
+         * @return 4 bytes raw size and the deflated data, null if it is not
+         *         smaller
+         */
+        private ByteBuffer compress(final ByteBuffer data, final int size) {
+            if (null == this.deflater) {
+                this.deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            if (null == this.compressInput || this.compressInput.length < size) {
+                this.compressInput = new byte[size];
+                this.compressOutput = new byte[4 + size];
+            }
+
+            data.duplicate().get(this.compressInput, 0, size);
+            this.deflater.reset();
+            this.deflater.setInput(this.compressInput, 0, size);
+            this.deflater.finish();
+
+            int compressed = 4;
+            while (!this.deflater.finished() && compressed < size) {
+                compressed += this.deflater.deflate(this.compressOutput, compressed, size - compressed);
+            }
+
+            if (!this.deflater.finished()) {
+                return null;
+            }
+
+            ByteBuffer byteBuffer = ByteBuffer.wrap(this.compressOutput, 0, compressed);
+            byteBuffer.putInt(0, size);
+            return byteBuffer;
+        }
+
+
+        private long bodyRemaining() {
+            return this.bodyBuffer != null ? this.bodyBuffer.remaining() : this.transferRemaining;
+        }
+
+
+        private long writeBody() throws IOException {
+            if (this.bodyBuffer != null) {
+                return this.socketChannel.write(this.bodyBuffer);
+            }
+
+            FileChannel fileChannel = this.selectMapedBufferResult.getMapedFile().getFileChannel();
+            long writeSize = fileChannel.transferTo(this.transferPosition, this.transferRemaining, this.socketChannel);
+            this.transferPosition += writeSize;
+            this.transferRemaining -= writeSize;
+            return writeSize;
+        }
+
+
         private boolean transferData() throws Exception {
             int writeSizeZeroTimes = 0;
             // Write Header
@@ -371,8 +496,8 @@ public class HAConnection {
 
             // Write Body
             if (!this.byteBufferHeader.hasRemaining()) {
-                while (this.selectMapedBufferResult.getByteBuffer().hasRemaining()) {
-                    int writeSize = this.socketChannel.write(this.selectMapedBufferResult.getByteBuffer());
+                while (this.bodyRemaining() > 0) {
+                    long writeSize = this.writeBody();
                     if (writeSize > 0) {
                         writeSizeZeroTimes = 0;
                         this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
@@ -388,11 +513,12 @@ public class HAConnection {
                 }
             }
 
-            boolean result = !this.byteBufferHeader.hasRemaining() && !this.selectMapedBufferResult.getByteBuffer().hasRemaining();
+            boolean result = !this.byteBufferHeader.hasRemaining() && 0 == this.bodyRemaining();
 
-            if (!this.selectMapedBufferResult.getByteBuffer().hasRemaining()) {
+            if (0 == this.bodyRemaining()) {
                 this.selectMapedBufferResult.release();
                 this.selectMapedBufferResult = null;
+                this.bodyBuffer = null;
             }
 
             return result;
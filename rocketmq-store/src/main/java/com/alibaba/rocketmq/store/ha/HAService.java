@@ -30,12 +30,18 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 
 /**
@@ -49,6 +55,8 @@ public class HAService {
     private final DefaultMessageStore defaultMessageStore;
     private final WaitNotifyObject waitNotifyObject = new WaitNotifyObject();
     private final AtomicLong push2SlaveMaxOffset = new AtomicLong(0);
+    // acked by haSyncReplicas slaves
+    private final AtomicLong quorumAckOffset = new AtomicLong(0);
     private final GroupTransferService groupTransferService;
     private final HAClient haClient;
 
@@ -74,10 +82,10 @@ public class HAService {
     }
 
     public boolean isSlaveOK(final long masterPutWhere) {
-        boolean result = this.connectionCount.get() > 0;
+        boolean result = this.connectionCount.get() >= this.getSyncReplicas();
         result =
                 result
-                        && ((masterPutWhere - this.push2SlaveMaxOffset.get()) < this.defaultMessageStore
+                        && ((masterPutWhere - this.quorumAckOffset.get()) < this.defaultMessageStore
                             .getMessageStoreConfig().getHaSlaveFallbehindMax());
         return result;
     }
@@ -86,13 +94,53 @@ public class HAService {
         for (long value = this.push2SlaveMaxOffset.get(); offset > value;) {
             boolean ok = this.push2SlaveMaxOffset.compareAndSet(value, offset);
             if (ok) {
-                this.groupTransferService.notifyTransferSome();
                 break;
             }
             else {
                 value = this.push2SlaveMaxOffset.get();
             }
         }
+
+        long quorumOffset = this.computeQuorumAckOffset();
+        for (long value = this.quorumAckOffset.get(); quorumOffset > value;) {
+            boolean ok = this.quorumAckOffset.compareAndSet(value, quorumOffset);
+            if (ok) {
+                this.groupTransferService.notifyTransferSome();
+                break;
+            }
+            else {
+                value = this.quorumAckOffset.get();
+            }
+        }
+    }
+
+
+    private int getSyncReplicas() {
+        return Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getHaSyncReplicas());
+    }
+
+
+    /**
+     * @return the offset acked by at least haSyncReplicas slaves, -1 if
+     *         fewer are connected
+     */
+    private long computeQuorumAckOffset() {
+        final int syncReplicas = this.getSyncReplicas();
+        long[] ackOffsets;
+        synchronized (this.connectionList) {
+            if (this.connectionList.size() < syncReplicas) {
+                return -1;
+            }
+
+            ackOffsets = new long[this.connectionList.size()];
+            int i = 0;
+            for (HAConnection conn : this.connectionList) {
+                ackOffsets[i++] = conn.getSlaveAckOffset();
+            }
+        }
+
+        Arrays.sort(ackOffsets);
+        return ackOffsets[ackOffsets.length - syncReplicas];
     }
 
 
@@ -233,54 +281,79 @@ public class HAService {
     }
 
     /**
-     * GroupTransferService Service
+     * Keeps the waiting requests ordered by the offset they wait for, an ack
+     * moving the quorum offset completes just the requests it covers
      */
     class GroupTransferService extends ServiceThread {
-        private final WaitNotifyObject notifyTransferObject = new WaitNotifyObject();
-        private volatile List<GroupCommitRequest> requestsWrite = new ArrayList<GroupCommitRequest>();
-        private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
+        private final PriorityQueue<GroupCommitRequest> requests = new PriorityQueue<GroupCommitRequest>(64,
+            new Comparator<GroupCommitRequest>() {
+                @Override
+                public int compare(GroupCommitRequest o1, GroupCommitRequest o2) {
+                    return Long.compare(o1.getNextOffset(), o2.getNextOffset());
+                }
+            });
+        private long lastExpireTimestamp = 0;
 
 
         public void putRequest(final GroupCommitRequest request) {
-            synchronized (this) {
-                this.requestsWrite.add(request);
-                if (!this.hasNotified) {
-                    this.hasNotified = true;
-                    this.notify();
-                }
+            synchronized (this.requests) {
+                this.requests.add(request);
+            }
+
+            if (HAService.this.quorumAckOffset.get() >= request.getNextOffset()) {
+                this.wakeup();
             }
         }
 
 
         public void notifyTransferSome() {
-            this.notifyTransferObject.wakeup();
+            this.wakeup();
         }
 
 
-        private void swapRequests() {
-            List<GroupCommitRequest> tmp = this.requestsWrite;
-            this.requestsWrite = this.requestsRead;
-            this.requestsRead = tmp;
-        }
+        private void doTransferDone() {
+            final long ackOffset = HAService.this.quorumAckOffset.get();
+            List<GroupCommitRequest> done = null;
+            synchronized (this.requests) {
+                while (!this.requests.isEmpty() && this.requests.peek().getNextOffset() <= ackOffset) {
+                    if (null == done) {
+                        done = new ArrayList<GroupCommitRequest>();
+                    }
+                    done.add(this.requests.poll());
+                }
+            }
 
+            if (done != null) {
+                for (GroupCommitRequest req : done) {
+                    req.wakeupCustomer(true);
+                }
+            }
+        }
 
-        private void doWaitTransfer() {
-            if (!this.requestsRead.isEmpty()) {
-                for (GroupCommitRequest req : this.requestsRead) {
-                    boolean transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                    for (int i = 0; !transferOK && i < 5; i++) {
-                        this.notifyTransferObject.waitForRunning(1000);
-                        transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                    }
 
-                    if (!transferOK) {
-                        log.warn("transfer messsage to slave timeout, " + req.getNextOffset());
+        private void doExpire(final boolean all) {
+            final long expireTimestamp =
+                    System.currentTimeMillis()
+                            - HAService.this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout();
+            List<GroupCommitRequest> expired = null;
+            synchronized (this.requests) {
+                for (Iterator<GroupCommitRequest> it = this.requests.iterator(); it.hasNext();) {
+                    GroupCommitRequest req = it.next();
+                    if (all || req.getStartTimestamp() < expireTimestamp) {
+                        if (null == expired) {
+                            expired = new ArrayList<GroupCommitRequest>();
+                        }
+                        expired.add(req);
+                        it.remove();
                     }
-
-                    req.wakeupCustomer(transferOK);
                 }
+            }
 
-                this.requestsRead.clear();
+            if (expired != null) {
+                for (GroupCommitRequest req : expired) {
+                    log.warn("transfer messsage to slave timeout, " + req.getNextOffset());
+                    req.wakeupCustomer(false);
+                }
             }
         }
 
@@ -290,21 +363,24 @@ public class HAService {
 
             while (!this.isStoped()) {
                 try {
-                    this.waitForRunning(0);
-                    this.doWaitTransfer();
+                    this.waitForRunning(1000);
+                    this.doTransferDone();
+
+                    long now = System.currentTimeMillis();
+                    if (now - this.lastExpireTimestamp >= 1000) {
+                        this.lastExpireTimestamp = now;
+                        this.doExpire(false);
+                    }
                 }
                 catch (Exception e) {
                     log.warn(this.getServiceName() + " service has exception. ", e);
                 }
             }
 
-            log.info(this.getServiceName() + " service end");
-        }
-
+            this.doTransferDone();
+            this.doExpire(true);
 
-        @Override
-        protected void onWaitEnd() {
-            this.swapRequests();
+            log.info(this.getServiceName() + " service end");
         }
 
 
@@ -315,7 +391,7 @@ public class HAService {
     }
 
     class HAClient extends ServiceThread {
-        private static final int ReadMaxBufferSize = 1024 * 1024 * 4;
+        static final int ReadMaxBufferSize = 1024 * 1024 * 4;
         private final AtomicReference<String> masterAddress = new AtomicReference<String>();
         private final ByteBuffer reportOffset = ByteBuffer.allocate(8);
         private SocketChannel socketChannel;
@@ -325,6 +401,7 @@ public class HAService {
         private int dispatchPostion = 0;
         private ByteBuffer byteBufferRead = ByteBuffer.allocate(ReadMaxBufferSize);
         private ByteBuffer byteBufferBackup = ByteBuffer.allocate(ReadMaxBufferSize);
+        private final Inflater inflater = new Inflater();
 
 
         public HAClient() throws IOException {
@@ -442,6 +519,8 @@ public class HAService {
                 if (diff >= MSG_HEADER_SIZE) {
                     long masterPhyOffset = this.byteBufferRead.getLong(this.dispatchPostion);
                     int bodySize = this.byteBufferRead.getInt(this.dispatchPostion + 8);
+                    // negative for a compressed body
+                    int frameBodySize = Math.abs(bodySize);
 
                     long slavePhyOffset = HAService.this.defaultMessageStore.getMaxPhyOffset();
 
@@ -453,15 +532,21 @@ public class HAService {
                         }
                     }
 
-                    if (diff >= (MSG_HEADER_SIZE + bodySize)) {
-                        byte[] bodyData = new byte[bodySize];
+                    if (diff >= (MSG_HEADER_SIZE + frameBodySize)) {
+                        byte[] bodyData = new byte[frameBodySize];
                         this.byteBufferRead.position(this.dispatchPostion + MSG_HEADER_SIZE);
                         this.byteBufferRead.get(bodyData);
+                        if (bodySize < 0) {
+                            bodyData = this.uncompress(bodyData);
+                            if (null == bodyData) {
+                                return false;
+                            }
+                        }
 
                         HAService.this.defaultMessageStore.appendToCommitLog(masterPhyOffset, bodyData);
 
                         this.byteBufferRead.position(readSocketPos);
-                        this.dispatchPostion += MSG_HEADER_SIZE + bodySize;
+                        this.dispatchPostion += MSG_HEADER_SIZE + frameBodySize;
 
                         if (!reportSlaveMaxOffsetPlus()) {
                             return false;
@@ -482,6 +567,44 @@ public class HAService {
         }
 
 
+        /**
+         * @return the data of a body of 4 bytes raw size and the deflated
+         *         data, null if it is broken
+         */
+        private byte[] uncompress(final byte[] body) {
+            int rawSize = ByteBuffer.wrap(body).getInt();
+            if (rawSize < 0 || rawSize > ReadMaxBufferSize) {
+                log.error("HAClient, illegal compressed body size " + rawSize);
+                return null;
+            }
+
+            byte[] data = new byte[rawSize];
+            this.inflater.reset();
+            this.inflater.setInput(body, 4, body.length - 4);
+            try {
+                int inflated = 0;
+                while (inflated < rawSize && !this.inflater.finished()) {
+                    int n = this.inflater.inflate(data, inflated, rawSize - inflated);
+                    if (0 == n) {
+                        break;
+                    }
+                    inflated += n;
+                }
+
+                if (inflated != rawSize) {
+                    log.error("HAClient, compressed body broken, " + inflated + " of " + rawSize);
+                    return null;
+                }
+            }
+            catch (DataFormatException e) {
+                log.error("HAClient, uncompress body exception", e);
+                return null;
+            }
+
+            return data;
+        }
+
+
         private boolean reportSlaveMaxOffsetPlus() {
             boolean result = true;
             long currentPhyOffset = HAService.this.defaultMessageStore.getMaxPhyOffset();
@@ -609,4 +732,9 @@ public class HAService {
     public AtomicLong getPush2SlaveMaxOffset() {
         return push2SlaveMaxOffset;
     }
+
+
+    public AtomicLong getQuorumAckOffset() {
+        return quorumAckOffset;
+    }
 }
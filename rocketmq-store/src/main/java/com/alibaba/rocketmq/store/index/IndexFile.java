@@ -95,70 +95,75 @@ public class IndexFile {
 	}
 
 	public boolean putKey(final String key, final long phyOffset, final long storeTimestamp) {
-		if (this.indexHeader.getIndexCount() < this.indexNum) {
-			int keyHash = indexKeyHashMethod(key);
-			int slotPos = keyHash % this.hashSlotNum;
-			int absSlotPos = IndexHeader.INDEX_HEADER_SIZE + slotPos * HASH_SLOT_SIZE;
+		return this.putKeys(new String[] { key }, 0, phyOffset, storeTimestamp) == 1;
+	}
 
-			FileLock fileLock = null;
+	/**
+	 * Put the keys of one message from keys[from]. Entries and slots are
+	 * written first and the header is updated once for all of them, readers
+	 * ignore slots beyond the index count until then.
+	 *
+	 * @return count of keys put, fewer than asked once the file is full
+	 */
+	public int putKeys(final String[] keys, final int from, final long phyOffset, final long storeTimestamp) {
+		final int indexCount = this.indexHeader.getIndexCount();
+		final int putNums = Math.min(keys.length - from, this.indexNum - indexCount);
+		if (putNums <= 0) {
+			log.warn("putKey index count " + indexCount + " index max num " + this.indexNum);
+			return 0;
+		}
 
-			try {
-				// fileLock = this.fileChannel.lock(absSlotPos, HASH_SLOT_SIZE,
-				// false);
-				int slotValue = this.mappedByteBuffer.getInt(absSlotPos);
-				if (slotValue <= INVALID_INDEX || slotValue > this.indexHeader.getIndexCount()) {
-					slotValue = INVALID_INDEX;
-				}
+		try {
+			long timeDiff = storeTimestamp - this.indexHeader.getBeginTimestamp();
 
-				long timeDiff = storeTimestamp - this.indexHeader.getBeginTimestamp();
+			timeDiff = timeDiff / 1000;
 
-				timeDiff = timeDiff / 1000;
+			if (this.indexHeader.getBeginTimestamp() <= 0) {
+				timeDiff = 0;
+			} else if (timeDiff > Integer.MAX_VALUE) {
+				timeDiff = Integer.MAX_VALUE;
+			} else if (timeDiff < 0) {
+				timeDiff = 0;
+			}
 
-				if (this.indexHeader.getBeginTimestamp() <= 0) {
-					timeDiff = 0;
-				} else if (timeDiff > Integer.MAX_VALUE) {
-					timeDiff = Integer.MAX_VALUE;
-				} else if (timeDiff < 0) {
-					timeDiff = 0;
+			for (int i = 0; i < putNums; i++) {
+				int keyHash = indexKeyHashMethod(keys[from + i]);
+				int slotPos = keyHash % this.hashSlotNum;
+				int absSlotPos = IndexHeader.INDEX_HEADER_SIZE + slotPos * HASH_SLOT_SIZE;
+				int indexPos = indexCount + i;
+
+				int slotValue = this.mappedByteBuffer.getInt(absSlotPos);
+				if (slotValue <= INVALID_INDEX || slotValue >= indexPos) {
+					slotValue = INVALID_INDEX;
 				}
 
 				int absIndexPos = IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * HASH_SLOT_SIZE
-						+ this.indexHeader.getIndexCount() * INDEX_SIZE;
+						+ indexPos * INDEX_SIZE;
 
 				this.mappedByteBuffer.putInt(absIndexPos, keyHash);
 				this.mappedByteBuffer.putLong(absIndexPos + 4, phyOffset);
 				this.mappedByteBuffer.putInt(absIndexPos + 4 + 8, (int) timeDiff);
 				this.mappedByteBuffer.putInt(absIndexPos + 4 + 8 + 4, slotValue);
 
-				this.mappedByteBuffer.putInt(absSlotPos, this.indexHeader.getIndexCount());
+				this.mappedByteBuffer.putInt(absSlotPos, indexPos);
+			}
 
-				if (this.indexHeader.getIndexCount() <= 1) {
-					this.indexHeader.setBeginPhyOffset(phyOffset);
-					this.indexHeader.setBeginTimestamp(storeTimestamp);
-				}
+			if (indexCount <= 1) {
+				this.indexHeader.setBeginPhyOffset(phyOffset);
+				this.indexHeader.setBeginTimestamp(storeTimestamp);
+			}
 
-				this.indexHeader.incHashSlotCount();
-				this.indexHeader.incIndexCount();
-				this.indexHeader.setEndPhyOffset(phyOffset);
-				this.indexHeader.setEndTimestamp(storeTimestamp);
+			this.indexHeader.addHashSlotCount(putNums);
+			this.indexHeader.addIndexCount(putNums);
+			this.indexHeader.setEndPhyOffset(phyOffset);
+			this.indexHeader.setEndTimestamp(storeTimestamp);
 
-				return true;
-			} catch (Exception e) {
-				log.error("putKey exception, Key: " + key + " KeyHashCode: " + key.hashCode(), e);
-			} finally {
-				if (fileLock != null) {
-					try {
-						fileLock.release();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-			}
-		} else {
-			log.warn("putKey index count " + this.indexHeader.getIndexCount() + " index max num " + this.indexNum);
+			return putNums;
+		} catch (Exception e) {
+			log.error("putKeys exception, Key: " + keys[from] + " phyOffset: " + phyOffset, e);
 		}
 
-		return false;
+		return 0;
 	}
 
 	public long getBeginTimestamp() {
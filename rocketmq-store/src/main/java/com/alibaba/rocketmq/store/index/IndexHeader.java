@@ -134,4 +134,16 @@ public class IndexHeader {
         int value = this.indexCount.incrementAndGet();
         this.byteBuffer.putInt(INDEXCOUNT_INDEX, value);
     }
+
+
+    public void addHashSlotCount(final int delta) {
+        int value = this.hashSlotCount.addAndGet(delta);
+        this.byteBuffer.putInt(HASHSLOTCOUNT_INDEX, value);
+    }
+
+
+    public void addIndexCount(final int delta) {
+        int value = this.indexCount.addAndGet(delta);
+        this.byteBuffer.putInt(INDEXCOUNT_INDEX, value);
+    }
 }
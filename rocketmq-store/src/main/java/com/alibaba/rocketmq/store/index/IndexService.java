@@ -16,6 +16,7 @@
  */
 package com.alibaba.rocketmq.store.index;
 
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageConst;
@@ -31,6 +32,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -45,6 +50,7 @@ public class IndexService {
 	private final String storePath;
 	private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
 	private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private ExecutorService queryExecutor;
 
 	public IndexService(final DefaultMessageStore store) {
 		this.defaultMessageStore = store;
@@ -156,39 +162,88 @@ public class IndexService {
 		long indexLastUpdateTimestamp = 0;
 		long indexLastUpdatePhyoffset = 0;
 		maxNum = Math.min(maxNum, this.defaultMessageStore.getMessageStoreConfig().getMaxMsgsNumBatch());
+		IndexFile[] files;
 		try {
 			this.readWriteLock.readLock().lock();
-			if (!this.indexFileList.isEmpty()) {
-				for (int i = this.indexFileList.size(); i > 0; i--) {
-					IndexFile f = this.indexFileList.get(i - 1);
-					boolean lastFile = (i == this.indexFileList.size());
-					if (lastFile) {
-						indexLastUpdateTimestamp = f.getEndTimestamp();
-						indexLastUpdatePhyoffset = f.getEndPhyOffset();
-					}
+			files = this.indexFileList.toArray(new IndexFile[this.indexFileList.size()]);
+		} finally {
+			this.readWriteLock.readLock().unlock();
+		}
 
+		// Files deleted meanwhile are skipped by selectPhyOffset, it holds them
+		try {
+			if (files.length > 0) {
+				IndexFile lastFile = files[files.length - 1];
+				indexLastUpdateTimestamp = lastFile.getEndTimestamp();
+				indexLastUpdatePhyoffset = lastFile.getEndPhyOffset();
+
+				// newest first, the header time range prunes the rest
+				List<IndexFile> matchedFiles = new ArrayList<IndexFile>();
+				for (int i = files.length; i > 0; i--) {
+					IndexFile f = files[i - 1];
 					if (f.isTimeMatched(begin, end)) {
-						f.selectPhyOffset(phyOffsets, this.buildKey(topic, key), maxNum, begin, end, lastFile);
+						matchedFiles.add(f);
 					}
 
 					if (f.getBeginTimestamp() < begin) {
 						break;
 					}
+				}
 
-					if (phyOffsets.size() >= maxNum) {
-						break;
+				final String indexKey = this.buildKey(topic, key);
+				if (matchedFiles.size() > 1 && this.queryExecutor != null) {
+					this.selectPhyOffsetParallel(matchedFiles, phyOffsets, indexKey, maxNum, begin, end);
+				} else {
+					for (IndexFile f : matchedFiles) {
+						f.selectPhyOffset(phyOffsets, indexKey, maxNum, begin, end, f == lastFile);
+						if (phyOffsets.size() >= maxNum) {
+							break;
+						}
 					}
 				}
 			}
 		} catch (Exception e) {
 			log.error("queryMsg exception", e);
-		} finally {
-			this.readWriteLock.readLock().unlock();
 		}
 
 		return new QueryOffsetResult(phyOffsets, indexLastUpdateTimestamp, indexLastUpdatePhyoffset);
 	}
 
+	/**
+	 * Search every file on the query pool, results are merged newest file
+	 * first, so the offsets kept under maxNum are those a sequential scan finds
+	 */
+	private void selectPhyOffsetParallel(final List<IndexFile> files, final List<Long> phyOffsets, final String key,
+			final int maxNum, final long begin, final long end) {
+		List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>(files.size());
+		for (final IndexFile f : files) {
+			futures.add(this.queryExecutor.submit(new Callable<List<Long>>() {
+				@Override
+				public List<Long> call() throws Exception {
+					List<Long> result = new ArrayList<Long>();
+					f.selectPhyOffset(result, key, maxNum, begin, end, false);
+					return result;
+				}
+			}));
+		}
+
+		for (Future<List<Long>> future : futures) {
+			if (phyOffsets.size() >= maxNum) {
+				future.cancel(false);
+				continue;
+			}
+
+			try {
+				List<Long> result = future.get();
+				for (int i = 0; i < result.size() && phyOffsets.size() < maxNum; i++) {
+					phyOffsets.add(result.get(i));
+				}
+			} catch (Exception e) {
+				log.error("selectPhyOffset in parallel exception", e);
+			}
+		}
+	}
+
 	private String buildKey(final String topic, final String key) {
 		return topic + "#" + key;
 	}
@@ -219,22 +274,25 @@ public class IndexService {
 
 			if (keys != null && keys.length() > 0) {
 				String[] keyset = keys.split(MessageConst.KEY_SEPARATOR);
+				List<String> indexKeys = new ArrayList<String>(keyset.length);
 				for (String key : keyset) {
 					if (key.length() > 0) {
-						for (boolean ok = indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-								msg.getStoreTimestamp()); !ok;) {
-							log.warn("index file full, so create another one, " + indexFile.getFileName());
-							indexFile = retryGetAndCreateIndexFile();
-							if (null == indexFile) {
-								breakdown = true;
-								return;
-							}
-
-							ok = indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-									msg.getStoreTimestamp());
-						}
+						indexKeys.add(buildKey(topic, key));
 					}
 				}
+
+				String[] indexKeyArray = indexKeys.toArray(new String[indexKeys.size()]);
+				int from = indexFile.putKeys(indexKeyArray, 0, msg.getCommitLogOffset(), msg.getStoreTimestamp());
+				while (from < indexKeyArray.length) {
+					log.warn("index file full, so create another one, " + indexFile.getFileName());
+					indexFile = retryGetAndCreateIndexFile();
+					if (null == indexFile) {
+						breakdown = true;
+						return;
+					}
+
+					from += indexFile.putKeys(indexKeyArray, from, msg.getCommitLogOffset(), msg.getStoreTimestamp());
+				}
 			}
 		} else {
 			log.error("build index error, stop building index");
@@ -322,25 +380,33 @@ public class IndexService {
 			return;
 
 		long indexMsgTimestamp = 0;
+		long indexOffset = 0;
 
 		if (f.isWriteFull()) {
 			indexMsgTimestamp = f.getEndTimestamp();
+			indexOffset = f.getEndPhyOffset();
 		}
 
 		f.flush();
 
 		if (indexMsgTimestamp > 0) {
 			this.defaultMessageStore.getStoreCheckpoint().setIndexMsgTimestamp(indexMsgTimestamp);
+			this.defaultMessageStore.getStoreCheckpoint().setIndexOffset(indexOffset);
 			this.defaultMessageStore.getStoreCheckpoint().flush();
 		}
 	}
 
 	public void start() {
-
+		int threadNums = this.defaultMessageStore.getMessageStoreConfig().getIndexQueryThreadNums();
+		if (threadNums > 1) {
+			this.queryExecutor = Executors.newFixedThreadPool(threadNums, new ThreadFactoryImpl("IndexQueryThread_"));
+		}
 	}
 
 	public void shutdown() {
-
+		if (this.queryExecutor != null) {
+			this.queryExecutor.shutdown();
+		}
 	}
 
 }
\ No newline at end of file
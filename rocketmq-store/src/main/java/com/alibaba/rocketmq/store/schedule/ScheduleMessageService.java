@@ -17,6 +17,7 @@
 package com.alibaba.rocketmq.store.schedule;
 
 import com.alibaba.rocketmq.common.ConfigManager;
+import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.TopicFilterType;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageAccessor;
@@ -29,8 +30,10 @@ import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -50,6 +53,8 @@ public class ScheduleMessageService extends ConfigManager {
             new ConcurrentHashMap<Integer, Long>(32);
     private final ConcurrentHashMap<Integer /* level */, Long/* offset */> offsetTable =
             new ConcurrentHashMap<Integer, Long>(32);
+    private final ConcurrentHashMap<Integer /* level */, DeliverDelayedMessageService> deliverServiceTable =
+            new ConcurrentHashMap<Integer, DeliverDelayedMessageService>(32);
     private final Timer timer = new Timer("ScheduleMessageTimerThread", true);
     private final DefaultMessageStore defaultMessageStore;
     private int maxDelayLevel;
@@ -70,6 +75,13 @@ public class ScheduleMessageService extends ConfigManager {
             String value = String.format("%d,%d", delayOffset, maxOffset);
             String key = String.format("%s_%d", RunningStats.scheduleMessageOffset.name(), next.getKey());
             stats.put(key, value);
+
+            // messages behind, and how late the oldest due one is
+            DeliverDelayedMessageService service = this.deliverServiceTable.get(next.getKey());
+            long lagMillis = service != null ? service.getLagMillis() : 0;
+            value = String.format("%d,%d", Math.max(0, maxOffset - delayOffset), lagMillis);
+            key = String.format("%s_%d", RunningStats.scheduleMessageLag.name(), next.getKey());
+            stats.put(key, value);
         }
     }
 
@@ -108,7 +120,9 @@ public class ScheduleMessageService extends ConfigManager {
             }
 
             if (timeDelay != null) {
-                this.timer.schedule(new DeliverDelayedMessageTimerTask(level, offset), FIRST_DELAY_TIME);
+                DeliverDelayedMessageService service = new DeliverDelayedMessageService(level, timeDelay, offset);
+                this.deliverServiceTable.put(level, service);
+                service.start();
             }
         }
 
@@ -129,6 +143,10 @@ public class ScheduleMessageService extends ConfigManager {
 
     public void shutdown() {
         this.timer.cancel();
+        for (DeliverDelayedMessageService service : this.deliverServiceTable.values()) {
+            service.shutdown();
+        }
+        this.persist();
     }
 
 
@@ -208,33 +226,58 @@ public class ScheduleMessageService extends ConfigManager {
         return true;
     }
 
-    class DeliverDelayedMessageTimerTask extends TimerTask {
+    class DeliverDelayedMessageService extends ServiceThread {
         private final int delayLevel;
-        private final long offset;
+        private final long delayTimeMillis;
+        private long offset;
+        // how late the first due message of the last batch was delivered
+        private volatile long lagMillis = 0;
 
 
-        public DeliverDelayedMessageTimerTask(int delayLevel, long offset) {
+        public DeliverDelayedMessageService(int delayLevel, long delayTimeMillis, long offset) {
             this.delayLevel = delayLevel;
+            this.delayTimeMillis = delayTimeMillis;
             this.offset = offset;
+            this.thread.setName(this.getServiceName() + "_" + delayLevel);
         }
 
 
         @Override
         public void run() {
-            try {
-                this.executeOnTimeup();
-            }
-            catch (Exception e) {
-                log.error("ScheduleMessageService, executeOnTimeup exception", e);
-                ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
-                    this.delayLevel, this.offset), DELAY_FOR_A_PERIOD);
+            log.info(this.thread.getName() + " service started");
+
+            this.waitForRunning(FIRST_DELAY_TIME);
+            while (!this.isStoped()) {
+                try {
+                    long waitMillis = this.deliverBatch();
+                    if (waitMillis > 0) {
+                        this.waitForRunning(waitMillis);
+                    }
+                }
+                catch (Exception e) {
+                    log.error("ScheduleMessageService, deliverBatch exception", e);
+                    this.waitForRunning(DELAY_FOR_A_PERIOD);
+                }
             }
+
+            log.info(this.thread.getName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return DeliverDelayedMessageService.class.getSimpleName();
+        }
+
+
+        public long getLagMillis() {
+            return lagMillis;
         }
 
 
         private long correctDeliverTimestamp(final long now, final long deliverTimestamp) {
             long result = deliverTimestamp;
-            long maxTimestamp = now + ScheduleMessageService.this.delayLevelTable.get(this.delayLevel);
+            long maxTimestamp = now + this.delayTimeMillis;
             if (deliverTimestamp > maxTimestamp) {
                 result = now;
             }
@@ -243,96 +286,100 @@ public class ScheduleMessageService extends ConfigManager {
         }
 
 
-        public void executeOnTimeup() {
+        /**
+         * Deliver the due messages of at most one batch of ConsumeQueue units
+         *
+         * @return milliseconds to wait before the next batch, 0 to go on at once
+         */
+        private long deliverBatch() {
             ConsumeQueue cq =
                     ScheduleMessageService.this.defaultMessageStore.findConsumeQueue(SCHEDULE_TOPIC,
                         delayLevel2QueueId(delayLevel));
+            if (null == cq) {
+                return DELAY_FOR_A_WHILE;
+            }
 
-            long failScheduleOffset = offset;
-
-            if (cq != null) {
-                SelectMapedBufferResult bufferCQ = cq.getIndexBuffer(this.offset);
-                if (bufferCQ != null) {
-                    try {
-                        long nextOffset = offset;
-                        int i = 0;
-                        for (; i < bufferCQ.getSize(); i += ConsumeQueue.CQStoreUnitSize) {
-                            long offsetPy = bufferCQ.getByteBuffer().getLong();
-                            int sizePy = bufferCQ.getByteBuffer().getInt();
-                            long tagsCode = bufferCQ.getByteBuffer().getLong();
-
-                            long now = System.currentTimeMillis();
-                            long deliverTimestamp = this.correctDeliverTimestamp(now, tagsCode);
-
-                            nextOffset = offset + (i / ConsumeQueue.CQStoreUnitSize);
-
-                            long countdown = deliverTimestamp - now;
-                            if (countdown <= 0) {
-                                MessageExt msgExt =
-                                        ScheduleMessageService.this.defaultMessageStore.lookMessageByOffset(
-                                            offsetPy, sizePy);
-
-                                if (msgExt != null) {
-                                    try {
-                                        MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
-                                        PutMessageResult putMessageResult =
-                                                ScheduleMessageService.this.defaultMessageStore
-                                                    .putMessage(msgInner);
-                                        if (putMessageResult != null
-                                                && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
-                                            continue;
-                                        }
-                                        else {
-                                            log.error(
-                                                "ScheduleMessageService, a message time up, but reput it failed, topic: {} msgId {}",
-                                                msgExt.getTopic(), msgExt.getMsgId());
-                                            ScheduleMessageService.this.timer.schedule(
-                                                new DeliverDelayedMessageTimerTask(this.delayLevel,
-                                                    nextOffset), DELAY_FOR_A_PERIOD);
-                                            ScheduleMessageService.this.updateOffset(this.delayLevel,
-                                                nextOffset);
-                                            return;
-                                        }
-                                    }
-                                    catch (Exception e) {
-                                        log.error(
-                                            "ScheduleMessageService, messageTimeup execute error, drop it. msgExt="
-                                                    + msgExt + ", nextOffset=" + nextOffset + ",offsetPy="
-                                                    + offsetPy + ",sizePy=" + sizePy, e);
-                                    }
-                                }
-                            }
-                            else {
-                                ScheduleMessageService.this.timer.schedule(
-                                    new DeliverDelayedMessageTimerTask(this.delayLevel, nextOffset),
-                                    countdown);
-                                ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
-                                return;
-                            }
-                        }
+            SelectMapedBufferResult bufferCQ = cq.getIndexBuffer(this.offset);
+            if (null == bufferCQ) {
+                this.lagMillis = 0;
+                long cqMinOffset = cq.getMinOffsetInQuque();
+                if (this.offset < cqMinOffset) {
+                    log.error("schedule CQ offset invalid. offset=" + this.offset + ", cqMinOffset="
+                            + cqMinOffset + ", queueId=" + cq.getQueueId());
+                    this.offset = cqMinOffset;
+                    ScheduleMessageService.this.updateOffset(this.delayLevel, cqMinOffset);
+                }
+                return DELAY_FOR_A_WHILE;
+            }
 
-                        nextOffset = offset + (i / ConsumeQueue.CQStoreUnitSize);
-                        ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
-                            this.delayLevel, nextOffset), DELAY_FOR_A_WHILE);
-                        ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
-                        return;
+            final int batchSize =
+                    ScheduleMessageService.this.defaultMessageStore.getMessageStoreConfig()
+                        .getScheduleDeliverBatchSize();
+            List<MessageExtBrokerInner> messages = new ArrayList<MessageExtBrokerInner>();
+            List<Long> messageOffsets = new ArrayList<Long>();
+            long nextOffset = this.offset;
+            long waitMillis = 0;
+            try {
+                long now = System.currentTimeMillis();
+                this.lagMillis = 0;
+                for (int i = 0; i < bufferCQ.getSize(); i += ConsumeQueue.CQStoreUnitSize) {
+                    if (nextOffset - this.offset >= batchSize) {
+                        break;
                     }
-                    finally {
-                        bufferCQ.release();
+
+                    long offsetPy = bufferCQ.getByteBuffer().getLong();
+                    int sizePy = bufferCQ.getByteBuffer().getInt();
+                    long tagsCode = bufferCQ.getByteBuffer().getLong();
+
+                    long deliverTimestamp = this.correctDeliverTimestamp(now, tagsCode);
+                    long countdown = deliverTimestamp - now;
+                    if (countdown > 0) {
+                        waitMillis = countdown;
+                        break;
                     }
-                } // end of if (bufferCQ != null)
-                else {
-                    long cqMinOffset = cq.getMinOffsetInQuque();
-                    if (offset < cqMinOffset) {
-                        failScheduleOffset = cqMinOffset;
-                        log.error("schedule CQ offset invalid. offset=" + offset + ", cqMinOffset="
-                                + cqMinOffset + ", queueId=" + cq.getQueueId());
+
+                    if (nextOffset == this.offset) {
+                        this.lagMillis = -countdown;
                     }
+
+                    MessageExt msgExt =
+                            ScheduleMessageService.this.defaultMessageStore.lookMessageByOffset(offsetPy, sizePy);
+                    if (msgExt != null) {
+                        try {
+                            messages.add(this.messageTimeup(msgExt));
+                            messageOffsets.add(nextOffset);
+                        }
+                        catch (Exception e) {
+                            log.error("ScheduleMessageService, messageTimeup execute error, drop it. msgExt="
+                                    + msgExt + ", nextOffset=" + nextOffset + ",offsetPy=" + offsetPy
+                                    + ",sizePy=" + sizePy, e);
+                        }
+                    }
+                    nextOffset++;
                 }
-            } // end of if (cq != null)
+            }
+            finally {
+                bufferCQ.release();
+            }
+
+            int putNums = ScheduleMessageService.this.defaultMessageStore.putMessagesInRuns(messages);
+            if (putNums < messages.size()) {
+                log.error("ScheduleMessageService, messages time up, but reput them failed, retry from offset: {}",
+                    messageOffsets.get(putNums));
+                nextOffset = messageOffsets.get(putNums);
+                waitMillis = DELAY_FOR_A_PERIOD;
+            }
+
+            if (nextOffset != this.offset) {
+                this.offset = nextOffset;
+                ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
+                ScheduleMessageService.this.persist();
+            }
+            else if (0 == waitMillis) {
+                waitMillis = DELAY_FOR_A_WHILE;
+            }
 
-            ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(this.delayLevel,
-                failScheduleOffset), DELAY_FOR_A_WHILE);
+            return waitMillis;
         }
 
 
@@ -26,6 +26,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -84,6 +85,9 @@ public class BrokerStatsManager {
 
     private final HashMap<String, StatsItemSet> statsTable = new HashMap<String, StatsItemSet>();
     private final String clusterName;
+    // TOPIC_PUT_NUMS and TOPIC_PUT_SIZE items of a topic, interned when the topic is created
+    private final ConcurrentHashMap<String, StatsItem[]> topicPutStatsItems =
+            new ConcurrentHashMap<String, StatsItem[]>(128);
 
     public static final String GROUP_GET_FALL = "GROUP_GET_FALL";
     private final MomentStatsItemSet momentStatsItemSet = new MomentStatsItemSet(GROUP_GET_FALL, scheduledExecutorService, log);
@@ -148,6 +152,37 @@ public class BrokerStatsManager {
     }
 
 
+    public void registerTopic(final String topic) {
+        this.getTopicPutStatsItems(topic);
+    }
+
+
+    private StatsItem[] getTopicPutStatsItems(final String topic) {
+        StatsItem[] items = this.topicPutStatsItems.get(topic);
+        if (null == items) {
+            items = new StatsItem[] { this.statsTable.get(TOPIC_PUT_NUMS).getAndCreateStatsItem(topic),
+                                     this.statsTable.get(TOPIC_PUT_SIZE).getAndCreateStatsItem(topic) };
+            StatsItem[] prev = this.topicPutStatsItems.putIfAbsent(topic, items);
+            if (prev != null) {
+                items = prev;
+            }
+        }
+        return items;
+    }
+
+
+    /**
+     * incTopicPutNums and incTopicPutSize with one lookup
+     */
+    public void incTopicPut(final String topic, final int size) {
+        StatsItem[] items = this.getTopicPutStatsItems(topic);
+        items[0].getValue().increment();
+        items[0].getTimes().increment();
+        items[1].getValue().add(size);
+        items[1].getTimes().increment();
+    }
+
+
     public void incTopicPutNums(final String topic) {
         this.statsTable.get(TOPIC_PUT_NUMS).addValue(topic, 1, 1);
     }
@@ -171,12 +206,12 @@ public class BrokerStatsManager {
 
 
     public void incBrokerPutNums() {
-        this.statsTable.get(BROKER_PUT_NUMS).getAndCreateStatsItem(this.clusterName).getValue().incrementAndGet();
+        this.statsTable.get(BROKER_PUT_NUMS).getAndCreateStatsItem(this.clusterName).getValue().increment();
     }
 
 
     public void incBrokerGetNums(final int incValue) {
-        this.statsTable.get(BROKER_GET_NUMS).getAndCreateStatsItem(this.clusterName).getValue().addAndGet(incValue);
+        this.statsTable.get(BROKER_GET_NUMS).getAndCreateStatsItem(this.clusterName).getValue().add(incValue);
     }
 
 
@@ -193,7 +228,7 @@ public class BrokerStatsManager {
 
 
     public void incBrokerGetFromDiskNums(final int incValue) {
-        this.statsTable.get(BROKER_GET_FROM_DISK_NUMS).getAndCreateStatsItem(this.clusterName).getValue().addAndGet(incValue);
+        this.statsTable.get(BROKER_GET_FROM_DISK_NUMS).getAndCreateStatsItem(this.clusterName).getValue().add(incValue);
     }
 
 
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.MapedFileQueue;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Append only log of timer entries. Entries of one wheel slot are chained
+ * backwards through their previous position.
+ * <p>
+ * Record layout: 8 bytes previous position (-1 ends the chain), 8 bytes
+ * CommitLog offset, 4 bytes message size, 8 bytes deliver time in
+ * milliseconds, 4 bytes reserved.
+ *
+ * @author shijia.wxr
+ */
+public class TimerLog {
+    public static final int UnitSize = 32;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final MapedFileQueue mapedFileQueue;
+    private final int mapedFileSize;
+    private final ByteBuffer byteBufferIndex;
+    private long writePos = 0;
+
+
+    public TimerLog(final String storePath, final int mapedFileSize) {
+        this.mapedFileSize = mapedFileSize - (mapedFileSize % UnitSize);
+        this.mapedFileQueue = new MapedFileQueue(storePath, this.mapedFileSize, null);
+        this.byteBufferIndex = ByteBuffer.allocate(UnitSize);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load timer log " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * Drop what was written after the wheel snapshot, it is enqueued again
+     */
+    public void truncate(final long pos) {
+        this.mapedFileQueue.setCommittedWhere(pos);
+        this.mapedFileQueue.truncateDirtyFiles(pos);
+        this.writePos = pos;
+    }
+
+
+    /**
+     * Only called by the timer thread
+     *
+     * @return position of the record, -1 if no file could be created
+     */
+    public long append(final long prevPos, final long offsetPy, final int sizePy, final long deliverMs) {
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(this.writePos);
+        if (null == mapedFile) {
+            log.error("create timer log file failed, " + this.writePos);
+            return -1;
+        }
+
+        this.byteBufferIndex.clear();
+        this.byteBufferIndex.putLong(prevPos);
+        this.byteBufferIndex.putLong(offsetPy);
+        this.byteBufferIndex.putInt(sizePy);
+        this.byteBufferIndex.putLong(deliverMs);
+        this.byteBufferIndex.putInt(0);
+
+        long pos = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+        if (!mapedFile.appendMessage(this.byteBufferIndex.array())) {
+            log.error("append timer log failed, " + pos);
+            return -1;
+        }
+
+        this.writePos = pos + UnitSize;
+        return pos;
+    }
+
+
+    /**
+     * @return the record at pos, positioned at its start, null if gone
+     */
+    public ByteBuffer read(final long pos) {
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(pos);
+        if (null == mapedFile) {
+            return null;
+        }
+
+        SelectMapedBufferResult result = mapedFile.selectMapedBuffer((int) (pos % this.mapedFileSize), UnitSize);
+        if (null == result) {
+            return null;
+        }
+
+        try {
+            ByteBuffer record = ByteBuffer.allocate(UnitSize);
+            record.put(result.getByteBuffer());
+            record.flip();
+            return record;
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    public void flush() {
+        this.mapedFileQueue.commit(0);
+    }
+
+
+    /**
+     * Delete the files no live record lives in
+     */
+    public int deleteExpiredFileBefore(final long pos) {
+        return this.mapedFileQueue.deleteExpiredFileBefore(pos);
+    }
+
+
+    public long getWritePos() {
+        return writePos;
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+        this.writePos = 0;
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.TopicFilterType;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.ConsumeQueue;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Delivers messages at an arbitrary second. Messages carrying
+ * TIMER_DELIVER_MS or TIMER_DELAY_SEC are stored on TIMER_TOPIC with the
+ * deliver time as tags code; the timer thread moves their ConsumeQueue
+ * entries into the {@link TimerWheel}, and when a second is due the messages
+ * are restored to their real topic by a pool of delivery threads.
+ * <p>
+ * Deliveries beyond one round of the wheel sit in its last slot and roll
+ * forward until due. Delivery is at least once, what was delivered after the
+ * last wheel snapshot is delivered again after a crash.
+ *
+ * @author shijia.wxr
+ */
+public class TimerMessageStore {
+    public static final String TIMER_TOPIC = "TIMER_TOPIC_XXXX";
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int TimerQueueId = 0;
+    // Deliver inline below this many due messages
+    private static final int DeliverBatchMin = 64;
+    private static final long RetryDelaySec = 10;
+    private final DefaultMessageStore defaultMessageStore;
+    private final TimerLog timerLog;
+    private final TimerWheel timerWheel;
+    private final TimerService timerService = new TimerService();
+    private ExecutorService deliverExecutor;
+    private long lastFlushTimestamp = 0;
+
+
+    public TimerMessageStore(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        String rootDir = defaultMessageStore.getMessageStoreConfig().getStorePathRootDir();
+        this.timerLog = new TimerLog(StorePathConfigHelper.getStorePathTimerLog(rootDir),
+            defaultMessageStore.getMessageStoreConfig().getMapedFileSizeTimerLog());
+        this.timerWheel = new TimerWheel(StorePathConfigHelper.getTimerWheelPath(rootDir),
+            Math.max(2, defaultMessageStore.getMessageStoreConfig().getTimerWheelSlots()));
+    }
+
+
+    public boolean load() {
+        boolean result = this.timerLog.load() && this.timerWheel.load();
+        if (result) {
+            this.timerLog.truncate(this.timerWheel.getLogPos());
+        }
+
+        return result;
+    }
+
+
+    public void start() {
+        if (0 == this.timerWheel.getReadSec()) {
+            this.timerWheel.setReadSec(System.currentTimeMillis() / 1000);
+        }
+
+        this.deliverExecutor = Executors.newFixedThreadPool(
+            Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getTimerDeliverThreadNums()),
+            new ThreadFactoryImpl("TimerDeliverThread_"));
+        this.timerService.start();
+    }
+
+
+    public void shutdown() {
+        this.timerService.shutdown();
+        if (this.deliverExecutor != null) {
+            this.deliverExecutor.shutdown();
+        }
+    }
+
+
+    public void destroy() {
+        this.timerLog.destroy();
+        this.timerWheel.destroy();
+    }
+
+
+    /**
+     * Rounded up, a message is never delivered early
+     */
+    public static long deliverSec(final long deliverMs) {
+        return (deliverMs + 999) / 1000;
+    }
+
+
+    /**
+     * Move the new entries of the timer ConsumeQueue into the wheel
+     */
+    private boolean enqueue() {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TIMER_TOPIC, TimerQueueId);
+        long offset = this.timerWheel.getEnqueueOffset();
+        SelectMapedBufferResult bufferCQ = cq.getIndexBuffer(offset);
+        if (null == bufferCQ) {
+            long cqMinOffset = cq.getMinOffsetInQuque();
+            if (offset < cqMinOffset) {
+                log.error("timer CQ offset invalid, offset {} cqMinOffset {}", offset, cqMinOffset);
+                this.timerWheel.setEnqueueOffset(cqMinOffset);
+            }
+            return false;
+        }
+
+        int count = 0;
+        try {
+            ByteBuffer byteBuffer = bufferCQ.getByteBuffer();
+            for (int i = 0; i < bufferCQ.getSize(); i += ConsumeQueue.CQStoreUnitSize) {
+                long offsetPy = byteBuffer.getLong();
+                int sizePy = byteBuffer.getInt();
+                long deliverMs = byteBuffer.getLong();
+                if (!this.addTimer(offsetPy, sizePy, deliverMs)) {
+                    break;
+                }
+                count++;
+            }
+        }
+        finally {
+            bufferCQ.release();
+        }
+
+        this.timerWheel.setEnqueueOffset(offset + count);
+        return count > 0;
+    }
+
+
+    private boolean addTimer(final long offsetPy, final int sizePy, final long deliverMs) {
+        final long readSec = this.timerWheel.getReadSec();
+        long sec = Math.max(deliverSec(deliverMs), readSec);
+        sec = Math.min(sec, readSec + this.timerWheel.getSlotNums() - 1);
+        long pos = this.timerLog.append(this.timerWheel.getLastPos(sec), offsetPy, sizePy, deliverMs);
+        if (pos < 0) {
+            return false;
+        }
+
+        this.timerWheel.link(sec, pos);
+        return true;
+    }
+
+
+    /**
+     * Deliver the next second if it is due
+     */
+    private boolean dequeue() {
+        final long readSec = this.timerWheel.getReadSec();
+        if (readSec > System.currentTimeMillis() / 1000) {
+            return false;
+        }
+
+        List<TimerRequest> dueList = new ArrayList<TimerRequest>();
+        List<TimerRequest> rollList = new ArrayList<TimerRequest>();
+        long pos = this.timerWheel.getLastPos(readSec);
+        for (int i = this.timerWheel.getCount(readSec); i > 0 && pos >= 0; i--) {
+            ByteBuffer record = this.timerLog.read(pos);
+            if (null == record) {
+                log.error("timer log record lost, second {} position {}", readSec, pos);
+                break;
+            }
+
+            pos = record.getLong();
+            TimerRequest request = new TimerRequest(record.getLong(), record.getInt(), record.getLong());
+            if (deliverSec(request.deliverMs) > readSec) {
+                rollList.add(request);
+            }
+            else {
+                dueList.add(request);
+            }
+        }
+        // chains run backwards
+        Collections.reverse(dueList);
+
+        List<TimerRequest> failedList = this.deliver(dueList);
+
+        this.timerWheel.clear(readSec);
+        this.timerWheel.setReadSec(readSec + 1);
+        for (TimerRequest request : rollList) {
+            this.addTimerOrDrop(request, request.deliverMs);
+        }
+        for (TimerRequest request : failedList) {
+            this.addTimerOrDrop(request, (readSec + RetryDelaySec) * 1000);
+        }
+
+        return true;
+    }
+
+
+    private void addTimerOrDrop(final TimerRequest request, final long deliverMs) {
+        if (!this.addTimer(request.offsetPy, request.sizePy, deliverMs)) {
+            log.error("timer entry dropped, offsetPy {} sizePy {} deliverMs {}", request.offsetPy, request.sizePy,
+                deliverMs);
+        }
+    }
+
+
+    /**
+     * @return requests whose delivery failed
+     */
+    private List<TimerRequest> deliver(final List<TimerRequest> dueList) {
+        int threads = this.defaultMessageStore.getMessageStoreConfig().getTimerDeliverThreadNums();
+        if (dueList.size() < DeliverBatchMin || threads <= 1) {
+            return this.deliverBatch(dueList);
+        }
+
+        List<Future<List<TimerRequest>>> futures = new ArrayList<Future<List<TimerRequest>>>(threads);
+        List<List<TimerRequest>> batches = new ArrayList<List<TimerRequest>>(threads);
+        int batchSize = (dueList.size() + threads - 1) / threads;
+        for (int from = 0; from < dueList.size(); from += batchSize) {
+            final List<TimerRequest> batch = dueList.subList(from, Math.min(dueList.size(), from + batchSize));
+            batches.add(batch);
+            futures.add(this.deliverExecutor.submit(new Callable<List<TimerRequest>>() {
+                @Override
+                public List<TimerRequest> call() throws Exception {
+                    return TimerMessageStore.this.deliverBatch(batch);
+                }
+            }));
+        }
+
+        List<TimerRequest> failedList = new ArrayList<TimerRequest>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                failedList.addAll(futures.get(i).get());
+            }
+            catch (Exception e) {
+                log.error("timer deliver batch exception, retry it", e);
+                failedList.addAll(batches.get(i));
+            }
+        }
+
+        return failedList;
+    }
+
+
+    /**
+     * Consecutive messages of one queue go back in a single putMessages
+     */
+    private List<TimerRequest> deliverBatch(final List<TimerRequest> requests) {
+        List<TimerRequest> putRequests = new ArrayList<TimerRequest>(requests.size());
+        List<MessageExtBrokerInner> messages = new ArrayList<MessageExtBrokerInner>(requests.size());
+        for (TimerRequest request : requests) {
+            MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(request.offsetPy, request.sizePy);
+            if (null == msgExt) {
+                log.warn("timer message not found, maybe removed, offsetPy {} sizePy {}", request.offsetPy,
+                    request.sizePy);
+                continue;
+            }
+
+            try {
+                messages.add(this.messageTimeup(msgExt));
+                putRequests.add(request);
+            }
+            catch (Exception e) {
+                log.error("timer messageTimeup error, drop it. msgExt=" + msgExt, e);
+            }
+        }
+
+        // Those behind a failed run are retried as well, keeping their order
+        int putNums = this.defaultMessageStore.putMessagesInRuns(messages);
+        return new ArrayList<TimerRequest>(putRequests.subList(putNums, putRequests.size()));
+    }
+
+
+    private MessageExtBrokerInner messageTimeup(final MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELAY_SEC);
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgExt.getSysFlag());
+        msgInner.setTagsCode(MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags()));
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+
+        msgInner.setSysFlag(msgExt.getSysFlag());
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+        msgInner.setWaitStoreMsgOK(false);
+
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+        msgInner.setQueueId(Integer.parseInt(msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID)));
+
+        return msgInner;
+    }
+
+
+    /**
+     * Flush the log first, the snapshot must only point at durable records
+     */
+    private void checkpoint() {
+        this.timerLog.flush();
+        this.timerWheel.setLogPos(this.timerLog.getWritePos());
+        this.timerWheel.persist();
+
+        long minLivePos = this.timerWheel.getMinLivePos();
+        this.timerLog.deleteExpiredFileBefore(minLivePos < 0 ? this.timerLog.getWritePos() : minLivePos);
+    }
+
+
+    public long getEnqueueOffset() {
+        return this.timerWheel.getEnqueueOffset();
+    }
+
+
+    public long getReadSec() {
+        return this.timerWheel.getReadSec();
+    }
+
+
+    static class TimerRequest {
+        final long offsetPy;
+        final int sizePy;
+        final long deliverMs;
+
+
+        TimerRequest(final long offsetPy, final int sizePy, final long deliverMs) {
+            this.offsetPy = offsetPy;
+            this.sizePy = sizePy;
+            this.deliverMs = deliverMs;
+        }
+    }
+
+
+    class TimerService extends ServiceThread {
+        @Override
+        public void run() {
+            log.info(this.getServiceName() + " service started");
+
+            final int flushInterval = TimerMessageStore.this.defaultMessageStore.getMessageStoreConfig()
+                .getTimerFlushInterval();
+            while (!this.isStoped()) {
+                try {
+                    boolean busy = TimerMessageStore.this.enqueue();
+                    busy = TimerMessageStore.this.dequeue() || busy;
+
+                    long now = System.currentTimeMillis();
+                    if (now - TimerMessageStore.this.lastFlushTimestamp >= flushInterval) {
+                        TimerMessageStore.this.lastFlushTimestamp = now;
+                        TimerMessageStore.this.checkpoint();
+                    }
+
+                    if (!busy) {
+                        this.waitForRunning(100);
+                    }
+                }
+                catch (Exception e) {
+                    log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            TimerMessageStore.this.checkpoint();
+            log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return TimerService.class.getSimpleName();
+        }
+    }
+}
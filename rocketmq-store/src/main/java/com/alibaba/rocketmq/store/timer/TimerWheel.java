@@ -0,0 +1,302 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store.timer;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MapedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * One slot per second, a slot keeps the second it holds and both ends of its
+ * chain in the {@link TimerLog}. Seconds in [readSec, readSec + slotNums)
+ * never share a slot, so a slot holding another second is simply empty.
+ * <p>
+ * Slots live on heap and are saved as a whole snapshot, together with the
+ * timer progress, by writing a new file and renaming it. The log is flushed
+ * before, so the snapshot never points at records lost in a crash.
+ *
+ * @author shijia.wxr
+ */
+public class TimerWheel {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final int MagicCode = 0x71E3A1EE;
+    // magic, slot count, enqueue offset, read second, log position, live slots
+    private static final int HeaderSize = 4 + 4 + 8 + 8 + 8 + 4;
+    // second, first position, last position, count
+    private static final int SlotUnitSize = 8 + 8 + 8 + 4;
+    private final String path;
+    private int slotNums;
+    private long[] slotSecs;
+    private long[] firstPositions;
+    private long[] lastPositions;
+    private int[] slotCounts;
+    private long enqueueOffset = 0;
+    private long readSec = 0;
+    private long logPos = 0;
+
+
+    public TimerWheel(final String path, final int slotNums) {
+        this.path = path;
+        this.init(slotNums);
+    }
+
+
+    private void init(final int slotNums) {
+        this.slotNums = slotNums;
+        this.slotSecs = new long[slotNums];
+        this.firstPositions = new long[slotNums];
+        this.lastPositions = new long[slotNums];
+        this.slotCounts = new int[slotNums];
+    }
+
+
+    public boolean load() {
+        File file = new File(this.path);
+        if (!file.exists()) {
+            log.info("timer wheel not exists, start empty, " + this.path);
+            return true;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            ByteBuffer byteBuffer = ByteBuffer.allocate((int) randomAccessFile.length());
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            while (byteBuffer.hasRemaining() && fileChannel.read(byteBuffer) >= 0) {
+            }
+            byteBuffer.flip();
+
+            if (byteBuffer.remaining() < HeaderSize || byteBuffer.getInt() != MagicCode) {
+                log.error("illegal timer wheel " + this.path);
+                return false;
+            }
+
+            int savedSlotNums = byteBuffer.getInt();
+            if (savedSlotNums != this.slotNums) {
+                // live seconds were spread by the old count, keep it
+                log.warn("timer wheel slots {} differ from config {}, keep {}", savedSlotNums, this.slotNums,
+                    savedSlotNums);
+                this.init(savedSlotNums);
+            }
+
+            this.enqueueOffset = byteBuffer.getLong();
+            this.readSec = byteBuffer.getLong();
+            this.logPos = byteBuffer.getLong();
+            int liveSlots = byteBuffer.getInt();
+            for (int i = 0; i < liveSlots; i++) {
+                long sec = byteBuffer.getLong();
+                int slot = this.slotOf(sec);
+                this.slotSecs[slot] = sec;
+                this.firstPositions[slot] = byteBuffer.getLong();
+                this.lastPositions[slot] = byteBuffer.getLong();
+                this.slotCounts[slot] = byteBuffer.getInt();
+            }
+
+            log.info("load timer wheel OK, enqueueOffset {} readSec {} logPos {} liveSlots {}", this.enqueueOffset,
+                this.readSec, this.logPos, liveSlots);
+            return true;
+        }
+        catch (Exception e) {
+            log.error("load timer wheel exception, " + this.path, e);
+            return false;
+        }
+        finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+    }
+
+
+    public void persist() {
+        int liveSlots = 0;
+        for (int i = 0; i < this.slotNums; i++) {
+            if (this.isLive(i)) {
+                liveSlots++;
+            }
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(HeaderSize + liveSlots * SlotUnitSize);
+        byteBuffer.putInt(MagicCode);
+        byteBuffer.putInt(this.slotNums);
+        byteBuffer.putLong(this.enqueueOffset);
+        byteBuffer.putLong(this.readSec);
+        byteBuffer.putLong(this.logPos);
+        byteBuffer.putInt(liveSlots);
+        for (int i = 0; i < this.slotNums; i++) {
+            if (this.isLive(i)) {
+                byteBuffer.putLong(this.slotSecs[i]);
+                byteBuffer.putLong(this.firstPositions[i]);
+                byteBuffer.putLong(this.lastPositions[i]);
+                byteBuffer.putInt(this.slotCounts[i]);
+            }
+        }
+        byteBuffer.flip();
+
+        File file = new File(this.path);
+        File tmpFile = new File(this.path + ".tmp");
+        MapedFile.ensureDirOK(file.getParent());
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+            randomAccessFile.setLength(0);
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            while (byteBuffer.hasRemaining()) {
+                fileChannel.write(byteBuffer);
+            }
+            fileChannel.force(true);
+            randomAccessFile.close();
+            randomAccessFile = null;
+
+            if (!tmpFile.renameTo(file)) {
+                log.error("rename timer wheel failed, " + this.path);
+            }
+        }
+        catch (IOException e) {
+            log.error("persist timer wheel exception, " + this.path, e);
+        }
+        finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+    }
+
+
+    private boolean isLive(final int slot) {
+        return this.slotSecs[slot] >= this.readSec && this.slotCounts[slot] > 0;
+    }
+
+
+    private int slotOf(final long sec) {
+        return (int) (sec % this.slotNums);
+    }
+
+
+    /**
+     * @return last position in the chain of sec, -1 if empty
+     */
+    public long getLastPos(final long sec) {
+        int slot = this.slotOf(sec);
+        return this.slotSecs[slot] == sec && this.slotCounts[slot] > 0 ? this.lastPositions[slot] : -1;
+    }
+
+
+    public int getCount(final long sec) {
+        int slot = this.slotOf(sec);
+        return this.slotSecs[slot] == sec ? this.slotCounts[slot] : 0;
+    }
+
+
+    /**
+     * Link a record appended with getLastPos(sec) as its previous position
+     */
+    public void link(final long sec, final long pos) {
+        int slot = this.slotOf(sec);
+        if (this.slotSecs[slot] != sec || 0 == this.slotCounts[slot]) {
+            this.slotSecs[slot] = sec;
+            this.firstPositions[slot] = pos;
+            this.slotCounts[slot] = 0;
+        }
+
+        this.lastPositions[slot] = pos;
+        this.slotCounts[slot]++;
+    }
+
+
+    public void clear(final long sec) {
+        int slot = this.slotOf(sec);
+        if (this.slotSecs[slot] == sec) {
+            this.slotCounts[slot] = 0;
+        }
+    }
+
+
+    /**
+     * @return the oldest position still chained, -1 if the wheel is empty
+     */
+    public long getMinLivePos() {
+        long min = -1;
+        for (int i = 0; i < this.slotNums; i++) {
+            if (this.isLive(i) && (min < 0 || this.firstPositions[i] < min)) {
+                min = this.firstPositions[i];
+            }
+        }
+
+        return min;
+    }
+
+
+    public int getSlotNums() {
+        return slotNums;
+    }
+
+
+    public long getEnqueueOffset() {
+        return enqueueOffset;
+    }
+
+
+    public void setEnqueueOffset(long enqueueOffset) {
+        this.enqueueOffset = enqueueOffset;
+    }
+
+
+    public long getReadSec() {
+        return readSec;
+    }
+
+
+    public void setReadSec(long readSec) {
+        this.readSec = readSec;
+    }
+
+
+    public long getLogPos() {
+        return logPos;
+    }
+
+
+    public void setLogPos(long logPos) {
+        this.logPos = logPos;
+    }
+
+
+    public void destroy() {
+        new File(this.path).delete();
+        this.init(this.slotNums);
+        this.enqueueOffset = 0;
+        this.readSec = 0;
+        this.logPos = 0;
+    }
+}
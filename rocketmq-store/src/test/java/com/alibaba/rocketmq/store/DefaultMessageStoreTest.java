@@ -17,17 +17,46 @@
 
 package com.alibaba.rocketmq.store;
 
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.common.running.RunningStats;
+import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.timer.TimerLog;
+import com.alibaba.rocketmq.store.timer.TimerMessageStore;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -43,6 +72,16 @@ public class DefaultMessageStoreTest {
 
     private static final String StoreMessage = "Once, there was a chance for me!";
 
+    // Stores built by newStore, destroyed after each test
+    private final Map<String, DefaultMessageStore> stores = new LinkedHashMap<String, DefaultMessageStore>();
+    private final Map<String, BrokerConfig> brokerConfigs = new LinkedHashMap<String, BrokerConfig>();
+    // HA tests: a slave with no data starts from the last file of its master
+    private static final int HaMapedFileSizeCommitLog = 1024 * 1024 * 1024;
+
+    interface StoreConfigurer {
+        void configure(final MessageStoreConfig messageStoreConfig, final BrokerConfig brokerConfig);
+    }
+
 
     public MessageExtBrokerInner buildMessage() {
         MessageExtBrokerInner msg = new MessageExtBrokerInner();
@@ -74,6 +113,116 @@ public class DefaultMessageStoreTest {
     }
 
 
+    @After
+    public void destroyStores() {
+        for (Map.Entry<String, DefaultMessageStore> entry : this.stores.entrySet()) {
+            entry.getValue().shutdown();
+            entry.getValue().destroy();
+            deleteFile(new File(storePath(entry.getKey())));
+        }
+        this.stores.clear();
+        this.brokerConfigs.clear();
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteFile(child);
+            }
+        }
+        file.delete();
+    }
+
+
+    private static String storePath(final String name) {
+        return System.getProperty("java.io.tmpdir") + File.separator + "unit_test_" + name;
+    }
+
+
+    /**
+     * A store under tmpdir with 64K CommitLog files, neither loaded nor
+     * started
+     */
+    private DefaultMessageStore createStore(final String name, final StoreConfigurer configurer) throws Exception {
+        String storePath = storePath(name);
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setDiskFallRecorded(false);
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+
+        if (configurer != null) {
+            configurer.configure(messageStoreConfig, brokerConfig);
+        }
+
+        this.brokerConfigs.put(name, brokerConfig);
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, null, null, brokerConfig);
+        this.stores.put(name, store);
+        return store;
+    }
+
+
+    private DefaultMessageStore newStore(final String name, final StoreConfigurer configurer) throws Exception {
+        DefaultMessageStore store = this.createStore(name, configurer);
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+
+    /**
+     * Open the files of a store shut down before, neither loaded nor started
+     */
+    private DefaultMessageStore reopenStore(final String name) throws Exception {
+        DefaultMessageStore store = new DefaultMessageStore(this.stores.get(name).getMessageStoreConfig(), null,
+            null, this.brokerConfigs.get(name));
+        this.stores.put(name, store);
+        return store;
+    }
+
+
+    /**
+     * Topic AAA, tags TAG1, queue 0
+     */
+    private static MessageExtBrokerInner newMessage() {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("AAA");
+        msg.setTags("TAG1");
+        msg.setBody(StoreMessage.getBytes());
+        msg.setKeys(String.valueOf(System.currentTimeMillis()));
+        msg.setQueueId(0);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+
+        return msg;
+    }
+
+
+    private static void putMessage(final MessageStore store, final MessageExtBrokerInner msg) {
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertEquals(PutMessageStatus.PUT_OK, store.putMessage(msg).getPutMessageStatus());
+    }
+
+
+    /**
+     * Wait up to 10 s for the queue to be dispatched up to maxOffset
+     */
+    private static void waitForQueue(final MessageStore store, final String topic, final int queueId,
+            final long maxOffset) throws InterruptedException {
+        for (int i = 0; i < 100 && store.getMaxOffsetInQuque(topic, queueId) < maxOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(maxOffset, store.getMaxOffsetInQuque(topic, queueId));
+    }
+
+
     @Test
     public void test_write_read() throws Exception {
         System.out.println("================================================================");
@@ -167,4 +316,819 @@ public class DefaultMessageStoreTest {
         master.destroy();
         System.out.println("================================================================");
     }
+
+
+    private static void assertQueueOrdered(final MessageStore master, final long total) {
+        long offset = 0;
+        while (offset < total) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            for (ByteBuffer bb : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(bb);
+                assertEquals(offset, msg.getQueueOffset());
+                offset++;
+            }
+            result.release();
+        }
+    }
+
+
+    @Test
+    public void test_lock_free_append() throws Exception {
+        final int threadNum = 8;
+        final int msgsPerThread = 1000;
+        final DefaultMessageStore master = this.newStore("lock_free_append", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setLockFreeAppendEnable(true);
+            }
+        });
+
+        final AtomicInteger failed = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadNum];
+        for (int t = 0; t < threadNum; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < msgsPerThread; i++) {
+                        MessageExtBrokerInner msg = newMessage();
+                        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                        PutMessageResult result = master.putMessage(msg);
+                        if (result.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failed.get());
+
+        final long total = threadNum * msgsPerThread;
+        waitForQueue(master, "AAA", 0, total);
+        StoreStatsService storeStatsService = master.getStoreStatsService();
+        assertEquals(total, storeStatsService.getSinglePutMessageTopicTimesTotal("AAA"));
+        assertEquals(total, storeStatsService.getPutMessageTimesTotal());
+        assertQueueOrdered(master, total);
+    }
+
+
+    @Test
+    public void test_put_messages() throws Exception {
+        final int batchNum = 200;
+        final int batchSize = 10;
+        DefaultMessageStore master = this.newStore("put_messages", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+            }
+        });
+
+        for (int b = 0; b < batchNum; b++) {
+            List<MessageExtBrokerInner> msgs = new ArrayList<MessageExtBrokerInner>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                MessageExtBrokerInner msg = newMessage();
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                msgs.add(msg);
+            }
+
+            PutMessageResult result = master.putMessages(new MessageExtBatch(msgs));
+            assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            assertEquals(batchSize, result.getAppendMessageResult().getMsgNum());
+            assertEquals((long) b * batchSize, result.getAppendMessageResult().getLogicsOffset());
+        }
+
+        final long total = batchNum * batchSize;
+        waitForQueue(master, "AAA", 0, total);
+        assertQueueOrdered(master, total);
+    }
+
+
+    @Test
+    public void test_async_put_message() throws Exception {
+        final int totalMsgs = 2000;
+        DefaultMessageStore master = this.newStore("async_put_message", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+            }
+        });
+
+        // Issue every put before waiting, so group commits are shared
+        List<CompletableFuture<PutMessageResult>> futures = new ArrayList<CompletableFuture<PutMessageResult>>();
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            futures.add(master.asyncPutMessage(msg));
+        }
+
+        for (int i = 0; i < totalMsgs; i++) {
+            PutMessageResult result = futures.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(PutMessageStatus.PUT_OK, result.getPutMessageStatus());
+            assertEquals(i, result.getAppendMessageResult().getLogicsOffset());
+        }
+    }
+
+
+    @Test
+    public void test_sharded_dispatch() throws Exception {
+        final int queueNums = 8;
+        final int msgsPerQueue = 200;
+        DefaultMessageStore master = this.newStore("sharded_dispatch", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setDispatchConsumeQueueThreadNums(4);
+            }
+        });
+
+        for (int i = 0; i < queueNums * msgsPerQueue; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setQueueId(i % queueNums);
+            putMessage(master, msg);
+        }
+
+        for (int queueId = 0; queueId < queueNums; queueId++) {
+            waitForQueue(master, "AAA", queueId, msgsPerQueue);
+        }
+    }
+
+
+    @Test
+    public void test_commit_log_dispatcher() throws Exception {
+        final int totalMsgs = 1000;
+        final AtomicLong inlineLastOffset = new AtomicLong(-1);
+        final AtomicInteger inlineCount = new AtomicInteger(0);
+        final AtomicInteger threadedCount = new AtomicInteger(0);
+        DefaultMessageStore master = this.createStore("commit_log_dispatcher", null);
+        master.registerDispatcher(new CommitLogDispatcher() {
+            @Override
+            public void dispatch(DispatchRequest request) {
+                // Delivered in CommitLog order
+                assertTrue(request.getCommitLogOffset() > inlineLastOffset.get());
+                inlineLastOffset.set(request.getCommitLogOffset());
+                inlineCount.incrementAndGet();
+            }
+        }, false);
+        master.registerDispatcher(new CommitLogDispatcher() {
+            @Override
+            public void dispatch(DispatchRequest request) {
+                threadedCount.incrementAndGet();
+            }
+        }, true);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setQueueId(i % 4);
+            putMessage(master, msg);
+        }
+
+        for (int i = 0; i < 100 && (inlineCount.get() < totalMsgs || threadedCount.get() < totalMsgs); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, inlineCount.get());
+        assertEquals(totalMsgs, threadedCount.get());
+    }
+
+
+    @Test
+    public void test_tags_bloom_skip() throws Exception {
+        final int sparseMsgs = 5;
+        final int totalMsgs = 3000 + sparseMsgs;
+        DefaultMessageStore master = this.newStore("tags_bloom_skip", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+                messageStoreConfig.setConsumeQueueTagsBloomEnable(true);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setTopic("BBB");
+            msg.setTags(i < totalMsgs - sparseMsgs ? "TAG1" : "TAG2");
+            putMessage(master, msg);
+        }
+        waitForQueue(master, "BBB", 0, totalMsgs);
+
+        SubscriptionData subscriptionData = new SubscriptionData("BBB", "TAG2");
+        subscriptionData.getTagsSet().add("TAG2");
+        subscriptionData.getCodeSet().add("TAG2".hashCode());
+
+        // The first two blocks hold TAG1 only, the scan starts behind them
+        GetMessageResult result = master.getMessage("GROUP_A", "BBB", 0, 0, 32, subscriptionData);
+        assertEquals(GetMessageStatus.NO_MATCHED_MESSAGE, result.getStatus());
+        assertTrue(result.getNextBeginOffset() >= 2 * ConsumeQueueTagsBloom.BlockUnits);
+        result.release();
+
+        int found = 0;
+        long offset = result.getNextBeginOffset();
+        for (int i = 0; i < 10 && offset < totalMsgs; i++) {
+            result = master.getMessage("GROUP_A", "BBB", 0, offset, 32, subscriptionData);
+            found += result.getMessageCount();
+            offset = result.getNextBeginOffset();
+            result.release();
+        }
+        assertEquals(sparseMsgs, found);
+    }
+
+
+    @Test
+    public void test_recover_abnormally_parallel() throws Exception {
+        final int totalMsgs = 2000;
+        DefaultMessageStore master = this.newStore("recover_parallel", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeConsumeQueue(100 * ConsumeQueue.CQStoreUnitSize);
+                messageStoreConfig.setRecoverThreadNums(4);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setQueueId(i % 4);
+            putMessage(master, msg);
+        }
+        waitForQueue(master, "AAA", 3, totalMsgs / 4);
+        long maxPhyOffset = master.getMaxPhyOffset();
+        master.shutdown();
+
+        // Leave the abort file behind as a crashed broker does
+        assertTrue(new File(StorePathConfigHelper.getAbortFile(storePath("recover_parallel"))).createNewFile());
+
+        master = this.reopenStore("recover_parallel");
+        assertTrue(master.load());
+        assertEquals(maxPhyOffset, master.getMaxPhyOffset());
+        for (int queueId = 0; queueId < 4; queueId++) {
+            assertEquals(totalMsgs / 4, master.getMaxOffsetInQuque("AAA", queueId));
+        }
+        master.start();
+    }
+
+
+    @Test
+    public void test_cold_commit_log() throws Exception {
+        final int totalMsgs = 2000;
+        DefaultMessageStore master = this.newStore("cold_commitlog", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setStorePathColdCommitLog(
+                    messageStoreConfig.getStorePathRootDir() + File.separator + "coldcommitlog");
+                messageStoreConfig.setMapedFileSizeConsumeQueue(100 * ConsumeQueue.CQStoreUnitSize);
+                messageStoreConfig.setFlushConsumeQueueThoroughInterval(0);
+                messageStoreConfig.setColdCommitLogEnable(true);
+                messageStoreConfig.setColdCommitLogFileAge(0);
+                messageStoreConfig.setColdCommitLogBlockSize(1024 * 4);
+                messageStoreConfig.setColdCommitLogBlockCacheNums(4);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("cold-" + i).getBytes());
+            msg.setQueueId(i % 4);
+            putMessage(master, msg);
+        }
+
+        // Files are moved only once the checkpoint covers them
+        long hotMinOffset = master.getMaxPhyOffset() - master.getMaxPhyOffset() % (1024 * 64);
+        for (int i = 0; i < 100 && master.getStoreCheckpoint().getMinOffset(false) < hotMinOffset; i++) {
+            Thread.sleep(100);
+        }
+
+        ColdCommitLog coldCommitLog = master.getCommitLog().getColdCommitLog();
+        assertTrue(coldCommitLog.migrate() > 0);
+        assertEquals(0, coldCommitLog.getMinOffset());
+        assertEquals(0, master.getMinPhyOffset());
+        assertTrue(coldCommitLog.getMaxOffset() > 0);
+
+        for (int queueId = 0; queueId < 4; queueId++) {
+            long offset = 0;
+            while (offset < totalMsgs / 4) {
+                GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, offset, 32, null);
+                assertEquals(GetMessageStatus.FOUND, result.getStatus());
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msg = MessageDecoder.decode(byteBuffer);
+                    assertEquals("cold-" + (offset * 4 + queueId), new String(msg.getBody()));
+                    offset++;
+                }
+                result.release();
+            }
+        }
+    }
+
+
+    @Test
+    public void test_timer_message() throws Exception {
+        final int totalMsgs = 40;
+        DefaultMessageStore master = this.newStore("timer_message", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeConsumeQueue(100 * ConsumeQueue.CQStoreUnitSize);
+                messageStoreConfig.setTimerMessageEnable(true);
+                messageStoreConfig.setTimerWheelSlots(60);
+                messageStoreConfig.setMapedFileSizeTimerLog(TimerLog.UnitSize * 16);
+            }
+        });
+
+        long beginTime = System.currentTimeMillis();
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("timer-" + i).getBytes());
+            msg.setDelayTimeSec(1 + i % 2);
+            putMessage(master, msg);
+        }
+
+        // Nothing shows up in the real topic before it is due, a second after the puts
+        for (int i = 0; i < 50 && master.getMaxOffsetInQuque(TimerMessageStore.TIMER_TOPIC, 0) < totalMsgs; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(totalMsgs, master.getMaxOffsetInQuque(TimerMessageStore.TIMER_TOPIC, 0));
+        assertEquals(0, master.getMaxOffsetInQuque("AAA", 0));
+
+        waitForQueue(master, "AAA", 0, totalMsgs);
+        assertTrue(System.currentTimeMillis() - beginTime >= 1000);
+
+        GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, 0, totalMsgs, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+            MessageExt msg = MessageDecoder.decode(byteBuffer);
+            assertTrue(new String(msg.getBody()).startsWith("timer-"));
+            assertNull(msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS));
+            assertNull(msg.getProperty(MessageConst.PROPERTY_TIMER_DELAY_SEC));
+        }
+        result.release();
+
+        // Too far away
+        MessageExtBrokerInner msg = newMessage();
+        msg.setDelayTimeSec(master.getMessageStoreConfig().getTimerMaxDelaySec() + 60);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertEquals(PutMessageStatus.MESSAGE_ILLEGAL, master.putMessage(msg).getPutMessageStatus());
+    }
+
+
+    @Test
+    public void test_schedule_batch_delivery() throws Exception {
+        final int totalMsgs = 100;
+        DefaultMessageStore master = this.newStore("schedule_batch", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeConsumeQueue(100 * ConsumeQueue.CQStoreUnitSize);
+                messageStoreConfig.setMessageDelayLevel("1s 2s");
+                messageStoreConfig.setScheduleDeliverBatchSize(8);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("delay-" + i).getBytes());
+            msg.setQueueId(i % 2);
+            msg.setDelayTimeLevel(1 + i % 2);
+            putMessage(master, msg);
+        }
+
+        for (int queueId = 0; queueId < 2; queueId++) {
+            waitForQueue(master, "AAA", queueId, totalMsgs / 2);
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", queueId, 0, totalMsgs, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            int index = queueId;
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(byteBuffer);
+                assertEquals("delay-" + index, new String(msg.getBody()));
+                index += 2;
+            }
+            result.release();
+        }
+
+        // Progress is saved at batch boundaries
+        HashMap<String, String> runtimeInfo = master.getRuntimeInfo();
+        assertEquals("50,50", runtimeInfo.get(RunningStats.scheduleMessageOffset.name() + "_1"));
+        assertTrue(runtimeInfo.get(RunningStats.scheduleMessageLag.name() + "_2").startsWith("0,"));
+        String persisted = MixAll.file2String(master.getScheduleMessageService().configFilePath());
+        assertTrue(persisted.contains("50"));
+    }
+
+
+    @Test
+    public void test_query_message_parallel() throws Exception {
+        final int totalMsgs = 60;
+        DefaultMessageStore master = this.newStore("index_query", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeConsumeQueue(100 * ConsumeQueue.CQStoreUnitSize);
+                messageStoreConfig.setMaxHashSlotNum(16);
+                messageStoreConfig.setMaxIndexNum(21);
+                messageStoreConfig.setIndexQueryThreadNums(4);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("index-" + i).getBytes());
+            msg.setKeys("SameKey Key" + i);
+            putMessage(master, msg);
+            // index files are named by the millisecond they are created in
+            Thread.sleep(2);
+        }
+
+        for (int i = 0; i < 100 && master.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // two keys a message, ten messages an index file
+        QueryMessageResult result = master.queryMessage("AAA", "SameKey", 64, 0, Long.MAX_VALUE);
+        assertEquals(totalMsgs, result.getMessageBufferList().size());
+        result.release();
+
+        result = master.queryMessage("AAA", "SameKey", 8, 0, Long.MAX_VALUE);
+        assertEquals(8, result.getMessageBufferList().size());
+        result.release();
+
+        result = master.queryMessage("AAA", "Key7", 64, 0, Long.MAX_VALUE);
+        assertEquals(1, result.getMessageBufferList().size());
+        assertEquals("index-7", new String(MessageDecoder.decode(result.getMessageBufferList().get(0)).getBody()));
+        result.release();
+    }
+
+
+    @Test
+    public void test_offset_by_time_index() throws Exception {
+        final int totalMsgs = 200;
+        DefaultMessageStore master = this.newStore("time_index", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeConsumeQueue(64 * ConsumeQueue.CQStoreUnitSize);
+                messageStoreConfig.setConsumeQueueTimeIndexEnable(true);
+                messageStoreConfig.setConsumeQueueTimeIndexInterval(8);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            putMessage(master, newMessage());
+            if (i % 10 == 0) {
+                Thread.sleep(3);
+            }
+        }
+        waitForQueue(master, "AAA", 0, totalMsgs);
+        assertTrue(new File(StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(storePath("time_index")))
+            .exists());
+
+        long[] storeTimestamps = new long[totalMsgs];
+        for (int i = 0; i < totalMsgs; i++) {
+            storeTimestamps[i] = master.getMessageStoreTimeStamp("AAA", 0, i);
+        }
+
+        List<Long> timestamps = new ArrayList<Long>();
+        timestamps.add(storeTimestamps[0] - 1000);
+        timestamps.add(storeTimestamps[totalMsgs - 1] + 1000);
+        for (int i = 0; i < totalMsgs; i += 7) {
+            timestamps.add(storeTimestamps[i]);
+            timestamps.add(storeTimestamps[i] + 1);
+        }
+
+        for (long timestamp : timestamps) {
+            long minDistance = Long.MAX_VALUE;
+            for (long storeTimestamp : storeTimestamps) {
+                minDistance = Math.min(minDistance, Math.abs(storeTimestamp - timestamp));
+            }
+
+            long offset = master.getOffsetInQueueByTime("AAA", 0, timestamp);
+            assertEquals(minDistance, Math.abs(storeTimestamps[(int) offset] - timestamp));
+        }
+    }
+
+
+    @Test
+    public void test_consume_queue_ext() throws Exception {
+        final int totalMsgs = 100;
+        DefaultMessageStore master = this.newStore("cq_ext", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setConsumeQueueExtEnable(true);
+                // units do not fill a file exactly, some roll over
+                messageStoreConfig.setMapedFileSizeConsumeQueueExt(1000);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setTags(i % 4 == 0 ? "TAG2" : "TAG1");
+            msg.putUserProperty("region", "r" + (i % 2));
+            putMessage(master, msg);
+        }
+        waitForQueue(master, "AAA", 0, totalMsgs);
+        assertTrue(new File(StorePathConfigHelper.getStorePathConsumeQueueExt(storePath("cq_ext"))).exists());
+
+        SubscriptionData subscriptionData = new SubscriptionData("AAA", "TAG2");
+        subscriptionData.getTagsSet().add("TAG2");
+        subscriptionData.getCodeSet().add("TAG2".hashCode());
+
+        int found = 0;
+        long offset = 0;
+        while (offset < totalMsgs) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, subscriptionData);
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(byteBuffer);
+                assertEquals("TAG2", msg.getTags());
+                assertEquals(msg.getStoreTimestamp(),
+                    master.getMessageStoreTimeStamp("AAA", 0, msg.getQueueOffset()));
+                found++;
+            }
+            offset = result.getNextBeginOffset();
+            result.release();
+        }
+        assertEquals(totalMsgs / 4, found);
+
+        ConsumeQueue consumeQueue = master.findConsumeQueue("AAA", 0);
+        SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(1);
+        long tagsCode = bufferConsumeQueue.getByteBuffer().getLong(8 + 4);
+        bufferConsumeQueue.release();
+        assertTrue(ConsumeQueueExt.isExtAddr(tagsCode));
+
+        ConsumeQueueExt.CqExtUnit extUnit = consumeQueue.getExt(tagsCode);
+        assertEquals("TAG1".hashCode(), extUnit.getTagsCode());
+        assertTrue(extUnit.mayContain(MessageConst.PROPERTY_TAGS, "TAG1"));
+        assertTrue(extUnit.mayContain("region", "r1"));
+    }
+
+
+    @Test
+    public void test_recover_lost_ext_units() throws Exception {
+        final int totalMsgs = 100;
+        DefaultMessageStore master = this.newStore("cq_ext_recover", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setConsumeQueueExtEnable(true);
+                messageStoreConfig.setMapedFileSizeConsumeQueueExt(1000);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setTags(i % 4 == 0 ? "TAG2" : "TAG1");
+            putMessage(master, msg);
+        }
+        waitForQueue(master, "AAA", 0, totalMsgs);
+        master.shutdown();
+
+        // The entries were written back, the units of the last ext file were not
+        File[] extFiles = new File(StorePathConfigHelper.getStorePathConsumeQueueExt(storePath("cq_ext_recover"))
+                + File.separator + "AAA" + File.separator + "0").listFiles();
+        Arrays.sort(extFiles);
+        RandomAccessFile lastExtFile = new RandomAccessFile(extFiles[extFiles.length - 1], "rw");
+        lastExtFile.write(new byte[(int) lastExtFile.length()]);
+        lastExtFile.close();
+        assertTrue(new File(StorePathConfigHelper.getAbortFile(storePath("cq_ext_recover"))).createNewFile());
+
+        master = this.reopenStore("cq_ext_recover");
+        assertTrue(master.load());
+        master.start();
+        waitForQueue(master, "AAA", 0, totalMsgs);
+
+        ConsumeQueue consumeQueue = master.findConsumeQueue("AAA", 0);
+        for (int i = 0; i < totalMsgs; i++) {
+            SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(i);
+            long tagsCode = bufferConsumeQueue.getByteBuffer().getLong(8 + 4);
+            bufferConsumeQueue.release();
+
+            ConsumeQueueExt.CqExtUnit extUnit = consumeQueue.getExt(tagsCode);
+            assertNotNull(extUnit);
+            assertEquals((i % 4 == 0 ? "TAG2" : "TAG1").hashCode(), extUnit.getTagsCode());
+        }
+    }
+
+
+    private DefaultMessageStore startSlave(final String name, final int haListenPort, final String masterAddress)
+            throws Exception {
+        DefaultMessageStore slave = this.newStore(name, new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeCommitLog(HaMapedFileSizeCommitLog);
+                messageStoreConfig.setHaListenPort(haListenPort);
+                messageStoreConfig.setBrokerRole(BrokerRole.SLAVE);
+                brokerConfig.setBrokerId(1);
+            }
+        });
+        slave.updateHaMasterAddress(masterAddress);
+        return slave;
+    }
+
+
+    @Test
+    public void test_ha_transfer() throws Exception {
+        final int totalMsgs = 2000;
+        final DefaultMessageStore master = this.newStore("ha_master", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeCommitLog(HaMapedFileSizeCommitLog);
+                messageStoreConfig.setHaListenPort(10962);
+                messageStoreConfig.setHaTransferBatchSize(1024 * 4);
+                messageStoreConfig.setHaTransferCompressEnable(true);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("HA transfer " + i).getBytes());
+            putMessage(master, msg);
+        }
+
+        // the first half goes compressed, the rest zero copy
+        final long masterMaxOffset = master.getMaxPhyOffset();
+        master.getMessageStoreConfig().setHaTransferCompressLag((int) (masterMaxOffset / 2));
+
+        DefaultMessageStore slave = this.startSlave("ha_slave", 10963, "127.0.0.1:10962");
+        for (int i = 0; i < 300 && slave.getMaxOffsetInQuque("AAA", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(masterMaxOffset, slave.getMaxPhyOffset());
+        assertEquals(totalMsgs, slave.getMaxOffsetInQuque("AAA", 0));
+
+        for (long offset = 0; offset < totalMsgs; offset += 97) {
+            GetMessageResult result = slave.getMessage("GROUP_A", "AAA", 0, offset, 1, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            MessageExt msg = MessageDecoder.decode(result.getMessageBufferList().get(0));
+            assertEquals(offset, msg.getQueueOffset());
+            assertEquals("HA transfer " + offset, new String(msg.getBody()));
+            result.release();
+        }
+    }
+
+
+    @Test
+    public void test_ha_quorum_ack() throws Exception {
+        DefaultMessageStore master = this.newStore("ha_quorum_master", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setMapedFileSizeCommitLog(HaMapedFileSizeCommitLog);
+                messageStoreConfig.setHaListenPort(10972);
+                messageStoreConfig.setBrokerRole(BrokerRole.SYNC_MASTER);
+                messageStoreConfig.setHaSyncReplicas(2);
+            }
+        });
+
+        MessageExtBrokerInner msg = newMessage();
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+        DefaultMessageStore slave1 = this.startSlave("ha_quorum_slave1", 10973, "127.0.0.1:10972");
+        for (int i = 0; i < 100 && master.getHaService().getConnectionCount().get() < 1; i++) {
+            Thread.sleep(100);
+        }
+        // one of two slaves is not a quorum
+        assertEquals(PutMessageStatus.SLAVE_NOT_AVAILABLE, master.putMessage(msg).getPutMessageStatus());
+
+        DefaultMessageStore slave2 = this.startSlave("ha_quorum_slave2", 10974, "127.0.0.1:10972");
+        // slaves report their offset first after a heartbeat interval
+        for (int i = 0; i < 200 && master.getHaService().getQuorumAckOffset().get() < master.getMaxPhyOffset(); i++) {
+            Thread.sleep(100);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(PutMessageStatus.PUT_OK, master.putMessage(msg).getPutMessageStatus());
+        }
+        assertTrue(master.getHaService().getQuorumAckOffset().get() >= master.getMaxPhyOffset());
+        assertTrue(slave1.getMaxPhyOffset() >= master.getMaxPhyOffset()
+                || slave2.getMaxPhyOffset() >= master.getMaxPhyOffset());
+    }
+
+
+    private static void putRecycleMessages(final MessageStore master, final int from, final int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("recycle-" + i).getBytes());
+            putMessage(master, msg);
+        }
+        waitForQueue(master, "AAA", 0, to);
+    }
+
+
+    @Test
+    public void test_commit_log_recycle() throws Exception {
+        final int totalMsgs = 2000;
+        final int mapedFileSize = 1024 * 64;
+        DefaultMessageStore master = this.newStore("commitlog_recycle", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setCommitLogRecycleEnable(true);
+                messageStoreConfig.setPreAllocateMaxFiles(3);
+            }
+        });
+
+        putRecycleMessages(master, 0, totalMsgs);
+        assertTrue(master.getCommitLog().deleteExpiredFile(0, 0, 1000, true) > 3);
+        File recycleDir = new File(StorePathConfigHelper.getStorePathCommitLogRecycle(storePath("commitlog_recycle")));
+        assertEquals(3, recycleDir.listFiles().length);
+
+        // new files are taken from the recycled ones, old messages in them are overwritten
+        putRecycleMessages(master, totalMsgs, totalMsgs * 2);
+        assertEquals(0, recycleDir.listFiles().length);
+        for (long offset = totalMsgs; offset < totalMsgs * 2;) {
+            GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, offset, 32, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(byteBuffer);
+                assertEquals("recycle-" + offset, new String(msg.getBody()));
+                offset++;
+            }
+            result.release();
+        }
+
+        long maxPhyOffset = master.getMaxPhyOffset();
+        master.shutdown();
+        // the files allocated ahead are kept for the next start
+        assertTrue(recycleDir.listFiles().length > 0);
+
+        // a recycled file ready for the next roll, holding messages of another offset
+        String storePathCommitLog = master.getMessageStoreConfig().getStorePathCommitLog();
+        File[] commitLogFiles = new File(storePathCommitLog).listFiles();
+        File staleFile = new File(storePathCommitLog,
+            UtilAll.offset2FileName(maxPhyOffset - maxPhyOffset % mapedFileSize + mapedFileSize));
+        Files.copy(commitLogFiles[0].toPath(), staleFile.toPath());
+
+        master = this.reopenStore("commitlog_recycle");
+        assertTrue(master.load());
+        master.start();
+        assertEquals(maxPhyOffset, master.getMaxPhyOffset());
+        assertEquals(totalMsgs * 2, master.getMaxOffsetInQuque("AAA", 0));
+    }
+
+
+    @Test
+    public void test_adaptive_flush() throws Exception {
+        DefaultMessageStore master = this.newStore("adaptive_flush", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                messageStoreConfig.setFlushCommitLogAdaptive(true);
+                messageStoreConfig.setFlushCommitLogChunkSize(1024 * 8);
+                messageStoreConfig.setFlushCommitLogMaxDelay(200);
+                // the timed flush would wait for a whole file
+                messageStoreConfig.setFlushCommitLogLeastPages(16);
+                messageStoreConfig.setFlushIntervalCommitLog(1000 * 60);
+            }
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            putMessage(master, newMessage());
+        }
+
+        // the tail below a chunk is flushed once it waited for the max delay
+        for (int i = 0; i < 20 && master.getStoreCheckpoint().getPhysicOffset() < master.getMaxPhyOffset(); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(master.getMaxPhyOffset(), master.getStoreCheckpoint().getPhysicOffset());
+    }
+
+
+    @Test
+    public void test_recover_after_chunked_flush() throws Exception {
+        final int totalMsgs = 500;
+        DefaultMessageStore master = this.newStore("chunked_flush_recover", new StoreConfigurer() {
+            @Override
+            public void configure(MessageStoreConfig messageStoreConfig, BrokerConfig brokerConfig) {
+                // page aligned chunk ends fall inside messages of a single file
+                messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+                messageStoreConfig.setFlushCommitLogAdaptive(true);
+                messageStoreConfig.setFlushCommitLogChunkSize(MapedFile.OS_PAGE_SIZE);
+                // the tail below a chunk stays dirty
+                messageStoreConfig.setFlushCommitLogMaxDelay(1000 * 60);
+                messageStoreConfig.setFlushConsumeQueueThoroughInterval(0);
+            }
+        });
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = newMessage();
+            msg.setBody(("chunked-" + i).getBytes());
+            putMessage(master, msg);
+        }
+        waitForQueue(master, "AAA", 0, totalMsgs);
+
+        // dispatch is ahead of the flush, recovery starts at the flush checkpoint
+        final long maxPhyOffset = master.getMaxPhyOffset();
+        StoreCheckpoint storeCheckpoint = master.getStoreCheckpoint();
+        for (int i = 0; i < 100 && storeCheckpoint.getLogicsOffset() < maxPhyOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(maxPhyOffset, storeCheckpoint.getLogicsOffset());
+        assertTrue(storeCheckpoint.getPhysicOffset() < maxPhyOffset);
+        master.shutdown();
+
+        // Leave the abort file behind as a crashed broker does
+        assertTrue(new File(StorePathConfigHelper.getAbortFile(storePath("chunked_flush_recover"))).createNewFile());
+
+        master = this.reopenStore("chunked_flush_recover");
+        assertTrue(master.load());
+        master.start();
+        assertEquals(maxPhyOffset, master.getMaxPhyOffset());
+        assertEquals(totalMsgs, master.getMaxOffsetInQuque("AAA", 0));
+
+        GetMessageResult result = master.getMessage("GROUP_A", "AAA", 0, totalMsgs - 1, 1, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        assertEquals("chunked-" + (totalMsgs - 1),
+            new String(MessageDecoder.decode(result.getMessageBufferList().get(0)).getBody()));
+        result.release();
+    }
 }
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class FileDeleteThrottleTest {
+
+    private static File createFile(final String name, final int size) throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir") + File.separator + "unit_test_" + name);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(size);
+        randomAccessFile.close();
+        return file;
+    }
+
+
+    @Test
+    public void test_delete_within_budget() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathCommitLog(System.getProperty("java.io.tmpdir"));
+        messageStoreConfig.setDeleteCommitLogBytesPerSecond(1024 * 1024 * 4);
+        messageStoreConfig.setDeleteCommitLogChunkSize(1024 * 1024);
+        FileDeleteThrottle throttle = new FileDeleteThrottle(messageStoreConfig, new StoreStatsService());
+        assertTrue(throttle.isEnable());
+
+        File file = createFile("delete_throttle", 1024 * 1024 * 2);
+        long beginTime = System.currentTimeMillis();
+        assertTrue(throttle.delete(file));
+        assertTrue(System.currentTimeMillis() - beginTime >= 450);
+        assertFalse(file.exists());
+
+        throttle.setUrgent(true);
+        file = createFile("delete_throttle", 1024 * 1024 * 2);
+        beginTime = System.currentTimeMillis();
+        assertTrue(throttle.delete(file));
+        assertTrue(System.currentTimeMillis() - beginTime < 450);
+        assertFalse(file.exists());
+    }
+
+
+    @Test
+    public void test_delete_in_background() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathCommitLog(System.getProperty("java.io.tmpdir"));
+        messageStoreConfig.setDeleteCommitLogBytesPerSecond(1024 * 1024 * 4);
+        messageStoreConfig.setDeleteCommitLogChunkSize(1024 * 1024);
+        FileDeleteThrottle throttle = new FileDeleteThrottle(messageStoreConfig, new StoreStatsService());
+        throttle.start();
+
+        File file = createFile("delete_background", 1024 * 1024 * 2);
+        long beginTime = System.currentTimeMillis();
+        throttle.putRequest(file);
+        assertTrue(System.currentTimeMillis() - beginTime < 100);
+        for (int i = 0; i < 50 && file.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(file.exists());
+
+        // queued files are deleted at full speed on shutdown
+        file = createFile("delete_background", 1024 * 1024 * 8);
+        throttle.putRequest(file);
+        beginTime = System.currentTimeMillis();
+        throttle.shutdown();
+        assertTrue(System.currentTimeMillis() - beginTime < 1000);
+        assertFalse(file.exists());
+    }
+
+
+    @Test
+    public void test_back_off_on_slow_put() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathCommitLog(System.getProperty("java.io.tmpdir"));
+        messageStoreConfig.setDeleteCommitLogBytesPerSecond(1024 * 1024 * 8);
+        messageStoreConfig.setDeleteCommitLogChunkSize(1024 * 1024);
+        messageStoreConfig.setDeleteBackoffPutLatency(10);
+        messageStoreConfig.setDeleteBackoffMaxTime(300);
+        final StoreStatsService storeStatsService = new StoreStatsService();
+        FileDeleteThrottle throttle = new FileDeleteThrottle(messageStoreConfig, storeStatsService);
+
+        Thread slowPuts = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    storeStatsService.getPutMessageLatency().record(100L * 1000 * 1000);
+                    try {
+                        Thread.sleep(20);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        slowPuts.start();
+
+        File file = createFile("delete_backoff", 1024 * 1024 * 4);
+        long beginTime = System.currentTimeMillis();
+        assertTrue(throttle.delete(file));
+        // 500 ms of budget, chunks after the first wait out their backoff
+        assertTrue(System.currentTimeMillis() - beginTime >= 1200);
+        assertFalse(file.exists());
+
+        slowPuts.interrupt();
+        slowPuts.join();
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LatencyHistogramTest {
+
+    private static void assertClose(final long expected, final long actual) {
+        assertTrue(expected + " vs " + actual, Math.abs(expected - actual) <= expected / 16 + 1);
+    }
+
+
+    @Test
+    public void test_percentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        long[] counts = histogram.snapshot();
+        assertClose(50000, LatencyHistogram.percentile(counts, 50));
+        assertClose(99000, LatencyHistogram.percentile(counts, 99));
+        assertClose(99900, LatencyHistogram.percentile(counts, 99.9));
+        assertEquals(100000, LatencyHistogram.percentile(counts, 100));
+        assertEquals(0, LatencyHistogram.percentile(LatencyHistogram.subtract(counts, counts), 50));
+    }
+
+
+    @Test
+    public void test_window_max() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] windowStart = histogram.snapshotAndResetMax();
+        histogram.record(100000L * 1000);
+        histogram.record(2000L * 1000);
+
+        long[] counts = histogram.snapshotAndResetMax();
+        long[] window = LatencyHistogram.subtract(counts, windowStart);
+        assertEquals(100000, LatencyHistogram.percentile(window, 100));
+        windowStart = counts;
+
+        // the slow put of the first window does not carry over
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000L * 1000);
+        }
+        histogram.record(1500L * 1000);
+        counts = histogram.snapshotAndResetMax();
+        window = LatencyHistogram.subtract(counts, windowStart);
+        assertEquals(1500, LatencyHistogram.percentile(window, 100));
+        assertClose(1000, LatencyHistogram.percentile(window, 99));
+        assertTrue(LatencyHistogram.toPercentileString(window).endsWith(",1500"));
+
+        // the max was reset since, the top of the highest bucket stands in
+        window = LatencyHistogram.subtract(histogram.snapshot(), windowStart);
+        assertClose(1500, LatencyHistogram.percentile(window, 100));
+    }
+
+
+    @Test
+    public void test_record_concurrently() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(7000);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] counts = histogram.snapshot();
+        long total = 0;
+        for (int i = 0; i < counts.length - 1; i++) {
+            total += counts[i];
+        }
+        assertEquals(80000, total);
+        assertEquals(7, LatencyHistogram.percentile(counts, 50));
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class LibCTest {
+
+    @After
+    public void tearDown() {
+        LibC.setEnable(false);
+    }
+
+
+    @Test
+    public void test_memory_hints() throws Exception {
+        LibC.setEnable(true);
+        assertEquals(LibC.isAvailable(), LibC.isEnable());
+
+        // without JNA every hint is a no-op failing with -1
+        final int expected = LibC.isAvailable() ? 0 : -1;
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(MapedFile.OS_PAGE_SIZE * 4);
+        assertEquals(expected, LibC.madvise(byteBuffer, 0, byteBuffer.capacity(), LibC.MADV_WILLNEED));
+        assertEquals(-1, LibC.madvise(ByteBuffer.allocate(16), 0, 16, LibC.MADV_WILLNEED));
+
+        File file = new File(System.getProperty("java.io.tmpdir") + File.separator + "unit_test_libc");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            assertEquals(expected, LibC.fallocate(randomAccessFile.getFD(), MapedFile.OS_PAGE_SIZE));
+        }
+        finally {
+            randomAccessFile.close();
+            file.delete();
+        }
+
+        MapedFile mapedFile = new MapedFile("./unit_test_store/libc/00000000000000000000", 1024 * 64);
+        assertEquals(LibC.isAvailable(), mapedFile.mlock());
+        assertEquals(LibC.isAvailable(), mapedFile.isMlocked());
+        mapedFile.munlock();
+        assertFalse(mapedFile.isMlocked());
+        assertEquals(expected, mapedFile.madvise(0, 1024 * 64, LibC.MADV_WILLNEED));
+        assertEquals(-1, mapedFile.madvise(1024, 1024 * 64, LibC.MADV_WILLNEED));
+        assertEquals(LibC.isAvailable(), mapedFile.adviseDontNeed());
+        assertFalse(mapedFile.adviseDontNeed());
+
+        // the file works the same either way
+        assertTrue(mapedFile.appendMessage("Once, there was a chance for me!".getBytes()));
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+    }
+}
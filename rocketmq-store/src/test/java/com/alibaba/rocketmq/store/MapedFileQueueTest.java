@@ -213,4 +213,26 @@ public class MapedFileQueueTest {
         System.out.println("MapedFileQueue.getMapedMemorySize() OK");
     }
 
+
+    @Test
+    public void test_adviseColdMapedFiles() {
+        LibC.setEnable(true);
+        MapedFileQueue mapedFileQueue = new MapedFileQueue("./unit_test_store/e/", 1024, null);
+        for (int i = 0; i < 4; i++) {
+            MapedFile mapedFile = mapedFileQueue.getLastMapedFile();
+            assertTrue(mapedFile != null);
+            assertTrue(mapedFile.appendMessage(new byte[1024]));
+        }
+
+        // locked files are left alone, advised files are not advised again
+        boolean locked = mapedFileQueue.getMapedFiles().get(0).mlock();
+        int expected = LibC.isEnable() ? (locked ? 2 : 3) : 0;
+        assertEquals(expected, mapedFileQueue.adviseColdMapedFiles(1024 * 3 + 1));
+        assertEquals(0, mapedFileQueue.adviseColdMapedFiles(1024 * 3 + 1));
+        assertEquals(LibC.isEnable() ? 1 : 0, mapedFileQueue.adviseColdMapedFiles(1024 * 4));
+
+        LibC.setEnable(false);
+        mapedFileQueue.shutdown(1000);
+        mapedFileQueue.destroy();
+    }
 }
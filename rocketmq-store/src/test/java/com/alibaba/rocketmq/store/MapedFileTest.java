@@ -20,6 +20,7 @@
  */
 package com.alibaba.rocketmq.store;
 
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
@@ -27,6 +28,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -77,6 +80,49 @@ public class MapedFileTest {
         }
     }
 
+    @Test
+    public void test_transient_store_pool() throws IOException {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setTransientStorePoolSize(1);
+        TransientStorePool transientStorePool = new TransientStorePool(messageStoreConfig);
+        transientStorePool.init();
+
+        MapedFile mapedFile = new MapedFile("./unit_test_store/MapedFileTest/001", 1024 * 64, transientStorePool);
+        assertEquals(0, transientStorePool.remainBufferNumbs());
+        assertTrue(mapedFile.appendMessage(StoreMessage.getBytes()));
+
+        // Not visible before write back
+        assertNull(mapedFile.selectMapedBuffer(0));
+
+        assertEquals(StoreMessage.length(), mapedFile.writeBack(0));
+        SelectMapedBufferResult selectMapedBufferResult = mapedFile.selectMapedBuffer(0);
+        byte[] data = new byte[StoreMessage.length()];
+        selectMapedBufferResult.getByteBuffer().get(data);
+        assertEquals(StoreMessage, new String(data));
+        selectMapedBufferResult.release();
+
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+        assertEquals(1, transientStorePool.remainBufferNumbs());
+        transientStorePool.destroy();
+    }
+
+    @Test
+    public void test_commit_chunk() throws IOException {
+        MapedFile mapedFile = new MapedFile("./unit_test_store/MapedFileTest/002", 1024 * 64);
+        byte[] data = new byte[1024 * 20];
+        assertTrue(mapedFile.appendMessage(data));
+
+        // Ends of partial flushes are page aligned
+        assertEquals(MapedFile.OS_PAGE_SIZE * 2, mapedFile.commit(0, MapedFile.OS_PAGE_SIZE * 2 + 100));
+        assertEquals(MapedFile.OS_PAGE_SIZE * 3, mapedFile.commit(0, 100));
+        assertEquals(data.length, mapedFile.commit(0, Integer.MAX_VALUE));
+
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+    }
+
     @Ignore
     public void test_jvm_crashed() {
         try {
@@ -20,10 +20,14 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 
@@ -64,4 +68,40 @@ public class StoreCheckpointTest {
         }
 
     }
+
+
+    @Test
+    public void test_offset_slot() throws Exception {
+        String path = "./a/b/0001";
+        new File(path).delete();
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint(path);
+        storeCheckpoint.setPhysicOffset(4096);
+        storeCheckpoint.setLogicsOffset(2048);
+        storeCheckpoint.setIndexOffset(1024);
+        storeCheckpoint.flush();
+        storeCheckpoint.setPhysicOffset(8192);
+        storeCheckpoint.setLogicsOffset(6144);
+        storeCheckpoint.flush();
+        storeCheckpoint.shutdown();
+
+        storeCheckpoint = new StoreCheckpoint(path);
+        assertEquals(8192, storeCheckpoint.getPhysicOffset());
+        assertEquals(6144, storeCheckpoint.getLogicsOffset());
+        assertEquals(6144, storeCheckpoint.getMinOffset(false));
+        assertEquals(1024, storeCheckpoint.getMinOffset(true));
+        storeCheckpoint.setPhysicOffset(12288);
+        storeCheckpoint.shutdown();
+
+        // a torn write of the latest slot falls back to the other one
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.seek(64 + 40);
+        file.writeLong(0);
+        file.close();
+
+        storeCheckpoint = new StoreCheckpoint(path);
+        assertEquals(8192, storeCheckpoint.getPhysicOffset());
+        assertEquals(6144, storeCheckpoint.getLogicsOffset());
+        storeCheckpoint.shutdown();
+        new File(path).delete();
+    }
 }
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TagsCodeFilterTest {
+
+    private static SubscriptionData buildSubscriptionData(final int codeNums, final Random random) {
+        SubscriptionData subscriptionData = new SubscriptionData("TopicTest", "TagA");
+        for (int i = 0; i < codeNums; i++) {
+            subscriptionData.getCodeSet().add(random.nextInt(1000) - 500);
+        }
+        return subscriptionData;
+    }
+
+
+    @Test
+    public void test_same_as_default_filter() {
+        Random random = new Random(0);
+        DefaultMessageFilter defaultFilter = new DefaultMessageFilter();
+        for (int codeNums : new int[] { 1, 3, 8, 9, 64 }) {
+            SubscriptionData subscriptionData = buildSubscriptionData(codeNums, random);
+            TagsCodeFilter tagsCodeFilter = new TagsCodeFilter(subscriptionData);
+            for (long tagsCode = -600; tagsCode < 600; tagsCode++) {
+                assertEquals(defaultFilter.isMessageMatched(subscriptionData, tagsCode),
+                    tagsCodeFilter.isMatched(tagsCode));
+            }
+        }
+    }
+
+
+    @Test
+    public void test_match_all() {
+        assertTrue(new TagsCodeFilter(null).isMatchAll());
+        assertTrue(new TagsCodeFilter(new SubscriptionData("TopicTest", SubscriptionData.SUB_ALL)).isMatched(12345));
+    }
+}
@@ -25,6 +25,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -83,4 +84,27 @@ public class IndexFileTest {
             assertTrue(false);
         }
     }
+
+
+    @Test
+    public void test_put_keys() throws Exception {
+        IndexFile indexFile = new IndexFile("300", hashSlotNum, indexNum, 0, 0);
+
+        String[] keys = new String[indexNum];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + (i % 150);
+        }
+
+        // the first index unit is never used
+        assertEquals(indexNum - 1, indexFile.putKeys(keys, 0, 100, System.currentTimeMillis()));
+        assertTrue(indexFile.isWriteFull());
+        assertEquals(0, indexFile.putKeys(keys, indexNum - 1, 200, System.currentTimeMillis()));
+
+        final List<Long> phyOffsets = new ArrayList<Long>();
+        indexFile.selectPhyOffset(phyOffsets, "key60", 10, 0, Long.MAX_VALUE, true);
+        assertEquals(3, phyOffsets.size());
+        assertEquals(Long.valueOf(100), phyOffsets.get(0));
+
+        indexFile.destroy(0);
+    }
 }